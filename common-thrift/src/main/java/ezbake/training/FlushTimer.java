@@ -0,0 +1,74 @@
+/*   Copyright (C) 2013-2014 Computer Sciences Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. */
+
+package ezbake.training;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Runs the timed flush check of a buffering pipeline worker on a daemon thread, so that buffered data is sent within
+ * about the flush interval even when no new data arrives to trigger a flush.
+ *
+ * The check runs every quarter of the flush interval, which keeps the worst case staleness close to the configured
+ * bound. It should flush only when the oldest buffered item has waited for the interval. A check that fails is logged
+ * and the timer keeps running, so that later flushes are still attempted.
+ */
+public class FlushTimer {
+    private static final Logger logger = LoggerFactory.getLogger(FlushTimer.class);
+
+    private final ScheduledExecutorService scheduler;
+
+    /**
+     * Starts the timer.
+     *
+     * @param threadName Name of the timer thread
+     * @param flushIntervalMilliseconds The worker's flush interval
+     * @param check Flushes the worker's buffer if it is due
+     */
+    public FlushTimer(final String threadName, long flushIntervalMilliseconds, final Runnable check) {
+        scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, threadName);
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+
+        long checkPeriod = Math.max(1L, flushIntervalMilliseconds / 4);
+        scheduler.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    check.run();
+                } catch (RuntimeException e) {
+                    logger.error("An error occurred during a timed flush on {}", threadName, e);
+                }
+            }
+        }, checkPeriod, checkPeriod, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stops the timer. A check already running is allowed to finish.
+     */
+    public void stop() {
+        scheduler.shutdown();
+    }
+}
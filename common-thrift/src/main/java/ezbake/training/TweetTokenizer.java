@@ -0,0 +1,340 @@
+/*   Copyright (C) 2013-2014 Computer Sciences Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. */
+
+package ezbake.training;
+
+/**
+ * Splits tweet text into tokens by scanning it in place.
+ *
+ * Unlike a {@link java.text.BreakIterator}, the tokenizer understands the structure of tweets: a URL, an @mention, a
+ * #hashtag or an emoji sequence (including skin tone modifiers, joined sequences and flags) is a single token instead
+ * of a run of word and punctuation fragments. Words keep inner apostrophes ("don't") and inner separators of numbers
+ * ("3.14", "1,000"). Whitespace and other punctuation separate tokens and are never returned.
+ *
+ * A tokenizer is reused for any number of texts and a token is described by its span in the text, so tokenizing
+ * allocates nothing. {@link #intern()} returns the current token as a string from a small cache of recent tokens, so
+ * the frequent words of a stream are not copied again for every tweet.
+ *
+ * A tokenizer is not thread safe.
+ */
+public class TweetTokenizer {
+    /**
+     * The kinds of token found in tweets.
+     */
+    public enum TokenType {
+        WORD, URL, MENTION, HASHTAG, EMOJI
+    }
+
+    private static final int DEFAULT_CACHE_SIZE = 4096;
+
+    private static final int ZERO_WIDTH_JOINER = 0x200D;
+    private static final int VARIATION_SELECTOR = 0xFE0F;
+    private static final int KEYCAP = 0x20E3;
+
+    private final String[] cache;
+    private final int cacheMask;
+
+    private String text = "";
+    private int position;
+    private int start;
+    private int end;
+    private TokenType type;
+
+    public TweetTokenizer() {
+        this(DEFAULT_CACHE_SIZE);
+    }
+
+    /**
+     * @param cacheSize The number of recent tokens {@link #intern()} keeps. Rounded up to a power of two.
+     */
+    public TweetTokenizer(int cacheSize) {
+        int size = Integer.highestOneBit(Math.max(cacheSize, 2) - 1) << 1;
+        cache = new String[size];
+        cacheMask = size - 1;
+    }
+
+    /**
+     * Starts tokenizing a new text.
+     *
+     * @param text The tweet text
+     * @return this tokenizer
+     */
+    public TweetTokenizer reset(String text) {
+        this.text = text != null ? text : "";
+        position = 0;
+        start = 0;
+        end = 0;
+        type = null;
+        return this;
+    }
+
+    /**
+     * Advances to the next token.
+     *
+     * @return true if there is a token, false at the end of the text
+     */
+    public boolean next() {
+        int length = text.length();
+        while (position < length) {
+            int codePoint = text.codePointAt(position);
+            int afterFirst = position + Character.charCount(codePoint);
+            start = position;
+
+            boolean urlInitial = codePoint == 'h' || codePoint == 'H' || codePoint == 'w' || codePoint == 'W';
+            if (urlInitial && isUrlStart(position)) {
+                end = trimTrailingPunctuation(start, scanUntilWhitespace(position));
+                type = TokenType.URL;
+            } else if ((codePoint == '@' || codePoint == '\uFF20') && !followsWordCharacter(position)
+                    && afterFirst < length && isNameCharacter(text.codePointAt(afterFirst))) {
+                end = scanName(afterFirst);
+                type = TokenType.MENTION;
+            } else if ((codePoint == '#' || codePoint == '\uFF03') && !followsWordCharacter(position)
+                    && afterFirst < length && isNameCharacter(text.codePointAt(afterFirst))) {
+                end = scanName(afterFirst);
+                type = TokenType.HASHTAG;
+            } else if (isEmoji(codePoint) || isKeycapSequence(position)) {
+                end = scanEmoji(position);
+                type = TokenType.EMOJI;
+            } else if (isWordCharacter(codePoint)) {
+                end = scanWord(afterFirst);
+                type = TokenType.WORD;
+            } else {
+                position = afterFirst;
+                continue;
+            }
+
+            position = end;
+            return true;
+        }
+
+        type = null;
+        return false;
+    }
+
+    /**
+     * @return the type of the current token
+     */
+    public TokenType type() {
+        return type;
+    }
+
+    /**
+     * @return the offset of the current token's first character in the text
+     */
+    public int start() {
+        return start;
+    }
+
+    /**
+     * @return the offset just after the current token's last character in the text
+     */
+    public int end() {
+        return end;
+    }
+
+    /**
+     * @return the number of characters in the current token
+     */
+    public int length() {
+        return end - start;
+    }
+
+    /**
+     * @return the text being tokenized
+     */
+    public String text() {
+        return text;
+    }
+
+    /**
+     * @return a new string holding the current token
+     */
+    public String token() {
+        return text.substring(start, end);
+    }
+
+    /**
+     * Gets the current token from the cache of recent tokens, copying it out of the text only when it is not cached.
+     *
+     * @return a string holding the current token
+     */
+    public String intern() {
+        int hash = 0;
+        for (int i = start; i < end; i++) {
+            hash = 31 * hash + text.charAt(i);
+        }
+        int slot = (hash ^ (hash >>> 16)) & cacheMask;
+
+        String cached = cache[slot];
+        if (cached != null && cached.length() == end - start && text.regionMatches(start, cached, 0, end - start)) {
+            return cached;
+        }
+        String token = text.substring(start, end);
+        cache[slot] = token;
+        return token;
+    }
+
+    private boolean isUrlStart(int offset) {
+        return text.regionMatches(true, offset, "http://", 0, 7)
+                || text.regionMatches(true, offset, "https://", 0, 8)
+                || (text.regionMatches(true, offset, "www.", 0, 4) && !followsWordCharacter(offset));
+    }
+
+    private int scanUntilWhitespace(int offset) {
+        int length = text.length();
+        while (offset < length) {
+            int codePoint = text.codePointAt(offset);
+            if (Character.isWhitespace(codePoint) || Character.isSpaceChar(codePoint)) {
+                break;
+            }
+            offset += Character.charCount(codePoint);
+        }
+        return offset;
+    }
+
+    /**
+     * Drops punctuation that ends a sentence or closes a parenthesis from the end of a URL.
+     */
+    private int trimTrailingPunctuation(int from, int to) {
+        while (to > from) {
+            char last = text.charAt(to - 1);
+            if (".,;:!?)]}\"'\u2019\u201D".indexOf(last) < 0) {
+                break;
+            }
+            to--;
+        }
+        return to;
+    }
+
+    private int scanName(int offset) {
+        int length = text.length();
+        while (offset < length) {
+            int codePoint = text.codePointAt(offset);
+            if (!isNameCharacter(codePoint)) {
+                break;
+            }
+            offset += Character.charCount(codePoint);
+        }
+        return offset;
+    }
+
+    /**
+     * Scans a word: letters, digits and combining marks, with apostrophes between letters and periods or commas
+     * between digits.
+     */
+    private int scanWord(int offset) {
+        int length = text.length();
+        while (offset < length) {
+            int codePoint = text.codePointAt(offset);
+            if (isWordCharacter(codePoint)) {
+                offset += Character.charCount(codePoint);
+                continue;
+            }
+
+            int next = offset + 1 < length ? text.codePointAt(offset + 1) : -1;
+            int previous = text.codePointBefore(offset);
+            boolean innerApostrophe = (codePoint == '\'' || codePoint == '\u2019') && Character.isLetter(next)
+                    && Character.isLetter(previous);
+            boolean innerSeparator = (codePoint == '.' || codePoint == ',') && Character.isDigit(next)
+                    && Character.isDigit(previous);
+            if (!innerApostrophe && !innerSeparator) {
+                break;
+            }
+            offset++;
+        }
+        return offset;
+    }
+
+    /**
+     * Scans an emoji sequence: an emoji with any variation selectors, skin tone modifiers and keycaps, joined to
+     * further emoji by zero width joiners, or a pair of regional indicators forming a flag.
+     */
+    private int scanEmoji(int offset) {
+        int length = text.length();
+        int codePoint = text.codePointAt(offset);
+        offset += Character.charCount(codePoint);
+
+        if (isRegionalIndicator(codePoint)) {
+            if (offset < length && isRegionalIndicator(text.codePointAt(offset))) {
+                offset += 2;
+            }
+            return offset;
+        }
+
+        while (offset < length) {
+            codePoint = text.codePointAt(offset);
+            if (codePoint == VARIATION_SELECTOR || codePoint == KEYCAP || isSkinToneModifier(codePoint)) {
+                offset += Character.charCount(codePoint);
+            } else if (codePoint == ZERO_WIDTH_JOINER && offset + 1 < length
+                    && isEmoji(text.codePointAt(offset + 1))) {
+                offset += 1 + Character.charCount(text.codePointAt(offset + 1));
+            } else {
+                break;
+            }
+        }
+        return offset;
+    }
+
+    /**
+     * A digit, '#' or '*' followed by an optional variation selector and a combining keycap.
+     */
+    private boolean isKeycapSequence(int offset) {
+        char first = text.charAt(offset);
+        if (!(first >= '0' && first <= '9') && first != '#' && first != '*') {
+            return false;
+        }
+        int next = offset + 1;
+        if (next < text.length() && text.charAt(next) == VARIATION_SELECTOR) {
+            next++;
+        }
+        return next < text.length() && text.charAt(next) == KEYCAP;
+    }
+
+    private boolean followsWordCharacter(int offset) {
+        if (offset == 0) {
+            return false;
+        }
+        int previous = text.codePointBefore(offset);
+        return isWordCharacter(previous) || previous == '_';
+    }
+
+    private static boolean isWordCharacter(int codePoint) {
+        if (Character.isLetterOrDigit(codePoint)) {
+            return true;
+        }
+        int type = Character.getType(codePoint);
+        return type == Character.NON_SPACING_MARK || type == Character.COMBINING_SPACING_MARK;
+    }
+
+    private static boolean isNameCharacter(int codePoint) {
+        return codePoint == '_' || Character.isLetterOrDigit(codePoint);
+    }
+
+    private static boolean isEmoji(int codePoint) {
+        return (codePoint >= 0x1F000 && codePoint <= 0x1FAFF)
+                || (codePoint >= 0x2600 && codePoint <= 0x27BF)
+                || (codePoint >= 0x2B00 && codePoint <= 0x2BFF)
+                || (codePoint >= 0x2300 && codePoint <= 0x23FF)
+                || codePoint == 0x00A9 || codePoint == 0x00AE || codePoint == 0x203C || codePoint == 0x2049
+                || codePoint == 0x2122 || codePoint == 0x2139 || codePoint == 0x3030 || codePoint == 0x303D;
+    }
+
+    private static boolean isRegionalIndicator(int codePoint) {
+        return codePoint >= 0x1F1E6 && codePoint <= 0x1F1FF;
+    }
+
+    private static boolean isSkinToneModifier(int codePoint) {
+        return codePoint >= 0x1F3FB && codePoint <= 0x1F3FF;
+    }
+}
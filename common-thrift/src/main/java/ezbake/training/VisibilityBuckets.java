@@ -0,0 +1,152 @@
+/*   Copyright (C) 2013-2014 Computer Sciences Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. */
+
+package ezbake.training;
+
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import ezbake.base.thrift.Authorizations;
+import ezbake.base.thrift.EzSecurityToken;
+import ezbake.base.thrift.Visibility;
+
+/**
+ * Maps formal visibilities and authorizations onto the classification buckets the word counts and tag graphs are
+ * partitioned by.
+ *
+ * The buckets are the formal visibilities emitted by the tweet-ingest pipeline: U, C, S and TS. A set of buckets is
+ * represented as a bit mask so that the buckets a caller is authorized for can be computed once per request and
+ * applied to any word with a few array reads.
+ */
+public final class VisibilityBuckets {
+    /**
+     * The number of buckets.
+     */
+    public static final int COUNT = 4;
+
+    /**
+     * The number of distinct bucket masks.
+     */
+    public static final int MASKS = 1 << COUNT;
+
+    /**
+     * The bucket used when a visibility cannot be classified.
+     */
+    public static final int MOST_RESTRICTIVE = COUNT - 1;
+
+    private static final String[] LEVELS = {"U", "C", "S", "TS"};
+
+    private VisibilityBuckets() {
+    }
+
+    /**
+     * Gets the bucket data with the given visibility is counted in. A visibility that is exactly one of the levels
+     * maps to that level's bucket. For any other expression the most restrictive level it mentions is used, and if it
+     * mentions none, or no visibility is given, the data is counted in the most restrictive bucket.
+     *
+     * @param visibility Visibility of the data
+     * @return the bucket index
+     */
+    public static int bucketOf(Visibility visibility) {
+        if (visibility == null || visibility.getFormalVisibility() == null
+                || visibility.getFormalVisibility().trim().isEmpty()) {
+            return MOST_RESTRICTIVE;
+        }
+
+        String expression = visibility.getFormalVisibility().trim();
+        int bucket = levelIndex(expression);
+        if (bucket >= 0) {
+            return bucket;
+        }
+
+        for (String term : expression.split("[^A-Za-z0-9_]+")) {
+            bucket = Math.max(bucket, levelIndex(term));
+        }
+        return bucket >= 0 ? bucket : MOST_RESTRICTIVE;
+    }
+
+    /**
+     * Gets the mask of the buckets the holder of a token may read.
+     *
+     * @param token Security token of the caller
+     * @return the bucket mask, 0 if the token carries none of the levels
+     */
+    public static int maskOf(EzSecurityToken token) {
+        Authorizations authorizations = token == null ? null : token.getAuthorizations();
+        Set<String> formal = authorizations == null ? null : authorizations.getFormalAuthorizations();
+        if (formal == null) {
+            return 0;
+        }
+
+        int mask = 0;
+        for (String authorization : formal) {
+            int bucket = levelIndex(authorization);
+            if (bucket >= 0) {
+                mask |= 1 << bucket;
+            }
+        }
+        return mask;
+    }
+
+    /**
+     * @param bucket Bucket index
+     * @return the formal visibility level of the bucket
+     */
+    public static String levelOf(int bucket) {
+        return LEVELS[bucket];
+    }
+
+    /**
+     * Sums the counts of the buckets included in a mask.
+     *
+     * @param bucketCounts Count per bucket
+     * @param mask Bucket mask
+     * @return the sum of the included counts
+     */
+    public static long sum(long[] bucketCounts, int mask) {
+        long sum = 0;
+        for (int bucket = 0; bucket < COUNT; bucket++) {
+            if ((mask & (1 << bucket)) != 0) {
+                sum += bucketCounts[bucket];
+            }
+        }
+        return sum;
+    }
+
+    /**
+     * Sums the counters of the buckets included in a mask.
+     *
+     * @param bucketCounters Counter per bucket
+     * @param mask Bucket mask
+     * @return the sum of the included counters
+     */
+    public static long sum(AtomicLongArray bucketCounters, int mask) {
+        long sum = 0;
+        for (int bucket = 0; bucket < COUNT; bucket++) {
+            if ((mask & (1 << bucket)) != 0) {
+                sum += bucketCounters.get(bucket);
+            }
+        }
+        return sum;
+    }
+
+    private static int levelIndex(String level) {
+        for (int i = 0; i < LEVELS.length; i++) {
+            if (LEVELS[i].equalsIgnoreCase(level)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,263 @@
+/*   Copyright (C) 2013-2014 Computer Sciences Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. */
+
+package ezbake.training;
+
+import java.text.Normalizer;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Properties;
+import java.util.Set;
+
+/**
+ * Turns the tokens of a {@link TweetTokenizer} into the words that are counted, or drops them.
+ *
+ * Every kept token is case folded: it is brought to Unicode compatibility form (NFKC) and then upper and lower cased,
+ * so that e.g. full width letters and "STRASSE" / "stra&szlig;e" fold together. Each kind of token is then treated
+ * separately:
+ * <ul>
+ *     <li> Words that are stopwords or shorter than the minimum length are dropped, and the remaining words are
+ *          optionally stemmed by removing English plural endings.</li>
+ *     <li> Hashtags are kept with their '#', counted as the word they tag, or dropped.</li>
+ *     <li> @mentions, URLs and emoji are kept or dropped. Emoji variation selectors are removed so that the text and
+ *          the emoji presentation of a symbol are counted together.</li>
+ * </ul>
+ *
+ * Everything that counts words, and everything that looks counts up, must normalize with the same properties.
+ * <p/>
+ * Properties:
+ * <ul>
+ *     <li> tweet.word.normalize.stopwords - "english" for the built-in English stopwords, "none" to keep all words,
+ *          or a comma separated list of stopwords. Defaults to english.</li>
+ *     <li> tweet.word.normalize.stem - Whether English plural endings are removed from words. Defaults to false.</li>
+ *     <li> tweet.word.normalize.minLength - The minimum number of characters of a word. Defaults to 2.</li>
+ *     <li> tweet.word.normalize.hashtags - "keep", "strip" to count the tagged word, or "drop". Defaults to keep.</li>
+ *     <li> tweet.word.normalize.mentions - "keep" or "drop". Defaults to keep.</li>
+ *     <li> tweet.word.normalize.urls - "keep" or "drop". Defaults to drop.</li>
+ *     <li> tweet.word.normalize.emoji - "keep" or "drop". Defaults to keep.</li>
+ * </ul>
+ */
+public class WordNormalizer {
+    private static final String STOPWORDS_PROPERTY = "tweet.word.normalize.stopwords";
+    private static final String STEM_PROPERTY = "tweet.word.normalize.stem";
+    private static final String MIN_LENGTH_PROPERTY = "tweet.word.normalize.minLength";
+    private static final String HASHTAGS_PROPERTY = "tweet.word.normalize.hashtags";
+    private static final String MENTIONS_PROPERTY = "tweet.word.normalize.mentions";
+    private static final String URLS_PROPERTY = "tweet.word.normalize.urls";
+    private static final String EMOJI_PROPERTY = "tweet.word.normalize.emoji";
+
+    private static final int DEFAULT_MIN_LENGTH = 2;
+
+    /*
+     * Common English function words, plus the retweet and HTML entity fragments that tweets are full of.
+     */
+    private static final Set<String> ENGLISH_STOPWORDS = Collections.unmodifiableSet(new HashSet<>(Arrays.asList(
+            "a", "about", "above", "after", "again", "against", "all", "am", "an", "and", "any", "are", "as", "at",
+            "be", "because", "been", "before", "being", "below", "between", "both", "but", "by", "can", "could", "did",
+            "do", "does", "doing", "don't", "down", "during", "each", "few", "for", "from", "further", "had", "has",
+            "have", "having", "he", "her", "here", "hers", "herself", "him", "himself", "his", "how", "i", "i'm", "if",
+            "in", "into", "is", "it", "it's", "its", "itself", "just", "me", "more", "most", "my", "myself", "no",
+            "nor", "not", "now", "of", "off", "on", "once", "only", "or", "other", "our", "ours", "ourselves", "out",
+            "over", "own", "same", "she", "should", "so", "some", "such", "than", "that", "the", "their", "theirs",
+            "them", "themselves", "then", "there", "these", "they", "this", "those", "through", "to", "too", "under",
+            "until", "up", "very", "was", "we", "were", "what", "when", "where", "which", "while", "who", "whom", "why",
+            "will", "with", "would", "you", "your", "yours", "yourself", "yourselves", "rt", "via", "amp", "gt",
+            "lt")));
+
+    /**
+     * How a kind of token is treated.
+     */
+    public enum Treatment {
+        /**
+         * The token is counted as it is.
+         */
+        KEEP,
+
+        /**
+         * The token's marker is removed and the rest is counted as a word. Only applies to hashtags.
+         */
+        STRIP,
+
+        /**
+         * The token is not counted.
+         */
+        DROP
+    }
+
+    private final Set<String> stopwords;
+    private final boolean stem;
+    private final int minLength;
+    private final Treatment hashtags;
+    private final Treatment mentions;
+    private final Treatment urls;
+    private final Treatment emoji;
+
+    /**
+     * @param stopwords Words that are not counted, in normalized form
+     * @param stem Whether English plural endings are removed from words
+     * @param minLength The minimum number of characters of a word
+     * @param hashtags The treatment of hashtags
+     * @param mentions The treatment of @mentions. Only KEEP and DROP are supported.
+     * @param urls The treatment of URLs. Only KEEP and DROP are supported.
+     * @param emoji The treatment of emoji. Only KEEP and DROP are supported.
+     */
+    public WordNormalizer(Set<String> stopwords, boolean stem, int minLength, Treatment hashtags, Treatment mentions,
+            Treatment urls, Treatment emoji) {
+        this.stopwords = stopwords;
+        this.stem = stem;
+        this.minLength = minLength;
+        this.hashtags = hashtags;
+        this.mentions = keepOrDrop(mentions, "mentions");
+        this.urls = keepOrDrop(urls, "URLs");
+        this.emoji = keepOrDrop(emoji, "emoji");
+    }
+
+    /**
+     * Builds the normalizer configured by the tweet.word.normalize properties.
+     *
+     * @param properties The EzBake configuration values for the running environment
+     * @return the configured normalizer
+     */
+    public static WordNormalizer fromProperties(Properties properties) {
+        String stopwordList = properties.getProperty(STOPWORDS_PROPERTY, "english").trim();
+        Set<String> stopwords;
+        if (stopwordList.equalsIgnoreCase("english")) {
+            stopwords = ENGLISH_STOPWORDS;
+        } else if (stopwordList.equalsIgnoreCase("none")) {
+            stopwords = Collections.emptySet();
+        } else {
+            stopwords = new HashSet<>();
+            for (String stopword : stopwordList.split(",")) {
+                if (!stopword.trim().isEmpty()) {
+                    stopwords.add(fold(stopword.trim()));
+                }
+            }
+        }
+
+        return new WordNormalizer(
+                stopwords,
+                Boolean.parseBoolean(properties.getProperty(STEM_PROPERTY, "false")),
+                Integer.parseInt(properties.getProperty(MIN_LENGTH_PROPERTY, String.valueOf(DEFAULT_MIN_LENGTH))),
+                treatment(properties, HASHTAGS_PROPERTY, Treatment.KEEP),
+                treatment(properties, MENTIONS_PROPERTY, Treatment.KEEP),
+                treatment(properties, URLS_PROPERTY, Treatment.DROP),
+                treatment(properties, EMOJI_PROPERTY, Treatment.KEEP));
+    }
+
+    /**
+     * Normalizes the tokenizer's current token.
+     *
+     * @param tokenizer A tokenizer positioned on a token
+     * @return the word to count, or null if the token is dropped
+     */
+    public String normalize(TweetTokenizer tokenizer) {
+        switch (tokenizer.type()) {
+            case WORD:
+                return normalizeWord(tokenizer, tokenizer.start());
+            case HASHTAG:
+                if (hashtags == Treatment.STRIP) {
+                    return normalizeWord(tokenizer, tokenizer.start() + 1);
+                }
+                return hashtags == Treatment.KEEP ? foldToken(tokenizer, tokenizer.start()) : null;
+            case MENTION:
+                return mentions == Treatment.KEEP ? foldToken(tokenizer, tokenizer.start()) : null;
+            case URL:
+                return urls == Treatment.KEEP ? foldToken(tokenizer, tokenizer.start()) : null;
+            case EMOJI:
+                return emoji == Treatment.KEEP ? tokenizer.intern().replace("\uFE0F", "") : null;
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Normalizes a single word, e.g. one typed into a search, the same way as the words of tweets.
+     *
+     * @param text Text holding one token. Anything after the first token is ignored.
+     * @return the normalized word, or null if the word is dropped
+     */
+    public String normalize(String text) {
+        TweetTokenizer tokenizer = new TweetTokenizer(2).reset(text);
+        return tokenizer.next() ? normalize(tokenizer) : null;
+    }
+
+    private String normalizeWord(TweetTokenizer tokenizer, int from) {
+        String word = foldToken(tokenizer, from);
+        if (word.codePointCount(0, word.length()) < minLength || stopwords.contains(word)) {
+            return null;
+        }
+        return stem ? stem(word) : word;
+    }
+
+    /**
+     * Case folds the token from the given offset. Tokens that are already folded ASCII, which is most of them, come
+     * from the tokenizer's cache without being copied.
+     */
+    private static String foldToken(TweetTokenizer tokenizer, int from) {
+        String text = tokenizer.text();
+        boolean folded = true;
+        for (int i = from; i < tokenizer.end() && folded; i++) {
+            char c = text.charAt(i);
+            folded = c < 0x80 && !(c >= 'A' && c <= 'Z');
+        }
+        if (folded) {
+            return from == tokenizer.start() ? tokenizer.intern() : text.substring(from, tokenizer.end());
+        }
+        return fold(text.substring(from, tokenizer.end()));
+    }
+
+    private static String fold(String token) {
+        return Normalizer.normalize(token, Normalizer.Form.NFKC).toUpperCase(Locale.ROOT).toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * Removes English plural endings with the rules of Harman's S-stemmer. It conflates most regular plurals with their
+     * singulars and rarely merges unrelated words, though some plurals keep an 'e' ("buses" becomes "buse").
+     */
+    private static String stem(String word) {
+        int length = word.length();
+        if (length > 3 && word.endsWith("ies") && !word.endsWith("eies") && !word.endsWith("aies")) {
+            return word.substring(0, length - 3) + 'y';
+        }
+        if (length > 3 && word.endsWith("es") && !word.endsWith("aes") && !word.endsWith("ees")
+                && !word.endsWith("oes")) {
+            return word.substring(0, length - 1);
+        }
+        if (length > 2 && word.endsWith("s") && !word.endsWith("us") && !word.endsWith("ss")) {
+            return word.substring(0, length - 1);
+        }
+        return word;
+    }
+
+    private static Treatment treatment(Properties properties, String property, Treatment defaultTreatment) {
+        String value = properties.getProperty(property);
+        if (value == null || value.trim().isEmpty()) {
+            return defaultTreatment;
+        }
+        try {
+            return Treatment.valueOf(value.trim().toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Invalid value for " + property + ": " + value, e);
+        }
+    }
+
+    private static Treatment keepOrDrop(Treatment treatment, String kind) {
+        if (treatment == Treatment.STRIP) {
+            throw new IllegalArgumentException("Only hashtags can be stripped, not " + kind);
+        }
+        return treatment;
+    }
+}
@@ -0,0 +1,191 @@
+/*   Copyright (C) 2013-2014 Computer Sciences Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. */
+
+package ezbake.training;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * Assigns words to the word count service shards by consistent hashing.
+ *
+ * Each shard is named by the service name its instance is registered under and is placed on a hash ring at a fixed
+ * number of pseudo-random points. A word belongs to the shard owning the first point at or after the word's hash, so
+ * adding or removing a shard only moves the words between that shard and its ring neighbours, roughly
+ * {@code 1 / shards} of the vocabulary. Words are hashed in the normalized form the service counts them under, so every
+ * spelling of a word is routed to the same shard.
+ *
+ * Clients, workers and the resharding tool must build the ring from the same shard list to agree on ownership.
+ * <p/>
+ * Properties:
+ * <ul>
+ *     <li> tweet.word.count.shards - Comma separated service names of the word count service shards. Defaults to the
+ *          single {@link EzBakeTrainingConstants#WORD_COUNT_SERVICE_NAME} service.</li>
+ * </ul>
+ */
+public class WordShardRing {
+    /**
+     * The property listing the shards.
+     */
+    public static final String SHARDS_PROPERTY = "tweet.word.count.shards";
+
+    /*
+     * Points per shard. The share of each shard varies by about 1 / sqrt(points) around the average, so this keeps
+     * shards within roughly five percent of each other while the ring stays small enough to search quickly.
+     */
+    private static final int POINTS_PER_SHARD = 512;
+
+    private final List<String> shards;
+    private final long[] points;
+    private final String[] owners;
+
+    /**
+     * @param shards Service names of the shards. Duplicates are ignored.
+     */
+    public WordShardRing(Collection<String> shards) {
+        this.shards = Collections.unmodifiableList(new ArrayList<>(new LinkedHashSet<>(shards)));
+        if (this.shards.isEmpty()) {
+            throw new IllegalArgumentException("A word shard ring needs at least one shard");
+        }
+
+        int count = this.shards.size() * POINTS_PER_SHARD;
+        long[] unsorted = new long[count];
+        Map<Long, String> ownerOfPoint = new HashMap<>(count * 4 / 3 + 1);
+        int index = 0;
+        for (String shard : this.shards) {
+            for (int i = 0; i < POINTS_PER_SHARD; i++) {
+                long point = hash(shard + '#' + i);
+                String existing = ownerOfPoint.get(point);
+                // Break the rare collision deterministically so that every ring agrees
+                if (existing == null || existing.compareTo(shard) > 0) {
+                    ownerOfPoint.put(point, shard);
+                }
+                unsorted[index++] = point;
+            }
+        }
+
+        Arrays.sort(unsorted);
+        points = unsorted;
+        owners = new String[count];
+        for (int i = 0; i < count; i++) {
+            owners[i] = ownerOfPoint.get(points[i]);
+        }
+    }
+
+    /**
+     * Builds the ring configured by the {@link #SHARDS_PROPERTY} property.
+     *
+     * @param properties The EzBake configuration values for the running environment
+     * @return the configured ring
+     */
+    public static WordShardRing fromProperties(Properties properties) {
+        List<String> shards = new ArrayList<>();
+        for (String shard : properties.getProperty(SHARDS_PROPERTY, "").split(",")) {
+            if (!shard.trim().isEmpty()) {
+                shards.add(shard.trim());
+            }
+        }
+        if (shards.isEmpty()) {
+            shards.add(EzBakeTrainingConstants.WORD_COUNT_SERVICE_NAME);
+        }
+        return new WordShardRing(shards);
+    }
+
+    /**
+     * @return the service names of the shards
+     */
+    public List<String> getShards() {
+        return shards;
+    }
+
+    /**
+     * @param word A word, normalized or not
+     * @return the service name of the shard that counts the word
+     */
+    public String shardFor(String word) {
+        long hash = hash(word.trim().toLowerCase(Locale.ROOT));
+        int index = Arrays.binarySearch(points, hash);
+        if (index < 0) {
+            index = -index - 1;
+        }
+        return owners[index == points.length ? 0 : index];
+    }
+
+    /**
+     * Splits word counts by the shard that counts each word.
+     *
+     * @param counts Word counts
+     * @return the counts of each shard that owns at least one of the words
+     */
+    public Map<String, Map<String, Long>> partition(Map<String, Long> counts) {
+        Map<String, Map<String, Long>> partitions = new HashMap<>();
+        for (Map.Entry<String, Long> entry : counts.entrySet()) {
+            String shard = shardFor(entry.getKey());
+            Map<String, Long> partition = partitions.get(shard);
+            if (partition == null) {
+                partition = new HashMap<>();
+                partitions.put(shard, partition);
+            }
+            partition.put(entry.getKey(), entry.getValue());
+        }
+        return partitions;
+    }
+
+    /**
+     * Splits words by the shard that counts each word.
+     *
+     * @param words Words
+     * @return the words of each shard that owns at least one of them, in their original order
+     */
+    public Map<String, List<String>> partition(List<String> words) {
+        Map<String, List<String>> partitions = new HashMap<>();
+        for (String word : words) {
+            String shard = shardFor(word);
+            List<String> partition = partitions.get(shard);
+            if (partition == null) {
+                partition = new ArrayList<>();
+                partitions.put(shard, partition);
+            }
+            partition.add(word);
+        }
+        return partitions;
+    }
+
+    /**
+     * 64-bit FNV-1a over the UTF-8 bytes followed by the MurmurHash3 finalizer. It must never change, since every
+     * client of a deployment has to place words identically.
+     */
+    private static long hash(String value) {
+        long h = 0xcbf29ce484222325L;
+        for (byte b : value.getBytes(StandardCharsets.UTF_8)) {
+            h ^= b & 0xff;
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
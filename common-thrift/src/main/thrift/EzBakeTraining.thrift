@@ -26,6 +26,27 @@ struct TweetWord {
     1: required string word;
 }
 
+/**
+ * The words within a Tweet, each with the number of times it occurs in the Tweet. The Tweet's visibility is carried
+ * by the pipeline message the bag is sent in.
+ */
+struct TweetWordBag {
+    /**
+     * The number of occurrences of each word within the Tweet.
+     */
+    1: required map<string, i32> counts;
+
+    /**
+     * Timestamp (seconds since UNIX epoch, unlike the milliseconds of Tweet.timestamp) that the Tweet was sent.
+     */
+    2: optional i64 timestamp;
+
+    /**
+     * ID of the Tweet the words were taken from.
+     */
+    3: optional i64 tweetId;
+}
+
 /*
  * Thrift version of some fields from the Tweet JSON from Twitter.
  */
@@ -51,7 +72,7 @@ struct Tweet {
     4: required i64 userId
 
     /**
-     * Timestamp (seconds since UNIX epoch) that that Tweet was sent.
+     * Timestamp (milliseconds since UNIX epoch) that that Tweet was sent.
      */
     5: required i64 timestamp;
 
@@ -71,6 +92,142 @@ struct Tweet {
     8: optional EzBakeBase.Coordinate geoLocation;
 }
 
+/**
+ * The Thrift protocol a broadcast Tweet is encoded with.
+ */
+enum BroadcastEncoding {
+    /**
+     * TBinaryProtocol, as used for Thrift objects elsewhere in the pipelines.
+     */
+    BINARY = 1,
+
+    /**
+     * TCompactProtocol, which encodes integers and field headers in fewer bytes.
+     */
+    COMPACT = 2
+}
+
+/**
+ * The compression applied to an encoded broadcast Tweet.
+ */
+enum BroadcastCompression {
+    /**
+     * The encoded Tweet is sent as is.
+     */
+    NONE = 1,
+
+    /**
+     * The encoded Tweet is compressed with LZ4.
+     */
+    LZ4 = 2
+}
+
+/**
+ * Tweets broadcast together in one message. They share the visibility of the message.
+ */
+struct TweetBatch {
+    /**
+     * The Tweets, in the order they were ingested.
+     */
+    1: required list<Tweet> tweets;
+}
+
+/**
+ * A Tweet, or a batch of Tweets, as broadcast by the tweet-ingest pipeline. The envelope names how its payload was
+ * encoded, so listeners decode it without being configured to match the ingest pipeline.
+ */
+struct TweetBroadcast {
+    /**
+     * The protocol the Tweet was encoded with.
+     */
+    1: required BroadcastEncoding encoding;
+
+    /**
+     * The compression applied after encoding.
+     */
+    2: required BroadcastCompression compression;
+
+    /**
+     * The encoded, and possibly compressed, Tweet, or TweetBatch if tweetCount is set.
+     */
+    3: required binary payload;
+
+    /**
+     * The length of the payload before compression. Set when the payload is compressed.
+     */
+    4: optional i32 uncompressedLength;
+
+    /**
+     * The number of Tweets in the payload. Set when the payload is a TweetBatch rather than a single Tweet.
+     */
+    5: optional i32 tweetCount;
+}
+
+/**
+ * A word together with the number of times it has been encountered.
+ */
+struct WordCount {
+    /**
+     * The word.
+     */
+    1: required string word;
+
+    /**
+     * Number of times the word has been encountered.
+     */
+    2: required i64 count;
+}
+
+/**
+ * An estimated count together with how far it may be from the true count.
+ */
+struct CountEstimate {
+    /**
+     * The estimated count.
+     */
+    1: required i64 count;
+
+    /**
+     * The largest expected difference between the estimate and the true count. 0 for exact counts.
+     */
+    2: required i64 errorBound;
+
+    /**
+     * The probability that the true count is within the error bound of the estimate. 1 for exact counts.
+     */
+    3: required double confidence;
+}
+
+/**
+ * The counts of a word in each formal visibility level, used to move words between word count service shards.
+ */
+struct WordLevelCounts {
+    /**
+     * The normalized word.
+     */
+    1: required string word;
+
+    /**
+     * Count of the word in each formal visibility level (U, C, S or TS). Levels without occurrences may be omitted.
+     */
+    2: required map<string, i64> levelCounts;
+}
+
+/**
+ * A hashtag or @mention together with how strongly it is related to another one.
+ */
+struct RelatedTag {
+    /**
+     * The normalized tag, including its leading '#' or '@'.
+     */
+    1: required string tag;
+
+    /**
+     * The decayed number of Tweets the two tags appeared in together.
+     */
+    2: required double weight;
+}
+
 /**
  * Service name used to contact the word count service.
  */
@@ -83,13 +240,44 @@ service TweetWordCountService extends EzBakeBase.EzBakeBaseService {
     /**
      * Adds a instance of a word. The count for that word will be incremented.
      *
+     * Counts are kept per formal visibility level (U, C, S or TS), and a count query only sees the levels the caller's
+     * token is authorized for. Data whose visibility names none of these levels is counted as TS.
+     *
      * @param word Word to add
      * @param securityToken EzBake security token
+     * @param visibility Visibility of the data the word was taken from
      */
-    void add(1: string word, 2: EzBakeBase.EzSecurityToken securityToken);
+    void add(1: string word, 2: EzBakeBase.EzSecurityToken securityToken, 3: EzBakeBase.Visibility visibility);
 
     /**
-     * Gets how many times the given word has been encountered across Tweets.
+     * Adds one instance of each of the given words. A word that appears several times in the list is counted once per
+     * appearance.
+     *
+     * @param words Words to add
+     * @param securityToken EzBake security token
+     * @param visibility Visibility of the data the words were taken from
+     */
+    void addAll(
+            1: list<string> words, 2: EzBakeBase.EzSecurityToken securityToken, 3: EzBakeBase.Visibility visibility);
+
+    /**
+     * Adds pre-aggregated counts. The count for each word is incremented by the amount it is mapped to.
+     *
+     * Words added with add and addAll are counted in the time windows at the time they are received. The words added
+     * with addCounts are counted at the given timestamp instead, so that windows reflect when the Tweets were sent.
+     *
+     * @param counts Map of word to the number of instances to add
+     * @param securityToken EzBake security token
+     * @param visibility Visibility of the data the words were taken from
+     * @param timestamp Timestamp (seconds, not milliseconds, since UNIX epoch) that the words were encountered, or 0
+     * for the time they are received
+     */
+    void addCounts(
+            1: map<string, i64> counts, 2: EzBakeBase.EzSecurityToken securityToken,
+            3: EzBakeBase.Visibility visibility, 4: i64 timestamp);
+
+    /**
+     * Gets how many times the given word has been encountered across the Tweets the caller is authorized to see.
      *
      * @param word Word whose count to query
      * @param securityToken EzBake security token
@@ -97,4 +285,143 @@ service TweetWordCountService extends EzBakeBase.EzBakeBaseService {
      * @returns count of the requested word
      */
     i32 getCount(1: string word, 2: EzBakeBase.EzSecurityToken securityToken);
-}
\ No newline at end of file
+
+    /**
+     * Gets how many times each of the given words has been encountered across the Tweets the caller is authorized to
+     * see.
+     *
+     * @param words Words whose counts to query
+     * @param securityToken EzBake security token
+     *
+     * @returns map of each requested word to its count. Words never encountered map to 0.
+     */
+    map<string, i64> getCounts(1: list<string> words, 2: EzBakeBase.EzSecurityToken securityToken);
+
+    /**
+     * Gets the most frequently encountered words in the Tweets the caller is authorized to see, most frequent first.
+     * Only the 1000 most frequent words are tracked, so a prefix narrows those down rather than searching every word
+     * counted: a prefix that only rare words start with returns nothing.
+     *
+     * @param k Maximum number of words to return
+     * @param prefix If not empty, only the tracked words starting with this prefix are returned
+     * @param securityToken EzBake security token
+     *
+     * @returns up to k words with their counts
+     */
+    list<WordCount> topK(1: i32 k, 2: string prefix, 3: EzBakeBase.EzSecurityToken securityToken);
+
+    /**
+     * Gets how many times the given word has been encountered across the Tweets the caller is authorized to see,
+     * together with the error bound of the count. Counts are exact unless the service runs in approximate mode, where
+     * a count may exceed the true count by up to the error bound but is never lower.
+     *
+     * @param word Word whose count to query
+     * @param securityToken EzBake security token
+     *
+     * @returns the estimated count of the requested word
+     */
+    CountEstimate estimateCount(1: string word, 2: EzBakeBase.EzSecurityToken securityToken);
+
+    /**
+     * Estimates how many distinct words have been encountered across the Tweets the caller is authorized to see.
+     *
+     * @param securityToken EzBake security token
+     *
+     * @returns the estimated number of distinct words
+     */
+    CountEstimate estimateDistinctWords(1: EzBakeBase.EzSecurityToken securityToken);
+
+    /**
+     * Gets how many times the given word has been encountered within a recent time window. Windows end at the latest
+     * timestamp of any word counted and are rounded up to whole minutes, or to whole hours for windows longer than
+     * an hour. Windows longer than a day are treated as a day.
+     *
+     * @param word Word whose count to query
+     * @param windowSeconds Length of the window in seconds
+     * @param securityToken EzBake security token
+     *
+     * @returns count of the requested word within the window
+     */
+    i64 getCountInWindow(1: string word, 2: i32 windowSeconds, 3: EzBakeBase.EzSecurityToken securityToken);
+
+    /**
+     * Gets the words whose counts grew the most within a recent time window compared with the window of the same
+     * length before it. Windows longer than half a day are treated as half a day.
+     *
+     * @param k Maximum number of words to return
+     * @param windowSeconds Length of the window in seconds
+     * @param securityToken EzBake security token
+     *
+     * @returns up to k words with their counts within the window, fastest growing first
+     */
+    list<WordCount> trending(1: i32 k, 2: i32 windowSeconds, 3: EzBakeBase.EzSecurityToken securityToken);
+
+    /**
+     * Lists words held by this instance that belong to another shard of the given shard ring. Used when resharding:
+     * the words listed are merged into their new shard and then subtracted from this one. Requires a token
+     * authorized for every formal visibility level.
+     *
+     * @param shards Service names of the shards of the new ring
+     * @param shard Service name of this instance
+     * @param limit Maximum number of words to return
+     * @param securityToken EzBake security token
+     *
+     * @returns up to limit misplaced words with their counts. Empty once every word with a count is placed correctly.
+     */
+    list<WordLevelCounts> exportMisplacedWords(
+            1: list<string> shards, 2: string shard, 3: i32 limit, 4: EzBakeBase.EzSecurityToken securityToken);
+
+    /**
+     * Adds counts moved from another shard. Requires a token authorized for every formal visibility level.
+     *
+     * @param counts Counts to add
+     * @param securityToken EzBake security token
+     */
+    void mergeCounts(1: list<WordLevelCounts> counts, 2: EzBakeBase.EzSecurityToken securityToken);
+
+    /**
+     * Subtracts counts that were moved to another shard. Additions made after the counts were exported are kept.
+     * Requires a token authorized for every formal visibility level.
+     *
+     * @param counts Counts to subtract, as returned by exportMisplacedWords
+     * @param securityToken EzBake security token
+     */
+    void subtractCounts(1: list<WordLevelCounts> counts, 2: EzBakeBase.EzSecurityToken securityToken);
+}
+
+/**
+ * Service name used to contact the tag graph service.
+ */
+const string TAG_GRAPH_SERVICE_NAME = "tweettaggraphservice";
+
+/**
+ * A service which keeps a graph of the hashtags and @mentions that appear together in Tweets.
+ */
+service TweetTagGraphService extends EzBakeBase.EzBakeBaseService {
+    /**
+     * Adds the tags of Tweets to the graph. Every pair of distinct tags within one Tweet strengthens the edge between
+     * them. Edge weights decay over time, so the graph reflects recent Tweets.
+     *
+     * Edges are kept per formal visibility level (U, C, S or TS), and a query only sees the levels the caller's token
+     * is authorized for. Data whose visibility names none of these levels is counted as TS.
+     *
+     * @param tagSets The hashtags and @mentions of each Tweet
+     * @param securityToken EzBake security token
+     * @param visibility Visibility of the Tweets the tags were taken from
+     */
+    void addTagSets(
+            1: list<list<string>> tagSets, 2: EzBakeBase.EzSecurityToken securityToken,
+            3: EzBakeBase.Visibility visibility);
+
+    /**
+     * Gets the tags that most often appeared together with the given tag in recent Tweets the caller is authorized to
+     * see, most strongly related first.
+     *
+     * @param tag A hashtag or @mention. A tag without a leading '#' or '@' is taken to be a hashtag.
+     * @param k Maximum number of tags to return
+     * @param securityToken EzBake security token
+     *
+     * @returns up to k related tags with their weights
+     */
+    list<RelatedTag> relatedTags(1: string tag, 2: i32 k, 3: EzBakeBase.EzSecurityToken securityToken);
+}
@@ -0,0 +1,191 @@
+/*   Copyright (C) 2013-2014 Computer Sciences Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. */
+
+package ezbake.training;
+
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Paces the events emitted by a generator.
+ *
+ * A token bucket holds up to the burst size of events and refills at the current rate, and each event takes a token,
+ * waiting for one if the bucket is empty. The current rate starts at the target rate and adapts to the downstream
+ * pipes: the time spent handing an event to the pipes is averaged, and every second the rate is halved if the average
+ * exceeds the latency bound, or otherwise raised by a twentieth of the target rate back towards the target. A target
+ * rate of 0 or less emits as fast as possible.
+ *
+ * Not thread safe, but the statistics may be read from any thread.
+ */
+public class EmissionThrottle {
+    private static final Logger logger = LoggerFactory.getLogger(EmissionThrottle.class);
+
+    private static final long NANOS_PER_SECOND = TimeUnit.SECONDS.toNanos(1);
+    private static final long ADJUST_INTERVAL_NANOS = NANOS_PER_SECOND;
+
+    /**
+     * The weight of the latest latency in the latency average.
+     */
+    private static final double LATENCY_WEIGHT = 0.1;
+
+    private final double targetRate;
+    private final double minimumRate;
+    private final double burst;
+    private final long maxLatencyNanos;
+
+    private double tokens;
+    private long refilledAt;
+    private long adjustedAt;
+    private long emittedSinceAdjust;
+
+    private volatile double currentRate;
+    private volatile double emittedRate;
+    private volatile double averageLatencyNanos;
+    private volatile long emitted;
+    private volatile long throttledNanos;
+
+    /**
+     * @param targetRate The events per second to emit. 0 or less to emit as fast as possible.
+     * @param burst The number of events that may be emitted at once after a pause
+     * @param maxLatencyMillis The average time, in milliseconds, to hand an event to the pipes above which the rate is
+     * reduced. 0 or less to ignore the latency.
+     */
+    public EmissionThrottle(double targetRate, int burst, long maxLatencyMillis) {
+        this.targetRate = targetRate;
+        this.minimumRate = Math.max(1.0, targetRate / 100);
+        this.burst = Math.max(1, burst);
+        this.maxLatencyNanos = TimeUnit.MILLISECONDS.toNanos(maxLatencyMillis);
+        this.currentRate = targetRate;
+        this.tokens = this.burst;
+        this.refilledAt = System.nanoTime();
+        this.adjustedAt = refilledAt;
+    }
+
+    /**
+     * Takes a token for the next event, waiting until one is available.
+     *
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public void acquire() throws InterruptedException {
+        if (targetRate <= 0) {
+            return;
+        }
+
+        refill(System.nanoTime());
+        if (tokens < 1) {
+            long wait = (long) ((1 - tokens) * NANOS_PER_SECOND / currentRate);
+            long started = System.nanoTime();
+            try {
+                TimeUnit.NANOSECONDS.sleep(wait);
+            } finally {
+                long now = System.nanoTime();
+                throttledNanos += now - started;
+                refill(now);
+            }
+        }
+        tokens = Math.max(0, tokens - 1);
+    }
+
+    /**
+     * Records an event handed to the pipes, adapting the rate every second.
+     *
+     * @param latencyNanos The time, in nanoseconds, it took to hand the event to the pipes
+     */
+    public void emitted(long latencyNanos) {
+        averageLatencyNanos = emitted == 0
+                ? latencyNanos : averageLatencyNanos + (latencyNanos - averageLatencyNanos) * LATENCY_WEIGHT;
+        emitted++;
+        emittedSinceAdjust++;
+
+        long now = System.nanoTime();
+        long elapsed = now - adjustedAt;
+        if (elapsed >= ADJUST_INTERVAL_NANOS) {
+            emittedRate = emittedSinceAdjust * (double) NANOS_PER_SECOND / elapsed;
+            emittedSinceAdjust = 0;
+            adjustedAt = now;
+            adjust();
+        }
+    }
+
+    /**
+     * @param maxBatch The largest batch wanted
+     * @return the batch size that takes about a second to emit at the current rate, at most maxBatch
+     */
+    public int batchSize(int maxBatch) {
+        if (targetRate <= 0) {
+            return maxBatch;
+        }
+        return (int) Math.max(1, Math.min(maxBatch, currentRate));
+    }
+
+    /**
+     * @return the current rate limit in events per second, 0 if unlimited
+     */
+    public double getCurrentRate() {
+        return targetRate <= 0 ? 0 : currentRate;
+    }
+
+    /**
+     * @return the events per second emitted over the last second or more
+     */
+    public double getEmittedRate() {
+        return emittedRate;
+    }
+
+    /**
+     * @return the average time, in milliseconds, to hand an event to the pipes
+     */
+    public double getAverageLatencyMillis() {
+        return averageLatencyNanos / TimeUnit.MILLISECONDS.toNanos(1);
+    }
+
+    /**
+     * @return the number of events emitted
+     */
+    public long getEmitted() {
+        return emitted;
+    }
+
+    /**
+     * @return the total time, in milliseconds, spent waiting for tokens
+     */
+    public long getThrottledMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(throttledNanos);
+    }
+
+    private void refill(long now) {
+        tokens = Math.min(burst, tokens + (now - refilledAt) * currentRate / NANOS_PER_SECOND);
+        refilledAt = now;
+    }
+
+    private void adjust() {
+        if (targetRate <= 0 || maxLatencyNanos <= 0) {
+            return;
+        }
+
+        double rate = currentRate;
+        if (averageLatencyNanos > maxLatencyNanos) {
+            rate = Math.max(minimumRate, rate / 2);
+            if (rate < currentRate) {
+                logger.info("Downstream pipes are slow ({} ms per event), reducing the rate to {} events/s",
+                        String.format("%.2f", getAverageLatencyMillis()), String.format("%.1f", rate));
+            }
+        } else {
+            rate = Math.min(targetRate, rate + targetRate / 20);
+        }
+        currentRate = rate;
+    }
+}
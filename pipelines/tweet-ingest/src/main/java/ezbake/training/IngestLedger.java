@@ -0,0 +1,259 @@
+/*   Copyright (C) 2013-2014 Computer Sciences Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. */
+
+package ezbake.training;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Remembers how far each tweet file has been ingested, so that a restart resumes after the last batch of lines
+ * recorded. A batch emitted but not yet recorded when the process stops is emitted again.
+ *
+ * Every emitted batch of lines is recorded as one entry in an append-only journal: the file's name and fingerprint,
+ * the range of the file the batch covers and the checksum of the batch's lines. Offsets are counted in the file's
+ * uncompressed content. The journal is forced to disk after every entry, and a torn entry left by a crash at its end
+ * is ignored when the journal is replayed, so a restart sees every batch that completed. A file read completely is
+ * recorded as done and forgotten.
+ *
+ * The journal is rewritten to hold only the latest entry of each unfinished file once it has grown well past that
+ * size. The rewrite goes to a temporary file that replaces the journal atomically.
+ */
+public class IngestLedger implements AutoCloseable {
+    private static final Logger logger = LoggerFactory.getLogger(IngestLedger.class);
+
+    private static final String JOURNAL = "ingest.journal";
+    private static final String BATCH = "BATCH";
+    private static final String DONE = "DONE";
+
+    /**
+     * The minimum number of entries in the journal before it is compacted.
+     */
+    private static final int MIN_COMPACTION_ENTRIES = 1000;
+
+    /**
+     * The position of a file: its last emitted batch.
+     */
+    public static class Position {
+        private final long fingerprint;
+        private final long start;
+        private final long end;
+        private final long checksum;
+
+        public Position(long fingerprint, long start, long end, long checksum) {
+            this.fingerprint = fingerprint;
+            this.start = start;
+            this.end = end;
+            this.checksum = checksum;
+        }
+
+        public long getFingerprint() {
+            return fingerprint;
+        }
+
+        public long getStart() {
+            return start;
+        }
+
+        public long getEnd() {
+            return end;
+        }
+
+        public long getChecksum() {
+            return checksum;
+        }
+    }
+
+    private final Path journal;
+    private final Map<String, Position> positions = new HashMap<>();
+    private FileChannel channel;
+    private int journalEntries;
+
+    /**
+     * Opens the ledger, replaying its journal.
+     *
+     * @param directory The directory holding the journal. Created if it does not exist.
+     * @throws IOException if the directory cannot be created or the journal cannot be read
+     */
+    public IngestLedger(File directory) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Could not create the ledger directory " + directory);
+        }
+        journal = new File(directory, JOURNAL).toPath();
+        boolean torn = false;
+        if (Files.exists(journal)) {
+            torn = endsTorn();
+            replay(torn);
+        }
+        channel = openJournal();
+        if (torn) {
+            // Drop the torn entry, so that the next entry is not appended to it
+            compact();
+        }
+    }
+
+    /**
+     * @param file A tweet file
+     * @return the last batch emitted from the file, null if none is recorded
+     */
+    public synchronized Position get(File file) {
+        return positions.get(file.getName());
+    }
+
+    /**
+     * Records a batch of lines emitted from a file.
+     *
+     * @param file A tweet file
+     * @param position The range of the file the batch covers and the checksum of its lines
+     * @throws IOException if the entry cannot be written
+     */
+    public synchronized void commit(File file, Position position) throws IOException {
+        // Remembered first, so that a compaction triggered by the entry keeps it
+        positions.put(file.getName(), position);
+        append(BATCH + '\t' + file.getName() + '\t' + position.getFingerprint() + '\t' + position.getStart() + '\t'
+                + position.getEnd() + '\t' + position.getChecksum());
+    }
+
+    /**
+     * Records that a file has been ingested completely and forgets it.
+     *
+     * @param file A tweet file
+     * @throws IOException if the entry cannot be written
+     */
+    public synchronized void done(File file) throws IOException {
+        if (positions.remove(file.getName()) != null) {
+            append(DONE + '\t' + file.getName());
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        channel.close();
+    }
+
+    /**
+     * @param torn Whether the journal ends in an entry cut short by a crash, which is ignored
+     */
+    private void replay(boolean torn) throws IOException {
+        try (BufferedReader reader = new BufferedReader(
+                new InputStreamReader(new FileInputStream(journal.toFile()), StandardCharsets.UTF_8))) {
+            String line = reader.readLine();
+            while (line != null) {
+                String next = reader.readLine();
+                if (next == null && torn) {
+                    // A torn entry may still parse, with some of the digits of its last field missing
+                    logger.warn("Ignoring the torn ledger entry: {}", line);
+                    break;
+                }
+                journalEntries++;
+                replayEntry(line);
+                line = next;
+            }
+        }
+        logger.info("Replayed {} ledger entries, {} files are partially ingested", journalEntries, positions.size());
+    }
+
+    private void replayEntry(String line) {
+        String[] fields = line.split("\t");
+        try {
+            if (fields.length == 6 && BATCH.equals(fields[0])) {
+                positions.put(fields[1], new Position(
+                        Long.parseLong(fields[2]), Long.parseLong(fields[3]), Long.parseLong(fields[4]),
+                        Long.parseLong(fields[5])));
+            } else if (fields.length == 2 && DONE.equals(fields[0])) {
+                positions.remove(fields[1]);
+            } else {
+                logger.warn("Ignoring the malformed ledger entry: {}", line);
+            }
+        } catch (NumberFormatException e) {
+            logger.warn("Ignoring the malformed ledger entry: {}", line);
+        }
+    }
+
+    private boolean endsTorn() throws IOException {
+        try (FileChannel in = FileChannel.open(journal, StandardOpenOption.READ)) {
+            if (in.size() == 0) {
+                return false;
+            }
+            ByteBuffer last = ByteBuffer.allocate(1);
+            in.read(last, in.size() - 1);
+            return last.get(0) != '\n';
+        }
+    }
+
+    private void append(String entry) throws IOException {
+        ByteBuffer bytes = ByteBuffer.wrap((entry + '\n').getBytes(StandardCharsets.UTF_8));
+        while (bytes.hasRemaining()) {
+            channel.write(bytes);
+        }
+        channel.force(false);
+
+        journalEntries++;
+        if (journalEntries >= Math.max(MIN_COMPACTION_ENTRIES, positions.size() * 4)) {
+            compact();
+        }
+    }
+
+    /**
+     * Rewrites the journal with one entry per unfinished file.
+     */
+    private void compact() throws IOException {
+        Path temporary = journal.resolveSibling(JOURNAL + ".tmp");
+        StringBuilder entries = new StringBuilder();
+        for (Map.Entry<String, Position> entry : positions.entrySet()) {
+            Position position = entry.getValue();
+            entries.append(BATCH).append('\t').append(entry.getKey()).append('\t').append(position.getFingerprint())
+                    .append('\t').append(position.getStart()).append('\t').append(position.getEnd()).append('\t')
+                    .append(position.getChecksum()).append('\n');
+        }
+        try (FileChannel out = FileChannel.open(temporary, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            ByteBuffer bytes = ByteBuffer.wrap(entries.toString().getBytes(StandardCharsets.UTF_8));
+            while (bytes.hasRemaining()) {
+                out.write(bytes);
+            }
+            out.force(false);
+        }
+
+        channel.close();
+        try {
+            Files.move(temporary, journal, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(temporary, journal, StandardCopyOption.REPLACE_EXISTING);
+        }
+        channel = openJournal();
+        journalEntries = positions.size();
+    }
+
+    private FileChannel openJournal() throws IOException {
+        return FileChannel.open(journal, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.APPEND);
+    }
+}
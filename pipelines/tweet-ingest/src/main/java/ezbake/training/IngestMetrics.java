@@ -0,0 +1,111 @@
+/*   Copyright (C) 2013-2014 Computer Sciences Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. */
+
+package ezbake.training;
+
+import java.lang.management.ManagementFactory;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Publishes the statistics of an {@link EmissionThrottle} and a {@link TweetFileIngester} as the MXBean
+ * ezbake.training:type=TweetIngest.
+ */
+public class IngestMetrics implements IngestMetricsMXBean {
+    private static final Logger logger = LoggerFactory.getLogger(IngestMetrics.class);
+
+    private static final String OBJECT_NAME = "ezbake.training:type=TweetIngest";
+
+    private final EmissionThrottle throttle;
+    private final TweetFileIngester ingester;
+
+    public IngestMetrics(EmissionThrottle throttle, TweetFileIngester ingester) {
+        this.throttle = throttle;
+        this.ingester = ingester;
+    }
+
+    /**
+     * Registers the metrics with the platform MBean server, replacing those of an earlier generator in this JVM.
+     * Failing to register is logged and otherwise ignored, since the metrics are not needed to ingest.
+     */
+    public void register() {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            if (server.isRegistered(name)) {
+                server.unregisterMBean(name);
+            }
+            server.registerMBean(this, name);
+        } catch (JMException e) {
+            logger.warn("Could not register the ingest metrics", e);
+        }
+    }
+
+    /**
+     * Unregisters the metrics from the platform MBean server. Failing to unregister is logged and otherwise ignored.
+     */
+    public void unregister() {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            if (server.isRegistered(name)) {
+                server.unregisterMBean(name);
+            }
+        } catch (JMException e) {
+            logger.warn("Could not unregister the ingest metrics", e);
+        }
+    }
+
+    @Override
+    public double getEmittedRate() {
+        return throttle.getEmittedRate();
+    }
+
+    @Override
+    public long getEmitted() {
+        return throttle.getEmitted();
+    }
+
+    @Override
+    public double getRateLimit() {
+        return throttle.getCurrentRate();
+    }
+
+    @Override
+    public double getEmitLatencyMillis() {
+        return throttle.getAverageLatencyMillis();
+    }
+
+    @Override
+    public long getThrottledMillis() {
+        return throttle.getThrottledMillis();
+    }
+
+    @Override
+    public int getLag() {
+        return ingester.getPendingRecords();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("emitted %d events, %.1f events/s, limit %.1f events/s, %.2f ms per event, "
+                + "throttled %d ms, %d records waiting", getEmitted(), getEmittedRate(), getRateLimit(),
+                getEmitLatencyMillis(), getThrottledMillis(), getLag());
+    }
+}
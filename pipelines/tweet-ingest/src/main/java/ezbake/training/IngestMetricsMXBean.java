@@ -0,0 +1,50 @@
+/*   Copyright (C) 2013-2014 Computer Sciences Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. */
+
+package ezbake.training;
+
+/**
+ * The live statistics of the tweet ingest generator, published over JMX.
+ */
+public interface IngestMetricsMXBean {
+    /**
+     * @return the events per second emitted over the last second or more
+     */
+    double getEmittedRate();
+
+    /**
+     * @return the number of events emitted since the generator started
+     */
+    long getEmitted();
+
+    /**
+     * @return the current rate limit in events per second, 0 if unlimited
+     */
+    double getRateLimit();
+
+    /**
+     * @return the average time, in milliseconds, to hand an event to the pipes
+     */
+    double getEmitLatencyMillis();
+
+    /**
+     * @return the total time, in milliseconds, the generator waited because of the rate limit
+     */
+    long getThrottledMillis();
+
+    /**
+     * @return the number of records read from the tweet files and waiting to be emitted
+     */
+    int getLag();
+}
@@ -0,0 +1,109 @@
+/*   Copyright (C) 2013-2014 Computer Sciences Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. */
+
+package ezbake.training;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * An item read by a {@link TweetFileIngester}: the start of a tweet file, a line of the file, the end of the file, or a
+ * failure to read the file.
+ */
+public class IngestRecord {
+    /**
+     * The kinds of record.
+     */
+    public enum Kind {
+        START_OF_FILE, LINE, END_OF_FILE, FAILURE
+    }
+
+    private final Kind kind;
+    private final File file;
+    private final byte[] line;
+    private final long offset;
+    private final long fingerprint;
+    private final IOException failure;
+
+    private IngestRecord(Kind kind, File file, byte[] line, long offset, long fingerprint, IOException failure) {
+        this.kind = kind;
+        this.file = file;
+        this.line = line;
+        this.offset = offset;
+        this.fingerprint = fingerprint;
+        this.failure = failure;
+    }
+
+    /**
+     * @param file The file about to be read
+     * @param fingerprint The fingerprint identifying the file's content
+     * @param offset The offset in the file's uncompressed content that reading resumes from
+     * @return a start of file record
+     */
+    public static IngestRecord startOfFile(File file, long fingerprint, long offset) {
+        return new IngestRecord(Kind.START_OF_FILE, file, null, offset, fingerprint, null);
+    }
+
+    /**
+     * @param file The file the line was read from
+     * @param line The line's bytes, without the line terminator
+     * @param offset The offset just after the line in the file's uncompressed content
+     * @return a line record
+     */
+    public static IngestRecord line(File file, byte[] line, long offset) {
+        return new IngestRecord(Kind.LINE, file, line, offset, 0, null);
+    }
+
+    /**
+     * @param file The file that was read completely
+     * @param offset The length of the file's uncompressed content
+     * @return an end of file record
+     */
+    public static IngestRecord endOfFile(File file, long offset) {
+        return new IngestRecord(Kind.END_OF_FILE, file, null, offset, 0, null);
+    }
+
+    /**
+     * @param file The file that could not be read
+     * @param failure The cause
+     * @return a failure record
+     */
+    public static IngestRecord failure(File file, IOException failure) {
+        return new IngestRecord(Kind.FAILURE, file, null, 0, 0, failure);
+    }
+
+    public Kind getKind() {
+        return kind;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public byte[] getLine() {
+        return line;
+    }
+
+    public long getOffset() {
+        return offset;
+    }
+
+    public long getFingerprint() {
+        return fingerprint;
+    }
+
+    public IOException getFailure() {
+        return failure;
+    }
+}
@@ -0,0 +1,251 @@
+/*   Copyright (C) 2013-2014 Computer Sciences Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. */
+
+package ezbake.training;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import ezbake.base.thrift.Visibility;
+import ezbake.frack.core.data.thrift.StreamEvent;
+
+/**
+ * Parses stream events on a pool of threads, so that parsing is not limited to the pipeline thread.
+ *
+ * Only parsing runs on the pool. Parsed tweets and failures are handed to the {@link Sink} on the thread that calls
+ * {@link #submit(Visibility, StreamEvent)} or {@link #drain()}, which for a pipeline worker is the pipeline thread, so
+ * the sink may use the worker's output and quarantine methods, which frack only supports from that thread. Each call
+ * first delivers everything parsed since the previous one.
+ *
+ * At most the configured number of events are in flight, submitted but not yet delivered, and submitting waits while
+ * the stage is full, delivering results as they become ready. The capacity therefore bounds both the memory a burst
+ * can use and the number of results held back until the next call, such as while no further events arrive, so it is
+ * best kept to a small multiple of the number of threads. When ordered, the events of each visibility are delivered
+ * in the order they were submitted, holding back the tweets parsed early until those before them are delivered;
+ * otherwise each is delivered in the order it was parsed. Deliveries are made one at a time even if several threads
+ * submit, and a runtime exception thrown by the sink propagates to the thread that submitted or drained; the results
+ * not yet delivered are kept for the next call.
+ */
+public class ParallelParseStage {
+    /**
+     * Parses events and receives the results of the stage.
+     */
+    public interface Sink {
+        /**
+         * Parses an event. Called concurrently from the stage's threads.
+         *
+         * @return the tweet
+         * @throws Exception if the event cannot be parsed
+         */
+        TweetWithRaw parse(StreamEvent event) throws Exception;
+
+        /**
+         * Receives a parsed tweet together with the event it was parsed from. Called from a submitting thread.
+         */
+        void deliver(Visibility visibility, StreamEvent event, TweetWithRaw tweet);
+
+        /**
+         * Receives an event that could not be parsed. Called from a submitting thread.
+         */
+        void fail(Visibility visibility, StreamEvent event, Exception cause);
+    }
+
+    /**
+     * The delivery state of one visibility's events.
+     */
+    private static final class Partition {
+        private long submitted;
+        private long delivered;
+        private final Map<Long, Result> parsed = new HashMap<>();
+    }
+
+    private static final class Result {
+        private final Visibility visibility;
+        private final StreamEvent event;
+        private TweetWithRaw tweet;
+        private Exception failure;
+
+        Result(Visibility visibility, StreamEvent event) {
+            this.visibility = visibility;
+            this.event = event;
+        }
+    }
+
+    private final Sink sink;
+    private final int capacity;
+    private final boolean ordered;
+    private final ExecutorService parsers;
+    private final Object lock = new Object();
+
+    /*
+     * Held while handing results to the sink, so that the sink never runs concurrently with itself.
+     */
+    private final Object deliveryLock = new Object();
+
+    /*
+     * Guarded by lock.
+     */
+    private final Map<Visibility, Partition> partitions = new HashMap<>();
+    private final Queue<Result> ready = new ArrayDeque<>();
+    private int inFlight;
+
+    /**
+     * @param threads The number of parser threads
+     * @param capacity The maximum number of events in flight
+     * @param ordered Whether the events of each visibility are delivered in the order they were submitted
+     * @param sink The parser and receiver of the results
+     */
+    public ParallelParseStage(int threads, int capacity, boolean ordered, Sink sink) {
+        this.sink = sink;
+        this.capacity = capacity;
+        this.ordered = ordered;
+        this.parsers = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "tweet-parser-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Delivers the results that are ready, then submits an event for parsing, waiting while the stage is full.
+     *
+     * @param visibility The visibility of the event
+     * @param event The event
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public void submit(final Visibility visibility, StreamEvent event) throws InterruptedException {
+        final Result result = new Result(visibility, event);
+        long submitted;
+        while (true) {
+            deliverReady();
+            synchronized (lock) {
+                if (inFlight < capacity) {
+                    inFlight++;
+                    Partition partition = partitions.get(visibility);
+                    if (partition == null) {
+                        partition = new Partition();
+                        partitions.put(visibility, partition);
+                    }
+                    submitted = partition.submitted++;
+                    break;
+                }
+                if (ready.isEmpty()) {
+                    lock.wait();
+                }
+            }
+        }
+
+        final long sequence = submitted;
+        parsers.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    result.tweet = sink.parse(result.event);
+                } catch (Exception e) {
+                    result.failure = e;
+                }
+                complete(sequence, result);
+            }
+        });
+    }
+
+    /**
+     * Delivers every submitted event, waiting for those still being parsed.
+     *
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public void drain() throws InterruptedException {
+        while (true) {
+            deliverReady();
+            synchronized (lock) {
+                if (inFlight == 0) {
+                    return;
+                }
+                if (ready.isEmpty()) {
+                    lock.wait();
+                }
+            }
+        }
+    }
+
+    /**
+     * Stops the parser threads once the events in flight have been parsed.
+     */
+    public void shutdown() {
+        parsers.shutdown();
+        try {
+            parsers.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Queues a parsed result for delivery, together with any results of its visibility it was holding back. Called
+     * from the parser threads.
+     */
+    private void complete(long sequence, Result result) {
+        synchronized (lock) {
+            if (!ordered) {
+                ready.add(result);
+            } else {
+                Partition partition = partitions.get(result.visibility);
+                partition.parsed.put(sequence, result);
+                Result next;
+                while ((next = partition.parsed.remove(partition.delivered)) != null) {
+                    partition.delivered++;
+                    ready.add(next);
+                }
+            }
+            lock.notifyAll();
+        }
+    }
+
+    /**
+     * Hands the results that are ready to the sink on the calling thread and frees their places in the stage.
+     */
+    private void deliverReady() {
+        synchronized (deliveryLock) {
+            while (true) {
+                Result result;
+                synchronized (lock) {
+                    result = ready.poll();
+                    if (result == null) {
+                        return;
+                    }
+                    inFlight--;
+                    lock.notifyAll();
+                }
+
+                if (result.failure != null) {
+                    sink.fail(result.visibility, result.event, result.failure);
+                } else {
+                    sink.deliver(result.visibility, result.event, result.tweet);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,207 @@
+/*   Copyright (C) 2013-2014 Computer Sciences Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. */
+
+package ezbake.training;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+/**
+ * Remembers the ids of the most recent tweets, so that a tweet seen again is recognized as a duplicate.
+ *
+ * The ids are kept in insertion order in a ring, and in an open addressing hash table of primitive longs for lookups,
+ * so that each id costs a few words of memory and no objects. Once the ring is full the oldest id is forgotten as a
+ * new one is added. Unlike a Bloom filter the set is exact: a tweet is never dropped because of a collision.
+ *
+ * The ids can be saved to a file with {@link #write(long[], Path)} and read back with {@link #read(Path)}, so that the
+ * window survives a restart.
+ *
+ * Not thread safe.
+ */
+public class RecentTweetIds {
+    /**
+     * Marks an empty slot of the table. Tweet ids are never negative, so this value is never added.
+     */
+    private static final long EMPTY = Long.MIN_VALUE;
+
+    private final long[] ring;
+    private final long[] table;
+    private final int mask;
+    private int next;
+    private int size;
+
+    /**
+     * @param capacity The number of most recent ids remembered
+     */
+    public RecentTweetIds(int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("The capacity must be positive: " + capacity);
+        }
+        ring = new long[capacity];
+
+        // Keep the table at most half full so that probe sequences stay short
+        int tableSize = Integer.highestOneBit(capacity) << 2;
+        table = new long[tableSize];
+        Arrays.fill(table, EMPTY);
+        mask = tableSize - 1;
+    }
+
+    /**
+     * Adds an id unless it is one of the most recent ones.
+     *
+     * @param id A tweet id
+     * @return true if the id was added, false if it was already present
+     */
+    public boolean add(long id) {
+        if (id == EMPTY) {
+            return true;
+        }
+
+        int slot = slotOf(id);
+        while (table[slot] != EMPTY) {
+            if (table[slot] == id) {
+                return false;
+            }
+            slot = (slot + 1) & mask;
+        }
+
+        if (size == ring.length) {
+            remove(ring[next]);
+            slot = slotOf(id);
+            while (table[slot] != EMPTY) {
+                slot = (slot + 1) & mask;
+            }
+        } else {
+            size++;
+        }
+        table[slot] = id;
+        ring[next] = id;
+        next = (next + 1) % ring.length;
+        return true;
+    }
+
+    /**
+     * @return the number of ids remembered
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return the ids remembered, oldest first, so that adding them to an empty instance restores this one
+     */
+    public long[] toArray() {
+        long[] ids = new long[size];
+        int oldest = size == ring.length ? next : 0;
+        for (int i = 0; i < size; i++) {
+            ids[i] = ring[(oldest + i) % ring.length];
+        }
+        return ids;
+    }
+
+    /**
+     * Writes ids to a file, replacing it atomically so that a crash leaves either the previous ids or the new ones.
+     *
+     * @param ids The ids, as returned by {@link #toArray()}
+     * @param file The file to write
+     * @throws IOException if the file cannot be written
+     */
+    public static void write(long[] ids, Path file) throws IOException {
+        ByteBuffer bytes = ByteBuffer.allocate(4 + 8 * ids.length + 4);
+        bytes.putInt(ids.length);
+        for (long id : ids) {
+            bytes.putLong(id);
+        }
+        CRC32 crc = new CRC32();
+        crc.update(bytes.array(), 0, bytes.position());
+        bytes.putInt((int) crc.getValue());
+        bytes.flip();
+
+        Path temporary = file.resolveSibling(file.getFileName() + ".tmp");
+        try (FileChannel out = FileChannel.open(temporary, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            while (bytes.hasRemaining()) {
+                out.write(bytes);
+            }
+            out.force(false);
+        }
+        try {
+            Files.move(temporary, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * Reads the ids written by {@link #write(long[], Path)}.
+     *
+     * @param file The file to read
+     * @return the ids, oldest first
+     * @throws IOException if the file cannot be read or is corrupt
+     */
+    public static long[] read(Path file) throws IOException {
+        ByteBuffer bytes = ByteBuffer.wrap(Files.readAllBytes(file));
+        int count = bytes.remaining() >= 4 ? bytes.getInt() : -1;
+        if (count < 0 || bytes.remaining() != 8L * count + 4) {
+            throw new IOException("The recent tweet ids in " + file + " are incomplete");
+        }
+        CRC32 crc = new CRC32();
+        crc.update(bytes.array(), 0, bytes.limit() - 4);
+        if ((int) crc.getValue() != bytes.getInt(bytes.limit() - 4)) {
+            throw new IOException("The recent tweet ids in " + file + " are corrupt");
+        }
+
+        long[] ids = new long[count];
+        for (int i = 0; i < count; i++) {
+            ids[i] = bytes.getLong();
+        }
+        return ids;
+    }
+
+    /**
+     * Removes an id from the table, shifting back the ids of its probe sequence so that no tombstones are needed.
+     */
+    private void remove(long id) {
+        int slot = slotOf(id);
+        while (table[slot] != id) {
+            slot = (slot + 1) & mask;
+        }
+
+        int hole = slot;
+        int probe = (hole + 1) & mask;
+        while (table[probe] != EMPTY) {
+            int home = slotOf(table[probe]);
+            // Move the id into the hole unless its home slot lies cyclically after the hole
+            if (((probe - home) & mask) >= ((probe - hole) & mask)) {
+                table[hole] = table[probe];
+                hole = probe;
+            }
+            probe = (probe + 1) & mask;
+        }
+        table[hole] = EMPTY;
+    }
+
+    private int slotOf(long id) {
+        long hash = id * 0x9E3779B97F4A7C15L;
+        return (int) (hash ^ (hash >>> 32)) & mask;
+    }
+}
@@ -34,7 +34,7 @@ public class RepositoryConverter implements IThriftConverter<TweetWithRaw, Repos
         Repository repo = new Repository();
         repo.setParsedData(ThriftUtils.serialize(tweetAndRaw.getTweet()));
         if (tweetAndRaw.getRaw() != null) {
-            repo.setRawData(tweetAndRaw.getRaw().getBytes());
+            repo.setRawData(tweetAndRaw.getRaw());
         }
         repo.setUri(uriPrefix + tweetAndRaw.getTweet().getId());
         repo.setUpdateVisibility(false);
@@ -28,6 +28,16 @@ import ezbake.frack.common.workers.IThriftConverter;
 public class SSRConverter implements IThriftConverter<TweetWithRaw, SSRJSON> {
     private static final long serialVersionUID = 1L;
 
+    /**
+     * A TSerializer keeps its buffer between calls but must not be shared, so every converting thread reuses its own.
+     */
+    private static final ThreadLocal<TSerializer> JSON_SERIALIZER = new ThreadLocal<TSerializer>() {
+        @Override
+        protected TSerializer initialValue() {
+            return new TSerializer(new TSimpleJSONProtocol.Factory());
+        }
+    };
+
     private String uriPrefix = null;
 
     public void setUriPrefix(String uriPrefix) {
@@ -50,7 +60,14 @@ public class SSRConverter implements IThriftConverter<TweetWithRaw, SSRJSON> {
         }
         ssr.setResultDate(TimeUtil.convertToThriftDateTime(tweet.getTimestamp()));
         ssrJson.setSsr(ssr);
-        ssrJson.setJsonString(new TSerializer(new TSimpleJSONProtocol.Factory()).toString(tweet));
+        ssrJson.setJsonString(toJson(tweet));
         return ssrJson;
     }
+
+    /**
+     * Renders a tweet as simple JSON with the calling thread's serializer.
+     */
+    static String toJson(Tweet tweet) throws TException {
+        return JSON_SERIALIZER.get().toString(tweet, "UTF-8");
+    }
 }
@@ -1,28 +0,0 @@
-/*   Copyright (C) 2013-2014 Computer Sciences Corporation
- *
- * Licensed under the Apache License, Version 2.0 (the "License");
- * you may not use this file except in compliance with the License.
- * You may obtain a copy of the License at
- *
- *     http://www.apache.org/licenses/LICENSE-2.0
- *
- * Unless required by applicable law or agreed to in writing, software
- * distributed under the License is distributed on an "AS IS" BASIS,
- * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
- * See the License for the specific language governing permissions and
- * limitations under the License. */
-
-package ezbake.training;
-
-import org.apache.thrift.TException;
-
-import ezbake.frack.common.workers.IThriftConverter;
-
-public class TweetBroadcastConverter implements IThriftConverter<TweetWithRaw, Tweet> {
-    private static final long serialVersionUID = 1L;
-
-    @Override
-    public Tweet convert(TweetWithRaw tweetAndRaw) throws TException {
-        return tweetAndRaw.getTweet();
-    }
-}
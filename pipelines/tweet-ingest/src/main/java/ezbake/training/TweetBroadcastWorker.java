@@ -0,0 +1,194 @@
+/*   Copyright (C) 2013-2014 Computer Sciences Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. */
+
+package ezbake.training;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+import org.apache.thrift.TException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import ezbake.base.thrift.Visibility;
+import ezbake.frack.api.Worker;
+
+/**
+ * The pipeline worker that broadcasts the parsed tweets to the tweet-ingest topics in {@link TweetBroadcast}
+ * envelopes, encoded by a {@link TweetBroadcastCodec} configured by the tweet.broadcast properties it documents.
+ * <p/>
+ * By default every tweet is broadcast in its own envelope as soon as it arrives. With a batch size above one, tweets
+ * are instead buffered per visibility and each visibility's tweets are broadcast together in one envelope, with that
+ * visibility, when the batch size is reached, when the batch's oldest tweet has waited for the linger time, and when
+ * the worker is cleaned up. A {@link FlushTimer} checks the linger time, so a partial batch is broadcast on time even
+ * while the stream is idle. Batches are broadcast while holding the worker's lock, so the timer never broadcasts
+ * concurrently with the pipeline. Tweets of different visibilities are never broadcast together, so every tweet keeps
+ * its own visibility. Larger batches cut the number of messages every listener handles and compress better, at the
+ * cost of added latency.
+ * <p/>
+ * Properties:
+ * <ul>
+ *     <li> tweet.broadcast.batchSize - The most tweets broadcast in one envelope. Defaults to 1, which broadcasts every
+ *          tweet on its own.</li>
+ *     <li> tweet.broadcast.lingerMilliseconds - The upper bound, in milliseconds, on how long a tweet may wait in a
+ *          batch before it is broadcast. Defaults to 100.</li>
+ * </ul>
+ */
+public class TweetBroadcastWorker extends Worker<TweetWithRaw> {
+    private static final long serialVersionUID = 1L;
+    private static final Logger logger = LoggerFactory.getLogger(TweetBroadcastWorker.class);
+
+    private static final String BATCH_SIZE_PROPERTY = "tweet.broadcast.batchSize";
+    private static final String LINGER_PROPERTY = "tweet.broadcast.lingerMilliseconds";
+    private static final int DEFAULT_BATCH_SIZE = 1;
+    private static final long DEFAULT_LINGER_MILLISECONDS = 100L;
+
+    private final List<String> topics;
+    private TweetBroadcastCodec codec;
+    private int batchSize;
+    private long lingerMilliseconds;
+    private FlushTimer flushTimer;
+
+    /*
+     * Tweets waiting to be broadcast, per visibility, in the order their batches were started. Only accessed while
+     * holding the worker's lock.
+     */
+    private Map<Visibility, Batch> pending = new LinkedHashMap<>();
+
+    /**
+     * @param topics The topics to broadcast the tweets to
+     */
+    public TweetBroadcastWorker(Collection<String> topics) {
+        super(TweetWithRaw.class);
+        this.topics = new ArrayList<>(topics);
+    }
+
+    /**
+     * Initializes the worker for processing.
+     *
+     * @param properties The EzBake configuration values for the running environment.
+     */
+    public void initialize(Properties properties) {
+        super.initialize(properties);
+
+        codec = TweetBroadcastCodec.fromProperties(properties);
+        batchSize = Math.max(1, Integer.parseInt(
+                properties.getProperty(BATCH_SIZE_PROPERTY, String.valueOf(DEFAULT_BATCH_SIZE))));
+        lingerMilliseconds = Long.parseLong(
+                properties.getProperty(LINGER_PROPERTY, String.valueOf(DEFAULT_LINGER_MILLISECONDS)));
+        if (batchSize > 1) {
+            flushTimer = new FlushTimer("tweet-broadcast-flush", lingerMilliseconds, new Runnable() {
+                @Override
+                public void run() {
+                    flushOlderThan(System.currentTimeMillis() - lingerMilliseconds);
+                }
+            });
+        }
+        logger.info("Initialization is completed. Properties: {}", properties);
+    }
+
+    /**
+     * Cleans up the worker by broadcasting any buffered tweets.
+     */
+    public void cleanup() {
+        if (flushTimer != null) {
+            flushTimer.stop();
+        }
+        flushOlderThan(Long.MAX_VALUE);
+        super.cleanup();
+    }
+
+    /**
+     * Broadcasts the tweet, or adds it to the batch of its visibility, then broadcasts the batches that have waited
+     * for the linger time.
+     *
+     * @param visibility The Visibility containing the Accumulo visibility string representing the classification level
+     * of the data contained in the incoming thrift data object.
+     * @param data The incoming parsed tweet to be processed.
+     */
+    @Override
+    public synchronized void process(Visibility visibility, TweetWithRaw data) {
+        if (batchSize == 1) {
+            try {
+                publish(visibility, codec.encode(data.getTweet()), 1);
+            } catch (TException e) {
+                logger.error("Unable to encode tweet {} for broadcast", data.getTweet().getId(), e);
+            }
+            return;
+        }
+
+        long now = System.currentTimeMillis();
+        Batch batch = pending.get(visibility);
+        if (batch == null) {
+            batch = new Batch(now);
+            pending.put(visibility, batch);
+        }
+        batch.tweets.add(data.getTweet());
+        if (batch.tweets.size() >= batchSize) {
+            pending.remove(visibility);
+            send(visibility, batch);
+        }
+        flushOlderThan(now - lingerMilliseconds);
+    }
+
+    /**
+     * Broadcasts the batches started at or before the given time.
+     */
+    private synchronized void flushOlderThan(long startedMillis) {
+        Iterator<Map.Entry<Visibility, Batch>> batches = pending.entrySet().iterator();
+        while (batches.hasNext()) {
+            Map.Entry<Visibility, Batch> entry = batches.next();
+            if (entry.getValue().startedMillis <= startedMillis) {
+                batches.remove();
+                send(entry.getKey(), entry.getValue());
+            }
+        }
+    }
+
+    private void send(Visibility visibility, Batch batch) {
+        try {
+            publish(visibility, codec.encode(batch.tweets), batch.tweets.size());
+        } catch (TException e) {
+            logger.error("Unable to encode a batch of {} tweets for broadcast", batch.tweets.size(), e);
+        }
+    }
+
+    private void publish(Visibility visibility, TweetBroadcast envelope, int tweets) {
+        for (String topic : topics) {
+            try {
+                broadcast(topic, visibility, envelope);
+            } catch (IOException e) {
+                logger.error("Unable to broadcast {} tweets to topic {}", tweets, topic, e);
+            }
+        }
+    }
+
+    /**
+     * The tweets of one visibility waiting to be broadcast together.
+     */
+    private static class Batch {
+        private final long startedMillis;
+        private final List<Tweet> tweets = new ArrayList<>();
+
+        Batch(long startedMillis) {
+            this.startedMillis = startedMillis;
+        }
+    }
+}
@@ -0,0 +1,500 @@
+/*   Copyright (C) 2013-2014 Computer Sciences Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. */
+
+package ezbake.training;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+import java.util.zip.GZIPInputStream;
+
+import org.apache.commons.compress.compressors.bzip2.BZip2CompressorInputStream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Reads the tweet files of a folder in parallel into a bounded queue of lines.
+ *
+ * The folder is scanned once when the ingester starts. While watching, a {@link WatchService} then reports files that
+ * are created or modified, and a file is read once it has not changed for the settle time, so that files still being
+ * copied into the folder are not read half written. Files whose names start with '.' are ignored.
+ *
+ * Several files are read at once, each by one reader thread with a large buffer. A start of file record is put on the
+ * queue, then every line together with its end offset, then an end of file record. The queue is bounded, so readers
+ * wait while the consumer catches up. Files compressed with gzip or bzip2 are recognized by their first bytes and
+ * decompressed while they are read.
+ *
+ * A file is resumed after the last batch recorded in the {@link IngestLedger}, provided the file's fingerprint, the
+ * checksum of its first bytes, is unchanged and the lines of that batch still match the batch's checksum. Otherwise
+ * the file has been replaced and is read from the start. A plain file is positioned at the resume offset directly, a
+ * compressed one is decompressed and skipped up to it.
+ *
+ * A file is read only once until the consumer reports it {@link #finished(File)}.
+ */
+public class TweetFileIngester implements Closeable {
+    private static final Logger logger = LoggerFactory.getLogger(TweetFileIngester.class);
+
+    private static final int BUFFER_SIZE = 1 << 20;
+
+    /**
+     * The number of leading bytes of a file covered by its fingerprint.
+     */
+    private static final int FINGERPRINT_SIZE = 4096;
+
+    /**
+     * The largest batch checked against its checksum when a file is resumed. Larger batches are read again.
+     */
+    private static final int MAX_VERIFIED_BATCH = 64 << 20;
+
+    /**
+     * How long {@link #close()} waits for the watcher and the readers to stop.
+     */
+    private static final long CLOSE_TIMEOUT_MILLISECONDS = 10000L;
+
+    private final File folder;
+    private final IngestLedger ledger;
+    private final boolean watch;
+    private final long settleMillis;
+    private final BlockingQueue<IngestRecord> records;
+    private final ExecutorService readers;
+
+    /*
+     * Files scheduled for reading whose end has not yet been reported finished.
+     */
+    private final Set<File> inProgress = Collections.newSetFromMap(new ConcurrentHashMap<File, Boolean>());
+    private final AtomicInteger activeReads = new AtomicInteger();
+
+    private WatchService watchService;
+    private Thread watcher;
+
+    /**
+     * @param folder The folder holding the tweet files
+     * @param ledger The ledger to resume files from
+     * @param readerCount The number of files read at once
+     * @param queueCapacity The maximum number of records waiting for the consumer
+     * @param watch Whether files added to the folder later are read as well
+     * @param settleMillis How long a file must be unchanged before it is read while watching
+     */
+    public TweetFileIngester(File folder, IngestLedger ledger, int readerCount, int queueCapacity,
+            boolean watch, long settleMillis) {
+        this.folder = folder;
+        this.ledger = ledger;
+        this.watch = watch;
+        this.settleMillis = settleMillis;
+        this.records = new ArrayBlockingQueue<>(queueCapacity);
+        this.readers = Executors.newFixedThreadPool(readerCount, new ThreadFactory() {
+            private final AtomicInteger threads = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "tweet-file-reader-" + threads.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Schedules the files already in the folder and, if watching, starts watching it.
+     *
+     * @throws IOException if the folder cannot be watched
+     */
+    public void start() throws IOException {
+        if (!watch) {
+            for (File file : listFiles()) {
+                schedule(file);
+            }
+            return;
+        }
+
+        watchService = FileSystems.getDefault().newWatchService();
+        folder.toPath().register(
+                watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+        watcher = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                watch();
+            }
+        }, "tweet-file-watcher");
+        watcher.setDaemon(true);
+        watcher.start();
+    }
+
+    /**
+     * Waits for the next record.
+     *
+     * @param timeout How long to wait
+     * @param unit The unit of the timeout
+     * @return the next record, or null if none arrived in time
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public IngestRecord poll(long timeout, TimeUnit unit) throws InterruptedException {
+        return records.poll(timeout, unit);
+    }
+
+    /**
+     * Takes the records that are available without waiting.
+     *
+     * @param batch The collection the records are added to
+     * @param maxRecords The maximum number of records taken
+     * @return the number of records taken
+     */
+    public int drainTo(Collection<IngestRecord> batch, int maxRecords) {
+        return records.drainTo(batch, maxRecords);
+    }
+
+    /**
+     * Reports that the consumer has handled the end or the failure of a file, so that the file may be read again if
+     * it reappears.
+     *
+     * @param file The file
+     */
+    public void finished(File file) {
+        inProgress.remove(file);
+    }
+
+    /**
+     * @return the number of records waiting for the consumer
+     */
+    public int getPendingRecords() {
+        return records.size();
+    }
+
+    /**
+     * @return true if every scheduled file has been read and finished and no records are waiting
+     */
+    public boolean isIdle() {
+        return inProgress.isEmpty() && activeReads.get() == 0 && records.isEmpty();
+    }
+
+    /**
+     * Stops watching and reading, and waits for the watcher and reader threads to finish. Records already queued stay
+     * available.
+     */
+    @Override
+    public void close() throws IOException {
+        if (watchService != null) {
+            watchService.close();
+        }
+        try {
+            // The watcher schedules reads, so it must be stopped before the readers are
+            if (watcher != null) {
+                watcher.interrupt();
+                watcher.join(CLOSE_TIMEOUT_MILLISECONDS);
+            }
+            readers.shutdownNow();
+            if (!readers.awaitTermination(CLOSE_TIMEOUT_MILLISECONDS, TimeUnit.MILLISECONDS)) {
+                logger.warn("The readers of {} did not stop in time", folder);
+            }
+        } catch (InterruptedException e) {
+            readers.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * The watcher thread: collects the files reported by the watch service and schedules each once it has settled.
+     */
+    private void watch() {
+        Set<File> candidates = new HashSet<>(listFiles());
+        try {
+            while (true) {
+                scheduleSettled(candidates);
+
+                WatchKey key = watchService.poll(Math.max(settleMillis, 1L), TimeUnit.MILLISECONDS);
+                if (key == null) {
+                    continue;
+                }
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                        // Events were lost, so look at the whole folder again
+                        candidates.addAll(listFiles());
+                    } else {
+                        File file = folder.toPath().resolve((Path) event.context()).toFile();
+                        if (isTweetFile(file)) {
+                            candidates.add(file);
+                        }
+                    }
+                }
+                if (!key.reset()) {
+                    logger.error("The tweets folder {} can no longer be watched", folder);
+                    return;
+                }
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            logger.info("Stopped watching {}", folder);
+        }
+    }
+
+    private void scheduleSettled(Set<File> candidates) {
+        long now = System.currentTimeMillis();
+        for (Iterator<File> iterator = candidates.iterator(); iterator.hasNext(); ) {
+            File file = iterator.next();
+            if (!file.isFile()) {
+                iterator.remove();
+            } else if (now - file.lastModified() >= settleMillis) {
+                schedule(file);
+                iterator.remove();
+            }
+        }
+    }
+
+    private void schedule(final File file) {
+        if (!inProgress.add(file)) {
+            return;
+        }
+
+        activeReads.incrementAndGet();
+        readers.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    read(file);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    activeReads.decrementAndGet();
+                }
+            }
+        });
+    }
+
+    /**
+     * Reads a file from where it was left, queueing its start, every non-empty line and then the end of the file, or
+     * a failure.
+     */
+    private void read(File file) throws InterruptedException {
+        long offset;
+        try {
+            long fingerprint = fingerprint(file);
+            offset = resumeOffset(file, fingerprint);
+            logger.info("Processing file: {} from offset {}", file.getAbsolutePath(), offset);
+            records.put(IngestRecord.startOfFile(file, fingerprint, offset));
+            try (InputStream in = open(file, offset)) {
+                offset = readLines(file, in, offset);
+            }
+        } catch (IOException e) {
+            records.put(IngestRecord.failure(file, e));
+            return;
+        }
+        records.put(IngestRecord.endOfFile(file, offset));
+    }
+
+    private long resumeOffset(File file, long fingerprint) throws IOException {
+        IngestLedger.Position position = ledger.get(file);
+        if (position == null) {
+            return 0L;
+        }
+        if (position.getFingerprint() != fingerprint) {
+            logger.warn("{} has been replaced since it was last read, reading it from the start", file);
+            return 0L;
+        }
+        if (!matches(file, position)) {
+            logger.warn("The last batch read from {} does not match its checksum, reading it from the start", file);
+            return 0L;
+        }
+        return position.getEnd();
+    }
+
+    /**
+     * Checks that the lines of the last batch emitted from a file are still the lines recorded in the ledger.
+     */
+    private static boolean matches(File file, IngestLedger.Position position) throws IOException {
+        long length = position.getEnd() - position.getStart();
+        if (length < 0 || length > MAX_VERIFIED_BATCH) {
+            return false;
+        }
+
+        byte[] batch = new byte[(int) length];
+        try (InputStream in = open(file, position.getStart())) {
+            if (readFully(in, batch) < batch.length) {
+                return false;
+            }
+        } catch (EOFException e) {
+            return false;
+        }
+
+        CRC32 checksum = new CRC32();
+        int lineStart = 0;
+        for (int i = 0; i <= batch.length; i++) {
+            if (i == batch.length || batch[i] == '\n') {
+                int end = i;
+                if (end > lineStart && batch[end - 1] == '\r') {
+                    end--;
+                }
+                if (end > lineStart) {
+                    checksum.update(batch, lineStart, end - lineStart);
+                }
+                lineStart = i + 1;
+            }
+        }
+        return checksum.getValue() == position.getChecksum();
+    }
+
+    /**
+     * Splits the content into lines directly in the read buffer, so that each line's end offset is known exactly.
+     *
+     * @return the offset after the last line
+     */
+    private long readLines(File file, InputStream in, long offset) throws IOException, InterruptedException {
+        byte[] buffer = new byte[BUFFER_SIZE];
+        int filled = 0;
+        int scanned = 0;
+        int read;
+        while ((read = in.read(buffer, filled, buffer.length - filled)) >= 0) {
+            filled += read;
+            int lineStart = 0;
+            for (int i = scanned; i < filled; i++) {
+                if (buffer[i] == '\n') {
+                    offset += i + 1 - lineStart;
+                    queueLine(file, buffer, lineStart, i, offset);
+                    lineStart = i + 1;
+                }
+            }
+
+            // Keep the incomplete last line, growing the buffer if the line fills it
+            filled -= lineStart;
+            System.arraycopy(buffer, lineStart, buffer, 0, filled);
+            scanned = filled;
+            if (filled == buffer.length) {
+                buffer = Arrays.copyOf(buffer, buffer.length * 2);
+            }
+        }
+
+        if (filled > 0) {
+            offset += filled;
+            queueLine(file, buffer, 0, filled, offset);
+        }
+        return offset;
+    }
+
+    private void queueLine(File file, byte[] buffer, int start, int end, long offset) throws InterruptedException {
+        if (end > start && buffer[end - 1] == '\r') {
+            end--;
+        }
+        if (end > start) {
+            records.put(IngestRecord.line(file, Arrays.copyOfRange(buffer, start, end), offset));
+        }
+    }
+
+    /**
+     * Computes the checksum of the first bytes of a file as stored, which tells whether a file is still the one the
+     * ledger recorded under its name.
+     */
+    private static long fingerprint(File file) throws IOException {
+        byte[] head = new byte[FINGERPRINT_SIZE];
+        int length;
+        try (InputStream in = new FileInputStream(file)) {
+            length = readFully(in, head);
+        }
+        CRC32 checksum = new CRC32();
+        checksum.update(head, 0, length);
+        return checksum.getValue();
+    }
+
+    /**
+     * Opens a file positioned at an offset of its uncompressed content.
+     */
+    private static InputStream open(File file, long offset) throws IOException {
+        byte[] magic = new byte[3];
+        int length;
+        try (InputStream probe = new FileInputStream(file)) {
+            length = readFully(probe, magic);
+        }
+
+        InputStream in;
+        if (length >= 2 && (magic[0] & 0xff) == 0x1f && (magic[1] & 0xff) == 0x8b) {
+            in = new GZIPInputStream(new FileInputStream(file), BUFFER_SIZE);
+        } else if (length == 3 && magic[0] == 'B' && magic[1] == 'Z' && magic[2] == 'h') {
+            in = new BZip2CompressorInputStream(new FileInputStream(file), true);
+        } else {
+            FileInputStream plain = new FileInputStream(file);
+            plain.getChannel().position(offset);
+            return plain;
+        }
+
+        try {
+            skipFully(in, offset);
+        } catch (IOException e) {
+            in.close();
+            throw e;
+        }
+        return in;
+    }
+
+    /**
+     * @return the number of bytes read, less than the buffer's length only at the end of the stream
+     */
+    private static int readFully(InputStream in, byte[] buffer) throws IOException {
+        int length = 0;
+        int read;
+        while (length < buffer.length && (read = in.read(buffer, length, buffer.length - length)) > 0) {
+            length += read;
+        }
+        return length;
+    }
+
+    private static void skipFully(InputStream in, long bytes) throws IOException {
+        byte[] discard = new byte[BUFFER_SIZE];
+        while (bytes > 0) {
+            int read = in.read(discard, 0, (int) Math.min(discard.length, bytes));
+            if (read < 0) {
+                throw new EOFException("The resume offset lies beyond the end of the file");
+            }
+            bytes -= read;
+        }
+    }
+
+    private Collection<File> listFiles() {
+        Set<File> files = new HashSet<>();
+        File[] listed = folder.listFiles();
+        if (listed != null) {
+            for (File file : listed) {
+                if (isTweetFile(file)) {
+                    files.add(file);
+                }
+            }
+        }
+        return files;
+    }
+
+    private static boolean isTweetFile(File file) {
+        return !file.getName().startsWith(".") && !file.isDirectory();
+    }
+}
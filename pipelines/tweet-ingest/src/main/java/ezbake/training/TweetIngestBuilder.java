@@ -18,7 +18,6 @@ import ezbake.frack.api.Pipeline;
 import ezbake.frack.api.PipelineBuilder;
 import ezbake.frack.common.utils.INSUtil;
 import ezbake.frack.common.utils.INSUtil.INSInfo;
-import ezbake.frack.common.workers.BroadcastWorker;
 import ezbake.frack.common.workers.SSRBroadcastWorker;
 import ezbake.frack.common.workers.WarehausWorker;
 
@@ -39,8 +38,7 @@ public class TweetIngestBuilder implements PipelineBuilder {
         ssrConverter.setUriPrefix(insInfo.getUriPrefix());
         SSRBroadcastWorker<TweetWithRaw> ssrWorker =
                 new SSRBroadcastWorker<>(TweetWithRaw.class, ssrConverter);
-        BroadcastWorker<TweetWithRaw> broadcastWorker = new BroadcastWorker<>(
-                TweetWithRaw.class, insInfo.getTopics(), new TweetBroadcastConverter());
+        TweetBroadcastWorker broadcastWorker = new TweetBroadcastWorker(insInfo.getTopics());
 
         pipeline.addGenerator(FEED_NAME + "_generator", generator);
         pipeline.addWorker(FEED_NAME + "_parser", parser);
@@ -14,13 +14,18 @@
 
 package ezbake.training;
 
-import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileReader;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Properties;
 import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -36,7 +41,16 @@ import ezbake.quarantine.thrift.AdditionalMetadata;
 import ezbake.quarantine.thrift.MetadataEntry;
 
 /**
- * The pipeline reads tweets from a file located in the tweets.folder and emits them for downstream consumers.
+ * The pipeline reads tweets from the files located in the tweets.folder and emits them for downstream consumers.
+ * <p/>
+ * The files are read by a {@link TweetFileIngester}, several at a time, and may be plain or compressed with gzip or
+ * bzip2. Every call to {@link #generate()} emits the lines read so far, up to a batch, and then records the batch of
+ * each file in the {@link IngestLedger}. A restart therefore resumes each file after its last recorded batch. Only a
+ * crash between emitting a batch and recording it emits lines again, and the {@link TweetIngestParser} drops the
+ * tweets it still remembers, so delivery is at least once rather than exactly once.
+ * <p/>
+ * Emission is paced by an {@link EmissionThrottle}, and its statistics are published over JMX by {@link IngestMetrics}
+ * and logged every minute.
  * <p/>
  * Properties:
  * <ul>
@@ -46,19 +60,62 @@ import ezbake.quarantine.thrift.MetadataEntry;
  *          processed files will not be deleted. If a value of false or no value is given then each file is
  *          deleted after processing it. Further, files may be added to the tweets.folder and picked up by the
  *          processing automatically.</li>
- *     <li> processing.pauseMilliseconds - Indicates the amount of time, in milliseconds, between runs. No pause
- *          occurs if this value is not provided.</li>
+ *     <li> processing.pauseMilliseconds - Indicates the amount of time, in milliseconds, to pause when no tweets are
+ *          waiting to be emitted. No pause occurs if this value is not provided.</li>
+ *     <li> processing.eventsPerSecond - The target number of tweets emitted per second. Tweets are emitted as fast
+ *          as they are read if this value is not provided.</li>
+ *     <li> processing.burstEvents - The number of tweets that may be emitted at once after a pause. Defaults to one
+ *          second of tweets at the target rate.</li>
+ *     <li> processing.maxEmitMilliseconds - The average time, in milliseconds, to hand a tweet to the pipes above
+ *          which the rate is halved, until the pipes keep up again. Defaults to 100. A value of 0 keeps the target
+ *          rate regardless of the pipes.</li>
+ *     <li> tweets.readers - The number of files read at once. Defaults to 4.</li>
+ *     <li> tweets.settleMilliseconds - How long, in milliseconds, a file added to the tweets.folder must be unchanged
+ *          before it is read. Defaults to 1000.</li>
+ *     <li> tweets.checkpoint.dir - The directory holding the ledger of partially read files. Defaults to the
+ *          .checkpoints directory in the tweets.folder.</li>
  * </ul>
  */
 public class TweetIngestGenerator extends Generator<StreamEvent> {
     private static final long serialVersionUID = 1L;
     private static final Logger logger = LoggerFactory.getLogger(TweetIngestGenerator.class);
 
+    private static final int DEFAULT_READERS = 4;
+    private static final long DEFAULT_SETTLE_MILLISECONDS = 1000L;
+
+    /**
+     * The maximum number of lines emitted per call to {@link #generate()}, and so per ledger entry.
+     */
+    private static final int MAX_BATCH = 1000;
+
+    /**
+     * The number of lines read ahead of the emitting thread.
+     */
+    private static final int QUEUE_CAPACITY = 10000;
+
+    /**
+     * How long {@link #generate()} waits for the first line of a batch.
+     */
+    private static final long POLL_MILLISECONDS = 100L;
+
+    private static final long DEFAULT_MAX_EMIT_MILLISECONDS = 100L;
+    private static final long REPORT_INTERVAL_MILLISECONDS = 60000L;
+
     private Random randomGenerator = new Random();
     private File folder;
     private long pauseMilliseconds = 0L;
     private boolean runOnce = false;
     private boolean isFirstRun = true;
+    private IngestLedger ledger;
+    private TweetFileIngester ingester;
+    private EmissionThrottle throttle;
+    private IngestMetrics metrics;
+    private long reportedAt;
+
+    /*
+     * The files being emitted. Only accessed by the generating thread.
+     */
+    private Map<File, FileProgress> progress = new HashMap<>();
 
     public void initialize(Properties properties) {
         EzProperties props = new EzProperties(properties, true);
@@ -67,57 +124,211 @@ public class TweetIngestGenerator extends Generator<StreamEvent> {
         folder = new File(String.valueOf(props.get("tweets.folder")));
         pauseMilliseconds = props.getLong("processing.pauseMilliseconds", this.pauseMilliseconds);
         runOnce = props.getBoolean("processing.runOnce", this.runOnce);
+        int readers = props.getInteger("tweets.readers", DEFAULT_READERS);
+        long settleMilliseconds = props.getLong("tweets.settleMilliseconds", DEFAULT_SETTLE_MILLISECONDS);
+        double eventsPerSecond = Double.parseDouble(props.getProperty("processing.eventsPerSecond", "0"));
+        int burstEvents = props.getInteger("processing.burstEvents", (int) Math.max(1, eventsPerSecond));
+        long maxEmitMilliseconds = props.getLong("processing.maxEmitMilliseconds", DEFAULT_MAX_EMIT_MILLISECONDS);
+        File checkpointDirectory = new File(
+                props.getProperty("tweets.checkpoint.dir", new File(folder, ".checkpoints").getPath()));
+
+        try {
+            ledger = new IngestLedger(checkpointDirectory);
+            ingester = new TweetFileIngester(
+                    folder, ledger, readers, QUEUE_CAPACITY, !runOnce, settleMilliseconds);
+            ingester.start();
+        } catch (IOException e) {
+            logger.error("Could not start reading tweets from {}", folder, e);
+            throw new RuntimeException(e);
+        }
+
+        throttle = new EmissionThrottle(eventsPerSecond, burstEvents, maxEmitMilliseconds);
+        metrics = new IngestMetrics(throttle, ingester);
+        metrics.register();
+        reportedAt = System.currentTimeMillis();
     }
 
     public void generate() {
+        int emitted = 0;
         if (shouldProcessingContinue()) {
-            processFiles();
+            emitted = processFiles();
             performPostProcessTasks();
+            report();
+        }
+        if (emitted == 0) {
+            pause();
         }
-        pause();
     }
 
-    private void processFiles() {
-        File[] files = folder.listFiles();
-        if (files != null && files.length > 0) {
-            File fileToProcess = files[0];
+    /**
+     * Cleans up the generator by stopping the file readers and the folder watcher, closing the ledger and
+     * unregistering the metrics. Lines read but not yet emitted are read again from the ledger on the next start.
+     */
+    public void cleanup() {
+        if (ingester != null) {
+            try {
+                ingester.close();
+            } catch (IOException e) {
+                logger.warn("Could not stop reading tweets from {}", folder, e);
+            }
+        }
+        if (ledger != null) {
+            for (Map.Entry<File, FileProgress> entry : progress.entrySet()) {
+                commit(entry.getKey(), entry.getValue());
+            }
             try {
-                logger.info("Processing file: {}", fileToProcess.getAbsolutePath());
-                BufferedReader br = new BufferedReader(new FileReader(fileToProcess));
-                String line;
-                int recordCount = 0;
-                while ((line = br.readLine()) != null) {
-                    logger.info("Processing item #{}: {}", recordCount + 1, line);
-                    emitEvent(line);
-                    recordCount++;
-                }
-                br.close();
-                logger.info("Done Processing file: {} - {} records read", fileToProcess.getAbsolutePath(), recordCount);
-                if (!runOnce) {
-                    boolean deleteOkay = fileToProcess.delete();
-                    if (!deleteOkay) {
-                        logger.error("Could not successfully delete {}", fileToProcess.getAbsolutePath());
+                ledger.close();
+            } catch (IOException e) {
+                logger.warn("Could not close the ingest ledger", e);
+            }
+        }
+        if (metrics != null) {
+            metrics.unregister();
+        }
+        super.cleanup();
+    }
+
+    /**
+     * Emits the next batch of lines and handles the files that were read completely or failed.
+     *
+     * @return the number of lines emitted
+     */
+    private int processFiles() {
+        List<IngestRecord> batch = new ArrayList<>();
+        try {
+            IngestRecord first = ingester.poll(POLL_MILLISECONDS, TimeUnit.MILLISECONDS);
+            if (first == null) {
+                return 0;
+            }
+            batch.add(first);
+            ingester.drainTo(batch, throttle.batchSize(MAX_BATCH) - 1);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return 0;
+        }
+
+        int emitted = 0;
+        boolean interrupted = false;
+        for (IngestRecord record : batch) {
+            File file = record.getFile();
+            FileProgress fileProgress = progress.get(file);
+            switch (record.getKind()) {
+                case START_OF_FILE:
+                    progress.put(file, new FileProgress(record.getFingerprint(), record.getOffset()));
+                    break;
+                case LINE:
+                    try {
+                        throttle.acquire();
+                    } catch (InterruptedException e) {
+                        // Emit the rest of the batch anyway, so that the ledger does not skip over it
+                        interrupted = true;
                     }
-                }
+                    long started = System.nanoTime();
+                    emitEvent(record.getLine());
+                    throttle.emitted(System.nanoTime() - started);
+                    fileProgress.emitted(record.getLine(), record.getOffset());
+                    emitted++;
+                    break;
+                case END_OF_FILE:
+                    finishFile(file, progress.remove(file), record.getOffset());
+                    break;
+                case FAILURE:
+                    // The lines emitted before the failure stay emitted
+                    commit(file, progress.remove(file));
+                    quarantineFile(file, record.getFailure());
+                    ingester.finished(file);
+                    break;
+                default:
+                    break;
+            }
+        }
+
+        for (Map.Entry<File, FileProgress> entry : progress.entrySet()) {
+            commit(entry.getKey(), entry.getValue());
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        return emitted;
+    }
+
+    /**
+     * Records the lines of a file emitted since its last commit in the ledger.
+     */
+    private void commit(File file, FileProgress fileProgress) {
+        if (fileProgress == null || !fileProgress.hasUncommitted()) {
+            return;
+        }
+        IngestLedger.Position position = fileProgress.uncommitted();
+        try {
+            ledger.commit(file, position);
+            fileProgress.committed();
+        } catch (IOException e) {
+            logger.error("Could not record {} up to offset {} in the ledger", file, position.getEnd(), e);
+        }
+    }
+
+    private void report() {
+        long now = System.currentTimeMillis();
+        if (now - reportedAt >= REPORT_INTERVAL_MILLISECONDS) {
+            logger.info("Tweet ingest: {}", metrics);
+            reportedAt = now;
+        }
+    }
+
+    /**
+     * Deletes a file read completely, unless running once, and only then records it as done. A file that could not be
+     * deleted, or is still present after a crash, is therefore resumed from its end rather than read again.
+     */
+    private void finishFile(File file, FileProgress fileProgress, long length) {
+        logger.info("Done Processing file: {} - {} bytes read", file.getAbsolutePath(), length);
+        if (!runOnce && !file.delete()) {
+            logger.error("Could not successfully delete {}", file.getAbsolutePath());
+            commit(file, fileProgress);
+        } else {
+            try {
+                ledger.done(file);
             } catch (IOException e) {
-                logger.error("Error reading file:: {}", fileToProcess.getAbsolutePath(), e);
-                AdditionalMetadata metaData = new AdditionalMetadata();
-                MetadataEntry stackTraceEntry = new MetadataEntry();
-                stackTraceEntry.setValue(StackTraceUtil.getStackTrace(e));
-                metaData.putToEntries("stackTrace", stackTraceEntry);
-                try {
-                    sendRawToQuarantine(
-                            Files.toByteArray(fileToProcess), new Visibility().setFormalVisibility("U"),
-                            "Could not read twitter file", metaData);
-                } catch (IOException ioe) {
-                    logger.error("FATAL, cannot send object to Quarantine.", ioe);
-                    throw new RuntimeException("Could not send object to Quarantine.", ioe);
-                }
+                logger.error("Could not record {} as done in the ledger", file.getAbsolutePath(), e);
             }
         }
+        ingester.finished(file);
+    }
+
+    private void quarantineFile(File file, IOException e) {
+        logger.error("Error reading file:: {}", file.getAbsolutePath(), e);
+        AdditionalMetadata metaData = new AdditionalMetadata();
+        MetadataEntry stackTraceEntry = new MetadataEntry();
+        stackTraceEntry.setValue(StackTraceUtil.getStackTrace(e));
+        metaData.putToEntries("stackTrace", stackTraceEntry);
+        try {
+            sendRawToQuarantine(
+                    Files.toByteArray(file), new Visibility().setFormalVisibility("U"),
+                    "Could not read twitter file", metaData);
+        } catch (IOException ioe) {
+            logger.error("FATAL, cannot send object to Quarantine.", ioe);
+            throw new RuntimeException("Could not send object to Quarantine.", ioe);
+        }
+    }
+
+    /**
+     * Wraps a raw tweet in a stream event and hands it to the pipes.
+     */
+    void emitEvent(byte[] status) {
+        StreamEvent event = toEvent(status);
+        try {
+            logger.debug("Emitting stream event: {}", event);
+            Visibility vis = new Visibility().setFormalVisibility(event.getAuthorization());
+            outputToPipes(vis, event);
+        } catch (IOException e) {
+            logger.error("Error writing tweet - {}", new String(status, StandardCharsets.UTF_8), e);
+        }
     }
 
-    private void emitEvent(String status) {
+    /**
+     * Wraps a raw tweet in a stream event with a randomly chosen authorization.
+     */
+    StreamEvent toEvent(byte[] status) {
         StreamEvent event = new StreamEvent();
         event.setOrigin("twitter-firehose");
         event.setDateTime(new Date().toString());
@@ -132,15 +343,8 @@ public class TweetIngestGenerator extends Generator<StreamEvent> {
         } else {
             event.setAuthorization("U");
         }
-
-        try {
-            event.setContent(status.getBytes("UTF-8"));
-            logger.info("Emitting stream event: {}" + event);
-            Visibility vis = new Visibility().setFormalVisibility(event.getAuthorization());
-            outputToPipes(vis, event);
-        } catch (IOException e) {
-            logger.error("Error writing tweet - " + status);
-        }
+        event.setContent(status);
+        return event;
     }
 
     private boolean shouldProcessingContinue() {
@@ -148,7 +352,8 @@ public class TweetIngestGenerator extends Generator<StreamEvent> {
     }
 
     private void performPostProcessTasks() {
-        if (isFirstRun) {
+        // A single run ends once every file in the folder has been read and emitted
+        if (isFirstRun && runOnce && ingester.isIdle()) {
             isFirstRun = false;
         }
     }
@@ -162,4 +367,38 @@ public class TweetIngestGenerator extends Generator<StreamEvent> {
             }
         }
     }
+
+    /**
+     * How far a file has been emitted and recorded in the ledger.
+     */
+    private static final class FileProgress {
+        private final long fingerprint;
+        private final CRC32 checksum = new CRC32();
+        private long committedOffset;
+        private long emittedOffset;
+
+        FileProgress(long fingerprint, long offset) {
+            this.fingerprint = fingerprint;
+            this.committedOffset = offset;
+            this.emittedOffset = offset;
+        }
+
+        void emitted(byte[] line, long offset) {
+            checksum.update(line, 0, line.length);
+            emittedOffset = offset;
+        }
+
+        boolean hasUncommitted() {
+            return emittedOffset > committedOffset;
+        }
+
+        IngestLedger.Position uncommitted() {
+            return new IngestLedger.Position(fingerprint, committedOffset, emittedOffset, checksum.getValue());
+        }
+
+        void committed() {
+            committedOffset = emittedOffset;
+            checksum.reset();
+        }
+    }
 }
@@ -15,7 +15,15 @@
 package ezbake.training;
 
 import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.text.ParseException;
 import java.util.Properties;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -32,45 +40,255 @@ import twitter4j.Status;
 import twitter4j.TwitterException;
 import twitter4j.json.DataObjectFactory;
 
+/**
+ * The pipeline worker that parses the raw tweets emitted by the {@link TweetIngestGenerator} into {@link Tweet}
+ * instances.
+ * <p/>
+ * A tweet whose id is among the most recent ids output is dropped, so that tweets emitted again after a restart of the
+ * generator, or found in more than one file, are usually not output twice. The window of ids is held in memory. When
+ * tweet.dedup.dir is set it is also saved there periodically and when the worker is cleaned up, and loaded when the
+ * worker starts, so that it survives a restart of the parser too. After a crash the tweets parsed since the last save
+ * are forgotten, and may be output again if the generator emits them again. Tweets are therefore delivered at least
+ * once, and the consumers must tolerate an occasional repeated tweet.
+ * <p/>
+ * Tweets are parsed by the {@link TweetJsonParser}, which reads only the fields of a {@link Tweet} straight from the
+ * raw bytes, unless the twitter4j parser is configured. Tweets that cannot be parsed are sent to quarantine. Several
+ * threads may parse at once, but tweets are always checked for duplicates, output and quarantined on the pipeline
+ * thread: the tweets parsed in the background are handed over as the following tweets are processed. Until then they
+ * are only held in memory, so tweet.parser.capacity also bounds the tweets waiting for the next one while the stream
+ * is idle, and the tweets lost if the worker crashes before it is cleaned up.
+ * <p/>
+ * Properties:
+ * <ul>
+ *     <li> tweet.dedup.capacity - The number of most recent tweet ids remembered. Defaults to 1000000.</li>
+ *     <li> tweet.dedup.dir - The directory the most recent tweet ids are saved in. If no value is given the ids are
+ *          only kept in memory.</li>
+ *     <li> tweet.dedup.saveIntervalSeconds - How often the most recent tweet ids are saved. Defaults to 10.</li>
+ *     <li> tweet.parser - Either fast, for the {@link TweetJsonParser}, or twitter4j, for twitter4j's full status
+ *          parser. Defaults to fast.</li>
+ *     <li> tweet.parser.threads - The number of threads parsing tweets. With more than one, tweets are parsed by a
+ *          {@link ParallelParseStage}. Defaults to 1, parsing on the pipeline thread.</li>
+ *     <li> tweet.parser.capacity - The maximum number of tweets parsed or being parsed by the parser threads but not
+ *          yet output. Defaults to twice the number of threads.</li>
+ *     <li> tweet.parser.ordered - Whether the parser threads output the tweets of each visibility in the order they
+ *          arrived, which for a tweet stream is the order of their ids. Defaults to true.</li>
+ * </ul>
+ */
 public class TweetIngestParser extends Worker<StreamEvent> {
 
     private static final long serialVersionUID = 1L;
     private static Logger logger = LoggerFactory.getLogger(TweetIngestParser.class);
 
+    private static final String DEDUP_CAPACITY_PROPERTY = "tweet.dedup.capacity";
+    private static final int DEFAULT_DEDUP_CAPACITY = 1000000;
+    private static final String DEDUP_DIRECTORY_PROPERTY = "tweet.dedup.dir";
+    private static final String DEDUP_SAVE_INTERVAL_PROPERTY = "tweet.dedup.saveIntervalSeconds";
+    private static final long DEFAULT_DEDUP_SAVE_INTERVAL_SECONDS = 10L;
+    private static final String RECENT_IDS_FILE = "recent-tweet-ids.dat";
+    private static final String PARSER_PROPERTY = "tweet.parser";
+    private static final String TWITTER4J_PARSER = "twitter4j";
+    private static final String THREADS_PROPERTY = "tweet.parser.threads";
+    private static final String CAPACITY_PROPERTY = "tweet.parser.capacity";
+    private static final String ORDERED_PROPERTY = "tweet.parser.ordered";
+    private static final int DEFAULT_CAPACITY_PER_THREAD = 2;
+
+    private RecentTweetIds recentIds;
+    private Path recentIdsFile;
+    private ScheduledExecutorService saveScheduler;
+    private boolean useTwitter4j;
+    private ParallelParseStage parseStage;
+
     public TweetIngestParser() {
         super(StreamEvent.class);
     }
 
     @Override
     public void process(Visibility visibility, StreamEvent streamEvent) {
-        try {
-            Status status = DataObjectFactory.createStatus(new String(streamEvent.getContent(), "UTF-8"));
-            Tweet tweet = this.convertToTweet(status);
-            String raw = streamEvent.getContent().toString();
-            TweetWithRaw thriftAndRaw = new TweetWithRaw(tweet, raw);
+        if (parseStage != null) {
+            try {
+                parseStage.submit(visibility, streamEvent);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException("Interrupted while submitting a tweet for parsing", e);
+            }
+            return;
+        }
 
-            outputToPipes(visibility, thriftAndRaw);
-        } catch (TwitterException | IOException e) {
-            logger.error("Error during tweet output to pipes", streamEvent, e);
+        try {
+            deliver(visibility, streamEvent, parse(streamEvent));
+        } catch (TwitterException | ParseException | IOException e) {
+            quarantine(visibility, streamEvent, e);
+        }
+    }
 
-            AdditionalMetadata metaData = new AdditionalMetadata();
-            MetadataEntry stackTraceEntry = new MetadataEntry();
-            stackTraceEntry.setValue(StackTraceUtil.getStackTrace(e));
-            metaData.putToEntries("stackTrace", stackTraceEntry);
+    /**
+     * Cleans up the worker by delivering the tweets still being parsed, stopping the parser threads and saving the
+     * most recent tweet ids.
+     */
+    public void cleanup() {
+        if (parseStage != null) {
             try {
-                sendObjectToQuarantine(
-                        streamEvent, visibility, "Error during tweet output to pipes", metaData);
-            } catch (IOException ioe) {
-                logger.error("FATAL, cannot send object to Quarantine.", ioe);
-                throw new RuntimeException("Could not send object to Quarantine.", ioe);
+                parseStage.drain();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
             }
+            parseStage.shutdown();
+        }
+        if (saveScheduler != null) {
+            saveScheduler.shutdown();
+            saveRecentIds();
+        }
+        super.cleanup();
+    }
+
+    /**
+     * Outputs a parsed tweet unless its id is among the most recent ids output. Called on the pipeline thread.
+     */
+    private void deliver(Visibility visibility, StreamEvent streamEvent, TweetWithRaw thriftAndRaw) {
+        long id = thriftAndRaw.getTweet().getId();
+        if (!isFirstSeen(id)) {
+            logger.debug("Dropping the duplicate tweet {}", id);
+            return;
+        }
+        output(visibility, streamEvent, thriftAndRaw);
+    }
+
+    private void output(Visibility visibility, StreamEvent streamEvent, TweetWithRaw thriftAndRaw) {
+        try {
+            outputToPipes(visibility, thriftAndRaw);
+        } catch (IOException e) {
+            quarantine(visibility, streamEvent, e);
+        }
+    }
+
+    private void quarantine(Visibility visibility, StreamEvent streamEvent, Exception e) {
+        logger.error("Error during tweet output to pipes", streamEvent, e);
+
+        AdditionalMetadata metaData = new AdditionalMetadata();
+        MetadataEntry stackTraceEntry = new MetadataEntry();
+        stackTraceEntry.setValue(StackTraceUtil.getStackTrace(e));
+        metaData.putToEntries("stackTrace", stackTraceEntry);
+        try {
+            sendObjectToQuarantine(
+                    streamEvent, visibility, "Error during tweet output to pipes", metaData);
+        } catch (IOException ioe) {
+            logger.error("FATAL, cannot send object to Quarantine.", ioe);
+            throw new RuntimeException("Could not send object to Quarantine.", ioe);
         }
     }
 
+    /**
+     * Parses a raw tweet. Safe to call from the parser threads, as it uses no state of the worker but the choice of
+     * parser.
+     *
+     * @param streamEvent The event holding the raw tweet
+     * @return the tweet together with its raw form
+     */
+    TweetWithRaw parse(StreamEvent streamEvent) throws TwitterException, ParseException, IOException {
+        Tweet tweet;
+        if (useTwitter4j) {
+            Status status = DataObjectFactory.createStatus(new String(streamEvent.getContent(), "UTF-8"));
+            tweet = convertToTweet(status);
+        } else {
+            tweet = TweetJsonParser.parse(streamEvent.getContent());
+        }
+        return new TweetWithRaw(tweet, streamEvent.getContent());
+    }
+
     public void initialize(Properties props) {
+        recentIds = new RecentTweetIds(Integer.parseInt(
+                props.getProperty(DEDUP_CAPACITY_PROPERTY, String.valueOf(DEFAULT_DEDUP_CAPACITY))));
+        useTwitter4j = TWITTER4J_PARSER.equals(props.getProperty(PARSER_PROPERTY));
+
+        String dedupDirectory = props.getProperty(DEDUP_DIRECTORY_PROPERTY, "").trim();
+        if (!dedupDirectory.isEmpty()) {
+            recentIdsFile = Paths.get(dedupDirectory, RECENT_IDS_FILE);
+            loadRecentIds();
+
+            long saveIntervalSeconds = Long.parseLong(props.getProperty(
+                    DEDUP_SAVE_INTERVAL_PROPERTY, String.valueOf(DEFAULT_DEDUP_SAVE_INTERVAL_SECONDS)));
+            saveScheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "tweet-dedup-save");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            saveScheduler.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    saveRecentIds();
+                }
+            }, saveIntervalSeconds, saveIntervalSeconds, TimeUnit.SECONDS);
+        }
+
+        int threads = Integer.parseInt(props.getProperty(THREADS_PROPERTY, "1"));
+        if (threads > 1) {
+            int capacity = Integer.parseInt(props.getProperty(
+                    CAPACITY_PROPERTY, String.valueOf(threads * DEFAULT_CAPACITY_PER_THREAD)));
+            boolean ordered = Boolean.parseBoolean(props.getProperty(ORDERED_PROPERTY, "true"));
+            parseStage = new ParallelParseStage(threads, capacity, ordered, new ParallelParseStage.Sink() {
+                @Override
+                public TweetWithRaw parse(StreamEvent event) throws Exception {
+                    return TweetIngestParser.this.parse(event);
+                }
+
+                @Override
+                public void deliver(Visibility visibility, StreamEvent event, TweetWithRaw tweet) {
+                    TweetIngestParser.this.deliver(visibility, event, tweet);
+                }
+
+                @Override
+                public void fail(Visibility visibility, StreamEvent event, Exception cause) {
+                    quarantine(visibility, event, cause);
+                }
+            });
+        }
+    }
+
+    private synchronized boolean isFirstSeen(long id) {
+        return recentIds.add(id);
+    }
+
+    /**
+     * Adds the saved tweet ids to the empty window of recent ids. A missing or unreadable file leaves it empty.
+     */
+    private void loadRecentIds() {
+        try {
+            Files.createDirectories(recentIdsFile.getParent());
+            if (!Files.exists(recentIdsFile)) {
+                return;
+            }
+
+            long[] ids = RecentTweetIds.read(recentIdsFile);
+            synchronized (this) {
+                for (long id : ids) {
+                    recentIds.add(id);
+                }
+            }
+            logger.info("Loaded {} recent tweet ids from {}", ids.length, recentIdsFile);
+        } catch (IOException e) {
+            logger.error("Could not load the recent tweet ids from {}, starting without them", recentIdsFile, e);
+        }
+    }
+
+    private void saveRecentIds() {
+        long[] ids;
+        synchronized (this) {
+            ids = recentIds.toArray();
+        }
+        try {
+            RecentTweetIds.write(ids, recentIdsFile);
+        } catch (IOException | RuntimeException e) {
+            logger.error("Could not save the recent tweet ids to {}", recentIdsFile, e);
+        }
     }
 
-    private Tweet convertToTweet(Status status) {
+    /**
+     * Converts a tweet read by twitter4j, as the worker did before the {@link TweetJsonParser}.
+     */
+    static Tweet convertToTweet(Status status) {
         Tweet tweet = new Tweet();
         tweet.setTimestamp(status.getCreatedAt().getTime());
         tweet.setId(status.getId());
@@ -0,0 +1,564 @@
+/*   Copyright (C) 2013-2014 Computer Sciences Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. */
+
+package ezbake.training;
+
+import java.nio.charset.StandardCharsets;
+import java.text.ParseException;
+
+import ezbake.base.thrift.Coordinate;
+
+/**
+ * Parses a tweet in the Twitter streaming API JSON format straight from its UTF-8 bytes into a {@link Tweet}.
+ *
+ * Only the fields the {@link Tweet} needs are decoded: id, text, created_at, user.id, user.name, favorited, whether
+ * retweeted_status is present, and the point of coordinates, or of the older geo field when coordinates is absent.
+ * Every other value is skipped over without being decoded, and no strings are built for keys. Like twitter4j, the
+ * parser turns the &amp;amp;, &amp;lt; and &amp;gt; entities Twitter escapes text with back into characters.
+ *
+ * The parser is lenient about values it skips but strict about the structure of the document, so that a truncated or
+ * otherwise malformed record fails with a {@link ParseException} rather than producing a partial tweet.
+ */
+public final class TweetJsonParser {
+    private static final byte[] ID = ascii("id");
+    private static final byte[] TEXT = ascii("text");
+    private static final byte[] CREATED_AT = ascii("created_at");
+    private static final byte[] USER = ascii("user");
+    private static final byte[] NAME = ascii("name");
+    private static final byte[] FAVORITED = ascii("favorited");
+    private static final byte[] RETWEETED_STATUS = ascii("retweeted_status");
+    private static final byte[] COORDINATES = ascii("coordinates");
+    private static final byte[] GEO = ascii("geo");
+
+    private static final String MONTHS = "JanFebMarAprMayJunJulAugSepOctNovDec";
+
+    private final byte[] json;
+    private final int limit;
+    private int position;
+
+    /*
+     * The start and end of the last key read, within json.
+     */
+    private int keyStart;
+    private int keyEnd;
+
+    private TweetJsonParser(byte[] json, int offset, int length) {
+        this.json = json;
+        this.position = offset;
+        this.limit = offset + length;
+    }
+
+    /**
+     * @param json A tweet as a UTF-8 encoded JSON object
+     * @return the tweet
+     * @throws ParseException if the JSON is malformed or lacks the id, text, created_at or user id of the tweet
+     */
+    public static Tweet parse(byte[] json) throws ParseException {
+        return parse(json, 0, json.length);
+    }
+
+    /**
+     * @param json A buffer holding a tweet as a UTF-8 encoded JSON object
+     * @param offset The offset of the object in the buffer
+     * @param length The length of the object
+     * @return the tweet
+     * @throws ParseException if the JSON is malformed or lacks the id, text, created_at or user id of the tweet
+     */
+    public static Tweet parse(byte[] json, int offset, int length) throws ParseException {
+        return new TweetJsonParser(json, offset, length).parseTweet();
+    }
+
+    private Tweet parseTweet() throws ParseException {
+        Tweet tweet = new Tweet();
+        boolean hasId = false;
+        boolean hasCreatedAt = false;
+        boolean hasUser = false;
+        boolean hasCoordinates = false;
+        Coordinate geo = null;
+
+        expect('{');
+        if (!consume('}')) {
+            do {
+                readKey();
+                if (keyIs(ID)) {
+                    tweet.setId(readLong());
+                    hasId = true;
+                } else if (keyIs(TEXT)) {
+                    tweet.setText(unescapeEntities(readString()));
+                } else if (keyIs(CREATED_AT)) {
+                    String createdAt = readString();
+                    if (createdAt != null) {
+                        tweet.setTimestamp(parseCreatedAt(createdAt));
+                        hasCreatedAt = true;
+                    }
+                } else if (keyIs(USER)) {
+                    hasUser = readUser(tweet);
+                } else if (keyIs(FAVORITED)) {
+                    tweet.setIsFavorite(readBoolean());
+                } else if (keyIs(RETWEETED_STATUS)) {
+                    boolean retweet = !consumeNull();
+                    if (retweet) {
+                        skipValue();
+                    }
+                    tweet.setIsRetweet(retweet);
+                } else if (keyIs(COORDINATES)) {
+                    // GeoJSON order: longitude, latitude
+                    double[] point = readPoint();
+                    if (point != null) {
+                        tweet.setGeoLocation(new Coordinate(point[1], point[0]));
+                        hasCoordinates = true;
+                    }
+                } else if (keyIs(GEO)) {
+                    // The deprecated geo field lists latitude first
+                    double[] point = readPoint();
+                    if (point != null) {
+                        geo = new Coordinate(point[0], point[1]);
+                    }
+                } else {
+                    skipValue();
+                }
+            } while (consume(','));
+            expect('}');
+        }
+        skipWhitespace();
+        if (position != limit) {
+            throw error("Unexpected content after the tweet");
+        }
+
+        if (!hasId || tweet.getText() == null || !hasCreatedAt || !hasUser) {
+            throw error("The tweet lacks its id, text, created_at or user id");
+        }
+        if (!hasCoordinates && geo != null) {
+            tweet.setGeoLocation(geo);
+        }
+        return tweet;
+    }
+
+    /**
+     * @return true if the user is an object with an id, false otherwise
+     */
+    private boolean readUser(Tweet tweet) throws ParseException {
+        if (consumeNull()) {
+            return false;
+        }
+        boolean hasId = false;
+        expect('{');
+        if (!consume('}')) {
+            do {
+                readKey();
+                if (keyIs(ID)) {
+                    tweet.setUserId(readLong());
+                    hasId = true;
+                } else if (keyIs(NAME)) {
+                    tweet.setUserName(readString());
+                } else {
+                    skipValue();
+                }
+            } while (consume(','));
+            expect('}');
+        }
+        return hasId;
+    }
+
+    /**
+     * Reads a GeoJSON point, keeping the first two numbers of its coordinates.
+     *
+     * @return the two numbers, or null if the value is null
+     */
+    private double[] readPoint() throws ParseException {
+        if (consumeNull()) {
+            return null;
+        }
+        double[] point = null;
+        expect('{');
+        if (!consume('}')) {
+            do {
+                readKey();
+                if (keyIs(COORDINATES) && !consumeNull()) {
+                    expect('[');
+                    point = new double[] {readDouble(), 0};
+                    expect(',');
+                    point[1] = readDouble();
+                    while (consume(',')) {
+                        skipValue();
+                    }
+                    expect(']');
+                } else {
+                    skipValue();
+                }
+            } while (consume(','));
+            expect('}');
+        }
+        return point;
+    }
+
+    private void readKey() throws ParseException {
+        skipWhitespace();
+        if (position >= limit || json[position] != '"') {
+            throw error("Expected a key");
+        }
+        keyStart = position + 1;
+        keyEnd = skipString();
+        expect(':');
+    }
+
+    /**
+     * Compares the last key to an ASCII name. Keys with escapes never match, which only matters for keys that are not
+     * read.
+     */
+    private boolean keyIs(byte[] name) {
+        if (keyEnd - keyStart != name.length) {
+            return false;
+        }
+        for (int i = 0; i < name.length; i++) {
+            if (json[keyStart + i] != name[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private long readLong() throws ParseException {
+        skipWhitespace();
+        boolean negative = position < limit && json[position] == '-';
+        if (negative) {
+            position++;
+        }
+        int start = position;
+        // Accumulate negatively, as Long.parseLong does, since Long.MIN_VALUE has no positive counterpart
+        long bound = negative ? Long.MIN_VALUE : -Long.MAX_VALUE;
+        long multiplyBound = bound / 10;
+        long value = 0;
+        while (position < limit && json[position] >= '0' && json[position] <= '9') {
+            int digit = json[position] - '0';
+            if (value < multiplyBound || value * 10 < bound + digit) {
+                throw error("Number out of range");
+            }
+            value = value * 10 - digit;
+            position++;
+        }
+        if (position == start) {
+            throw error("Expected an integer");
+        }
+        return negative ? value : -value;
+    }
+
+    private double readDouble() throws ParseException {
+        skipWhitespace();
+        int start = position;
+        while (position < limit && isNumberCharacter(json[position])) {
+            position++;
+        }
+        try {
+            return Double.parseDouble(new String(json, start, position - start, StandardCharsets.US_ASCII));
+        } catch (NumberFormatException e) {
+            throw error("Expected a number");
+        }
+    }
+
+    private boolean readBoolean() throws ParseException {
+        skipWhitespace();
+        if (consumeLiteral("true")) {
+            return true;
+        }
+        if (consumeLiteral("false") || consumeLiteral("null")) {
+            return false;
+        }
+        throw error("Expected a boolean");
+    }
+
+    /**
+     * Replaces the HTML entities Twitter escapes tweet text with by the characters they stand for.
+     */
+    private static String unescapeEntities(String text) {
+        int ampersand = text == null ? -1 : text.indexOf('&');
+        if (ampersand < 0) {
+            return text;
+        }
+
+        StringBuilder unescaped = new StringBuilder(text.length());
+        unescaped.append(text, 0, ampersand);
+        for (int i = ampersand; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c == '&' && text.startsWith("amp;", i + 1)) {
+                i += 4;
+            } else if (c == '&' && text.startsWith("lt;", i + 1)) {
+                c = '<';
+                i += 3;
+            } else if (c == '&' && text.startsWith("gt;", i + 1)) {
+                c = '>';
+                i += 3;
+            }
+            unescaped.append(c);
+        }
+        return unescaped.toString();
+    }
+
+    /**
+     * @return the string, or null if the value is null
+     */
+    private String readString() throws ParseException {
+        if (consumeNull()) {
+            return null;
+        }
+        if (json[position] != '"') {
+            throw error("Expected a string");
+        }
+
+        int start = position + 1;
+        int end = skipString();
+        for (int i = start; i < end; i++) {
+            if (json[i] == '\\') {
+                return unescape(start, end);
+            }
+        }
+        return new String(json, start, end - start, StandardCharsets.UTF_8);
+    }
+
+    private String unescape(int start, int end) throws ParseException {
+        StringBuilder builder = new StringBuilder(end - start);
+        int segment = start;
+        int i = start;
+        while (i < end) {
+            if (json[i] != '\\') {
+                i++;
+                continue;
+            }
+            builder.append(new String(json, segment, i - segment, StandardCharsets.UTF_8));
+            char escaped = (char) json[i + 1];
+            i += 2;
+            switch (escaped) {
+                case '"':
+                case '\\':
+                case '/':
+                    builder.append(escaped);
+                    break;
+                case 'b':
+                    builder.append('\b');
+                    break;
+                case 'f':
+                    builder.append('\f');
+                    break;
+                case 'n':
+                    builder.append('\n');
+                    break;
+                case 'r':
+                    builder.append('\r');
+                    break;
+                case 't':
+                    builder.append('\t');
+                    break;
+                case 'u':
+                    if (i + 4 > end) {
+                        throw error("Truncated unicode escape");
+                    }
+                    builder.append((char) hexValue(i));
+                    i += 4;
+                    break;
+                default:
+                    throw error("Invalid escape");
+            }
+            segment = i;
+        }
+        builder.append(new String(json, segment, end - segment, StandardCharsets.UTF_8));
+        return builder.toString();
+    }
+
+    private int hexValue(int start) throws ParseException {
+        int value = 0;
+        for (int i = start; i < start + 4; i++) {
+            int digit = Character.digit(json[i], 16);
+            if (digit < 0) {
+                throw error("Invalid unicode escape");
+            }
+            value = value * 16 + digit;
+        }
+        return value;
+    }
+
+    /**
+     * Skips a string starting at the current position.
+     *
+     * @return the offset of the closing quote
+     */
+    private int skipString() throws ParseException {
+        position++;
+        while (position < limit) {
+            byte b = json[position];
+            if (b == '"') {
+                return position++;
+            }
+            position += b == '\\' ? 2 : 1;
+        }
+        throw error("Unterminated string");
+    }
+
+    /**
+     * Skips a value of any type, without decoding it.
+     */
+    private void skipValue() throws ParseException {
+        skipWhitespace();
+        if (position >= limit) {
+            throw error("Expected a value");
+        }
+        byte b = json[position];
+        if (b == '"') {
+            skipString();
+        } else if (b == '{' || b == '[') {
+            skipContainer();
+        } else {
+            int start = position;
+            while (position < limit && isNumberCharacter(json[position])
+                    || position < limit && json[position] >= 'a' && json[position] <= 'z') {
+                position++;
+            }
+            if (position == start) {
+                throw error("Expected a value");
+            }
+        }
+    }
+
+    /**
+     * Skips an object or array by matching its brackets, stepping over strings so that brackets inside them are
+     * ignored.
+     */
+    private void skipContainer() throws ParseException {
+        int depth = 0;
+        while (position < limit) {
+            byte b = json[position];
+            if (b == '"') {
+                skipString();
+                continue;
+            }
+            if (b == '{' || b == '[') {
+                depth++;
+            } else if (b == '}' || b == ']') {
+                depth--;
+                if (depth == 0) {
+                    position++;
+                    return;
+                }
+            }
+            position++;
+        }
+        throw error("Unterminated object or array");
+    }
+
+    private boolean consumeNull() throws ParseException {
+        skipWhitespace();
+        if (position >= limit) {
+            throw error("Expected a value");
+        }
+        return consumeLiteral("null");
+    }
+
+    private boolean consumeLiteral(String literal) {
+        if (position + literal.length() > limit) {
+            return false;
+        }
+        for (int i = 0; i < literal.length(); i++) {
+            if (json[position + i] != literal.charAt(i)) {
+                return false;
+            }
+        }
+        position += literal.length();
+        return true;
+    }
+
+    private boolean consume(char c) {
+        skipWhitespace();
+        if (position < limit && json[position] == c) {
+            position++;
+            return true;
+        }
+        return false;
+    }
+
+    private void expect(char c) throws ParseException {
+        if (!consume(c)) {
+            throw error("Expected '" + c + "'");
+        }
+    }
+
+    private void skipWhitespace() {
+        while (position < limit) {
+            byte b = json[position];
+            if (b != ' ' && b != '\t' && b != '\n' && b != '\r') {
+                return;
+            }
+            position++;
+        }
+    }
+
+    private ParseException error(String message) {
+        return new ParseException(message + " at offset " + position, position);
+    }
+
+    private static boolean isNumberCharacter(byte b) {
+        return b >= '0' && b <= '9' || b == '-' || b == '+' || b == '.' || b == 'e' || b == 'E';
+    }
+
+    private ParseException createdAtError(String createdAt) {
+        return new ParseException("Unparseable created_at " + createdAt, position);
+    }
+
+    /**
+     * Parses a creation time such as "Wed Feb 19 18:32:49 +0000 2014" without a date format.
+     */
+    private long parseCreatedAt(String createdAt) throws ParseException {
+        if (createdAt.length() != 30) {
+            throw createdAtError(createdAt);
+        }
+        int month = MONTHS.indexOf(createdAt.substring(4, 7));
+        if (month < 0 || month % 3 != 0) {
+            throw createdAtError(createdAt);
+        }
+        try {
+            int day = Integer.parseInt(createdAt.substring(8, 10));
+            int hour = Integer.parseInt(createdAt.substring(11, 13));
+            int minute = Integer.parseInt(createdAt.substring(14, 16));
+            int second = Integer.parseInt(createdAt.substring(17, 19));
+            int offsetMinutes = Integer.parseInt(createdAt.substring(21, 23)) * 60
+                    + Integer.parseInt(createdAt.substring(23, 25));
+            if (createdAt.charAt(20) == '-') {
+                offsetMinutes = -offsetMinutes;
+            } else if (createdAt.charAt(20) != '+') {
+                throw createdAtError(createdAt);
+            }
+            int year = Integer.parseInt(createdAt.substring(26, 30));
+
+            long seconds = daysFromCivil(year, month / 3 + 1, day) * 86400L + hour * 3600 + minute * 60 + second
+                    - offsetMinutes * 60;
+            return seconds * 1000;
+        } catch (NumberFormatException e) {
+            throw createdAtError(createdAt);
+        }
+    }
+
+    /**
+     * @return the number of days from 1970-01-01 to a date of the proleptic Gregorian calendar
+     */
+    private static long daysFromCivil(int year, int month, int day) {
+        int y = month <= 2 ? year - 1 : year;
+        int era = (y >= 0 ? y : y - 399) / 400;
+        int yearOfEra = y - era * 400;
+        int dayOfYear = (153 * (month + (month > 2 ? -3 : 9)) + 2) / 5 + day - 1;
+        int dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+        return era * 146097L + dayOfEra - 719468;
+    }
+
+    private static byte[] ascii(String name) {
+        return name.getBytes(StandardCharsets.US_ASCII);
+    }
+}
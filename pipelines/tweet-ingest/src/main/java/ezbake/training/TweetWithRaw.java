@@ -16,13 +16,19 @@ package ezbake.training;
 
 import java.io.Serializable;
 
+/**
+ * A parsed tweet together with the raw bytes it was parsed from.
+ *
+ * The raw bytes are the content of the stream event the tweet arrived in, shared rather than copied, so they must not
+ * be modified.
+ */
 public class TweetWithRaw implements Serializable {
-    private static final long serialVersionUID = 1L;
+    private static final long serialVersionUID = 2L;
 
     private Tweet tweet;
-    private String raw;
+    private byte[] raw;
 
-    public TweetWithRaw(Tweet tweet, String raw) {
+    public TweetWithRaw(Tweet tweet, byte[] raw) {
         this.tweet = tweet;
         this.raw = raw;
     }
@@ -31,7 +37,7 @@ public class TweetWithRaw implements Serializable {
         return tweet;
     }
 
-    public String getRaw() {
+    public byte[] getRaw() {
         return raw;
     }
 }
@@ -0,0 +1,130 @@
+/*   Copyright (C) 2013-2014 Computer Sciences Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. */
+
+
+package ezbake.training;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class IngestLedgerTest {
+    private static final File FIRST = new File("first.json");
+    private static final File SECOND = new File("second.json.gz");
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void replayResumesUnfinishedFilesFromTheirLastBatch() throws Exception {
+        File directory = folder.getRoot();
+        try (IngestLedger ledger = new IngestLedger(directory)) {
+            ledger.commit(FIRST, new IngestLedger.Position(11, 0, 100, 1));
+            ledger.commit(SECOND, new IngestLedger.Position(22, 0, 50, 2));
+            ledger.commit(FIRST, new IngestLedger.Position(11, 100, 250, 3));
+            ledger.done(SECOND);
+        }
+
+        try (IngestLedger ledger = new IngestLedger(directory)) {
+            assertPosition(new IngestLedger.Position(11, 100, 250, 3), ledger.get(FIRST));
+            assertNull(ledger.get(SECOND));
+
+            // Only the name is recorded, so the same file in another folder resumes too
+            assertPosition(new IngestLedger.Position(11, 100, 250, 3),
+                    ledger.get(new File(folder.getRoot(), FIRST.getName())));
+        }
+    }
+
+    @Test
+    public void replayIgnoresAnEntryTornByACrash() throws Exception {
+        File directory = folder.getRoot();
+        try (IngestLedger ledger = new IngestLedger(directory)) {
+            ledger.commit(FIRST, new IngestLedger.Position(11, 0, 100, 12345));
+        }
+
+        // The crash cut off the last digit of the checksum, which leaves an entry that still parses
+        File journal = onlyFile(directory);
+        appendText(journal, "BATCH\tfirst.json\t11\t100\t200\t6789");
+
+        try (IngestLedger ledger = new IngestLedger(directory)) {
+            assertPosition(new IngestLedger.Position(11, 0, 100, 12345), ledger.get(FIRST));
+            ledger.commit(SECOND, new IngestLedger.Position(22, 0, 50, 2));
+        }
+
+        // The torn entry was dropped, so the entry appended after it replays intact
+        List<String> lines = Files.readAllLines(journal.toPath(), StandardCharsets.UTF_8);
+        assertEquals(2, lines.size());
+        try (IngestLedger ledger = new IngestLedger(directory)) {
+            assertPosition(new IngestLedger.Position(11, 0, 100, 12345), ledger.get(FIRST));
+            assertPosition(new IngestLedger.Position(22, 0, 50, 2), ledger.get(SECOND));
+        }
+    }
+
+    @Test
+    public void compactionKeepsOnlyTheLatestBatchOfEachUnfinishedFile() throws Exception {
+        File directory = folder.getRoot();
+        File third = new File("third.json");
+        try (IngestLedger ledger = new IngestLedger(directory)) {
+            ledger.commit(third, new IngestLedger.Position(33, 0, 10, 3));
+            ledger.done(third);
+        }
+
+        // The last batch is the thousandth entry of the journal, which compacts it
+        int batches = 997;
+        try (IngestLedger ledger = new IngestLedger(directory)) {
+            ledger.commit(SECOND, new IngestLedger.Position(22, 0, 50, 2));
+            for (int batch = 0; batch < batches; batch++) {
+                ledger.commit(FIRST, new IngestLedger.Position(11, batch * 10, batch * 10 + 10, batch));
+            }
+        }
+
+        File journal = onlyFile(directory);
+        assertEquals(2, Files.readAllLines(journal.toPath(), StandardCharsets.UTF_8).size());
+        try (IngestLedger ledger = new IngestLedger(directory)) {
+            assertPosition(new IngestLedger.Position(11, batches * 10 - 10, batches * 10, batches - 1),
+                    ledger.get(FIRST));
+            assertPosition(new IngestLedger.Position(22, 0, 50, 2), ledger.get(SECOND));
+            assertNull(ledger.get(third));
+        }
+    }
+
+    private static void assertPosition(IngestLedger.Position expected, IngestLedger.Position actual) {
+        assertEquals(expected.getFingerprint(), actual.getFingerprint());
+        assertEquals(expected.getStart(), actual.getStart());
+        assertEquals(expected.getEnd(), actual.getEnd());
+        assertEquals(expected.getChecksum(), actual.getChecksum());
+    }
+
+    private static File onlyFile(File directory) {
+        File[] files = directory.listFiles();
+        assertEquals(1, files.length);
+        return files[0];
+    }
+
+    private static void appendText(File file, String text) throws IOException {
+        try (FileOutputStream out = new FileOutputStream(file, true)) {
+            out.write(text.getBytes(StandardCharsets.UTF_8));
+        }
+    }
+}
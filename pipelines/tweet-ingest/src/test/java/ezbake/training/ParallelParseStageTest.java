@@ -0,0 +1,156 @@
+/*   Copyright (C) 2013-2014 Computer Sciences Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. */
+
+
+package ezbake.training;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import ezbake.base.thrift.Visibility;
+import ezbake.frack.core.data.thrift.StreamEvent;
+
+public class ParallelParseStageTest {
+    private static final int THREADS = 4;
+    private static final int CAPACITY = 8;
+
+    /**
+     * Parses the number an event carries as the id of its tweet, failing on negative numbers, and records what the
+     * stage hands back.
+     */
+    private static class RecordingSink implements ParallelParseStage.Sink {
+        private final Thread submitter = Thread.currentThread();
+        private final Random random = new Random(42);
+        private final AtomicInteger parsing = new AtomicInteger();
+        private final Map<Visibility, List<Long>> delivered = new HashMap<>();
+        private final List<Long> failed = new ArrayList<>();
+        private int maxParsing;
+
+        @Override
+        public TweetWithRaw parse(StreamEvent event) throws Exception {
+            int concurrent = parsing.incrementAndGet();
+            synchronized (this) {
+                maxParsing = Math.max(maxParsing, concurrent);
+            }
+            try {
+                long id = Long.parseLong(new String(event.getContent(), StandardCharsets.UTF_8));
+                long sleep;
+                synchronized (random) {
+                    sleep = random.nextInt(3);
+                }
+                Thread.sleep(sleep);
+                if (id < 0) {
+                    throw new IllegalArgumentException("Negative id " + id);
+                }
+                Tweet tweet = new Tweet();
+                tweet.setId(id);
+                return new TweetWithRaw(tweet, event.getContent());
+            } finally {
+                parsing.decrementAndGet();
+            }
+        }
+
+        @Override
+        public void deliver(Visibility visibility, StreamEvent event, TweetWithRaw tweet) {
+            assertSame(submitter, Thread.currentThread());
+            List<Long> ids = delivered.get(visibility);
+            if (ids == null) {
+                ids = new ArrayList<>();
+                delivered.put(visibility, ids);
+            }
+            ids.add(tweet.getTweet().getId());
+        }
+
+        @Override
+        public void fail(Visibility visibility, StreamEvent event, Exception cause) {
+            assertSame(submitter, Thread.currentThread());
+            failed.add(Long.parseLong(new String(event.getContent(), StandardCharsets.UTF_8)));
+        }
+
+        int handled() {
+            int handled = failed.size();
+            for (List<Long> ids : delivered.values()) {
+                handled += ids.size();
+            }
+            return handled;
+        }
+    }
+
+    @Test
+    public void deliversEachVisibilityInOrderOnTheSubmittingThread() throws Exception {
+        RecordingSink sink = new RecordingSink();
+        ParallelParseStage stage = new ParallelParseStage(THREADS, CAPACITY, true, sink);
+        Visibility[] visibilities = {visibility("U"), visibility("S"), visibility("TS")};
+        int events = 2000;
+        for (int i = 0; i < events; i++) {
+            long id = i % 10 == 0 ? -i - 1 : i;
+            stage.submit(visibilities[i % visibilities.length], event(id));
+
+            // Whatever is not yet delivered is still held in the stage, which never holds more than its capacity
+            assertTrue(i + 1 - sink.handled() <= CAPACITY);
+        }
+        stage.drain();
+        stage.shutdown();
+
+        assertEquals(events, sink.handled());
+        assertEquals(events / 10, sink.failed.size());
+        for (int v = 0; v < visibilities.length; v++) {
+            List<Long> expected = new ArrayList<>();
+            for (long i = v; i < events; i += visibilities.length) {
+                if (i % 10 != 0) {
+                    expected.add(i);
+                }
+            }
+            assertEquals(expected, sink.delivered.get(visibilities[v]));
+        }
+        assertTrue(sink.maxParsing <= THREADS);
+    }
+
+    @Test
+    public void drainingDeliversEverythingHeldBack() throws Exception {
+        RecordingSink sink = new RecordingSink();
+        ParallelParseStage stage = new ParallelParseStage(THREADS, CAPACITY, false, sink);
+        Visibility visibility = visibility("U");
+        for (long id = 0; id < CAPACITY; id++) {
+            stage.submit(visibility, event(id));
+        }
+        stage.drain();
+        stage.shutdown();
+
+        assertEquals(CAPACITY, sink.delivered.get(visibility).size());
+    }
+
+    private static Visibility visibility(String formalVisibility) {
+        Visibility visibility = new Visibility();
+        visibility.setFormalVisibility(formalVisibility);
+        return visibility;
+    }
+
+    private static StreamEvent event(long id) {
+        StreamEvent event = new StreamEvent();
+        event.setContent(String.valueOf(id).getBytes(StandardCharsets.UTF_8));
+        return event;
+    }
+}
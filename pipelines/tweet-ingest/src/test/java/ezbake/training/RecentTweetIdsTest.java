@@ -0,0 +1,65 @@
+/*   Copyright (C) 2013-2014 Computer Sciences Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. */
+
+
+package ezbake.training;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Test;
+
+public class RecentTweetIdsTest {
+    @Test
+    public void forgettingTheOldestIdsKeepsEveryOtherIdFindable() {
+        // Ids drawn from a small range collide often, so evictions shift back long probe sequences
+        int capacity = 100;
+        RecentTweetIds ids = new RecentTweetIds(capacity);
+        Deque<Long> window = new ArrayDeque<>();
+        Set<Long> remembered = new HashSet<>();
+        Random random = new Random(42);
+        for (int i = 0; i < 100000; i++) {
+            long id = random.nextInt(400);
+            boolean added = ids.add(id);
+            assertEquals("id " + id + " at step " + i, !remembered.contains(id), added);
+            if (added) {
+                window.addLast(id);
+                remembered.add(id);
+                if (window.size() > capacity) {
+                    remembered.remove(window.removeFirst());
+                }
+            }
+            assertEquals(remembered.size(), ids.size());
+        }
+
+        for (long id = 0; id < 400; id++) {
+            if (remembered.contains(id)) {
+                assertFalse("Lost " + id, ids.add(id));
+            }
+        }
+        long[] expected = new long[window.size()];
+        int i = 0;
+        for (long id : window) {
+            expected[i++] = id;
+        }
+        assertArrayEquals(expected, ids.toArray());
+    }
+}
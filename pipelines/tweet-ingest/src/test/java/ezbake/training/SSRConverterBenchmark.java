@@ -0,0 +1,100 @@
+/*   Copyright (C) 2013-2014 Computer Sciences Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. */
+
+
+package ezbake.training;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.thrift.TException;
+import org.apache.thrift.TSerializer;
+import org.apache.thrift.protocol.TSimpleJSONProtocol;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Compares rendering the sample tweets as the simple JSON of an SSR with the serializer the {@link SSRConverter}
+ * reuses on each thread against a new TSerializer per tweet, as the converter did before. Each operation renders
+ * every sample tweet once.
+ * <p/>
+ * Run it from the module directory with {@code main}, or with the JMH launcher to pass options such as
+ * {@code -prof gc}, which also reports the bytes each way allocates.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SSRConverterBenchmark {
+    /*
+     * Relative to the module directory.
+     */
+    private static final File SAMPLE = new File("src/main/resources/tweets1k.json");
+
+    private List<Tweet> tweets;
+
+    @Setup
+    public void readSample() throws IOException, ParseException {
+        tweets = new ArrayList<>();
+        try (BufferedReader reader = new BufferedReader(
+                new InputStreamReader(new FileInputStream(SAMPLE), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (!line.trim().isEmpty()) {
+                    tweets.add(TweetJsonParser.parse(line.getBytes(StandardCharsets.UTF_8)));
+                }
+            }
+        }
+    }
+
+    @Benchmark
+    public void reusedSerializer(Blackhole blackhole) throws TException {
+        for (Tweet tweet : tweets) {
+            blackhole.consume(SSRConverter.toJson(tweet));
+        }
+    }
+
+    @Benchmark
+    public void serializerPerTweet(Blackhole blackhole) throws TException {
+        for (Tweet tweet : tweets) {
+            blackhole.consume(new TSerializer(new TSimpleJSONProtocol.Factory()).toString(tweet, "UTF-8"));
+        }
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(SSRConverterBenchmark.class.getSimpleName()).build()).run();
+    }
+}
@@ -0,0 +1,428 @@
+/*   Copyright (C) 2013-2014 Computer Sciences Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. */
+
+
+package ezbake.training;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.thrift.TDeserializer;
+import org.apache.thrift.TException;
+import org.apache.thrift.TSerializer;
+
+import com.google.common.io.CharStreams;
+
+import ezbake.base.thrift.Visibility;
+import ezbake.frack.common.utils.thrift.SSRJSON;
+import ezbake.frack.core.data.thrift.StreamEvent;
+import ezbake.thrift.ThriftUtils;
+import ezbake.warehaus.Repository;
+
+import twitter4j.TwitterException;
+
+/**
+ * Drives the tweet-ingest pipeline in-process with a high volume of tweets to find its throughput limits.
+ *
+ * The harness writes the load from a {@link TweetLoadGenerator} into tweet files in a temporary folder, then reads them
+ * with the {@link TweetFileIngester} the {@link TweetIngestGenerator} uses, paced by an {@link EmissionThrottle} at the
+ * load's rate. Every tweet is emitted by the generator to a stand-in pipe, parsed by the {@link TweetIngestParser},
+ * converted by the Warehaus and SSR converters and encoded for broadcast, and the results go to stand-in sinks that
+ * only serialize and count them.
+ * The stages run one after another on one thread, as in a local Frack pipeline.
+ *
+ * The sustained throughput is reported every few seconds, and at the end the latency percentiles of every stage.
+ *
+ * <pre>
+ * TweetIngestHarness replay &lt;tweets&gt; [speed] [sample file]
+ * TweetIngestHarness synthetic &lt;tweets&gt; [tweets per second] [sample file]
+ * TweetIngestHarness broadcasts &lt;rounds&gt; [batch size] [sample file]
+ * </pre>
+ *
+ * A replay cycles through the sample at the given multiple of its original speed, 1 by default. A synthesis emits as
+ * fast as possible unless a rate is given. The parser is chosen with the tweet.parser system property, as described in
+ * {@link TweetIngestParser}, and the broadcast encoding with the tweet.broadcast properties of
+ * {@link TweetBroadcastCodec}. The broadcasts mode instead compares the broadcast messages of the sample's tweets as
+ * plain Tweets and in each kind of {@link TweetBroadcast} envelope, alone and in batches of the given size, 100 by
+ * default, reporting their size and the time to encode and decode them. The pipeline modes batch broadcast tweets as
+ * the tweet.broadcast.batchSize system property says, as described in {@link TweetBroadcastWorker}. The sample
+ * defaults to the tweets1k.json resource. The parsers are compared by the {@link TweetJsonParserBenchmark}.
+ */
+public class TweetIngestHarness {
+    private static final String SAMPLE_RESOURCE = "/tweets1k.json";
+    private static final String URI_PREFIX = "tweet-ingest://";
+    private static final int LINES_PER_FILE = 100000;
+    private static final int READERS = 4;
+    private static final int QUEUE_CAPACITY = 10000;
+    private static final long REPORT_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(5);
+
+    private static final String EVENT = "event";
+    private static final String PARSE = "parse";
+    private static final String WAREHAUS = "warehaus";
+    private static final String SSR = "ssr";
+    private static final String BROADCAST = "broadcast";
+    private static final String TOTAL = "total";
+
+    private final PipeStandInGenerator generator = new PipeStandInGenerator();
+    private final TweetIngestParser parser = new TweetIngestParser();
+    private final RepositoryConverter repositoryConverter = new RepositoryConverter();
+    private final VisibilityConverter visibilityConverter = new VisibilityConverter();
+    private final SSRConverter ssrConverter = new SSRConverter();
+    private final TweetBroadcastCodec broadcastCodec;
+    private final int broadcastBatchSize;
+    private final List<Tweet> broadcastBatch = new ArrayList<>();
+    private final Map<String, LatencyHistogram> stages = new LinkedHashMap<>();
+
+    private long tweets;
+    private long duplicates;
+    private long failures;
+    private long inputBytes;
+    private long sinkBytes;
+
+    /**
+     * @param properties The properties of the parser and the broadcast codec
+     */
+    public TweetIngestHarness(Properties properties) {
+        parser.initialize(properties);
+        repositoryConverter.setUriPrefix(URI_PREFIX);
+        ssrConverter.setUriPrefix(URI_PREFIX);
+        broadcastCodec = TweetBroadcastCodec.fromProperties(properties);
+        broadcastBatchSize = Math.max(1, Integer.parseInt(properties.getProperty("tweet.broadcast.batchSize", "1")));
+        for (String stage : new String[] {EVENT, PARSE, WAREHAUS, SSR, BROADCAST, TOTAL}) {
+            stages.put(stage, new LatencyHistogram());
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2
+                || !Arrays.asList("replay", "synthetic", "broadcasts").contains(args[0])) {
+            System.err.println("Usage: TweetIngestHarness replay <tweets> [speed] [sample file]");
+            System.err.println("       TweetIngestHarness synthetic <tweets> [tweets per second] [sample file]");
+            System.err.println("       TweetIngestHarness broadcasts <rounds> [batch size] [sample file]");
+            System.exit(1);
+        }
+        if ("broadcasts".equals(args[0])) {
+            compareBroadcasts(readSample(args.length > 3 ? new File(args[3]) : null), Integer.parseInt(args[1]),
+                    args.length > 2 ? Integer.parseInt(args[2]) : 100);
+            return;
+        }
+
+        long count = Long.parseLong(args[1]);
+        List<String> sample = readSample(args.length > 3 ? new File(args[3]) : null);
+        TweetLoadGenerator load;
+        if ("replay".equals(args[0])) {
+            load = TweetLoadGenerator.replay(sample, args.length > 2 ? Double.parseDouble(args[2]) : 1);
+        } else {
+            load = TweetLoadGenerator.synthetic(sample, args.length > 2 ? Double.parseDouble(args[2]) : 0, 42L);
+        }
+
+        Path folder = Files.createTempDirectory("tweet-load");
+        try {
+            System.out.printf("Writing %d tweets to %s%n", count, folder);
+            writeLoad(load, count, folder.toFile());
+
+            TweetIngestHarness harness = new TweetIngestHarness(System.getProperties());
+            harness.run(folder.toFile(), load.getRate());
+        } finally {
+            deleteRecursively(folder);
+        }
+    }
+
+    /**
+     * Ingests the tweet files of a folder and prints the report.
+     *
+     * @param folder The folder holding the tweet files
+     * @param rate The tweets per second to emit, 0 or less for as fast as possible
+     */
+    public void run(File folder, double rate) throws IOException, InterruptedException {
+        EmissionThrottle throttle = new EmissionThrottle(rate, (int) Math.max(1, rate), 0);
+        try (IngestLedger ledger = new IngestLedger(new File(folder, ".checkpoints"));
+                TweetFileIngester ingester = new TweetFileIngester(folder, ledger, READERS, QUEUE_CAPACITY, false, 0)) {
+            ingester.start();
+
+            long started = System.nanoTime();
+            long reported = started;
+            while (!ingester.isIdle()) {
+                IngestRecord record = ingester.poll(100, TimeUnit.MILLISECONDS);
+                if (record == null) {
+                    continue;
+                }
+                switch (record.getKind()) {
+                    case LINE:
+                        throttle.acquire();
+                        long emitStarted = System.nanoTime();
+                        process(record.getLine());
+                        throttle.emitted(System.nanoTime() - emitStarted);
+                        break;
+                    case END_OF_FILE:
+                        ledger.done(record.getFile());
+                        ingester.finished(record.getFile());
+                        break;
+                    case FAILURE:
+                        System.err.printf("Could not read %s: %s%n", record.getFile(), record.getFailure());
+                        ingester.finished(record.getFile());
+                        break;
+                    default:
+                        break;
+                }
+
+                long now = System.nanoTime();
+                if (now - reported >= REPORT_INTERVAL_NANOS) {
+                    System.out.printf("%8.1f s  %,d tweets  %,.0f tweets/s  %,d waiting%n",
+                            (now - started) / 1e9, tweets, throttle.getEmittedRate(), ingester.getPendingRecords());
+                    reported = now;
+                }
+            }
+            report(System.nanoTime() - started, throttle);
+        }
+    }
+
+    /**
+     * Runs one raw tweet through every stage.
+     */
+    private void process(byte[] line) {
+        inputBytes += line.length;
+        long started = System.nanoTime();
+        try {
+            generator.emitEvent(line);
+            StreamEvent event = generator.takeEmitted();
+            long evented = System.nanoTime();
+            stages.get(EVENT).record(evented - started);
+
+            TweetWithRaw tweet = parser.parse(event);
+            long parsed = System.nanoTime();
+            stages.get(PARSE).record(parsed - evented);
+            if (tweet == null) {
+                duplicates++;
+                return;
+            }
+
+            Repository repository = repositoryConverter.convert(tweet);
+            visibilityConverter.convert(tweet);
+            sinkBytes += repository.getParsedData().length + repository.getRawData().length;
+            long warehoused = System.nanoTime();
+            stages.get(WAREHAUS).record(warehoused - parsed);
+
+            SSRJSON ssr = ssrConverter.convert(tweet);
+            sinkBytes += ssr.getJsonString().length();
+            long indexed = System.nanoTime();
+            stages.get(SSR).record(indexed - warehoused);
+
+            if (broadcastBatchSize == 1) {
+                sinkBytes += ThriftUtils.serialize(broadcastCodec.encode(tweet.getTweet())).length;
+            } else {
+                broadcastBatch.add(tweet.getTweet());
+                if (broadcastBatch.size() == broadcastBatchSize) {
+                    sinkBytes += ThriftUtils.serialize(broadcastCodec.encode(broadcastBatch)).length;
+                    broadcastBatch.clear();
+                }
+            }
+            long broadcast = System.nanoTime();
+            stages.get(BROADCAST).record(broadcast - indexed);
+
+            stages.get(TOTAL).record(broadcast - started);
+            tweets++;
+        } catch (TwitterException | ParseException | IOException | TException e) {
+            failures++;
+        }
+    }
+
+    private void report(long elapsedNanos, EmissionThrottle throttle) {
+        double seconds = elapsedNanos / 1e9;
+        System.out.println();
+        System.out.printf("Processed %,d tweets in %.1f s: %,.0f tweets/s, %.1f MB/s of raw tweets%n",
+                tweets, seconds, tweets / seconds, inputBytes / seconds / (1 << 20));
+        System.out.printf("Duplicates dropped: %,d  Failures: %,d  Throttled: %,d ms  Sink bytes: %,d%n",
+                duplicates, failures, throttle.getThrottledMillis(), sinkBytes);
+        System.out.println();
+        System.out.printf("%-10s %10s %10s %10s %10s %10s %10s%n",
+                "stage (us)", "mean", "p50", "p90", "p99", "p99.9", "max");
+        for (Map.Entry<String, LatencyHistogram> stage : stages.entrySet()) {
+            LatencyHistogram histogram = stage.getValue();
+            System.out.printf("%-10s %10.1f %10.1f %10.1f %10.1f %10.1f %10.1f%n", stage.getKey(),
+                    histogram.getMean() / 1e3, histogram.getPercentile(50) / 1e3, histogram.getPercentile(90) / 1e3,
+                    histogram.getPercentile(99) / 1e3, histogram.getPercentile(99.9) / 1e3,
+                    histogram.getMax() / 1e3);
+        }
+    }
+
+    /**
+     * Measures the broadcast messages of the sample's tweets as plain Tweets, as they were broadcast before the
+     * envelope, and in every combination of envelope encoding and compression, both one tweet per envelope and in
+     * batches of the given size. Messages are serialized with the binary protocol, as the envelope is. Each is timed
+     * after encoding and decoding the sample as many times again to warm up.
+     */
+    private static void compareBroadcasts(List<String> sample, int rounds, int batchSize)
+            throws ParseException, TException {
+        List<Tweet> tweets = new ArrayList<>();
+        for (String tweet : sample) {
+            tweets.add(TweetJsonParser.parse(tweet.getBytes(StandardCharsets.UTF_8)));
+        }
+
+        System.out.printf("Broadcasting %,d tweets %d times%n", tweets.size(), rounds);
+        System.out.printf("%-20s %12s %12s %12s %12s%n", "message", "bytes/tweet", "encode us", "decode us",
+                "tweets/s");
+        broadcastRounds(null, 1, tweets, rounds);
+        printBroadcastRow("plain tweet", tweets.size(), rounds, broadcastRounds(null, 1, tweets, rounds));
+        for (int size : new int[] {1, batchSize}) {
+            for (BroadcastEncoding encoding : BroadcastEncoding.values()) {
+                for (BroadcastCompression compression : BroadcastCompression.values()) {
+                    TweetBroadcastCodec codec = new TweetBroadcastCodec(encoding, compression);
+                    broadcastRounds(codec, size, tweets, rounds);
+                    printBroadcastRow(encoding + "/" + compression + " x" + size, tweets.size(), rounds,
+                            broadcastRounds(codec, size, tweets, rounds));
+                }
+            }
+        }
+    }
+
+    private static void printBroadcastRow(String name, int tweets, int rounds, long[] result) {
+        long broadcast = (long) tweets * rounds;
+        System.out.printf("%-20s %12d %12.2f %12.2f %,12.0f%n", name, result[0] / broadcast,
+                result[1] / 1e3 / broadcast, result[2] / 1e3 / broadcast, broadcast / ((result[1] + result[2]) / 1e9));
+    }
+
+    /**
+     * Serializes and deserializes the broadcast messages of the tweets, in envelopes of up to the given number of
+     * tweets if a codec is given.
+     *
+     * @return the total bytes of the messages, the nanoseconds spent encoding and the nanoseconds spent decoding
+     */
+    private static long[] broadcastRounds(TweetBroadcastCodec codec, int batchSize, List<Tweet> tweets, int rounds)
+            throws TException {
+        TSerializer serializer = new TSerializer();
+        TDeserializer deserializer = new TDeserializer();
+        List<byte[]> messages = new ArrayList<>(tweets.size());
+        long[] result = new long[3];
+        for (int round = 0; round < rounds; round++) {
+            messages.clear();
+            long started = System.nanoTime();
+            for (int i = 0; i < tweets.size(); i += batchSize) {
+                if (codec == null) {
+                    messages.add(serializer.serialize(tweets.get(i)));
+                } else if (batchSize == 1) {
+                    messages.add(serializer.serialize(codec.encode(tweets.get(i))));
+                } else {
+                    List<Tweet> batch = tweets.subList(i, Math.min(tweets.size(), i + batchSize));
+                    messages.add(serializer.serialize(codec.encode(batch)));
+                }
+            }
+            long encoded = System.nanoTime();
+            for (byte[] message : messages) {
+                result[0] += message.length;
+                if (codec == null) {
+                    deserializer.deserialize(new Tweet(), message);
+                } else {
+                    TweetBroadcast broadcast = new TweetBroadcast();
+                    deserializer.deserialize(broadcast, message);
+                    TweetBroadcastCodec.decode(broadcast);
+                }
+            }
+            long decoded = System.nanoTime();
+            result[1] += encoded - started;
+            result[2] += decoded - encoded;
+        }
+        return result;
+    }
+
+    private static List<String> readSample(File file) throws IOException {
+        List<String> lines;
+        if (file != null) {
+            lines = Files.readAllLines(file.toPath(), StandardCharsets.UTF_8);
+        } else {
+            try (InputStream in = TweetIngestHarness.class.getResourceAsStream(SAMPLE_RESOURCE)) {
+                if (in == null) {
+                    throw new IOException("The sample resource " + SAMPLE_RESOURCE + " is missing");
+                }
+                lines = CharStreams.readLines(new InputStreamReader(in, StandardCharsets.UTF_8));
+            }
+        }
+
+        List<String> sample = new ArrayList<>();
+        for (String line : lines) {
+            if (!line.trim().isEmpty()) {
+                sample.add(line);
+            }
+        }
+        return sample;
+    }
+
+    private static void writeLoad(TweetLoadGenerator load, long count, File folder) throws IOException {
+        for (long written = 0, file = 0; written < count; file++) {
+            File output = new File(folder, String.format("load-%05d.json", file));
+            try (Writer writer = new BufferedWriter(
+                    new OutputStreamWriter(Files.newOutputStream(output.toPath()), StandardCharsets.UTF_8))) {
+                for (int line = 0; line < LINES_PER_FILE && written < count; line++, written++) {
+                    writer.write(load.next());
+                    writer.write('\n');
+                }
+            }
+        }
+    }
+
+    private static void deleteRecursively(Path folder) throws IOException {
+        Files.walkFileTree(folder, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) throws IOException {
+                Files.delete(file);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path directory, IOException e) throws IOException {
+                Files.delete(directory);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    /**
+     * The generator with its pipes replaced by a stand-in that keeps the last event emitted.
+     */
+    private static final class PipeStandInGenerator extends TweetIngestGenerator {
+        private static final long serialVersionUID = 1L;
+
+        private StreamEvent emitted;
+
+        @Override
+        protected void outputToPipes(Visibility visibility, StreamEvent event) {
+            emitted = event;
+        }
+
+        StreamEvent takeEmitted() {
+            StreamEvent event = emitted;
+            emitted = null;
+            return event;
+        }
+    }
+}
@@ -0,0 +1,204 @@
+/*   Copyright (C) 2013-2014 Computer Sciences Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. */
+
+
+package ezbake.training;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+import org.junit.Test;
+
+import ezbake.base.thrift.Coordinate;
+
+import twitter4j.Status;
+import twitter4j.json.DataObjectFactory;
+
+public class TweetJsonParserTest {
+    private static final double TOLERANCE = 1e-9;
+
+    @Test
+    public void parsesTheSampleTweetsLikeTwitter4j() throws Exception {
+        List<String> sample = readSample();
+        assertEquals(1000, sample.size());
+        int geoTagged = 0;
+        int retweets = 0;
+        for (String json : sample) {
+            Tweet tweet = TweetJsonParser.parse(json.getBytes(StandardCharsets.UTF_8));
+            assertSameTweet(json, tweet);
+            geoTagged += tweet.getGeoLocation() != null ? 1 : 0;
+            retweets += tweet.isIsRetweet() ? 1 : 0;
+        }
+        // The sample covers the optional fields as well
+        assertTrue(geoTagged > 0);
+        assertTrue(retweets > 0);
+    }
+
+    @Test
+    public void decodesEscapesAndSurrogatePairs() throws Exception {
+        String json = tweet(1, "\"quote \\\" backslash \\\\ slash \\/ controls \\b\\f\\n\\r\\t"
+                + " accent \\u00e9 raw \u00e9 emoji \\ud83d\\ude00 raw \ud83d\ude00\"", null);
+        Tweet tweet = assertSameTweet(json, parse(json));
+        assertEquals("quote \" backslash \\ slash / controls \b\f\n\r\t accent \u00e9 raw \u00e9"
+                + " emoji \ud83d\ude00 raw \ud83d\ude00", tweet.getText());
+    }
+
+    @Test
+    public void unescapesTheEntitiesOfTheTextLikeTwitter4j() throws Exception {
+        // Twitter escapes only these three characters, so a typed entity arrives with its ampersand escaped
+        String json = tweet(1, "\"Q&amp;A: 1 &lt; 2 &gt; 0, &amp;lt; and &amp;quot; stay, & alone\"", null);
+        Tweet tweet = assertSameTweet(json, parse(json));
+        assertEquals("Q&A: 1 < 2 > 0, &lt; and &quot; stay, & alone", tweet.getText());
+    }
+
+    @Test
+    public void readsTheWholeRangeOfLongsAndRejectsOverflow() throws Exception {
+        assertEquals(Long.MAX_VALUE, parse(tweet(Long.MAX_VALUE, "\"max\"", null)).getId());
+        assertEquals(0, parse(tweet(0, "\"zero\"", null)).getId());
+        String minUser = "{\"id\":1,\"text\":\"min\",\"created_at\":\"Wed Feb 19 18:32:49 +0000 2014\","
+                + "\"user\":{\"id\":-9223372036854775808,\"name\":\"min\"}}";
+        assertEquals(Long.MIN_VALUE, parse(minUser).getUserId());
+
+        for (String id : new String[] {"9223372036854775808", "-9223372036854775809", "18446744073709551615",
+                "99999999999999999999"}) {
+            assertParseFails(tweet(1, "\"overflow\"", null).replace("\"id\":1,", "\"id\":" + id + ","));
+        }
+    }
+
+    @Test
+    public void convertsCreationTimesWithTheirOffsets() throws Exception {
+        SimpleDateFormat format = new SimpleDateFormat("EEE MMM dd HH:mm:ss Z yyyy", Locale.ENGLISH);
+        for (String createdAt : new String[] {
+                "Wed Feb 19 18:32:49 +0000 2014", "Thu Jan 01 00:00:00 +0000 1970", "Wed Dec 31 23:59:59 +0000 1969",
+                "Thu Feb 29 23:59:59 -0130 2024", "Tue Mar 01 00:00:00 +1400 2100", "Sat Dec 31 12:00:00 +0545 2000"}) {
+            String json = tweet(1, "\"time\"", null).replace("Wed Feb 19 18:32:49 +0000 2014", createdAt);
+            assertEquals(createdAt, format.parse(createdAt).getTime(), parse(json).getTimestamp());
+        }
+
+        for (String createdAt : new String[] {
+                "Wed Fob 19 18:32:49 +0000 2014", "Wed Feb 19 18:32:49 *0000 2014", "Wed Feb 19 18:32:49 +0000 14",
+                "2014-02-19T18:32:49Z"}) {
+            assertParseFails(tweet(1, "\"time\"", null).replace("Wed Feb 19 18:32:49 +0000 2014", createdAt));
+        }
+    }
+
+    @Test
+    public void fallsBackToTheGeoFieldWithoutCoordinates() throws Exception {
+        // Unlike twitter4j, which only reads coordinates, the parser falls back to the deprecated geo field
+        String geoOnly = tweet(1, "\"geo\"", "\"coordinates\":null,"
+                + "\"geo\":{\"type\":\"Point\",\"coordinates\":[40.5,-74.25]}");
+        Coordinate fromGeo = parse(geoOnly).getGeoLocation();
+        assertEquals(40.5, fromGeo.getLatitude(), TOLERANCE);
+        assertEquals(-74.25, fromGeo.getLongitude(), TOLERANCE);
+
+        // GeoJSON coordinates list the longitude first, and win over geo whichever comes first
+        String both = tweet(1, "\"both\"", "\"coordinates\":{\"type\":\"Point\",\"coordinates\":[-0.125,51.5]},"
+                + "\"geo\":{\"type\":\"Point\",\"coordinates\":[40.5,-74.25]}");
+        Coordinate fromCoordinates = assertSameTweet(both, parse(both)).getGeoLocation();
+        assertEquals(51.5, fromCoordinates.getLatitude(), TOLERANCE);
+        assertEquals(-0.125, fromCoordinates.getLongitude(), TOLERANCE);
+
+        String neither = tweet(1, "\"neither\"", "\"coordinates\":null,\"geo\":null");
+        assertNull(assertSameTweet(neither, parse(neither)).getGeoLocation());
+    }
+
+    @Test
+    public void rejectsMalformedAndIncompleteTweets() throws Exception {
+        String json = tweet(1, "\"complete\"", "\"retweeted_status\":{\"id\":2,\"text\":\"}]\"}");
+        assertTrue(parse(json).isIsRetweet());
+        assertFalse(parse(tweet(1, "\"plain\"", "\"retweeted_status\":null")).isIsRetweet());
+
+        assertParseFails(json.substring(0, json.length() - 1));
+        assertParseFails(json.substring(0, json.indexOf("complete")));
+        assertParseFails(json + "{}");
+        assertParseFails(json.replace("\"complete\"", "\"bad \\x escape\""));
+        assertParseFails(json.replace("\"complete\"", "\"short \\u00e\""));
+        assertParseFails(json.replace("\"text\":\"complete\",", ""));
+        assertParseFails(json.replace("\"user\":{\"id\":2,\"name\":\"user\"}", "\"user\":null"));
+        assertParseFails("");
+    }
+
+    /**
+     * @return a tweet with the fields every tweet has, followed by the given ones
+     */
+    private static String tweet(long id, String text, String fields) {
+        return "{\"id\":" + id + ",\"id_str\":\"" + id + "\",\"text\":" + text
+                + ",\"created_at\":\"Wed Feb 19 18:32:49 +0000 2014\",\"favorited\":false,"
+                + "\"user\":{\"id\":2,\"name\":\"user\"}" + (fields == null ? "" : "," + fields) + "}";
+    }
+
+    private static Tweet parse(String json) throws ParseException {
+        return TweetJsonParser.parse(json.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static void assertParseFails(String json) {
+        try {
+            parse(json);
+            fail("Parsed " + json);
+        } catch (ParseException e) {
+            // Expected
+        }
+    }
+
+    /**
+     * Checks that a tweet holds what twitter4j reads from the same JSON, as the worker converted it.
+     */
+    private static Tweet assertSameTweet(String json, Tweet tweet) throws Exception {
+        Status status = DataObjectFactory.createStatus(json);
+        String name = "Tweet " + status.getId();
+        assertEquals(name, status.getId(), tweet.getId());
+        assertEquals(name, status.getText(), tweet.getText());
+        assertEquals(name, status.getCreatedAt().getTime(), tweet.getTimestamp());
+        assertEquals(name, status.getUser().getId(), tweet.getUserId());
+        assertEquals(name, status.getUser().getName(), tweet.getUserName());
+        assertEquals(name, status.isFavorited(), tweet.isIsFavorite());
+        assertEquals(name, status.isRetweet(), tweet.isIsRetweet());
+        if (status.getGeoLocation() == null) {
+            assertNull(name, tweet.getGeoLocation());
+        } else {
+            assertEquals(name, status.getGeoLocation().getLatitude(), tweet.getGeoLocation().getLatitude(), TOLERANCE);
+            assertEquals(name, status.getGeoLocation().getLongitude(), tweet.getGeoLocation().getLongitude(),
+                    TOLERANCE);
+        }
+        return tweet;
+    }
+
+    private static List<String> readSample() throws IOException {
+        List<String> sample = new ArrayList<>();
+        try (InputStream in = TweetJsonParserTest.class.getResourceAsStream("/tweets1k.json");
+                BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (!line.trim().isEmpty()) {
+                    sample.add(line);
+                }
+            }
+        }
+        return sample;
+    }
+}
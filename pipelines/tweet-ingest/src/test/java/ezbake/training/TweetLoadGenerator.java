@@ -0,0 +1,366 @@
+/*   Copyright (C) 2013-2014 Computer Sciences Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. */
+
+
+package ezbake.training;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.TimeZone;
+
+import twitter4j.internal.org.json.JSONArray;
+import twitter4j.internal.org.json.JSONException;
+import twitter4j.internal.org.json.JSONObject;
+
+/**
+ * Produces raw tweets in the Twitter streaming API JSON format for load tests, in one of two modes.
+ *
+ * A replay cycles through a sample of tweets, rewriting each tweet's id so that it is unique and its creation time so
+ * that the sample's timeline is replayed from the start of the load, sped up by a factor. The natural rate of the
+ * replay is the sample's rate times that factor.
+ *
+ * A synthesis builds new tweets whose words, hashtags, mentions, authors and places follow Zipf distributions, as
+ * they do in real traffic. The vocabulary and hashtags are those of the sample ranked by frequency, extended with
+ * made up ones so that the distributions have a long tail, and about 2% of the tweets are geotagged near one of a few
+ * cities.
+ */
+public abstract class TweetLoadGenerator {
+    private static final String CREATED_AT_FORMAT = "EEE MMM dd HH:mm:ss Z yyyy";
+
+    private final SimpleDateFormat createdAtFormat;
+
+    /**
+     * The next tweet id. Starts at a Twitter style id for the current time so that ids look realistic.
+     */
+    private long nextId = (System.currentTimeMillis() - 1288834974657L) << 22;
+
+    protected TweetLoadGenerator() {
+        createdAtFormat = new SimpleDateFormat(CREATED_AT_FORMAT, Locale.US);
+        createdAtFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
+    }
+
+    /**
+     * @param sample The sample tweets, one JSON object per element
+     * @param speed How many times faster than the sample's timeline the tweets are created
+     * @return a replay of the sample
+     */
+    public static TweetLoadGenerator replay(List<String> sample, double speed) {
+        return new Replay(sample, speed);
+    }
+
+    /**
+     * @param sample The sample tweets the vocabulary and hashtags are taken from
+     * @param rate The tweets per second the creation times are spread over, 0 or less to create them all now
+     * @param seed The seed of the random choices
+     * @return a synthesis of tweets
+     */
+    public static TweetLoadGenerator synthetic(List<String> sample, double rate, long seed) {
+        return new Synthesis(sample, rate, seed);
+    }
+
+    /**
+     * @return the next raw tweet
+     */
+    public abstract String next();
+
+    /**
+     * @return the tweets per second that match the creation times, 0 if the tweets may be emitted at any rate
+     */
+    public abstract double getRate();
+
+    protected long nextId() {
+        return nextId++;
+    }
+
+    protected String formatCreatedAt(long millis) {
+        return createdAtFormat.format(millis);
+    }
+
+    protected long parseCreatedAt(String createdAt) {
+        try {
+            return createdAtFormat.parse(createdAt).getTime();
+        } catch (ParseException e) {
+            throw new IllegalArgumentException("Unparseable creation time " + createdAt, e);
+        }
+    }
+
+    private static JSONObject parse(String tweet) {
+        try {
+            return new JSONObject(tweet);
+        } catch (JSONException e) {
+            throw new IllegalArgumentException("The sample tweet is not a JSON object: " + tweet, e);
+        }
+    }
+
+    /**
+     * @return the string value of a field of a sample tweet, empty if it has none
+     */
+    private static String text(JSONObject tweet, String field) {
+        try {
+            return tweet.has(field) && !tweet.isNull(field) ? tweet.getString(field) : "";
+        } catch (JSONException e) {
+            throw new IllegalArgumentException("The sample tweet has no string " + field, e);
+        }
+    }
+
+    private static final class Replay extends TweetLoadGenerator {
+        private final List<JSONObject> tweets = new ArrayList<>();
+        private final long[] offsets;
+        private final long period;
+        private final double speed;
+        private final long startMillis = System.currentTimeMillis();
+        private int next;
+        private long pass;
+
+        Replay(List<String> sample, double speed) {
+            if (sample.isEmpty()) {
+                throw new IllegalArgumentException("The sample is empty");
+            }
+            if (speed <= 0) {
+                throw new IllegalArgumentException("The speed must be positive: " + speed);
+            }
+            this.speed = speed;
+
+            long first = Long.MAX_VALUE;
+            long last = Long.MIN_VALUE;
+            long[] createdAt = new long[sample.size()];
+            for (int i = 0; i < sample.size(); i++) {
+                JSONObject tweet = parse(sample.get(i));
+                tweets.add(tweet);
+                createdAt[i] = parseCreatedAt(text(tweet, "created_at"));
+                first = Math.min(first, createdAt[i]);
+                last = Math.max(last, createdAt[i]);
+            }
+            offsets = new long[createdAt.length];
+            for (int i = 0; i < createdAt.length; i++) {
+                offsets[i] = createdAt[i] - first;
+            }
+
+            // Leave one average gap between the last tweet of a pass and the first of the next
+            long span = Math.max(1000L, last - first);
+            period = span + span / tweets.size();
+        }
+
+        @Override
+        public String next() {
+            JSONObject tweet = tweets.get(next);
+            long createdAt = startMillis + (long) ((offsets[next] + pass * period) / speed);
+            long id = nextId();
+            try {
+                tweet.put("id", id);
+                tweet.put("id_str", String.valueOf(id));
+                tweet.put("created_at", formatCreatedAt(createdAt));
+            } catch (JSONException e) {
+                throw new IllegalStateException(e);
+            }
+
+            next++;
+            if (next == tweets.size()) {
+                next = 0;
+                pass++;
+            }
+            return tweet.toString();
+        }
+
+        @Override
+        public double getRate() {
+            return tweets.size() * 1000.0 / period * speed;
+        }
+    }
+
+    private static final class Synthesis extends TweetLoadGenerator {
+        private static final double ZIPF_EXPONENT = 1.0;
+        private static final int VOCABULARY_SIZE = 100000;
+        private static final int HASHTAG_COUNT = 10000;
+        private static final int USER_COUNT = 100000;
+        private static final double GEOTAGGED = 0.02;
+        private static final double MENTIONING = 0.3;
+
+        /**
+         * The probabilities of a tweet having 0, 1, 2 or 3 hashtags.
+         */
+        private static final double[] HASHTAGS_PER_TWEET = {0.6, 0.25, 0.1, 0.05};
+
+        /**
+         * Latitudes and longitudes of the cities geotagged tweets are placed around, most popular first.
+         */
+        private static final double[][] CITIES = {
+            {40.71, -74.01}, {51.51, -0.13}, {35.69, 139.69}, {-23.55, -46.63}, {6.52, 3.38},
+            {19.43, -99.13}, {28.61, 77.21}, {48.86, 2.35}, {34.05, -118.24}, {-33.87, 151.21}
+        };
+
+        private final Random random;
+        private final double rate;
+        private final long startMillis = System.currentTimeMillis();
+        private final List<String> vocabulary;
+        private final List<String> hashtags;
+        private final ZipfSampler words;
+        private final ZipfSampler tags;
+        private final ZipfSampler users;
+        private final ZipfSampler cities;
+        private long created;
+
+        Synthesis(List<String> sample, double rate, long seed) {
+            this.random = new Random(seed);
+            this.rate = rate;
+
+            Map<String, Integer> wordCounts = new HashMap<>();
+            Map<String, Integer> tagCounts = new HashMap<>();
+            TweetTokenizer tokenizer = new TweetTokenizer();
+            for (String raw : sample) {
+                tokenizer.reset(text(parse(raw), "text"));
+                while (tokenizer.next()) {
+                    if (tokenizer.type() == TweetTokenizer.TokenType.WORD) {
+                        increment(wordCounts, tokenizer.token().toLowerCase(Locale.ROOT));
+                    } else if (tokenizer.type() == TweetTokenizer.TokenType.HASHTAG) {
+                        increment(tagCounts, tokenizer.token().substring(1));
+                    }
+                }
+            }
+            vocabulary = rankAndExtend(wordCounts, VOCABULARY_SIZE, "w");
+            hashtags = rankAndExtend(tagCounts, HASHTAG_COUNT, "topic");
+
+            words = new ZipfSampler(vocabulary.size(), ZIPF_EXPONENT, random);
+            tags = new ZipfSampler(hashtags.size(), ZIPF_EXPONENT, random);
+            users = new ZipfSampler(USER_COUNT, ZIPF_EXPONENT, random);
+            cities = new ZipfSampler(CITIES.length, ZIPF_EXPONENT, random);
+        }
+
+        @Override
+        public String next() {
+            StringBuilder text = new StringBuilder();
+            int wordCount = 5 + random.nextInt(16);
+            for (int i = 0; i < wordCount; i++) {
+                if (i > 0) {
+                    text.append(' ');
+                }
+                text.append(vocabulary.get(words.next()));
+            }
+            if (random.nextDouble() < MENTIONING) {
+                text.insert(0, "@user" + users.next() + ' ');
+            }
+            int tagCount = hashtagCount();
+            for (int i = 0; i < tagCount; i++) {
+                text.append(" #").append(hashtags.get(tags.next()));
+            }
+
+            long createdAt = rate > 0 ? startMillis + (long) (created * 1000 / rate) : System.currentTimeMillis();
+            created++;
+            long id = nextId();
+            int user = users.next();
+            try {
+                JSONObject author = new JSONObject();
+                author.put("id", user + 1);
+                author.put("id_str", String.valueOf(user + 1));
+                author.put("name", "User " + user);
+                author.put("screen_name", "user" + user);
+
+                JSONObject tweet = new JSONObject();
+                tweet.put("created_at", formatCreatedAt(createdAt));
+                tweet.put("id", id);
+                tweet.put("id_str", String.valueOf(id));
+                tweet.put("text", text.toString());
+                tweet.put("user", author);
+                tweet.put("favorited", false);
+                tweet.put("retweeted", false);
+                tweet.put("lang", "en");
+                if (random.nextDouble() < GEOTAGGED) {
+                    double[] city = CITIES[cities.next()];
+                    JSONObject geo = new JSONObject();
+                    geo.put("type", "Point");
+                    geo.put("coordinates", new JSONArray(Arrays.asList(
+                            city[0] + random.nextGaussian() * 0.1, city[1] + random.nextGaussian() * 0.1)));
+                    tweet.put("geo", geo);
+                }
+                return tweet.toString();
+            } catch (JSONException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        @Override
+        public double getRate() {
+            return rate;
+        }
+
+        private int hashtagCount() {
+            double choice = random.nextDouble();
+            for (int count = 0; count < HASHTAGS_PER_TWEET.length; count++) {
+                choice -= HASHTAGS_PER_TWEET[count];
+                if (choice < 0) {
+                    return count;
+                }
+            }
+            return HASHTAGS_PER_TWEET.length - 1;
+        }
+
+        private static void increment(Map<String, Integer> counts, String key) {
+            Integer count = counts.get(key);
+            counts.put(key, count == null ? 1 : count + 1);
+        }
+
+        /**
+         * Ranks the keys by count, most frequent first, and appends made up keys up to the size wanted.
+         */
+        private static List<String> rankAndExtend(final Map<String, Integer> counts, int size, String prefix) {
+            List<String> ranked = new ArrayList<>(counts.keySet());
+            Collections.sort(ranked, new Comparator<String>() {
+                @Override
+                public int compare(String left, String right) {
+                    int byCount = counts.get(right).compareTo(counts.get(left));
+                    return byCount != 0 ? byCount : left.compareTo(right);
+                }
+            });
+            for (int i = 0; ranked.size() < size; i++) {
+                ranked.add(prefix + i);
+            }
+            return ranked;
+        }
+    }
+
+    /**
+     * Draws ranks from 0 to n - 1 with probabilities proportional to 1 / (rank + 1)^exponent.
+     */
+    private static final class ZipfSampler {
+        private final double[] cumulative;
+        private final Random random;
+
+        ZipfSampler(int n, double exponent, Random random) {
+            this.random = random;
+            cumulative = new double[n];
+            double sum = 0;
+            for (int rank = 0; rank < n; rank++) {
+                sum += 1 / Math.pow(rank + 1, exponent);
+                cumulative[rank] = sum;
+            }
+            for (int rank = 0; rank < n; rank++) {
+                cumulative[rank] /= sum;
+            }
+        }
+
+        int next() {
+            int rank = Arrays.binarySearch(cumulative, random.nextDouble());
+            return Math.min(cumulative.length - 1, rank >= 0 ? rank : -rank - 1);
+        }
+    }
+}
@@ -26,7 +26,7 @@ public class TweetMongoStoreBuilder implements PipelineBuilder {
     public Pipeline build() {
         Pipeline pipeline = new Pipeline();
 
-        Listener<Tweet> listener = new Listener<>(Tweet.class);
+        Listener<TweetBroadcast> listener = new Listener<>(TweetBroadcast.class);
         listener.registerListenerTopic(SOURCE_TOPIC);
 
         TweetMongoStoreWorker worker = new TweetMongoStoreWorker();
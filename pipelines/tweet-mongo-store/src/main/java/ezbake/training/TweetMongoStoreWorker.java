@@ -14,11 +14,17 @@
 
 package ezbake.training;
 
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 import java.util.Properties;
 
 import org.apache.thrift.TException;
 import org.apache.thrift.TSerializer;
 import org.apache.thrift.protocol.TSimpleJSONProtocol;
+import org.apache.thrift.transport.TTransportException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -31,70 +37,356 @@ import ezbake.frack.api.Worker;
 import ezbake.security.client.EzbakeSecurityClient;
 import ezbake.thrift.ThriftClientPool;
 
-public class TweetMongoStoreWorker extends Worker<Tweet> {
+/**
+ * The pipeline worker that receives broadcast {@link ezbake.training.Tweet} instances and stores them in the tweets
+ * collection of the EzMongo service.
+ * <p/>
+ * Tweets are converted to JSON as they arrive and buffered per visibility. The buffer is written when it holds the
+ * maximum number of tweets, when its oldest tweet has waited for the flush interval, and when the worker is cleaned
+ * up. A write borrows one client and fetches one security token for the whole buffer rather than for every tweet.
+ * A full buffer is written by the thread that filled it, so a slow EzMongo service holds up the pipeline rather than
+ * growing the buffer.
+ * <p/>
+ * Every document is stored with the tweet id as its _id, so a tweet is stored at most once: inserting it again, after
+ * an insert whose outcome was lost with the connection or when the same tweet is broadcast twice, is rejected by
+ * EzMongo instead of adding a copy. Only the tweets that may not have reached EzMongo, because the connection was lost
+ * or no client or token could be obtained, are put back in the buffer and retried by a later write, on a fresh client.
+ * They are dropped with an error once the attempts are used up, or when the worker is cleaned up. Tweets that EzMongo
+ * rejected are logged and not retried. No write waits between attempts: after a write that left tweets to retry, the
+ * buffer is written no sooner than one flush interval later. Meanwhile the buffer grows to at most twice the maximum
+ * number of tweets: the thread that adds a tweet to a buffer that large first waits for the interval to end and writes
+ * the buffer, until the writes succeed or drop enough tweets, so a failing EzMongo service holds up the pipeline rather
+ * than growing the buffer further.
+ * <p/>
+ * Properties:
+ * <ul>
+ *     <li> tweet.mongo.store.maxPendingTweets - The number of tweets buffered before they are written to EzMongo.
+ *          Defaults to 500.</li>
+ *     <li> tweet.mongo.store.flushIntervalMilliseconds - The upper bound, in milliseconds, on how long a tweet may
+ *          wait in the buffer before it is written. Defaults to 1000.</li>
+ *     <li> tweet.mongo.store.maxAttempts - The number of writes that may attempt to insert a tweet before it is
+ *          dropped. Defaults to 3.</li>
+ * </ul>
+ */
+public class TweetMongoStoreWorker extends Worker<TweetBroadcast> {
     private static final long serialVersionUID = 1L;
     private static final Logger logger = LoggerFactory.getLogger(TweetMongoStoreWorker.class);
     private static final String EZMONGO = "ezmongo";
+    private static final String COLLECTION = "tweets";
+
+    private static final String MAX_PENDING_TWEETS_PROPERTY = "tweet.mongo.store.maxPendingTweets";
+    private static final String FLUSH_INTERVAL_PROPERTY = "tweet.mongo.store.flushIntervalMilliseconds";
+    private static final String MAX_ATTEMPTS_PROPERTY = "tweet.mongo.store.maxAttempts";
+    private static final int DEFAULT_MAX_PENDING_TWEETS = 500;
+    private static final long DEFAULT_FLUSH_INTERVAL_MILLISECONDS = 1000L;
+    private static final int DEFAULT_MAX_ATTEMPTS = 3;
 
     private ThriftClientPool pool;
     private EzbakeSecurityClient securityClient;
     private Properties properties;
+    private TSerializer serializer;
+    private FlushTimer flushTimer;
+    private int maxPendingTweets;
+    private long flushIntervalMilliseconds;
+    private int maxAttempts;
     private int count = 0;
 
+    /*
+     * Documents waiting to be inserted, per visibility. Only accessed while holding the worker's lock.
+     */
+    private Map<Visibility, List<Document>> pending = new HashMap<>();
+    private int pendingTweets;
+    private long oldestPendingMillis;
+
+    /*
+     * After a write that left tweets to retry, the buffer is not written again before this time, even when full.
+     */
+    private long retryAfterMillis;
+
     public TweetMongoStoreWorker() {
-        super(Tweet.class);
+        super(TweetBroadcast.class);
     }
 
+    /**
+     * Initializes the worker for processing.
+     *
+     * @param properties The EzBake configuration values for the running environment.
+     */
     public void initialize(Properties properties) {
         super.initialize(properties);
 
         this.properties = properties;
+        maxPendingTweets = Integer.parseInt(
+                properties.getProperty(MAX_PENDING_TWEETS_PROPERTY, String.valueOf(DEFAULT_MAX_PENDING_TWEETS)));
+        flushIntervalMilliseconds = Long.parseLong(
+                properties.getProperty(FLUSH_INTERVAL_PROPERTY, String.valueOf(DEFAULT_FLUSH_INTERVAL_MILLISECONDS)));
+        maxAttempts = Math.max(1, Integer.parseInt(
+                properties.getProperty(MAX_ATTEMPTS_PROPERTY, String.valueOf(DEFAULT_MAX_ATTEMPTS))));
+        serializer = new TSerializer(new TSimpleJSONProtocol.Factory());
         securityClient = new EzbakeSecurityClient(properties);
         pool = new ThriftClientPool(properties);
+
+        flushTimer = new FlushTimer("tweet-mongo-store-flush", flushIntervalMilliseconds, new Runnable() {
+            @Override
+            public void run() {
+                if (isStale(System.currentTimeMillis())) {
+                    flush();
+                }
+            }
+        });
         logger.info("Initialization is completed. Properties: {}", properties);
     }
 
+    /**
+     * Cleans up the worker by writing any buffered tweets and returning and closing open service resources.
+     */
     public void cleanup() {
+        if (flushTimer != null) {
+            flushTimer.stop();
+        }
+        flush();
+        int unsent = discardPending();
+        if (unsent > 0) {
+            logger.error("Dropping {} tweets that could not be inserted into mongo before the worker stopped", unsent);
+        }
         super.cleanup();
         ThriftClient.close();
     }
 
+    /**
+     * Performs processing on the broadcast Tweet objects by adding them to the buffer written to EzMongo.
+     *
+     * @param visibility The Visibility containing the Accumulo visibility string representing the classification level
+     * of the data contained in the incoming thrift data object.
+     * @param broadcast The incoming Thrift object to be processed.
+     */
     @Override
-    public void process(Visibility visibility, Tweet tweetThrift) {
-        logger.info("Processing thrift object #{}", ++count);
+    public void process(Visibility visibility, TweetBroadcast broadcast) {
+        final List<Tweet> tweets;
         try {
-            insertTweet(visibility, tweetThrift);
+            tweets = TweetBroadcastCodec.decode(broadcast);
         } catch (TException e) {
-            e.printStackTrace();
+            logger.error("Unable to decode broadcast tweets", e);
+            return;
+        }
+
+        for (Tweet tweet : tweets) {
+            try {
+                awaitRoom();
+                if (buffer(visibility, tweet, System.currentTimeMillis())) {
+                    flush();
+                }
+            } catch (TException e) {
+                logger.error("Unable to convert tweet {} to JSON", tweet.getId(), e);
+            }
+        }
+    }
+
+    /**
+     * @return true if the buffer is now full and should be flushed
+     */
+    private synchronized boolean buffer(Visibility visibility, Tweet tweet, long nowMillis) throws TException {
+        // The tweet id becomes the document's _id, as a string since JSON numbers may not hold every long exactly
+        String json = "{\"_id\":\"" + tweet.getId() + "\"," + serializer.toString(tweet).substring(1);
+        logger.debug("Processing thrift object #{}", ++count);
+        if (pendingTweets == 0) {
+            oldestPendingMillis = nowMillis;
+        }
+        addTo(pending, visibility, new Document(tweet.getId(), json));
+        pendingTweets++;
+        return pendingTweets >= maxPendingTweets && nowMillis >= retryAfterMillis;
+    }
+
+    /**
+     * Writes the buffer while it holds twice the maximum number of tweets, each time first waiting until the buffer
+     * may be written again after a failed write. Every failed write uses up an attempt of the tweets it put back, so
+     * this ends once EzMongo accepts the tweets or they are dropped.
+     */
+    private void awaitRoom() {
+        while (pool != null) {
+            int tweets;
+            long holdMillis;
+            synchronized (this) {
+                tweets = pendingTweets;
+                if (tweets < 2 * maxPendingTweets) {
+                    return;
+                }
+                holdMillis = retryAfterMillis - System.currentTimeMillis();
+            }
+            if (holdMillis > 0) {
+                logger.warn("Waiting {} ms to write the {} tweets buffered while inserts into mongo are failing",
+                        holdMillis, tweets);
+                try {
+                    Thread.sleep(holdMillis);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+            flush();
+        }
+    }
+
+    /**
+     * Puts documents whose insert may not have reached EzMongo back in the buffer for a later write.
+     */
+    private synchronized void requeue(Map<Visibility, List<Document>> documents, long nowMillis) {
+        for (Map.Entry<Visibility, List<Document>> entry : documents.entrySet()) {
+            for (Document document : entry.getValue()) {
+                if (pendingTweets == 0) {
+                    oldestPendingMillis = nowMillis;
+                }
+                addTo(pending, entry.getKey(), document);
+                pendingTweets++;
+            }
+        }
+        retryAfterMillis = nowMillis + flushIntervalMilliseconds;
+    }
+
+    private synchronized boolean isStale(long nowMillis) {
+        return pendingTweets > 0 && nowMillis - oldestPendingMillis >= flushIntervalMilliseconds
+                && nowMillis >= retryAfterMillis;
+    }
+
+    /**
+     * @return the number of tweets removed from the buffer
+     */
+    private synchronized int discardPending() {
+        return size(drain());
+    }
+
+    private synchronized Map<Visibility, List<Document>> drain() {
+        Map<Visibility, List<Document>> drained = pending;
+        pending = new HashMap<>();
+        pendingTweets = 0;
+        return drained;
+    }
+
+    /**
+     * Inserts the buffered tweets into EzMongo, putting back the ones to retry.
+     */
+    private void flush() {
+        if (pool == null) {
+            return;
         }
+
+        Map<Visibility, List<Document>> documents = drain();
+        int tweets = size(documents);
+        if (tweets == 0) {
+            return;
+        }
+
+        long start = System.nanoTime();
+        Map<Visibility, List<Document>> unsent = insert(documents);
+        int retried = 0;
+        int dropped = 0;
+        for (List<Document> list : unsent.values()) {
+            Iterator<Document> iterator = list.iterator();
+            while (iterator.hasNext()) {
+                Document document = iterator.next();
+                if (++document.attempts < maxAttempts) {
+                    retried++;
+                } else {
+                    logger.error("Dropping tweet {} after {} failed attempts to insert it into mongo",
+                            document.tweetId, document.attempts);
+                    iterator.remove();
+                    dropped++;
+                }
+            }
+        }
+        requeue(unsent, System.currentTimeMillis());
+        if (retried > 0) {
+            logger.warn("Will retry the insert of {} tweets with the next write", retried);
+        }
+        logger.info("Wrote {} tweets to mongo in {} ms", tweets - retried - dropped,
+                (System.nanoTime() - start) / 1000000);
     }
 
-    private void insertTweet(Visibility visibility, Tweet tweet) throws TException {
+    /**
+     * Inserts documents with one client and security token. A document rejected by the service is logged and not
+     * retried, while a lost connection leaves the document being inserted and every later one unsent.
+     *
+     * @return the documents that may not have been inserted, per visibility
+     */
+    private Map<Visibility, List<Document>> insert(Map<Visibility, List<Document>> documents) {
+        final EzSecurityToken token;
+        try {
+            token = securityClient.fetchAppToken();
+        } catch (TException e) {
+            logger.error(
+                    "An error occurred while obtaining the security token: {}\nProperties Dump: {}", e.getMessage(),
+                    this.properties);
+            logger.error("", e);
+            return documents;
+        }
+
+        Map<Visibility, List<Document>> unsent = new HashMap<>();
         EzMongo.Client mongoClient = null;
+        boolean broken = false;
         try {
             mongoClient = pool.getClient(EZMONGO, EzMongo.Client.class);
+            for (Map.Entry<Visibility, List<Document>> entry : documents.entrySet()) {
+                for (Document document : entry.getValue()) {
+                    if (broken) {
+                        addTo(unsent, entry.getKey(), document);
+                        continue;
+                    }
+                    try {
+                        mongoClient.insert(COLLECTION, new MongoEzbakeDocument(document.json, entry.getKey()), token);
+                    } catch (TTransportException e) {
+                        logger.error("Lost the connection to mongo while inserting tweets", e);
+                        broken = true;
+                        addTo(unsent, entry.getKey(), document);
+                    } catch (TException e) {
+                        // Also the outcome of inserting a tweet that is already stored
+                        logger.warn("Mongo rejected the insert of tweet {} with visibility {}", document.tweetId,
+                                entry.getKey(), e);
+                    }
+                }
+            }
+        } catch (TException e) {
+            logger.error("Unable to obtain a mongo client", e);
+            return documents;
+        } finally {
+            if (mongoClient != null) {
+                if (broken) {
+                    pool.returnBrokenToPool(mongoClient);
+                } else {
+                    pool.returnToPool(mongoClient);
+                }
+            }
+        }
+        return unsent;
+    }
+
+    private static void addTo(Map<Visibility, List<Document>> documents, Visibility visibility, Document document) {
+        List<Document> list = documents.get(visibility);
+        if (list == null) {
+            list = new ArrayList<>();
+            documents.put(visibility, list);
+        }
+        list.add(document);
+    }
 
-            TSerializer serializer = new TSerializer(new TSimpleJSONProtocol.Factory());
-            String jsonContent = serializer.toString(tweet);
+    private static int size(Map<Visibility, List<Document>> documents) {
+        int size = 0;
+        for (List<Document> list : documents.values()) {
+            size += list.size();
+        }
+        return size;
+    }
 
-            final EzSecurityToken token;
-            try {
-                token = securityClient.fetchAppToken();
-            } catch (TException e) {
-                logger.error(
-                        "An error occurred while obtaining the security token: {}\nProperties Dump: {}", e.getMessage(),
-                        this.properties);
-                logger.error("", e);
-                throw new RuntimeException(e);
-            }
+    /**
+     * A tweet's JSON document and the number of writes that failed to insert it.
+     */
+    private static class Document {
+        private final long tweetId;
+        private final String json;
+        private int attempts;
 
-            String result = mongoClient.insert("tweets", new MongoEzbakeDocument(jsonContent, visibility), token);
-            logger.info("Successful mongo client insert {} with visibility {}", result, visibility);
-        } catch (Exception e) {
-            logger.error(e.getMessage(), e);
-            throw new TException(e);
-        } finally {
-            pool.returnToPool(mongoClient);
+        Document(long tweetId, String json) {
+            this.tweetId = tweetId;
+            this.json = json;
         }
     }
 }
@@ -0,0 +1,60 @@
+/*   Copyright (C) 2013-2014 Computer Sciences Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. */
+
+package ezbake.training;
+
+import ezbake.frack.api.Listener;
+import ezbake.frack.api.Pipeline;
+import ezbake.frack.api.PipelineBuilder;
+
+/**
+ * Constructs the tweet-tag-graph pipeline.
+ *
+ * The pipeline listens for a tweet from the tweet-ingest pipeline, extracts the hashtags and @mentions of the tweet
+ * and adds them to the tag graph service.
+ */
+public class TweetTagGraphBuilder implements PipelineBuilder {
+    /**
+     * The topic to which this pipeline is listening.
+     */
+    private static final String SOURCE_TOPIC = "tweet-ingestTopic1";
+
+    /**
+     * The unique name identifying the Listener that listens for the tweets emitted from the tweet-ingest pipeline.
+     */
+    private static final String PIPELINE_LISTENER = "tweet-tag-listener";
+
+    /**
+     * The unique name identifying the Worker that will extract the tags and send them to the tag graph thrift service.
+     */
+    private static final String PIPELINE_GRAPH_WORKER = "tweet-tag-graph-worker";
+
+    /**
+     * Creates the pipeline by identifying the pipelines components (i.e., listeners, workers, and others as needed) and
+     * connects the various components together to form a pipeline.
+     */
+    public Pipeline build() {
+        Pipeline pipeline = new Pipeline();
+
+        Listener<TweetBroadcast> listener = new Listener<>(TweetBroadcast.class);
+        listener.registerListenerTopic(SOURCE_TOPIC);
+
+        pipeline.addWorker(PIPELINE_GRAPH_WORKER, new TweetTagGraphWorker());
+
+        pipeline.addListener(PIPELINE_LISTENER, listener);
+        pipeline.addConnection(PIPELINE_LISTENER, PIPELINE_GRAPH_WORKER);
+
+        return pipeline;
+    }
+}
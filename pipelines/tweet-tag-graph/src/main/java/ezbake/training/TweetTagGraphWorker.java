@@ -0,0 +1,323 @@
+/*   Copyright (C) 2013-2014 Computer Sciences Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. */
+
+package ezbake.training;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+
+import org.apache.thrift.TException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import ezbake.base.thrift.EzSecurityToken;
+import ezbake.base.thrift.Visibility;
+import ezbake.data.common.ThriftClient;
+import ezbake.frack.api.Worker;
+import ezbake.security.client.EzbakeSecurityClient;
+import ezbake.thrift.ThriftClientPool;
+
+/**
+ * The pipeline worker that receives {@link ezbake.training.Tweet} instances, broadcast in
+ * {@link ezbake.training.TweetBroadcast} envelopes, extracts their hashtags and @mentions and sends them to the Tweet
+ * Tag Graph Thrift service.
+ * <p/>
+ * Tags are found with a {@link TweetTokenizer} and lower cased, and only tweets with at least two distinct tags are
+ * kept, since a single tag has nothing to co-occur with. The tag sets are buffered per visibility and sent with one
+ * {@link TweetTagGraphService.Client#addTagSets(List, EzSecurityToken, Visibility)} call per visibility when the
+ * buffer holds the maximum number of tweets, when its oldest tweet has waited for the flush interval, and when the
+ * worker is cleaned up.
+ * <p/>
+ * Tag sets that could not be sent, because no security token or client could be obtained or a call failed, are put
+ * back in the buffer and sent again once the flush interval has passed. Tag sets are added at least once: the tags of
+ * a call that failed part way are sent again even though the service may already have added them. While sends are
+ * failing the buffer grows to at most twice the maximum number of tweets, and the tags of any further tweets are
+ * dropped and counted in the log.
+ * <p/>
+ * Properties:
+ * <ul>
+ *     <li> tweet.tag.graph.maxPendingTweets - The number of tweets buffered before their tags are sent to the tag
+ *          graph service. Defaults to 500.</li>
+ *     <li> tweet.tag.graph.flushIntervalMilliseconds - The upper bound, in milliseconds, on how long a tweet's tags
+ *          may wait in the buffer before they are sent. Defaults to 1000.</li>
+ * </ul>
+ */
+public class TweetTagGraphWorker extends Worker<TweetBroadcast> {
+    private static final long serialVersionUID = 1L;
+    private static final Logger logger = LoggerFactory.getLogger(TweetTagGraphWorker.class);
+
+    private static final String MAX_PENDING_TWEETS_PROPERTY = "tweet.tag.graph.maxPendingTweets";
+    private static final String FLUSH_INTERVAL_PROPERTY = "tweet.tag.graph.flushIntervalMilliseconds";
+    private static final int DEFAULT_MAX_PENDING_TWEETS = 500;
+    private static final long DEFAULT_FLUSH_INTERVAL_MILLISECONDS = 1000L;
+
+    private ThriftClientPool pool;
+    private EzbakeSecurityClient securityClient;
+    private Properties properties;
+    private TweetTokenizer tokenizer;
+    private FlushTimer flushTimer;
+    private int maxPendingTweets;
+    private long flushIntervalMilliseconds;
+
+    /*
+     * Tag sets waiting to be sent, per visibility. Only accessed while holding the worker's lock.
+     */
+    private Map<Visibility, List<List<String>>> pending = new HashMap<>();
+    private int pendingTweets;
+    private long oldestPendingMillis;
+    private int droppedTweets;
+
+    /*
+     * After a flush that left tag sets to retry, the buffer is not sent again before this time, even when full.
+     */
+    private long retryAfterMillis;
+
+    public TweetTagGraphWorker() {
+        super(TweetBroadcast.class);
+    }
+
+    /**
+     * Initializes the worker for processing.
+     *
+     * @param properties The EzBake configuration values for the running environment.
+     */
+    public void initialize(Properties properties) {
+        super.initialize(properties);
+
+        this.properties = properties;
+        maxPendingTweets = Integer.parseInt(
+                properties.getProperty(MAX_PENDING_TWEETS_PROPERTY, String.valueOf(DEFAULT_MAX_PENDING_TWEETS)));
+        flushIntervalMilliseconds = Long.parseLong(
+                properties.getProperty(FLUSH_INTERVAL_PROPERTY, String.valueOf(DEFAULT_FLUSH_INTERVAL_MILLISECONDS)));
+        tokenizer = new TweetTokenizer();
+        securityClient = new EzbakeSecurityClient(properties);
+        pool = new ThriftClientPool(properties);
+
+        flushTimer = new FlushTimer("tweet-tag-graph-flush", flushIntervalMilliseconds, new Runnable() {
+            @Override
+            public void run() {
+                if (isStale(System.currentTimeMillis())) {
+                    flush();
+                }
+            }
+        });
+        logger.info("Initialization is completed. Properties: {}", properties);
+    }
+
+    /**
+     * Cleans up the worker by sending any buffered tags and returning and closing open service resources.
+     */
+    public void cleanup() {
+        if (flushTimer != null) {
+            flushTimer.stop();
+        }
+        flush();
+        int unsent = discardPending();
+        if (unsent > 0) {
+            logger.error("Discarded the tags of {} tweets that could not be sent to the tag graph service", unsent);
+        }
+        super.cleanup();
+        ThriftClient.close();
+    }
+
+    /**
+     * Performs processing on the broadcast Tweet objects by extracting their tags into the buffer sent to the Tag
+     * Graph service.
+     *
+     * @param visibility The Visibility containing the Accumulo visibility string representing the classification level
+     * of the data contained in the incoming thrift data object.
+     * @param broadcast The incoming Thrift object to be processed.
+     */
+    @Override
+    public void process(Visibility visibility, TweetBroadcast broadcast) {
+        final List<Tweet> tweets;
+        try {
+            tweets = TweetBroadcastCodec.decode(broadcast);
+        } catch (TException e) {
+            logger.error("Unable to decode broadcast tweets", e);
+            return;
+        }
+
+        for (Tweet data : tweets) {
+            if (data.getText() == null) {
+                continue;
+            }
+
+            List<String> tags = extractTags(data.getText());
+            if (tags.size() > 1 && buffer(visibility, tags, System.currentTimeMillis())) {
+                flush();
+            }
+        }
+    }
+
+    /**
+     * Gets the distinct, lower cased hashtags and @mentions of a tweet in the order they appear.
+     */
+    private synchronized List<String> extractTags(String text) {
+        Set<String> tags = new LinkedHashSet<>();
+        tokenizer.reset(text);
+        while (tokenizer.next()) {
+            TweetTokenizer.TokenType type = tokenizer.type();
+            if (type == TweetTokenizer.TokenType.HASHTAG || type == TweetTokenizer.TokenType.MENTION) {
+                tags.add(tokenizer.intern().toLowerCase(Locale.ROOT));
+            }
+        }
+        return new ArrayList<>(tags);
+    }
+
+    /**
+     * @return true if the buffer is now full and should be flushed
+     */
+    private synchronized boolean buffer(Visibility visibility, List<String> tags, long nowMillis) {
+        if (!add(visibility, tags, nowMillis)) {
+            droppedTweets++;
+        }
+        return pendingTweets >= maxPendingTweets && nowMillis >= retryAfterMillis;
+    }
+
+    /**
+     * Puts tag sets that could not be sent back in the buffer, as far as it has room for them.
+     */
+    private synchronized void requeue(Map<Visibility, List<List<String>>> tagSets, long nowMillis) {
+        for (Map.Entry<Visibility, List<List<String>>> entry : tagSets.entrySet()) {
+            for (List<String> tags : entry.getValue()) {
+                if (!add(entry.getKey(), tags, nowMillis)) {
+                    droppedTweets++;
+                }
+            }
+        }
+        retryAfterMillis = nowMillis + flushIntervalMilliseconds;
+    }
+
+    /**
+     * @return false if the buffer is at its limit and the tag set was not added
+     */
+    private boolean add(Visibility visibility, List<String> tags, long nowMillis) {
+        if (pendingTweets >= 2 * maxPendingTweets) {
+            return false;
+        }
+        if (pendingTweets == 0) {
+            oldestPendingMillis = nowMillis;
+        }
+        List<List<String>> tagSets = pending.get(visibility);
+        if (tagSets == null) {
+            tagSets = new ArrayList<>();
+            pending.put(visibility, tagSets);
+        }
+        tagSets.add(tags);
+        pendingTweets++;
+        return true;
+    }
+
+    private synchronized boolean isStale(long nowMillis) {
+        return pendingTweets > 0 && nowMillis - oldestPendingMillis >= flushIntervalMilliseconds
+                && nowMillis >= retryAfterMillis;
+    }
+
+    /**
+     * @return the number of tweets whose tags were dropped since the last call
+     */
+    private synchronized int takeDroppedTweets() {
+        int dropped = droppedTweets;
+        droppedTweets = 0;
+        return dropped;
+    }
+
+    /**
+     * @return the number of tweets whose tags were removed from the buffer
+     */
+    private synchronized int discardPending() {
+        int tweets = pendingTweets;
+        drain();
+        return tweets;
+    }
+
+    private synchronized Map<Visibility, List<List<String>>> drain() {
+        Map<Visibility, List<List<String>>> drained = pending;
+        pending = new HashMap<>();
+        pendingTweets = 0;
+        return drained;
+    }
+
+    /**
+     * Sends the buffered tag sets to the Tag Graph service, one call per visibility. The tag sets of a call that fails,
+     * and of the later calls, are put back in the buffer.
+     */
+    private void flush() {
+        if (pool == null) {
+            return;
+        }
+
+        Map<Visibility, List<List<String>>> drained = drain();
+        if (drained.isEmpty()) {
+            return;
+        }
+
+        final EzSecurityToken token;
+        try {
+            token = securityClient.fetchAppToken();
+        } catch (TException e) {
+            logger.error(
+                    "An error occurred while obtaining the security token: {}\nProperties Dump: {}",
+                    e.getMessage(), this.properties);
+            logger.error("", e);
+            requeue(drained, System.currentTimeMillis());
+            return;
+        }
+
+        Map<Visibility, List<List<String>>> unsent = new HashMap<>(drained);
+        TweetTagGraphService.Client serviceClient = null;
+        boolean broken = false;
+        int tweets = 0;
+        try {
+            serviceClient = pool.getClient(
+                    EzBakeTrainingConstants.TAG_GRAPH_SERVICE_NAME, TweetTagGraphService.Client.class);
+            for (Map.Entry<Visibility, List<List<String>>> entry : drained.entrySet()) {
+                serviceClient.addTagSets(entry.getValue(), token, entry.getKey());
+                unsent.remove(entry.getKey());
+                tweets += entry.getValue().size();
+            }
+        } catch (TException e) {
+            logger.error("An error occurred when adding tags to the TweetTagGraphService");
+            logger.error("", e);
+            broken = true;
+        } finally {
+            if (broken && serviceClient != null) {
+                pool.returnBrokenToPool(serviceClient);
+            } else {
+                pool.returnToPool(serviceClient);
+            }
+        }
+
+        if (!unsent.isEmpty()) {
+            requeue(unsent, System.currentTimeMillis());
+            logger.warn("Will retry sending the tags of {} visibilities in {} ms", unsent.size(),
+                    flushIntervalMilliseconds);
+        }
+        if (tweets > 0) {
+            logger.info("Added the tags of {} tweets to the tweet tag graph service", tweets);
+        }
+        int dropped = takeDroppedTweets();
+        if (dropped > 0) {
+            logger.error("Dropped the tags of {} tweets that did not fit in the buffer while sends were failing",
+                    dropped);
+        }
+    }
+}
@@ -22,7 +22,7 @@ import ezbake.frack.api.PipelineBuilder;
  * Constructs the tweet-word-divide pipeline.
  *
  * The pipeline listens for a tweet from the tweet-ingest pipeline, divides the tweet text into words and saves the
- * word to the word count service.
+ * words to the word count service.
  */
 public class TweetWordBuilder implements PipelineBuilder {
     /**
@@ -53,7 +53,7 @@ public class TweetWordBuilder implements PipelineBuilder {
     public Pipeline build() {
         Pipeline pipeline = new Pipeline();
 
-        Listener<Tweet> listener = new Listener<>(Tweet.class);
+        Listener<TweetBroadcast> listener = new Listener<>(TweetBroadcast.class);
         listener.registerListenerTopic(SOURCE_TOPIC);
 
         pipeline.addWorker(PIPELINE_DIVIDE_WORKER, new TweetWordDivideWorker());
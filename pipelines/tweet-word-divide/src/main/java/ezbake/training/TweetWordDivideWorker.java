@@ -15,9 +15,13 @@
 package ezbake.training;
 
 import java.io.IOException;
-import java.text.BreakIterator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
 
-import org.apache.commons.lang.StringUtils;
+import org.apache.thrift.TException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -25,58 +29,105 @@ import ezbake.base.thrift.Visibility;
 import ezbake.frack.api.Worker;
 
 /**
- * The pipeline worker that receives a {@link ezbake.training.Tweet} instance and divides the text into
- * words before outputting them as {@link ezbake.training.TweetWord} for downstream workers or listeners.
+ * The pipeline worker that receives {@link ezbake.training.Tweet} instances, broadcast in
+ * {@link ezbake.training.TweetBroadcast} envelopes, and divides the text into words before outputting them as one
+ * {@link ezbake.training.TweetWordBag} per tweet for downstream workers or listeners.
+ * <p/>
+ * The text is split by a {@link TweetTokenizer} that the worker reuses for every tweet, so URLs, @mentions, #hashtags
+ * and emoji are output as whole tokens and repeated words share the tokenizer's cached strings. Repeated words within
+ * a tweet are counted in the bag, so each tweet costs a single pipeline message however many words it has.
+ * <p/>
+ * Every token is passed through a {@link WordNormalizer} before it is counted, so that case variants are combined and
+ * stopwords, short words and unwanted kinds of token never leave the worker. The normalizer is configured by the
+ * tweet.word.normalize properties it documents.
  */
-public class TweetWordDivideWorker extends Worker<Tweet> {
+public class TweetWordDivideWorker extends Worker<TweetBroadcast> {
     private static final long serialVersionUID = 1L;
     private static final Logger logger = LoggerFactory.getLogger(TweetWordDivideWorker.class);
 
+    private TweetTokenizer tokenizer;
+    private WordNormalizer normalizer;
+
     public TweetWordDivideWorker() {
-        super(Tweet.class);
+        super(TweetBroadcast.class);
+    }
+
+    /**
+     * Initializes the worker for processing.
+     *
+     * @param properties The EzBake configuration values for the running environment.
+     */
+    public void initialize(Properties properties) {
+        super.initialize(properties);
+
+        tokenizer = new TweetTokenizer();
+        normalizer = WordNormalizer.fromProperties(properties);
+        logger.info("Initialization is completed. Properties: {}", properties);
     }
 
     /**
-     * Performs processing on the Tweet object by dividing the tweet's text into words.
+     * Performs processing on the broadcast Tweet objects by dividing each tweet's text into words.
      *
      * @param visibility The Visibility containing the Accumulo visibility string representing the classification level
      * of the data contained in the incoming thrift data object.
-     * @param data The incoming Thrift object to be processed.
+     * @param broadcast The incoming Thrift object to be processed.
      */
     @Override
-    public void process(Visibility visibility, Tweet data) {
-        if (data != null && data.getText() != null) {
-            BreakIterator wordIterator = BreakIterator.getWordInstance();
-            wordIterator.setText(data.getText());
+    public void process(Visibility visibility, TweetBroadcast broadcast) {
+        final List<Tweet> tweets;
+        try {
+            tweets = TweetBroadcastCodec.decode(broadcast);
+        } catch (TException e) {
+            logger.error("Unable to decode broadcast tweets", e);
+            return;
+        }
+
+        for (Tweet data : tweets) {
+            divide(visibility, data);
+        }
+    }
+
+    private void divide(Visibility visibility, Tweet data) {
+        if (data.getText() != null) {
+            Map<String, Integer> counts = new HashMap<>();
+            tokenizer.reset(data.getText());
+            while (tokenizer.next()) {
+                String word = normalizer.normalize(tokenizer);
+                if (word == null) {
+                    continue;
+                }
+                Integer count = counts.get(word);
+                counts.put(word, count == null ? 1 : count + 1);
+            }
 
-            int wordStart = wordIterator.first();
-            int wordEnd = wordIterator.next();
-            for (; wordEnd != BreakIterator.DONE; wordStart = wordEnd, wordEnd = wordIterator.next()) {
-                String tweetTextWord = data.getText().substring(wordStart, wordEnd);
-                if (StringUtils.isNotBlank(tweetTextWord)) {
-                    try {
-                        outputResultsToPipe(visibility, tweetTextWord);
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                    }
+            if (!counts.isEmpty()) {
+                try {
+                    outputResultsToPipe(visibility, counts, data);
+                } catch (IOException e) {
+                    logger.error("Unable to output the words of tweet {} to pipes", data.getId(), e);
                 }
             }
         }
     }
 
     /**
-     * Output and/or broadcast the tweet word for downstream pipes and listeners.
+     * Output and/or broadcast the tweet's words for downstream pipes and listeners.
      *
-     * @param word A word from the tweet.
      * @param visibility Visibility containing the Accumulo visibility string representing the classification level of
      * the data contained in the incoming thrift data object.
+     * @param counts The number of occurrences of each word in the tweet.
+     * @param tweet The tweet the words were taken from.
      * @throws IOException
      */
-    private void outputResultsToPipe(Visibility visibility, String word) throws IOException {
-        TweetWord tweetWord = new TweetWord();
-        tweetWord.setWord(word);
+    private void outputResultsToPipe(Visibility visibility, Map<String, Integer> counts, Tweet tweet)
+            throws IOException {
+        TweetWordBag wordBag = new TweetWordBag();
+        wordBag.setCounts(counts);
+        // Tweets carry milliseconds but the word count service keys its windows on seconds
+        wordBag.setTimestamp(TimeUnit.MILLISECONDS.toSeconds(tweet.getTimestamp()));
+        wordBag.setTweetId(tweet.getId());
 
-        outputToPipes(visibility, tweetWord);
-        logger.info("Output to pipes (with visibility {}): {}", visibility, tweetWord);
+        outputToPipes(visibility, wordBag);
+        logger.debug("Output {} words to pipes (with visibility {})", counts.size(), visibility);
     }
 }
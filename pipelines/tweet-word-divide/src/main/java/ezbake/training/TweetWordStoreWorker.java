@@ -14,7 +14,13 @@
 
 package ezbake.training;
 
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Properties;
+import java.util.Set;
 
 import org.apache.thrift.TException;
 import org.slf4j.Logger;
@@ -28,19 +34,50 @@ import ezbake.security.client.EzbakeSecurityClient;
 import ezbake.thrift.ThriftClientPool;
 
 /**
- * The pipeline worker that receives a word from a tweet and stores the word to the Tweet Word Count Thrift service.
+ * The pipeline worker that receives the words of a tweet and stores the words to the Tweet Word Count Thrift service.
+ * <p/>
+ * Words are combined locally in a bounded {@link WordCountCombiner} and the combined counts are sent to the service
+ * with one {@link TweetWordCountService.Client#addCounts(Map, EzSecurityToken, Visibility, long)} call per visibility
+ * and minute, so that the service counts each word under the visibility and in the time window of the tweet it came
+ * from. When the service is sharded, each batch is split with a {@link WordShardRing} and every shard receives only
+ * the words it counts. A flush happens when the combiner holds the maximum number of distinct words, when its oldest
+ * word has waited for the flush interval, and when the worker is cleaned up. After each flush the flush size, flush
+ * latency and combine ratio of the words that were sent are logged.
+ * <p/>
+ * Words that could not be sent are put back in the combiner, as far as it has room for them, and are sent again once
+ * the flush interval has passed. Counts are added at least once: when the connection to a shard is lost during a
+ * call, the words of that call are sent again even though the service may already have counted them.
+ * <p/>
+ * Properties:
+ * <ul>
+ *     <li> tweet.word.store.maxPendingWords - The number of distinct words combined before they are sent to the word
+ *          count service. Defaults to 10000.</li>
+ *     <li> tweet.word.store.flushIntervalMilliseconds - The upper bound, in milliseconds, on how long a word may wait
+ *          in the combiner before it is sent. Defaults to 1000.</li>
+ *     <li> tweet.word.count.shards - Comma separated service names of the word count service shards. Defaults to the
+ *          single {@link EzBakeTrainingConstants#WORD_COUNT_SERVICE_NAME} service.</li>
+ * </ul>
  */
-public class TweetWordStoreWorker extends Worker<TweetWord> {
+public class TweetWordStoreWorker extends Worker<TweetWordBag> {
     private static final long serialVersionUID = 1L;
     private static final Logger logger = LoggerFactory.getLogger(TweetWordStoreWorker.class);
 
+    private static final String MAX_PENDING_WORDS_PROPERTY = "tweet.word.store.maxPendingWords";
+    private static final String FLUSH_INTERVAL_PROPERTY = "tweet.word.store.flushIntervalMilliseconds";
+    private static final int DEFAULT_MAX_PENDING_WORDS = 10000;
+    private static final long DEFAULT_FLUSH_INTERVAL_MILLISECONDS = 1000L;
+
     private ThriftClientPool pool;
-    private TweetWordCountService.Client serviceClient;
     private EzbakeSecurityClient securityClient;
     private Properties properties;
+    private WordShardRing ring;
+    private WordCountCombiner combiner;
+    private FlushTimer flushTimer;
+    private long flushIntervalMilliseconds;
+    private volatile long retryAfterMillis;
 
     public TweetWordStoreWorker() {
-        super(TweetWord.class);
+        super(TweetWordBag.class);
     }
 
     /**
@@ -52,54 +89,156 @@ public class TweetWordStoreWorker extends Worker<TweetWord> {
         super.initialize(properties);
 
         this.properties = properties;
+        int maxPendingWords = Integer.parseInt(
+                properties.getProperty(MAX_PENDING_WORDS_PROPERTY, String.valueOf(DEFAULT_MAX_PENDING_WORDS)));
+        flushIntervalMilliseconds = Long.parseLong(
+                properties.getProperty(FLUSH_INTERVAL_PROPERTY, String.valueOf(DEFAULT_FLUSH_INTERVAL_MILLISECONDS)));
+        combiner = new WordCountCombiner(maxPendingWords, flushIntervalMilliseconds);
         securityClient = new EzbakeSecurityClient(properties);
         pool = new ThriftClientPool(properties);
+        ring = WordShardRing.fromProperties(properties);
+
+        flushTimer = new FlushTimer("tweet-word-store-flush", flushIntervalMilliseconds, new Runnable() {
+            @Override
+            public void run() {
+                long now = System.currentTimeMillis();
+                if (combiner.isStale(now) && now >= retryAfterMillis) {
+                    flush();
+                }
+            }
+        });
         logger.info("Initialization is completed. Properties: {}", properties);
     }
 
     /**
-     * Cleans up the worker by returning and closing open service resources.
+     * Cleans up the worker by sending any combined words and returning and closing open service resources.
      */
     public void cleanup() {
+        if (flushTimer != null) {
+            flushTimer.stop();
+        }
+        flush();
+        if (combiner != null && combiner.getPendingOccurrences() > 0) {
+            logger.error("Discarded {} word occurrences that could not be sent to the word count service",
+                    combiner.getPendingOccurrences());
+        }
         super.cleanup();
         ThriftClient.close();
     }
 
     /**
-     * Performs processing on the TweetWord object by adding it to the Word Count service.
+     * Performs processing on the TweetWordBag object by combining its words into the counts sent to the Word Count
+     * service.
      *
      * @param visibility The Visibility containing the Accumulo visibility string representing the classification level
      * of the data contained in the incoming thrift data object.
      * @param object The incoming Thrift object to be processed.
      */
     @Override
-    public void process(Visibility visibility, TweetWord object) {
-        if (object != null && object.getWord() != null) {
-            try {
-                final EzSecurityToken token;
-                try {
-                    token = securityClient.fetchAppToken();
-                } catch (TException e) {
-                    logger.error(
-                            "An error occurred while obtaining the security token: {}\nProperties Dump: {}",
-                            e.getMessage(), this.properties);
-                    logger.error("", e);
-                    throw new RuntimeException(e);
-                }
+    public void process(Visibility visibility, TweetWordBag object) {
+        if (object != null && object.getCounts() != null) {
+            long timestamp = object.isSetTimestamp() ? object.getTimestamp() : 0L;
+            long now = System.currentTimeMillis();
+            if (combiner.addAll(visibility, timestamp, object.getCounts(), now) && now >= retryAfterMillis) {
+                flush();
+            }
+        }
+    }
 
-                serviceClient = pool.getClient(
-                        EzBakeTrainingConstants.WORD_COUNT_SERVICE_NAME, TweetWordCountService.Client.class);
-
-                serviceClient.add(object.getWord(), token);
-                logger.info(
-                        "Added word '{}' to tweet word count service.", object.getWord());
-            } catch (TException e) {
-                logger.error(
-                        "An error occurred when adding the word '{}' to the TweetWordCountService", object.getWord());
-                logger.error("", e);
-            } finally {
-                pool.returnToPool(serviceClient);
+    /**
+     * Sends the combined word counts to the Word Count service, one call per batch and shard. The words of a call that
+     * fails, and of the later calls to the same shard, are requeued in the combiner and retried after the flush
+     * interval.
+     */
+    private void flush() {
+        if (combiner == null) {
+            return;
+        }
+
+        List<WordCountBatch> batches = combiner.drain();
+        if (batches.isEmpty()) {
+            return;
+        }
+
+        final EzSecurityToken token;
+        try {
+            token = securityClient.fetchAppToken();
+        } catch (TException e) {
+            logger.error(
+                    "An error occurred while obtaining the security token: {}\nProperties Dump: {}",
+                    e.getMessage(), this.properties);
+            logger.error("", e);
+            requeue(batches);
+            return;
+        }
+
+        long start = System.nanoTime();
+        int words = 0;
+        long occurrences = 0;
+        List<WordCountBatch> failed = new ArrayList<>();
+        Map<String, TweetWordCountService.Client> shardClients = new HashMap<>();
+        Set<String> brokenShards = new HashSet<>();
+        try {
+            for (WordCountBatch batch : batches) {
+                for (Map.Entry<String, Map<String, Long>> shard : ring.partition(batch.getCounts()).entrySet()) {
+                    WordCountBatch shardBatch =
+                            new WordCountBatch(batch.getVisibility(), batch.getTimestamp(), shard.getValue());
+                    if (brokenShards.contains(shard.getKey())) {
+                        failed.add(shardBatch);
+                        continue;
+                    }
+                    try {
+                        TweetWordCountService.Client serviceClient = shardClients.get(shard.getKey());
+                        if (serviceClient == null) {
+                            serviceClient = pool.getClient(shard.getKey(), TweetWordCountService.Client.class);
+                            shardClients.put(shard.getKey(), serviceClient);
+                        }
+                        serviceClient.addCounts(shard.getValue(), token, batch.getVisibility(), batch.getTimestamp());
+                        words += shard.getValue().size();
+                        occurrences += shardBatch.getOccurrences();
+                    } catch (TException e) {
+                        logger.error("An error occurred when adding {} words to the TweetWordCountService shard {}",
+                                shard.getValue().size(), shard.getKey());
+                        logger.error("", e);
+                        brokenShards.add(shard.getKey());
+                        failed.add(shardBatch);
+                    }
+                }
             }
+        } finally {
+            for (Map.Entry<String, TweetWordCountService.Client> shardClient : shardClients.entrySet()) {
+                if (brokenShards.contains(shardClient.getKey())) {
+                    pool.returnBrokenToPool(shardClient.getValue());
+                } else {
+                    pool.returnToPool(shardClient.getValue());
+                }
+            }
+        }
+
+        long elapsed = System.nanoTime() - start;
+        if (words > 0) {
+            combiner.recordFlush(elapsed, words, occurrences);
+            logger.info(
+                    "Added {} words in {} batches to tweet word count service in {} ms. Average flush size: {}, "
+                            + "average flush latency: {} ms, max flush latency: {} ms, combine ratio: {}", words,
+                    batches.size(), elapsed / 1000000, combiner.getAverageFlushSize(), combiner.getAverageFlushMillis(),
+                    combiner.getMaxFlushMillis(), combiner.getCombineRatio());
+        }
+        if (!failed.isEmpty()) {
+            requeue(failed);
+        }
+    }
+
+    /**
+     * Puts batches that were not sent back into the combiner and holds off the next flush for the flush interval.
+     */
+    private void requeue(List<WordCountBatch> batches) {
+        long now = System.currentTimeMillis();
+        retryAfterMillis = now + flushIntervalMilliseconds;
+        long dropped = combiner.requeue(batches, now);
+        if (dropped > 0) {
+            logger.error("Dropped {} word occurrences that did not fit in the combiner for a retry", dropped);
         }
+        logger.warn("Will retry sending {} batches of words in {} ms", batches.size(), flushIntervalMilliseconds);
     }
 }
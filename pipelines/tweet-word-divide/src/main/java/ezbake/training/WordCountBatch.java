@@ -0,0 +1,62 @@
+/*   Copyright (C) 2013-2014 Computer Sciences Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. */
+
+package ezbake.training;
+
+import java.util.Map;
+
+import ezbake.base.thrift.Visibility;
+
+/**
+ * Combined word counts that share a visibility and a timestamp, sent to the word count service in one call.
+ */
+public class WordCountBatch {
+    private final Visibility visibility;
+    private final long timestamp;
+    private final Map<String, Long> counts;
+
+    /**
+     * @param visibility Visibility of the data the words were taken from
+     * @param timestamp Timestamp (seconds since UNIX epoch) that the words were encountered, or 0 if unknown
+     * @param counts The combined count of each word
+     */
+    public WordCountBatch(Visibility visibility, long timestamp, Map<String, Long> counts) {
+        this.visibility = visibility;
+        this.timestamp = timestamp;
+        this.counts = counts;
+    }
+
+    public Visibility getVisibility() {
+        return visibility;
+    }
+
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    public Map<String, Long> getCounts() {
+        return counts;
+    }
+
+    /**
+     * @return the sum of the counts of all the words
+     */
+    public long getOccurrences() {
+        long occurrences = 0;
+        for (Long count : counts.values()) {
+            occurrences += count;
+        }
+        return occurrences;
+    }
+}
@@ -0,0 +1,246 @@
+/*   Copyright (C) 2013-2014 Computer Sciences Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. */
+
+package ezbake.training;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import ezbake.base.thrift.Visibility;
+
+/**
+ * Combines word occurrences locally before they are sent to the word count service.
+ *
+ * Tweet vocabulary is heavily skewed, so many occurrences collapse into a few entries. Occurrences are combined per
+ * visibility and per minute of their timestamp, so that the word count service can count them in the right visibility
+ * bucket and time window. The combiner holds at most {@code maxWords} distinct (visibility, minute, word) entries and
+ * reports when it should be drained, either because it is full or because its oldest pending occurrence has waited
+ * longer than {@code maxStalenessMillis}. Batches that could not be sent may be requeued to be drained again, but
+ * only up to the same bound on distinct entries. It also keeps running totals, of the batches that were sent, that
+ * describe how well the occurrences were combined and how long flushes took.
+ *
+ * The combiner is thread safe.
+ */
+public class WordCountCombiner {
+    private static final long MINUTE_SECONDS = 60L;
+
+    private final int maxWords;
+    private final long maxStalenessMillis;
+
+    private Map<BatchKey, Map<String, long[]>> pending;
+    private int pendingWords;
+    private long pendingOccurrences;
+    private long oldestPendingMillis;
+
+    private long flushes;
+    private long flushedWords;
+    private long flushedOccurrences;
+    private long totalFlushNanos;
+    private long maxFlushNanos;
+
+    /**
+     * @param maxWords The maximum number of distinct (visibility, minute, word) entries held before the combiner must
+     * be drained.
+     * @param maxStalenessMillis The maximum time, in milliseconds, an occurrence may wait before it must be drained.
+     */
+    public WordCountCombiner(int maxWords, long maxStalenessMillis) {
+        this.maxWords = maxWords;
+        this.maxStalenessMillis = maxStalenessMillis;
+        this.pending = new HashMap<>();
+    }
+
+    /**
+     * Adds the occurrences of all the words of one tweet.
+     *
+     * @param visibility Visibility of the data the words were taken from
+     * @param timestamp Timestamp (seconds since UNIX epoch) that the words were encountered, or 0 if unknown. It is
+     * truncated to the minute.
+     * @param counts The number of occurrences of each word
+     * @param nowMillis The current time in milliseconds
+     * @return true if the combiner is now full and should be drained
+     */
+    public synchronized boolean addAll(
+            Visibility visibility, long timestamp, Map<String, Integer> counts, long nowMillis) {
+        if (counts.isEmpty()) {
+            return pendingWords >= maxWords;
+        }
+        if (pending.isEmpty()) {
+            oldestPendingMillis = nowMillis;
+        }
+
+        Map<String, long[]> words = batchOf(visibility, timestamp);
+        for (Map.Entry<String, Integer> entry : counts.entrySet()) {
+            addOccurrences(words, entry.getKey(), entry.getValue());
+        }
+        return pendingWords >= maxWords;
+    }
+
+    /**
+     * @param nowMillis The current time in milliseconds
+     * @return true if the oldest pending occurrence has waited at least the maximum staleness
+     */
+    public synchronized boolean isStale(long nowMillis) {
+        return !pending.isEmpty() && nowMillis - oldestPendingMillis >= maxStalenessMillis;
+    }
+
+    /**
+     * Removes and returns everything held by the combiner.
+     *
+     * @return one batch per visibility and minute, empty if nothing is pending
+     */
+    public synchronized List<WordCountBatch> drain() {
+        List<WordCountBatch> drained = new ArrayList<>(pending.size());
+        for (Map.Entry<BatchKey, Map<String, long[]>> batchEntry : pending.entrySet()) {
+            Map<String, long[]> words = batchEntry.getValue();
+            Map<String, Long> counts = new HashMap<>(words.size() * 4 / 3 + 1);
+            for (Map.Entry<String, long[]> entry : words.entrySet()) {
+                counts.put(entry.getKey(), entry.getValue()[0]);
+            }
+            BatchKey key = batchEntry.getKey();
+            drained.add(new WordCountBatch(key.visibility, key.minute, counts));
+        }
+
+        pending = new HashMap<>();
+        pendingWords = 0;
+        pendingOccurrences = 0;
+        return drained;
+    }
+
+    /**
+     * Merges drained batches that could not be sent back into the combiner, so that they are drained again. Words that
+     * are already pending in the same visibility and minute are always merged, while other words are only taken while
+     * the combiner holds fewer than its maximum number of entries and are dropped otherwise.
+     *
+     * @param batches The batches that were not sent
+     * @param nowMillis The current time in milliseconds
+     * @return the number of occurrences dropped
+     */
+    public synchronized long requeue(List<WordCountBatch> batches, long nowMillis) {
+        if (pending.isEmpty()) {
+            oldestPendingMillis = nowMillis;
+        }
+
+        long dropped = 0;
+        for (WordCountBatch batch : batches) {
+            Map<String, long[]> words = batchOf(batch.getVisibility(), batch.getTimestamp());
+            for (Map.Entry<String, Long> entry : batch.getCounts().entrySet()) {
+                if (pendingWords >= maxWords && !words.containsKey(entry.getKey())) {
+                    dropped += entry.getValue();
+                } else {
+                    addOccurrences(words, entry.getKey(), entry.getValue());
+                }
+            }
+            if (words.isEmpty()) {
+                pending.remove(new BatchKey(batch.getVisibility(), batch.getTimestamp()));
+            }
+        }
+        return dropped;
+    }
+
+    /**
+     * @return the number of occurrences waiting to be drained
+     */
+    public synchronized long getPendingOccurrences() {
+        return pendingOccurrences;
+    }
+
+    /**
+     * Records a flush once its batches were sent.
+     *
+     * @param nanos Duration of the flush in nanoseconds
+     * @param words Number of (visibility, minute, word) entries sent
+     * @param occurrences Number of occurrences sent
+     */
+    public synchronized void recordFlush(long nanos, int words, long occurrences) {
+        flushes++;
+        flushedWords += words;
+        flushedOccurrences += occurrences;
+        totalFlushNanos += nanos;
+        maxFlushNanos = Math.max(maxFlushNanos, nanos);
+    }
+
+    public synchronized long getFlushes() {
+        return flushes;
+    }
+
+    /**
+     * @return the average number of distinct (visibility, minute, word) entries sent per flush
+     */
+    public synchronized double getAverageFlushSize() {
+        return flushes == 0 ? 0 : (double) flushedWords / flushes;
+    }
+
+    public synchronized double getAverageFlushMillis() {
+        return flushes == 0 ? 0 : totalFlushNanos / 1e6 / flushes;
+    }
+
+    public synchronized double getMaxFlushMillis() {
+        return maxFlushNanos / 1e6;
+    }
+
+    /**
+     * @return the number of occurrences combined into each entry sent, i.e. how many RPC payload entries were saved
+     */
+    public synchronized double getCombineRatio() {
+        return flushedWords == 0 ? 0 : (double) flushedOccurrences / flushedWords;
+    }
+
+    private Map<String, long[]> batchOf(Visibility visibility, long timestamp) {
+        BatchKey key = new BatchKey(visibility, timestamp > 0 ? timestamp - timestamp % MINUTE_SECONDS : 0);
+        Map<String, long[]> words = pending.get(key);
+        if (words == null) {
+            words = new HashMap<>();
+            pending.put(key, words);
+        }
+        return words;
+    }
+
+    private void addOccurrences(Map<String, long[]> words, String word, long occurrences) {
+        long[] count = words.get(word);
+        if (count == null) {
+            words.put(word, new long[] {occurrences});
+            pendingWords++;
+        } else {
+            count[0] += occurrences;
+        }
+        pendingOccurrences += occurrences;
+    }
+
+    private static final class BatchKey {
+        private final Visibility visibility;
+        private final long minute;
+
+        BatchKey(Visibility visibility, long minute) {
+            this.visibility = visibility;
+            this.minute = minute;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (!(other instanceof BatchKey)) {
+                return false;
+            }
+            BatchKey key = (BatchKey) other;
+            return minute == key.minute
+                    && (visibility == null ? key.visibility == null : visibility.equals(key.visibility));
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * (visibility == null ? 0 : visibility.hashCode()) + (int) (minute ^ (minute >>> 32));
+        }
+    }
+}
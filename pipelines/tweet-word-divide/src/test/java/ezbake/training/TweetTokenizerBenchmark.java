@@ -0,0 +1,154 @@
+/*   Copyright (C) 2013-2014 Computer Sciences Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. */
+
+
+package ezbake.training;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.text.BreakIterator;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Compares splitting the sample tweets into words with the {@link TweetTokenizer} against the BreakIterator and
+ * substring path the tweet-word-divide worker used before it. Each operation splits every sample tweet once.
+ * <p/>
+ * Run it from the module directory with {@code main}, or with the JMH launcher to pass options such as
+ * {@code -prof gc}, which also reports the bytes each path allocates.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TweetTokenizerBenchmark {
+    /*
+     * Relative to the module directory.
+     */
+    private static final File SAMPLE = new File("../tweet-ingest/src/main/resources/tweets1k.json");
+
+    private static final String TEXT_FIELD = "\"text\":\"";
+
+    private List<String> texts;
+    private TweetTokenizer tokenizer;
+
+    @Setup
+    public void readSample() throws IOException {
+        texts = new ArrayList<>();
+        try (BufferedReader reader = new BufferedReader(
+                new InputStreamReader(new FileInputStream(SAMPLE), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String text = textOf(line);
+                if (text != null) {
+                    texts.add(text);
+                }
+            }
+        }
+        tokenizer = new TweetTokenizer();
+    }
+
+    @Benchmark
+    public void breakIterator(Blackhole blackhole) {
+        for (String text : texts) {
+            BreakIterator wordIterator = BreakIterator.getWordInstance();
+            wordIterator.setText(text);
+
+            int wordStart = wordIterator.first();
+            int wordEnd = wordIterator.next();
+            for (; wordEnd != BreakIterator.DONE; wordStart = wordEnd, wordEnd = wordIterator.next()) {
+                String word = text.substring(wordStart, wordEnd);
+                // What StringUtils.isNotBlank checked
+                if (!word.trim().isEmpty()) {
+                    blackhole.consume(word);
+                }
+            }
+        }
+    }
+
+    @Benchmark
+    public void tokenizerSpans(Blackhole blackhole) {
+        for (String text : texts) {
+            tokenizer.reset(text);
+            while (tokenizer.next()) {
+                blackhole.consume(tokenizer.start());
+                blackhole.consume(tokenizer.end());
+            }
+        }
+    }
+
+    @Benchmark
+    public void tokenizerIntern(Blackhole blackhole) {
+        for (String text : texts) {
+            tokenizer.reset(text);
+            while (tokenizer.next()) {
+                blackhole.consume(tokenizer.intern());
+            }
+        }
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(TweetTokenizerBenchmark.class.getSimpleName()).build()).run();
+    }
+
+    /**
+     * Extracts the top level text of a tweet, which Twitter writes before any nested tweet.
+     */
+    private static String textOf(String json) {
+        int start = json.indexOf(TEXT_FIELD);
+        if (start < 0) {
+            return null;
+        }
+
+        StringBuilder text = new StringBuilder();
+        for (int i = start + TEXT_FIELD.length(); i < json.length(); i++) {
+            char c = json.charAt(i);
+            if (c == '"') {
+                return text.toString();
+            }
+            if (c != '\\') {
+                text.append(c);
+            } else if (json.charAt(++i) == 'u') {
+                text.append((char) Integer.parseInt(json.substring(i + 1, i + 5), 16));
+                i += 4;
+            } else {
+                char escaped = json.charAt(i);
+                text.append(escaped == 'n' ? '\n' : escaped == 't' ? '\t' : escaped == 'r' ? '\r' : escaped);
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,168 @@
+/*   Copyright (C) 2013-2014 Computer Sciences Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. */
+
+package ezbake.training;
+
+import java.util.Arrays;
+
+/**
+ * The weighted edges of one tag, as an open addressing map from neighbour tag id to edge weight.
+ *
+ * Keys and weights are kept in parallel primitive arrays with linear probing, so an edge costs twelve bytes plus the
+ * free slots instead of a map entry with boxed key and value. Edges are removed only in bulk by {@link
+ * #retainAbove(double)}, which rebuilds the table and so never needs tombstones.
+ *
+ * The map is not thread safe.
+ */
+public class TagAdjacency {
+    private static final int EMPTY = -1;
+    private static final int INITIAL_CAPACITY = 4;
+
+    private int[] neighbours;
+    private double[] weights;
+    private int size;
+
+    public TagAdjacency() {
+        neighbours = new int[INITIAL_CAPACITY];
+        Arrays.fill(neighbours, EMPTY);
+        weights = new double[INITIAL_CAPACITY];
+    }
+
+    /**
+     * Adds weight to the edge to a neighbour, creating the edge if it does not exist.
+     *
+     * @param neighbour Id of the neighbour tag
+     * @param weight Weight to add
+     * @return true if the edge was created
+     */
+    public boolean add(int neighbour, double weight) {
+        int slot = slotOf(neighbour);
+        if (neighbours[slot] == neighbour) {
+            weights[slot] += weight;
+            return false;
+        }
+
+        neighbours[slot] = neighbour;
+        weights[slot] = weight;
+        size++;
+        // Grow at three quarters full so that probe sequences stay short
+        if (size * 4 >= neighbours.length * 3) {
+            rehash(neighbours.length * 2, Double.NEGATIVE_INFINITY);
+        }
+        return true;
+    }
+
+    /**
+     * @param neighbour Id of the neighbour tag
+     * @return the weight of the edge to the neighbour, 0 if there is none
+     */
+    public double get(int neighbour) {
+        int slot = slotOf(neighbour);
+        return neighbours[slot] == neighbour ? weights[slot] : 0;
+    }
+
+    /**
+     * @return the number of edges
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return the number of slots, for iterating with {@link #neighbourAt(int)} and {@link #weightAt(int)}
+     */
+    public int capacity() {
+        return neighbours.length;
+    }
+
+    /**
+     * @param slot Slot index
+     * @return the neighbour id in the slot, or a negative value if the slot is free
+     */
+    public int neighbourAt(int slot) {
+        return neighbours[slot];
+    }
+
+    /**
+     * @param slot Slot index
+     * @return the edge weight in the slot
+     */
+    public double weightAt(int slot) {
+        return weights[slot];
+    }
+
+    /**
+     * Multiplies every edge weight by a factor.
+     *
+     * @param factor The factor
+     */
+    public void scale(double factor) {
+        for (int slot = 0; slot < neighbours.length; slot++) {
+            weights[slot] *= factor;
+        }
+    }
+
+    /**
+     * Removes the edges that weigh no more than a threshold and shrinks the table to fit the rest.
+     *
+     * @param threshold The weight the edges kept must exceed
+     * @return the number of edges removed
+     */
+    public int retainAbove(double threshold) {
+        int kept = 0;
+        for (int slot = 0; slot < neighbours.length; slot++) {
+            if (neighbours[slot] != EMPTY && weights[slot] > threshold) {
+                kept++;
+            }
+        }
+
+        int removed = size - kept;
+        if (removed > 0) {
+            int capacity = INITIAL_CAPACITY;
+            while (kept * 4 >= capacity * 3) {
+                capacity *= 2;
+            }
+            rehash(capacity, threshold);
+        }
+        return removed;
+    }
+
+    private int slotOf(int neighbour) {
+        int mask = neighbours.length - 1;
+        int hash = neighbour * 0x9e3779b9;
+        int slot = (hash ^ (hash >>> 16)) & mask;
+        while (neighbours[slot] != EMPTY && neighbours[slot] != neighbour) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private void rehash(int capacity, double threshold) {
+        int[] oldNeighbours = neighbours;
+        double[] oldWeights = weights;
+        neighbours = new int[capacity];
+        Arrays.fill(neighbours, EMPTY);
+        weights = new double[capacity];
+        size = 0;
+
+        for (int slot = 0; slot < oldNeighbours.length; slot++) {
+            if (oldNeighbours[slot] != EMPTY && oldWeights[slot] > threshold) {
+                int newSlot = slotOf(oldNeighbours[slot]);
+                neighbours[newSlot] = oldNeighbours[slot];
+                weights[newSlot] = oldWeights[slot];
+                size++;
+            }
+        }
+    }
+}
@@ -0,0 +1,248 @@
+/*   Copyright (C) 2013-2014 Computer Sciences Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. */
+
+package ezbake.training;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * An undirected graph of tags whose edges count how often two tags appeared in the same tweet, with recent tweets
+ * weighing more.
+ *
+ * Edge weights decay exponentially with the configured half-life. Rather than touching every edge as time passes, the
+ * graph uses forward decay: a tweet seen at time t adds {@code exp(lambda * (t - landmark))} to its edges, and a
+ * weight is divided by {@code exp(lambda * (now - landmark))} when it is read, which yields the same decayed value.
+ * When the scale grows too large for a double, all weights are rescaled once and the landmark moves to the present.
+ *
+ * Tags are mapped to int ids and every tag's edges are held in a primitive {@link TagAdjacency}. Each edge is stored
+ * in both of its tags' adjacencies with identical weights. When the graph holds more than {@code maxEdges} edges, the
+ * lightest are pruned until at most three quarters of the limit remain, and tags left without edges are forgotten, so
+ * memory is bounded by the edge limit. Tags that never appeared together with another tag are never stored.
+ *
+ * The graph is thread safe. Additions hold a write lock and queries a read lock.
+ */
+public class TagGraph {
+    /*
+     * The largest scale exponent before weights are rescaled. exp(40) leaves ample room below the double range for the
+     * weight sums.
+     */
+    private static final double MAX_SCALE_EXPONENT = 40;
+
+    private final double decayPerSecond;
+    private final int maxEdges;
+
+    private final Map<String, Integer> ids = new HashMap<>();
+    private final List<String> tags = new ArrayList<>();
+    private final List<TagAdjacency> adjacencies = new ArrayList<>();
+    private int[] freeIds = new int[16];
+    private int freeIdCount;
+    private int edgeCount;
+    private long landmarkSeconds = Long.MIN_VALUE;
+
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    /**
+     * @param halfLifeSeconds The time after which an edge weighs half as much
+     * @param maxEdges The maximum number of edges kept
+     */
+    public TagGraph(long halfLifeSeconds, int maxEdges) {
+        if (halfLifeSeconds <= 0 || maxEdges <= 0) {
+            throw new IllegalArgumentException("The half-life and the maximum number of edges must be positive");
+        }
+        this.decayPerSecond = Math.log(2) / halfLifeSeconds;
+        this.maxEdges = maxEdges;
+    }
+
+    /**
+     * Adds the tags of tweets. Every pair of distinct tags within a tweet is strengthened by one.
+     *
+     * @param tagSets The distinct, normalized tags of each tweet
+     * @param nowSeconds The current time in seconds since the UNIX epoch
+     */
+    public void addTagSets(List<List<String>> tagSets, long nowSeconds) {
+        lock.writeLock().lock();
+        try {
+            double weight = scaleAt(nowSeconds);
+            for (List<String> tagSet : tagSets) {
+                if (tagSet.size() < 2) {
+                    continue;
+                }
+
+                int[] tagIds = new int[tagSet.size()];
+                for (int i = 0; i < tagIds.length; i++) {
+                    tagIds[i] = idOf(tagSet.get(i));
+                }
+                for (int i = 0; i < tagIds.length; i++) {
+                    for (int j = i + 1; j < tagIds.length; j++) {
+                        if (adjacencies.get(tagIds[i]).add(tagIds[j], weight)) {
+                            edgeCount++;
+                        }
+                        adjacencies.get(tagIds[j]).add(tagIds[i], weight);
+                    }
+                }
+            }
+
+            if (edgeCount > maxEdges) {
+                prune();
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Adds the decayed weights of a tag's edges to a map of related tags.
+     *
+     * @param tag The normalized tag
+     * @param nowSeconds The current time in seconds since the UNIX epoch
+     * @param related Map of related tags to their weights, which the tag's neighbours are added to
+     */
+    public void collectRelated(String tag, long nowSeconds, Map<String, Double> related) {
+        lock.readLock().lock();
+        try {
+            Integer id = ids.get(tag);
+            if (id == null) {
+                return;
+            }
+
+            double scale = Math.exp(decayPerSecond * (nowSeconds - landmarkSeconds));
+            TagAdjacency adjacency = adjacencies.get(id);
+            for (int slot = 0; slot < adjacency.capacity(); slot++) {
+                int neighbour = adjacency.neighbourAt(slot);
+                if (neighbour >= 0) {
+                    String neighbourTag = tags.get(neighbour);
+                    Double weight = related.get(neighbourTag);
+                    double decayed = adjacency.weightAt(slot) / scale;
+                    related.put(neighbourTag, weight == null ? decayed : weight + decayed);
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return the number of edges
+     */
+    public int getEdgeCount() {
+        lock.readLock().lock();
+        try {
+            return edgeCount;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return the number of tags with at least one edge
+     */
+    public int getTagCount() {
+        lock.readLock().lock();
+        try {
+            return ids.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Gets the weight a tweet seen now adds to an edge, rescaling the stored weights first if it grows too large.
+     */
+    private double scaleAt(long nowSeconds) {
+        if (landmarkSeconds == Long.MIN_VALUE) {
+            landmarkSeconds = nowSeconds;
+        }
+
+        double exponent = decayPerSecond * (nowSeconds - landmarkSeconds);
+        if (exponent > MAX_SCALE_EXPONENT) {
+            double factor = Math.exp(-exponent);
+            for (TagAdjacency adjacency : adjacencies) {
+                if (adjacency != null) {
+                    adjacency.scale(factor);
+                }
+            }
+            landmarkSeconds = nowSeconds;
+            exponent = 0;
+        }
+        return Math.exp(exponent);
+    }
+
+    private int idOf(String tag) {
+        Integer id = ids.get(tag);
+        if (id != null) {
+            return id;
+        }
+
+        if (freeIdCount > 0) {
+            id = freeIds[--freeIdCount];
+            tags.set(id, tag);
+            adjacencies.set(id, new TagAdjacency());
+        } else {
+            id = tags.size();
+            tags.add(tag);
+            adjacencies.add(new TagAdjacency());
+        }
+        ids.put(tag, id);
+        return id;
+    }
+
+    /**
+     * Removes the lightest edges until at most three quarters of the maximum remain, then forgets the tags left without
+     * any. Edges weighing the same as the heaviest removed edge are removed too, so that edges first seen in the same
+     * second, which tie, cannot keep the graph above its limit. Both copies of an edge carry the same weight, so the
+     * same threshold removes both.
+     */
+    private void prune() {
+        double[] weights = new double[edgeCount];
+        int count = 0;
+        for (int id = 0; id < adjacencies.size(); id++) {
+            TagAdjacency adjacency = adjacencies.get(id);
+            if (adjacency == null) {
+                continue;
+            }
+            for (int slot = 0; slot < adjacency.capacity(); slot++) {
+                if (adjacency.neighbourAt(slot) > id) {
+                    weights[count++] = adjacency.weightAt(slot);
+                }
+            }
+        }
+        Arrays.sort(weights, 0, count);
+        double threshold = weights[count - maxEdges * 3 / 4 - 1];
+
+        int removed = 0;
+        for (int id = 0; id < adjacencies.size(); id++) {
+            TagAdjacency adjacency = adjacencies.get(id);
+            if (adjacency == null) {
+                continue;
+            }
+            removed += adjacency.retainAbove(threshold);
+            if (adjacency.size() == 0) {
+                ids.remove(tags.get(id));
+                tags.set(id, null);
+                adjacencies.set(id, null);
+                if (freeIdCount == freeIds.length) {
+                    freeIds = Arrays.copyOf(freeIds, freeIds.length * 2);
+                }
+                freeIds[freeIdCount++] = id;
+            }
+        }
+        edgeCount -= removed / 2;
+    }
+}
@@ -0,0 +1,188 @@
+/*   Copyright (C) 2013-2014 Computer Sciences Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. */
+
+package ezbake.training;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+
+import org.apache.commons.lang.StringUtils;
+import org.apache.thrift.TException;
+import org.apache.thrift.TProcessor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import ezbake.base.thrift.EzBakeBaseThriftService;
+import ezbake.base.thrift.EzSecurityToken;
+import ezbake.base.thrift.Visibility;
+import ezbake.data.common.TokenUtils;
+
+/**
+ * A thrift service that keeps a graph of the hashtags and @mentions that appear together in tweets, as sent to this
+ * service via {@link #addTagSets(List, EzSecurityToken, Visibility)}, and answers which tags are related to a given one
+ * via {@link #relatedTags(String, int, EzSecurityToken)}.
+ *
+ * The tags collected are not case sensitive. Every pair of distinct tags within a tweet strengthens the edge between
+ * them by one, and edge weights decay with a configurable half-life, so related tags reflect recent tweets. Only the
+ * first {@value #MAX_TAGS_PER_TWEET} distinct tags of a tweet are used, which bounds the work for tag-stuffed tweets.
+ *
+ * A separate {@link TagGraph} is kept per formal visibility bucket (U, C, S and TS, see {@link VisibilityBuckets}), and
+ * queries only merge the graphs of the buckets the caller's formal authorizations include. Each graph prunes its
+ * lightest edges when it exceeds the configured number of edges. The graphs are held in memory only and start empty
+ * after a restart.
+ * <p/>
+ * Properties:
+ * <ul>
+ *     <li> tweet.tag.graph.halfLifeSeconds - The time after which an edge weighs half as much. Defaults to 21600 (six
+ *          hours).</li>
+ *     <li> tweet.tag.graph.maxEdges - The maximum number of edges kept per visibility bucket. Defaults to
+ *          1000000.</li>
+ * </ul>
+ */
+public class TweetTagGraphServiceImpl extends EzBakeBaseThriftService implements TweetTagGraphService.Iface {
+    private static final Logger logger = LoggerFactory.getLogger(TweetTagGraphServiceImpl.class);
+
+    /**
+     * The maximum number of distinct tags of a tweet added to the graph.
+     */
+    private static final int MAX_TAGS_PER_TWEET = 16;
+
+    private static final String HALF_LIFE_PROPERTY = "tweet.tag.graph.halfLifeSeconds";
+    private static final String MAX_EDGES_PROPERTY = "tweet.tag.graph.maxEdges";
+    private static final long DEFAULT_HALF_LIFE_SECONDS = 6 * 3600L;
+    private static final int DEFAULT_MAX_EDGES = 1000000;
+
+    private static final Comparator<RelatedTag> BY_WEIGHT_DESCENDING = new Comparator<RelatedTag>() {
+        @Override
+        public int compare(RelatedTag left, RelatedTag right) {
+            int result = Double.compare(right.getWeight(), left.getWeight());
+            return result != 0 ? result : left.getTag().compareTo(right.getTag());
+        }
+    };
+
+    /*
+     * The graph of each visibility bucket.
+     */
+    private volatile TagGraph[] graphs;
+
+    public TweetTagGraphServiceImpl() {
+        logger.info("The tweet tag graph service was instantiated.");
+    }
+
+    public TProcessor getThriftProcessor() {
+        initialize(getConfigurationProperties());
+        return new TweetTagGraphService.Processor<>(this);
+    }
+
+    public boolean ping() {
+        return true;
+    }
+
+    public void addTagSets(List<List<String>> tagSets, EzSecurityToken securityToken, Visibility visibility)
+            throws TException {
+        TokenUtils.validateSecurityToken(securityToken, this.getConfigurationProperties());
+
+        if (tagSets == null) {
+            return;
+        }
+
+        List<List<String>> normalized = new ArrayList<>(tagSets.size());
+        for (List<String> tagSet : tagSets) {
+            if (tagSet == null) {
+                continue;
+            }
+            Set<String> distinct = new LinkedHashSet<>();
+            for (String tag : tagSet) {
+                if (StringUtils.isNotBlank(tag) && distinct.size() < MAX_TAGS_PER_TWEET) {
+                    distinct.add(normalize(tag));
+                }
+            }
+            if (distinct.size() > 1) {
+                normalized.add(new ArrayList<>(distinct));
+            }
+        }
+
+        if (!normalized.isEmpty()) {
+            graphs[VisibilityBuckets.bucketOf(visibility)].addTagSets(normalized, currentTimeSeconds());
+        }
+    }
+
+    public List<RelatedTag> relatedTags(String tag, int k, EzSecurityToken securityToken) throws TException {
+        TokenUtils.validateSecurityToken(securityToken, this.getConfigurationProperties());
+
+        List<RelatedTag> result = new ArrayList<>();
+        int mask = VisibilityBuckets.maskOf(securityToken);
+        if (mask == 0 || k <= 0 || StringUtils.isBlank(tag)) {
+            return result;
+        }
+
+        String normalizedTag = normalize(tag);
+        long now = currentTimeSeconds();
+        Map<String, Double> related = new HashMap<>();
+        for (int bucket = 0; bucket < VisibilityBuckets.COUNT; bucket++) {
+            if ((mask & (1 << bucket)) != 0) {
+                graphs[bucket].collectRelated(normalizedTag, now, related);
+            }
+        }
+
+        for (Map.Entry<String, Double> entry : related.entrySet()) {
+            result.add(new RelatedTag(entry.getKey(), entry.getValue()));
+        }
+        Collections.sort(result, BY_WEIGHT_DESCENDING);
+        return result.size() > k ? new ArrayList<>(result.subList(0, k)) : result;
+    }
+
+    /**
+     * Creates the graphs on first use.
+     *
+     * @param properties The EzBake configuration values for the running environment
+     */
+    private synchronized void initialize(Properties properties) {
+        if (graphs != null) {
+            return;
+        }
+
+        long halfLifeSeconds = Long.parseLong(
+                properties.getProperty(HALF_LIFE_PROPERTY, String.valueOf(DEFAULT_HALF_LIFE_SECONDS)));
+        int maxEdges = Integer.parseInt(properties.getProperty(MAX_EDGES_PROPERTY, String.valueOf(DEFAULT_MAX_EDGES)));
+        TagGraph[] bucketGraphs = new TagGraph[VisibilityBuckets.COUNT];
+        for (int bucket = 0; bucket < bucketGraphs.length; bucket++) {
+            bucketGraphs[bucket] = new TagGraph(halfLifeSeconds, maxEdges);
+        }
+        graphs = bucketGraphs;
+        logger.info("Keeping up to {} tag edges per visibility level with a half-life of {} seconds", maxEdges,
+                halfLifeSeconds);
+    }
+
+    private static long currentTimeSeconds() {
+        return System.currentTimeMillis() / 1000;
+    }
+
+    /**
+     * Lower cases a tag and marks it as a hashtag unless it is already a hashtag or an @mention.
+     */
+    private static String normalize(String tag) {
+        String normalized = tag.trim().toLowerCase(Locale.ROOT);
+        char marker = normalized.charAt(0);
+        return marker == '#' || marker == '@' ? normalized : '#' + normalized;
+    }
+}
@@ -0,0 +1,134 @@
+/*   Copyright (C) 2013-2014 Computer Sciences Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. */
+
+
+package ezbake.training;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+public class TagGraphTest {
+    private static final long NOW = 1400000000L;
+    private static final double TOLERANCE = 1e-9;
+
+    @Test
+    public void adjacencyGrowsAndKeepsOnlyHeavierEdges() {
+        TagAdjacency adjacency = new TagAdjacency();
+        for (int neighbour = 0; neighbour < 1000; neighbour++) {
+            assertTrue(adjacency.add(neighbour, neighbour));
+        }
+        assertFalse(adjacency.add(10, 0.5));
+        assertEquals(1000, adjacency.size());
+        assertTrue(adjacency.capacity() * 3 > adjacency.size() * 4);
+        assertEquals(10.5, adjacency.get(10), TOLERANCE);
+        assertEquals(0, adjacency.get(1000), TOLERANCE);
+
+        assertEquals(900, adjacency.retainAbove(899.5));
+        assertEquals(100, adjacency.size());
+        assertTrue("The table did not shrink", adjacency.capacity() < 1024);
+        for (int neighbour = 0; neighbour < 1000; neighbour++) {
+            assertEquals(neighbour < 900 ? 0 : neighbour, adjacency.get(neighbour), TOLERANCE);
+        }
+
+        adjacency.scale(0.5);
+        assertEquals(499.5, adjacency.get(999), TOLERANCE);
+    }
+
+    @Test
+    public void everyPairOfATweetsTagsIsConnected() {
+        TagGraph graph = new TagGraph(3600, 1000);
+        graph.addTagSets(Arrays.asList(
+                Arrays.asList("#a", "#b", "@c"), Arrays.asList("#a", "#b"), Collections.singletonList("#lonely")),
+                NOW);
+
+        assertEquals(3, graph.getEdgeCount());
+        assertEquals(3, graph.getTagCount());
+        Map<String, Double> related = related(graph, "#a", NOW);
+        assertEquals(2, related.size());
+        assertEquals(2.0, related.get("#b"), TOLERANCE);
+        assertEquals(1.0, related.get("@c"), TOLERANCE);
+        assertEquals(1.0, related(graph, "@c", NOW).get("#b"), TOLERANCE);
+        assertTrue(related(graph, "#lonely", NOW).isEmpty());
+    }
+
+    @Test
+    public void weightsHalveEveryHalfLifeAcrossRescales() {
+        long halfLife = 10;
+        TagGraph graph = new TagGraph(halfLife, 1000);
+        graph.addTagSets(pair("#old", "#shared"), NOW);
+        assertEquals(0.5, related(graph, "#old", NOW + halfLife).get("#shared"), TOLERANCE);
+
+        // Far enough ahead that the scale would overflow its limit, so every weight is rescaled
+        long later = NOW + 100 * halfLife;
+        graph.addTagSets(pair("#new", "#shared"), later);
+        Map<String, Double> related = related(graph, "#shared", later);
+        assertEquals(1.0, related.get("#new"), TOLERANCE);
+        assertEquals(Math.pow(0.5, 100), related.get("#old"), Math.pow(0.5, 100) * TOLERANCE);
+        assertEquals(0.5, related(graph, "#shared", later + halfLife).get("#new"), TOLERANCE);
+    }
+
+    @Test
+    public void pruningKeepsTheHeaviestThreeQuartersAndReusesTagIds() {
+        int maxEdges = 40;
+        TagGraph graph = new TagGraph(60, maxEdges);
+
+        // Every edge is seen a second after the last, so it weighs more than all of the earlier ones
+        for (int edge = 0; edge <= maxEdges; edge++) {
+            graph.addTagSets(pair("#from" + edge, "#to" + edge), NOW + edge);
+        }
+        assertEquals(maxEdges * 3 / 4, graph.getEdgeCount());
+        assertEquals(2 * maxEdges * 3 / 4, graph.getTagCount());
+        int firstKept = maxEdges + 1 - maxEdges * 3 / 4;
+        for (int edge = 0; edge <= maxEdges; edge++) {
+            Map<String, Double> related = related(graph, "#from" + edge, NOW + maxEdges);
+            assertEquals("#from" + edge, edge >= firstKept, related.containsKey("#to" + edge));
+        }
+
+        // New tags take the ids of the forgotten ones without inheriting any of their edges
+        List<List<String>> tagSets = new ArrayList<>();
+        for (int edge = 0; edge < firstKept / 2; edge++) {
+            tagSets.add(Arrays.asList("#again" + edge, "#more" + edge));
+        }
+        graph.addTagSets(tagSets, NOW + maxEdges);
+        assertEquals(maxEdges * 3 / 4 + firstKept / 2, graph.getEdgeCount());
+        for (int edge = 0; edge < firstKept / 2; edge++) {
+            Map<String, Double> related = related(graph, "#again" + edge, NOW + maxEdges);
+            assertEquals(Collections.singleton("#more" + edge), related.keySet());
+        }
+        for (int edge = firstKept; edge <= maxEdges; edge++) {
+            Map<String, Double> related = related(graph, "#to" + edge, NOW + maxEdges);
+            assertEquals(Collections.singleton("#from" + edge), related.keySet());
+        }
+    }
+
+    private static List<List<String>> pair(String first, String second) {
+        return Collections.singletonList(Arrays.asList(first, second));
+    }
+
+    private static Map<String, Double> related(TagGraph graph, String tag, long nowSeconds) {
+        Map<String, Double> related = new HashMap<>();
+        graph.collectRelated(tag, nowSeconds, related);
+        return related;
+    }
+}
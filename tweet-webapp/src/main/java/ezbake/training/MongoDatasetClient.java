@@ -37,6 +37,8 @@ public class MongoDatasetClient {
 
     private ThriftClientPool pool;
     private EzbakeSecurityClient securityClient;
+    private WordShardRing wordShards;
+    private WordNormalizer wordNormalizer;
 
     private MongoDatasetClient() {
         createClient();
@@ -153,14 +155,19 @@ public class MongoDatasetClient {
         int wordCount = 0;
         TweetWordCountService.Client tweetWordCountClient = null;
 
+        // Words are counted in normalized form, and words the pipeline drops are never counted
+        String word = wordNormalizer.normalize(searchText);
+        if (word == null) {
+            return 0;
+        }
+
         try {
             EzSecurityToken token = securityClient.fetchTokenForProxiedUser();
 
-            tweetWordCountClient = pool.getClient(
-                    EzBakeTrainingConstants.WORD_COUNT_SERVICE_NAME, TweetWordCountService.Client.class);
+            tweetWordCountClient = pool.getClient(wordShards.shardFor(word), TweetWordCountService.Client.class);
 
             logger.info("Calling tweet word count service...");
-            wordCount = tweetWordCountClient.getCount(searchText, token);
+            wordCount = tweetWordCountClient.getCount(word, token);
             logger.info("wordCount: {}", wordCount);
         } finally {
             if (tweetWordCountClient != null) {
@@ -181,6 +188,8 @@ public class MongoDatasetClient {
 
             securityClient = new EzbakeSecurityClient(configuration.getProperties());
             pool = new ThriftClientPool(configuration.getProperties());
+            wordShards = WordShardRing.fromProperties(configuration.getProperties());
+            wordNormalizer = WordNormalizer.fromProperties(configuration.getProperties());
         } catch (Exception ex) {
             ex.printStackTrace();
         }
@@ -0,0 +1,285 @@
+/*   Copyright (C) 2013-2014 Computer Sciences Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. */
+
+package ezbake.training;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A {@link WordCountStore} that uses a fixed amount of memory however large the vocabulary grows, at the cost of
+ * approximate counts.
+ *
+ * Every word is counted in a {@link CountMinSketch} per visibility bucket, so a count may exceed the true count by up
+ * to {@link #getErrorBound(int)} but never falls short of it. In addition, the words with the highest estimates are
+ * kept in a bounded heavy-hitter table. A word enters the table with its estimated counts and is counted exactly from
+ * then on, so the frequent words that top-K queries return drift no further from their true counts. When the table is
+ * full, a word whose estimate exceeds the lowest tracked word replaces it. The tracked words are kept in a min-heap by
+ * the total they had when last looked at. Counts only grow, so that total never exceeds the current one, and the
+ * lowest tracked word is found by refreshing the top of the heap until its total is current rather than by scanning
+ * the table.
+ *
+ * Only the heavy hitters are known by name, so {@link #visit(Visitor)} and {@link #size()} cover just the table. A
+ * restored count is added as the amount the word's current estimate falls short of it, so restoring the same count
+ * again adds nothing and a restored count is never lower than the true count either.
+ */
+public class ApproximateWordCountStore implements WordCountStore {
+    private final CountMinSketch[] sketches;
+    private final int capacity;
+
+    /*
+     * Exact counts of the heavy hitters. Entries are only added and removed while holding the table lock.
+     */
+    private final ConcurrentMap<String, HeavyHitter> heavyHitters = new ConcurrentHashMap<>();
+    private final Object tableLock = new Object();
+
+    /*
+     * The heavy hitters as a min-heap ordered by their last seen totals. Guarded by the table lock.
+     */
+    private final HeavyHitter[] heap;
+    private int heapSize;
+
+    /*
+     * The lowest total of the tracked words once the table is full, otherwise 0.
+     */
+    private volatile long threshold;
+
+    /**
+     * @param epsilon Relative error bound of the count estimates, as a fraction of all occurrences counted
+     * @param delta Probability that a count estimate exceeds the error bound
+     * @param heavyHitterCapacity The number of most frequent words counted exactly
+     */
+    public ApproximateWordCountStore(double epsilon, double delta, int heavyHitterCapacity) {
+        sketches = new CountMinSketch[VisibilityBuckets.COUNT];
+        for (int bucket = 0; bucket < sketches.length; bucket++) {
+            sketches[bucket] = new CountMinSketch(epsilon, delta);
+        }
+        capacity = heavyHitterCapacity;
+        heap = new HeavyHitter[Math.max(heavyHitterCapacity, 1)];
+    }
+
+    @Override
+    public long add(String word, int bucket, long delta, long[] bucketCounts) {
+        long hash = WordHash.of(word);
+        long estimate = sketches[bucket].add(hash, delta);
+
+        HeavyHitter hitter = heavyHitters.get(word);
+        if (hitter != null) {
+            AtomicLongArray counters = hitter.counters;
+            long count = counters.addAndGet(bucket, delta);
+            if (bucketCounts != null) {
+                for (int i = 0; i < VisibilityBuckets.COUNT; i++) {
+                    bucketCounts[i] = i == bucket ? count : counters.get(i);
+                }
+            }
+            return count;
+        }
+
+        long[] estimates = bucketCounts != null ? bucketCounts : new long[VisibilityBuckets.COUNT];
+        long total = 0;
+        for (int i = 0; i < VisibilityBuckets.COUNT; i++) {
+            estimates[i] = i == bucket ? estimate : sketches[i].estimate(hash);
+            total += estimates[i];
+        }
+        if (heavyHitters.size() < capacity || total > threshold) {
+            admit(word, estimates, total);
+        }
+        return estimate;
+    }
+
+    @Override
+    public long get(String word, int bucketMask) {
+        HeavyHitter hitter = heavyHitters.get(word);
+        if (hitter != null) {
+            return VisibilityBuckets.sum(hitter.counters, bucketMask);
+        }
+
+        long hash = WordHash.of(word);
+        long count = 0;
+        for (int bucket = 0; bucket < VisibilityBuckets.COUNT; bucket++) {
+            if ((bucketMask & (1 << bucket)) != 0) {
+                count += sketches[bucket].estimate(hash);
+            }
+        }
+        return count;
+    }
+
+    /**
+     * The sum of the bounds of the included buckets. Heavy-hitter counts start from an estimate and are exact after
+     * that, so the same bound holds for them.
+     */
+    @Override
+    public long getErrorBound(int bucketMask) {
+        double bound = 0;
+        for (int bucket = 0; bucket < VisibilityBuckets.COUNT; bucket++) {
+            if ((bucketMask & (1 << bucket)) != 0) {
+                bound += sketches[bucket].getEpsilon() * sketches[bucket].getTotal();
+            }
+        }
+        return (long) Math.ceil(bound);
+    }
+
+    /**
+     * The confidence of a single bucket's bound. A count over several buckets stays within the summed bound at least
+     * whenever every bucket does.
+     */
+    @Override
+    public double getConfidence() {
+        return sketches[0].getConfidence();
+    }
+
+    /**
+     * Adds the amount by which the word's count in the bucket falls short of the given value, if any.
+     */
+    @Override
+    public void restore(String word, int bucket, long count) {
+        long shortfall = count - get(word, 1 << bucket);
+        if (shortfall > 0) {
+            add(word, bucket, shortfall, null);
+        }
+    }
+
+    /**
+     * Never removes a word, since the sketches cannot forget one. Approximate counts are not moved between shards.
+     */
+    @Override
+    public boolean removeIfZero(String word) {
+        return false;
+    }
+
+    /**
+     * @return the number of heavy hitters
+     */
+    @Override
+    public int size() {
+        return heavyHitters.size();
+    }
+
+    /**
+     * Visits the heavy hitters only.
+     */
+    @Override
+    public void visit(Visitor visitor) throws IOException {
+        long[] bucketCounts = new long[VisibilityBuckets.COUNT];
+        for (Map.Entry<String, HeavyHitter> entry : heavyHitters.entrySet()) {
+            for (int bucket = 0; bucket < VisibilityBuckets.COUNT; bucket++) {
+                bucketCounts[bucket] = entry.getValue().counters.get(bucket);
+            }
+            visitor.visit(entry.getKey(), bucketCounts);
+        }
+    }
+
+    /**
+     * Adds a word to the heavy-hitter table, evicting the lowest tracked word if the table is full and the word's
+     * estimated total is higher.
+     */
+    private void admit(String word, long[] estimates, long total) {
+        synchronized (tableLock) {
+            if (heavyHitters.containsKey(word) || capacity <= 0) {
+                return;
+            }
+
+            if (heapSize >= capacity) {
+                HeavyHitter lowest = refreshLowest();
+                if (total <= lowest.total) {
+                    threshold = lowest.total;
+                    return;
+                }
+                heavyHitters.remove(lowest.word);
+                heap[0] = heap[--heapSize];
+                heap[heapSize] = null;
+                siftDown(0);
+            }
+
+            HeavyHitter hitter = new HeavyHitter(word, estimates, total);
+            heavyHitters.put(word, hitter);
+            heap[heapSize] = hitter;
+            siftUp(heapSize++);
+            if (heapSize >= capacity) {
+                // The top's total may be behind its current total, which only lets more words try to get in
+                threshold = heap[0].total;
+            }
+        }
+    }
+
+    /**
+     * Brings the total of the top of the heap up to date until the top's total is current. Every other total is at
+     * most its current total and at least the top's, so the top is then the lowest tracked word.
+     */
+    private HeavyHitter refreshLowest() {
+        while (true) {
+            HeavyHitter top = heap[0];
+            long current = VisibilityBuckets.sum(top.counters, VisibilityBuckets.MASKS - 1);
+            if (current <= top.total) {
+                return top;
+            }
+            top.total = current;
+            siftDown(0);
+        }
+    }
+
+    private void siftUp(int index) {
+        HeavyHitter hitter = heap[index];
+        while (index > 0) {
+            int parent = (index - 1) >>> 1;
+            if (heap[parent].total <= hitter.total) {
+                break;
+            }
+            heap[index] = heap[parent];
+            index = parent;
+        }
+        heap[index] = hitter;
+    }
+
+    private void siftDown(int index) {
+        HeavyHitter hitter = heap[index];
+        while (true) {
+            int child = 2 * index + 1;
+            if (child >= heapSize) {
+                break;
+            }
+            if (child + 1 < heapSize && heap[child + 1].total < heap[child].total) {
+                child++;
+            }
+            if (hitter.total <= heap[child].total) {
+                break;
+            }
+            heap[index] = heap[child];
+            index = child;
+        }
+        heap[index] = hitter;
+    }
+
+    /**
+     * A word counted exactly.
+     */
+    private static final class HeavyHitter {
+        private final String word;
+        private final AtomicLongArray counters;
+
+        /*
+         * The total of the counters when last looked at. Guarded by the table lock.
+         */
+        private long total;
+
+        private HeavyHitter(String word, long[] estimates, long total) {
+            this.word = word;
+            this.counters = new AtomicLongArray(estimates);
+            this.total = total;
+        }
+    }
+}
@@ -0,0 +1,397 @@
+/*   Copyright (C) 2013-2014 Computer Sciences Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. */
+
+package ezbake.training;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * A memory-compact {@link WordCountStore} built from open-addressing hash tables over primitive arrays.
+ *
+ * Words are stored as length-prefixed UTF-8 bytes in a per-segment byte arena and their per-bucket counts in a
+ * {@code long[]} with {@link VisibilityBuckets#COUNT} consecutive elements per word, so an entry costs its UTF-8 bytes
+ * plus roughly 45 bytes, and up to about 20 more while the arrays have room left to grow into, with no per-entry
+ * objects for the garbage collector to trace. The WordCountStoreFootprint test tool measured 68 bytes per word for
+ * ten million seven character words, against 151 for the {@link ConcurrentWordCountStore}. The store is split into
+ * independently locked segments, chosen by the high bits of the word's hash, so that writers of different words rarely
+ * contend.
+ */
+public class CompactWordCountStore implements WordCountStore {
+    private static final int DEFAULT_SEGMENTS = 64;
+    private static final int DEFAULT_INITIAL_CAPACITY = 1 << 16;
+
+    private final Segment[] segments;
+    private final int segmentShift;
+
+    public CompactWordCountStore() {
+        this(DEFAULT_INITIAL_CAPACITY, DEFAULT_SEGMENTS);
+    }
+
+    /**
+     * @param initialCapacity The number of distinct words the store is sized for up front.
+     * @param segmentCount The number of independently locked segments. Rounded up to a power of two.
+     */
+    public CompactWordCountStore(int initialCapacity, int segmentCount) {
+        int count = Integer.highestOneBit(Math.max(1, segmentCount - 1) << 1);
+        segments = new Segment[count];
+        segmentShift = 32 - Integer.numberOfTrailingZeros(count);
+        for (int i = 0; i < count; i++) {
+            segments[i] = new Segment(Math.max(16, initialCapacity / count));
+        }
+    }
+
+    @Override
+    public long add(String word, int bucket, long delta, long[] bucketCounts) {
+        byte[] key = word.getBytes(StandardCharsets.UTF_8);
+        int hash = hash(key);
+        return segmentFor(hash).add(key, hash, bucket, delta, false, bucketCounts);
+    }
+
+    @Override
+    public long get(String word, int bucketMask) {
+        byte[] key = word.getBytes(StandardCharsets.UTF_8);
+        int hash = hash(key);
+        return segmentFor(hash).get(key, hash, bucketMask);
+    }
+
+    @Override
+    public long getErrorBound(int bucketMask) {
+        return 0L;
+    }
+
+    @Override
+    public double getConfidence() {
+        return 1.0;
+    }
+
+    @Override
+    public void restore(String word, int bucket, long count) {
+        byte[] key = word.getBytes(StandardCharsets.UTF_8);
+        int hash = hash(key);
+        segmentFor(hash).add(key, hash, bucket, count, true, null);
+    }
+
+    @Override
+    public boolean removeIfZero(String word) {
+        byte[] key = word.getBytes(StandardCharsets.UTF_8);
+        int hash = hash(key);
+        return segmentFor(hash).removeIfZero(key, hash);
+    }
+
+    @Override
+    public int size() {
+        int size = 0;
+        for (Segment segment : segments) {
+            size += segment.size();
+        }
+        return size;
+    }
+
+    @Override
+    public void visit(Visitor visitor) throws IOException {
+        for (Segment segment : segments) {
+            segment.visit(visitor);
+        }
+    }
+
+    private Segment segmentFor(int hash) {
+        return segmentShift == 32 ? segments[0] : segments[hash >>> segmentShift];
+    }
+
+    /**
+     * FNV-1a over the UTF-8 bytes followed by a final avalanche so that both the high bits (segment) and the low bits
+     * (slot) are well distributed.
+     */
+    private static int hash(byte[] key) {
+        int h = 0x811c9dc5;
+        for (byte b : key) {
+            h ^= b;
+            h *= 0x01000193;
+        }
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h;
+    }
+
+    /**
+     * One open-addressing table. All access is synchronized on the segment.
+     */
+    private static final class Segment {
+        private static final float MAX_LOAD = 0.7f;
+
+        /*
+         * Slot table holding entry index + 1, or 0 for an empty slot. Linear probing.
+         */
+        private int[] slots;
+
+        /*
+         * Per-entry columns indexed by entry number.
+         */
+        private int[] hashes;
+        private int[] offsets;
+
+        /*
+         * The counts of entry e are at [e * COUNT, (e + 1) * COUNT).
+         */
+        private long[] counts;
+        private int size;
+
+        /*
+         * Keys stored back to back, each prefixed with its length as a variable-length integer. The bytes of removed
+         * keys stay in the arena until they make up half of it.
+         */
+        private byte[] arena;
+        private int arenaLength;
+        private int removedLength;
+
+        Segment(int expectedEntries) {
+            int capacity = Integer.highestOneBit((int) (expectedEntries / MAX_LOAD) - 1) << 1;
+            slots = new int[capacity];
+            hashes = new int[expectedEntries];
+            offsets = new int[expectedEntries];
+            counts = new long[expectedEntries * VisibilityBuckets.COUNT];
+            arena = new byte[expectedEntries * 8];
+        }
+
+        synchronized long add(
+                byte[] key, int hash, int bucket, long value, boolean restore, long[] bucketCounts) {
+            int mask = slots.length - 1;
+            int slot = hash & mask;
+            while (true) {
+                int entry = slots[slot] - 1;
+                if (entry < 0) {
+                    break;
+                }
+                if (hashes[entry] == hash && keyEquals(entry, key)) {
+                    return update(entry, bucket, value, restore, bucketCounts);
+                }
+                slot = (slot + 1) & mask;
+            }
+
+            int entry = append(key, hash);
+            slots[slot] = entry + 1;
+            if (size > slots.length * MAX_LOAD) {
+                rehash(slots.length << 1);
+            }
+            return update(entry, bucket, value, restore, bucketCounts);
+        }
+
+        synchronized long get(byte[] key, int hash, int bucketMask) {
+            int mask = slots.length - 1;
+            int slot = hash & mask;
+            while (true) {
+                int entry = slots[slot] - 1;
+                if (entry < 0) {
+                    return 0L;
+                }
+                if (hashes[entry] == hash && keyEquals(entry, key)) {
+                    long count = 0;
+                    for (int bucket = 0; bucket < VisibilityBuckets.COUNT; bucket++) {
+                        if ((bucketMask & (1 << bucket)) != 0) {
+                            count += counts[entry * VisibilityBuckets.COUNT + bucket];
+                        }
+                    }
+                    return count;
+                }
+                slot = (slot + 1) & mask;
+            }
+        }
+
+        /**
+         * Removes an entry whose counts are all zero. Its slot is freed by shifting back the entries probed after it,
+         * and the last entry is moved into its place in the columns so that they stay dense.
+         */
+        synchronized boolean removeIfZero(byte[] key, int hash) {
+            int mask = slots.length - 1;
+            int slot = hash & mask;
+            int entry;
+            while (true) {
+                entry = slots[slot] - 1;
+                if (entry < 0) {
+                    return false;
+                }
+                if (hashes[entry] == hash && keyEquals(entry, key)) {
+                    break;
+                }
+                slot = (slot + 1) & mask;
+            }
+            int base = entry * VisibilityBuckets.COUNT;
+            for (int bucket = 0; bucket < VisibilityBuckets.COUNT; bucket++) {
+                if (counts[base + bucket] != 0) {
+                    return false;
+                }
+            }
+
+            int hole = slot;
+            for (int next = (slot + 1) & mask; slots[next] != 0; next = (next + 1) & mask) {
+                // An entry may fill the hole unless its home slot lies after the hole, up to where it is now
+                int home = hashes[slots[next] - 1] & mask;
+                if (((next - home) & mask) >= ((next - hole) & mask)) {
+                    slots[hole] = slots[next];
+                    hole = next;
+                }
+            }
+            slots[hole] = 0;
+
+            removedLength += lengthSize(key.length) + key.length;
+            int last = --size;
+            if (entry != last) {
+                hashes[entry] = hashes[last];
+                offsets[entry] = offsets[last];
+                System.arraycopy(counts, last * VisibilityBuckets.COUNT, counts, base, VisibilityBuckets.COUNT);
+                int lastSlot = hashes[last] & mask;
+                while (slots[lastSlot] != last + 1) {
+                    lastSlot = (lastSlot + 1) & mask;
+                }
+                slots[lastSlot] = entry + 1;
+            }
+            Arrays.fill(counts, last * VisibilityBuckets.COUNT, (last + 1) * VisibilityBuckets.COUNT, 0L);
+            if (removedLength > arenaLength / 2) {
+                compactArena();
+            }
+            return true;
+        }
+
+        synchronized int size() {
+            return size;
+        }
+
+        synchronized void visit(Visitor visitor) throws IOException {
+            long[] bucketCounts = new long[VisibilityBuckets.COUNT];
+            for (int entry = 0; entry < size; entry++) {
+                int offset = offsets[entry];
+                int length = readLength(offset);
+                int start = offset + lengthSize(length);
+                System.arraycopy(counts, entry * VisibilityBuckets.COUNT, bucketCounts, 0, VisibilityBuckets.COUNT);
+                visitor.visit(new String(arena, start, length, StandardCharsets.UTF_8), bucketCounts);
+            }
+        }
+
+        private long update(int entry, int bucket, long value, boolean restore, long[] bucketCounts) {
+            int base = entry * VisibilityBuckets.COUNT;
+            counts[base + bucket] = restore ? Math.max(counts[base + bucket], value) : counts[base + bucket] + value;
+            if (bucketCounts != null) {
+                System.arraycopy(counts, base, bucketCounts, 0, VisibilityBuckets.COUNT);
+            }
+            return counts[base + bucket];
+        }
+
+        private int append(byte[] key, int hash) {
+            if (size == hashes.length) {
+                int newLength = hashes.length + (hashes.length >> 1) + 1;
+                hashes = Arrays.copyOf(hashes, newLength);
+                offsets = Arrays.copyOf(offsets, newLength);
+                counts = Arrays.copyOf(counts, newLength * VisibilityBuckets.COUNT);
+            }
+
+            int needed = lengthSize(key.length) + key.length;
+            if (arenaLength + needed > arena.length) {
+                long newLength = Math.max((long) arena.length + (arena.length >> 1), (long) arenaLength + needed);
+                if (newLength > Integer.MAX_VALUE - 8) {
+                    throw new IllegalStateException("Word count segment is full");
+                }
+                arena = Arrays.copyOf(arena, (int) newLength);
+            }
+
+            int entry = size++;
+            hashes[entry] = hash;
+            offsets[entry] = arenaLength;
+            arenaLength = writeLength(arenaLength, key.length);
+            System.arraycopy(key, 0, arena, arenaLength, key.length);
+            arenaLength += key.length;
+            return entry;
+        }
+
+        private void compactArena() {
+            byte[] compacted = new byte[Math.max(arenaLength - removedLength, 16)];
+            int compactedLength = 0;
+            for (int entry = 0; entry < size; entry++) {
+                int offset = offsets[entry];
+                int length = readLength(offset);
+                int stored = lengthSize(length) + length;
+                System.arraycopy(arena, offset, compacted, compactedLength, stored);
+                offsets[entry] = compactedLength;
+                compactedLength += stored;
+            }
+            arena = compacted;
+            arenaLength = compactedLength;
+            removedLength = 0;
+        }
+
+        private void rehash(int capacity) {
+            int[] newSlots = new int[capacity];
+            int mask = capacity - 1;
+            for (int entry = 0; entry < size; entry++) {
+                int slot = hashes[entry] & mask;
+                while (newSlots[slot] != 0) {
+                    slot = (slot + 1) & mask;
+                }
+                newSlots[slot] = entry + 1;
+            }
+            slots = newSlots;
+        }
+
+        private boolean keyEquals(int entry, byte[] key) {
+            int offset = offsets[entry];
+            int length = readLength(offset);
+            if (length != key.length) {
+                return false;
+            }
+            int start = offset + lengthSize(length);
+            for (int i = 0; i < length; i++) {
+                if (arena[start + i] != key[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private int readLength(int offset) {
+            int length = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = arena[offset++];
+                length |= (b & 0x7f) << shift;
+                shift += 7;
+            } while (b < 0);
+            return length;
+        }
+
+        private int writeLength(int offset, int length) {
+            int remaining = length;
+            while (remaining >= 0x80) {
+                arena[offset++] = (byte) (remaining | 0x80);
+                remaining >>>= 7;
+            }
+            arena[offset++] = (byte) remaining;
+            return offset;
+        }
+
+        private static int lengthSize(int length) {
+            int bytes = 1;
+            int remaining = length;
+            while (remaining >= 0x80) {
+                remaining >>>= 7;
+                bytes++;
+            }
+            return bytes;
+        }
+    }
+}
@@ -0,0 +1,182 @@
+/*   Copyright (C) 2013-2014 Computer Sciences Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. */
+
+package ezbake.training;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A {@link WordCountStore} backed by a {@link ConcurrentHashMap} of primitive {@link AtomicLongArray} counters, one
+ * element per visibility bucket.
+ *
+ * The map is striped into segments so that writers of different words rarely contend, and each counter is
+ * incremented with a lock-free compare-and-set so that concurrent increments of the same word are never lost. Once a
+ * word's counters exist, adding to them never touches the map structure again.
+ *
+ * A word is removed by marking each of its counters, all zero, as removed with a compare-and-set before taking it out
+ * of the map. An addition that lands on a marked counter takes itself back and retries, on a new entry if the removal
+ * went through, so no addition is lost to a concurrent removal.
+ */
+public class ConcurrentWordCountStore implements WordCountStore {
+    private static final int DEFAULT_INITIAL_CAPACITY = 1 << 16;
+    private static final float LOAD_FACTOR = 0.75f;
+    private static final int DEFAULT_CONCURRENCY_LEVEL = 64;
+
+    /*
+     * The value a zero counter is set to when its word is removed.
+     */
+    private static final long REMOVED = Long.MIN_VALUE;
+
+    private final ConcurrentMap<String, AtomicLongArray> counts;
+
+    public ConcurrentWordCountStore() {
+        this(DEFAULT_INITIAL_CAPACITY, DEFAULT_CONCURRENCY_LEVEL);
+    }
+
+    /**
+     * @param initialCapacity The number of distinct words the store is sized for up front.
+     * @param concurrencyLevel The estimated number of concurrently updating threads (i.e., the number of stripes).
+     */
+    public ConcurrentWordCountStore(int initialCapacity, int concurrencyLevel) {
+        counts = new ConcurrentHashMap<>(initialCapacity, LOAD_FACTOR, concurrencyLevel);
+    }
+
+    @Override
+    public long add(String word, int bucket, long delta, long[] bucketCounts) {
+        while (true) {
+            AtomicLongArray counters = countersFor(word);
+            long count = counters.addAndGet(bucket, delta);
+            if (!isRemoved(count)) {
+                if (bucketCounts != null) {
+                    for (int i = 0; i < VisibilityBuckets.COUNT; i++) {
+                        bucketCounts[i] = i == bucket ? count : live(counters.get(i));
+                    }
+                }
+                return count;
+            }
+
+            // The word is being removed, so wait for the removal to either finish or back out
+            counters.addAndGet(bucket, -delta);
+            Thread.yield();
+        }
+    }
+
+    @Override
+    public long get(String word, int bucketMask) {
+        AtomicLongArray counters = counts.get(word);
+        if (counters == null) {
+            return 0L;
+        }
+
+        long count = 0;
+        for (int bucket = 0; bucket < VisibilityBuckets.COUNT; bucket++) {
+            if ((bucketMask & (1 << bucket)) != 0) {
+                count += live(counters.get(bucket));
+            }
+        }
+        return count;
+    }
+
+    @Override
+    public long getErrorBound(int bucketMask) {
+        return 0L;
+    }
+
+    @Override
+    public double getConfidence() {
+        return 1.0;
+    }
+
+    @Override
+    public void restore(String word, int bucket, long count) {
+        AtomicLongArray counters = countersFor(word);
+        while (true) {
+            long current = counters.get(bucket);
+            if (isRemoved(current)) {
+                Thread.yield();
+                counters = countersFor(word);
+            } else if (current >= count || counters.compareAndSet(bucket, current, count)) {
+                return;
+            }
+        }
+    }
+
+    @Override
+    public boolean removeIfZero(String word) {
+        AtomicLongArray counters = counts.get(word);
+        if (counters == null) {
+            return false;
+        }
+
+        for (int bucket = 0; bucket < VisibilityBuckets.COUNT; bucket++) {
+            if (!counters.compareAndSet(bucket, 0, REMOVED)) {
+                // Adding REMOVED again wraps around to whatever racing additions left on the counter
+                for (int marked = 0; marked < bucket; marked++) {
+                    counters.addAndGet(marked, REMOVED);
+                }
+                return false;
+            }
+        }
+        counts.remove(word, counters);
+        return true;
+    }
+
+    @Override
+    public int size() {
+        return counts.size();
+    }
+
+    @Override
+    public void visit(Visitor visitor) throws IOException {
+        long[] bucketCounts = new long[VisibilityBuckets.COUNT];
+        for (Map.Entry<String, AtomicLongArray> entry : counts.entrySet()) {
+            boolean removed = true;
+            for (int bucket = 0; bucket < VisibilityBuckets.COUNT; bucket++) {
+                long count = entry.getValue().get(bucket);
+                removed &= isRemoved(count);
+                bucketCounts[bucket] = live(count);
+            }
+            if (!removed) {
+                visitor.visit(entry.getKey(), bucketCounts);
+            }
+        }
+    }
+
+    /**
+     * @return whether a counter is marked as removed, possibly with additions racing with the removal on top
+     */
+    private static boolean isRemoved(long count) {
+        return count < REMOVED / 2;
+    }
+
+    private static long live(long count) {
+        return isRemoved(count) ? 0 : count;
+    }
+
+    private AtomicLongArray countersFor(String word) {
+        AtomicLongArray counters = counts.get(word);
+        if (counters == null) {
+            AtomicLongArray newCounters = new AtomicLongArray(VisibilityBuckets.COUNT);
+            counters = counts.putIfAbsent(word, newCounters);
+            if (counters == null) {
+                counters = newCounters;
+            }
+        }
+        return counters;
+    }
+}
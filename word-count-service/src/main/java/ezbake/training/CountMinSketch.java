@@ -0,0 +1,113 @@
+/*   Copyright (C) 2013-2014 Computer Sciences Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. */
+
+package ezbake.training;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A Count-Min Sketch of word frequencies in fixed memory.
+ *
+ * The sketch is {@code depth} rows of {@code width} counters. A word is counted in one counter per row and its
+ * estimate is the smallest of those counters, so an estimate never undercounts. With width {@code e / epsilon} and
+ * depth {@code ln(1 / delta)} the estimate overcounts by more than {@code epsilon} times the total of all counts with
+ * probability at most {@code delta}. The counters are updated with atomic adds, so the sketch is thread safe.
+ */
+public class CountMinSketch {
+    private final int depth;
+    private final int widthMask;
+    private final AtomicLongArray counters;
+    private final AtomicLong total = new AtomicLong();
+    private final double epsilon;
+
+    /**
+     * @param epsilon Relative error bound. The width is rounded up to a power of two, which only tightens it.
+     * @param delta Probability that an estimate exceeds the error bound
+     */
+    public CountMinSketch(double epsilon, double delta) {
+        if (epsilon <= 0 || epsilon >= 1 || delta <= 0 || delta >= 1) {
+            throw new IllegalArgumentException("epsilon and delta must be between 0 and 1");
+        }
+
+        int width = Integer.highestOneBit((int) Math.ceil(Math.E / epsilon) - 1) << 1;
+        this.depth = (int) Math.ceil(Math.log(1 / delta));
+        this.widthMask = width - 1;
+        this.counters = new AtomicLongArray(depth * width);
+        this.epsilon = Math.E / width;
+    }
+
+    /**
+     * Adds occurrences of a word.
+     *
+     * @param hash The word's {@link WordHash}
+     * @param count Number of occurrences to add
+     * @return the word's estimated count after the addition
+     */
+    public long add(long hash, long count) {
+        total.addAndGet(count);
+        long estimate = Long.MAX_VALUE;
+        for (int row = 0; row < depth; row++) {
+            estimate = Math.min(estimate, counters.addAndGet(index(hash, row), count));
+        }
+        return estimate;
+    }
+
+    /**
+     * @param hash The word's {@link WordHash}
+     * @return the word's estimated count, never less than its true count
+     */
+    public long estimate(long hash) {
+        long estimate = Long.MAX_VALUE;
+        for (int row = 0; row < depth; row++) {
+            estimate = Math.min(estimate, counters.get(index(hash, row)));
+        }
+        return estimate;
+    }
+
+    /**
+     * @return the sum of all counts added
+     */
+    public long getTotal() {
+        return total.get();
+    }
+
+    /**
+     * @return the relative error bound: estimates exceed true counts by at most this fraction of the total with
+     * probability {@link #getConfidence()}
+     */
+    public double getEpsilon() {
+        return epsilon;
+    }
+
+    /**
+     * @return the probability that an estimate is within the error bound
+     */
+    public double getConfidence() {
+        return 1 - Math.exp(-depth);
+    }
+
+    /**
+     * Remixes the word hash with a different constant per row. Plain double hashing ({@code h1 + i * h2}) makes two
+     * words that collide in the first two rows collide in every row, which a skewed vocabulary hits often enough to
+     * matter.
+     */
+    private int index(long hash, int row) {
+        long h = hash + (row + 1) * 0x9e3779b97f4a7c15L;
+        h ^= h >>> 32;
+        h *= 0xd6e8feb86659fd93L;
+        h ^= h >>> 32;
+        return row * (widthMask + 1) + ((int) h & widthMask);
+    }
+}
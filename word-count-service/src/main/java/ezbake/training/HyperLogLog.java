@@ -0,0 +1,91 @@
+/*   Copyright (C) 2013-2014 Computer Sciences Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. */
+
+package ezbake.training;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * A HyperLogLog estimator of the number of distinct words in fixed memory.
+ *
+ * Each word hash selects one of {@code 2^precision} registers with its high bits, and the register keeps the longest
+ * run of leading zeros seen in the remaining bits. The estimate has a relative standard error of about
+ * {@code 1.04 / sqrt(2^precision)}. Registers only ever increase, so they are updated with a compare-and-set that is
+ * skipped for the common case of a word that does not raise its register. Several estimators of the same precision can
+ * be combined to estimate the distinct words of their union.
+ */
+public class HyperLogLog {
+    private final int precision;
+    private final AtomicIntegerArray registers;
+
+    /**
+     * @param precision The number of hash bits used to select a register, between 4 and 18.
+     */
+    public HyperLogLog(int precision) {
+        if (precision < 4 || precision > 18) {
+            throw new IllegalArgumentException("precision must be between 4 and 18");
+        }
+        this.precision = precision;
+        this.registers = new AtomicIntegerArray(1 << precision);
+    }
+
+    /**
+     * @param hash The word's {@link WordHash}
+     */
+    public void offer(long hash) {
+        int index = (int) (hash >>> (64 - precision));
+        int rank = Long.numberOfLeadingZeros((hash << precision) | (1L << (precision - 1))) + 1;
+        int current = registers.get(index);
+        while (rank > current && !registers.compareAndSet(index, current, rank)) {
+            current = registers.get(index);
+        }
+    }
+
+    /**
+     * @return the relative standard error of the estimates
+     */
+    public double getStandardError() {
+        return 1.04 / Math.sqrt(registers.length());
+    }
+
+    /**
+     * Estimates the number of distinct words offered to any of the given estimators.
+     *
+     * @param estimators Estimators of the same precision
+     * @return the estimated number of distinct words
+     */
+    public static long estimate(HyperLogLog... estimators) {
+        int m = estimators[0].registers.length();
+        double sum = 0;
+        int zeros = 0;
+        for (int index = 0; index < m; index++) {
+            int register = 0;
+            for (HyperLogLog estimator : estimators) {
+                register = Math.max(register, estimator.registers.get(index));
+            }
+            sum += 1.0 / (1L << register);
+            if (register == 0) {
+                zeros++;
+            }
+        }
+
+        double alpha = 0.7213 / (1 + 1.079 / m);
+        double estimate = alpha * m * m / sum;
+        if (estimate <= 2.5 * m && zeros > 0) {
+            // Linear counting is more accurate while many registers are still empty
+            estimate = m * Math.log((double) m / zeros);
+        }
+        return Math.round(estimate);
+    }
+}
@@ -0,0 +1,141 @@
+/*   Copyright (C) 2013-2014 Computer Sciences Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. */
+
+package ezbake.training;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Incrementally tracks the most frequent words so that top-K queries never scan the whole vocabulary.
+ *
+ * The tracker keeps the {@code capacity} words with the highest counts, ordered by count. Because word counts only
+ * grow, a word that is not tracked can only become one of the most frequent at the moment its count passes the lowest
+ * tracked count, so offering every new count to the tracker keeps the tracked set exact. Offers for words below that
+ * threshold, which is the common case for the long tail, are rejected without taking a lock.
+ */
+public class TopWordsTracker {
+    private static final Comparator<WordCount> BY_COUNT_DESCENDING = new Comparator<WordCount>() {
+        @Override
+        public int compare(WordCount left, WordCount right) {
+            int result = Long.compare(right.getCount(), left.getCount());
+            return result != 0 ? result : left.getWord().compareTo(right.getWord());
+        }
+    };
+
+    private final int capacity;
+
+    /*
+     * Tracked words, both by word for membership tests and ordered by count for eviction. Only modified while holding
+     * the tracker's lock.
+     */
+    private final ConcurrentMap<String, WordCount> tracked = new ConcurrentHashMap<>();
+    private final TreeSet<WordCount> ordered = new TreeSet<>(BY_COUNT_DESCENDING);
+
+    /*
+     * The lowest tracked count once the tracker is full, otherwise 0.
+     */
+    private volatile long threshold;
+
+    /**
+     * @param capacity The number of most frequent words to track. Top-K queries are limited to this many words.
+     */
+    public TopWordsTracker(int capacity) {
+        this.capacity = capacity;
+    }
+
+    /**
+     * Offers the latest count of a word to the tracker.
+     *
+     * @param word Normalized word
+     * @param count The word's count after its most recent addition
+     */
+    public void offer(String word, long count) {
+        if (count <= threshold && !tracked.containsKey(word)) {
+            return;
+        }
+
+        synchronized (this) {
+            WordCount current = tracked.get(word);
+            if (current != null) {
+                if (current.getCount() >= count) {
+                    return;
+                }
+                ordered.remove(current);
+            } else if (tracked.size() >= capacity) {
+                WordCount lowest = ordered.last();
+                if (lowest.getCount() >= count) {
+                    return;
+                }
+                ordered.remove(lowest);
+                tracked.remove(lowest.getWord());
+            }
+
+            WordCount updated = new WordCount(word, count);
+            ordered.add(updated);
+            tracked.put(word, updated);
+            if (tracked.size() >= capacity) {
+                threshold = ordered.last().getCount();
+            }
+        }
+    }
+
+    /**
+     * Stops tracking a word whose count dropped, e.g. because it was moved to another shard. Until the tracker fills
+     * up again any word offered is tracked, so words that were just below the threshold may be missing from the result
+     * until their counts next change.
+     *
+     * @param word Normalized word
+     */
+    public synchronized void remove(String word) {
+        WordCount current = tracked.remove(word);
+        if (current != null) {
+            ordered.remove(current);
+            threshold = 0;
+        }
+    }
+
+    /**
+     * Gets the most frequent tracked words.
+     *
+     * @param k Maximum number of words to return
+     * @param prefix If not empty, only words starting with this prefix are returned
+     * @param store The store holding the current counts. Tracked counts are refreshed from it so that increments
+     * racing with the tracker are reflected in the result.
+     * @param bucketMask The visibility buckets this tracker's counts are summed over
+     * @return up to k words, most frequent first
+     */
+    public List<WordCount> top(int k, String prefix, WordCountStore store, int bucketMask) {
+        List<String> words = new ArrayList<>();
+        synchronized (this) {
+            for (WordCount wordCount : ordered) {
+                if (prefix == null || prefix.isEmpty() || wordCount.getWord().startsWith(prefix)) {
+                    words.add(wordCount.getWord());
+                }
+            }
+        }
+
+        List<WordCount> result = new ArrayList<>(words.size());
+        for (String word : words) {
+            result.add(new WordCount(word, store.get(word, bucketMask)));
+        }
+        Collections.sort(result, BY_COUNT_DESCENDING);
+        return result.size() > k ? new ArrayList<>(result.subList(0, Math.max(k, 0))) : result;
+    }
+}
@@ -14,8 +14,15 @@
 
 package ezbake.training;
 
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.Properties;
 
 import org.apache.commons.lang.StringUtils;
 import org.apache.thrift.TException;
@@ -25,35 +32,163 @@ import org.slf4j.LoggerFactory;
 
 import ezbake.base.thrift.EzBakeBaseThriftService;
 import ezbake.base.thrift.EzSecurityToken;
+import ezbake.base.thrift.Visibility;
 import ezbake.data.common.TokenUtils;
 
 /**
  * A thrift service that counts the number of times a word is sent to this service via {@link #add(String,
- * EzSecurityToken)}.
+ * EzSecurityToken, Visibility)}.
  *
- * The words collected are not case sensitive. To determine the current count for a word, a caller
- * must call the {@link #getCount(String, EzSecurityToken)} method.
+ * The words collected are not case sensitive, and words longer than {@link WordCountJournal#MAX_WORD_LENGTH} bytes in
+ * UTF-8 are ignored. Callers that have many words to add should use the batch operations
+ * {@link #addAll(List, EzSecurityToken, Visibility)} and {@link #addCounts(Map, EzSecurityToken, Visibility, long)}
+ * rather than one call per word. To determine the current count for a word, a caller must call the {@link
+ * #getCount(String, EzSecurityToken)} method, or {@link #getCounts(List, EzSecurityToken)} for several words at once.
+ * The most frequent words are tracked as they are counted and served by {@link #topK(int, String, EzSecurityToken)}.
  *
- * The counts are not persistent and only represent an in-memory storage mechanism. Thus, when the service is stopped
- * all word counts are erased.
+ * Every count is kept per formal visibility bucket (U, C, S and TS, see {@link VisibilityBuckets}), and queries only
+ * see the buckets the caller's formal authorizations include. The authorized buckets are reduced to a bit mask once
+ * per request, so a count query reads at most four counters per word. Because there are only sixteen possible masks, a
+ * separate {@link TopWordsTracker} is maintained for each of them and a top-K query never has to merge buckets.
+ *
+ * Besides the all-time counts, the counts of the last day are kept in {@link WindowedWordCounts}, keyed on the time the
+ * words were encountered, and served by {@link #getCountInWindow(String, int, EzSecurityToken)} and {@link
+ * #trending(int, int, EzSecurityToken)}. The windowed counts are held in memory only and start empty after a restart.
+ *
+ * The counts are kept in a {@link WordCountStore} which is safe for the concurrent Thrift server threads. Either a
+ * {@link ConcurrentWordCountStore} or, for large vocabularies, a {@link CompactWordCountStore} is used. When a data
+ * directory is configured the counts are also persisted through a {@link WordCountPersistence} and restored when the
+ * service starts. Otherwise the counts only represent an in-memory storage mechanism and are erased when the service
+ * is stopped.
+ *
+ * For vocabularies too large to count exactly, the approximate mode counts words with an {@link
+ * ApproximateWordCountStore} in fixed memory, with the most frequent words counted exactly. Approximate counts are
+ * never lower than the true counts, and {@link #estimateCount(String, EzSecurityToken)} reports how much higher they
+ * may be. Approximate counts are not persisted. In both modes the number of distinct words is estimated with a
+ * {@link HyperLogLog} per visibility bucket and served by {@link #estimateDistinctWords(EzSecurityToken)}.
+ *
+ * The word space can be split across several instances of the service, each registered under its own service name,
+ * with callers routing every word through a {@link WordShardRing}. When the ring changes, {@link WordCountResharder}
+ * moves misplaced words with {@link #exportMisplacedWords(List, String, int, EzSecurityToken)}, {@link
+ * #mergeCounts(List, EzSecurityToken)} and {@link #subtractCounts(List, EzSecurityToken)}, which removes the words
+ * left with no counts so that they stop taking up memory and snapshot space.
+ * <p/>
+ * Properties:
+ * <ul>
+ *     <li> tweet.word.count.mode - Either "exact" or "approximate". Defaults to "exact".</li>
+ *     <li> tweet.word.count.store - The storage engine for exact counts, either "concurrent" or "compact". Defaults to
+ *          "concurrent".</li>
+ *     <li> tweet.word.count.data.dir - The directory holding the write-ahead log and snapshots of the counts. If no
+ *          value is given the counts are not persisted.</li>
+ *     <li> tweet.word.count.snapshot.intervalSeconds - How often a snapshot of the counts is taken. Defaults to
+ *          300.</li>
+ *     <li> tweet.word.count.wal.sync - Whether additions wait for their log records to be forced to disk before
+ *          returning. Defaults to true.</li>
+ *     <li> tweet.word.count.approximate.epsilon - The error bound of approximate counts as a fraction of all words
+ *          counted. Defaults to 0.0001.</li>
+ *     <li> tweet.word.count.approximate.delta - The probability that an approximate count exceeds its error bound.
+ *          Defaults to 0.001.</li>
+ *     <li> tweet.word.count.approximate.heavyHitters - The number of most frequent words counted exactly in
+ *          approximate mode. Defaults to 1000.</li>
+ * </ul>
  */
 public class TweetWordCountServiceImpl extends EzBakeBaseThriftService implements TweetWordCountService.Iface {
     private static final Logger logger = LoggerFactory.getLogger(TweetWordCountServiceImpl.class);
 
+    /**
+     * The number of most frequent words tracked for {@link #topK(int, String, EzSecurityToken)}.
+     */
+    private static final int TOP_WORDS_CAPACITY = 1000;
+
+    /**
+     * The precision of the distinct word estimators, giving a standard error of about 0.8%.
+     */
+    private static final int DISTINCT_WORDS_PRECISION = 14;
+
+    private static final String MODE_PROPERTY = "tweet.word.count.mode";
+    private static final String EXACT_MODE = "exact";
+    private static final String APPROXIMATE_MODE = "approximate";
+    private static final String STORE_PROPERTY = "tweet.word.count.store";
+    private static final String COMPACT_STORE = "compact";
+    private static final String CONCURRENT_STORE = "concurrent";
+    private static final String DATA_DIRECTORY_PROPERTY = "tweet.word.count.data.dir";
+    private static final String SNAPSHOT_INTERVAL_PROPERTY = "tweet.word.count.snapshot.intervalSeconds";
+    private static final String SYNC_PROPERTY = "tweet.word.count.wal.sync";
+    private static final long DEFAULT_SNAPSHOT_INTERVAL_SECONDS = 300L;
+    private static final String EPSILON_PROPERTY = "tweet.word.count.approximate.epsilon";
+    private static final String DELTA_PROPERTY = "tweet.word.count.approximate.delta";
+    private static final String HEAVY_HITTERS_PROPERTY = "tweet.word.count.approximate.heavyHitters";
+    private static final double DEFAULT_EPSILON = 0.0001;
+    private static final double DEFAULT_DELTA = 0.001;
+
+    /**
+     * The number of locks ordering the journal records of the words hashed to them. Must be a power of two.
+     */
+    private static final int WORD_LOCKS = 256;
+
     /*
      * This map contains the count of words as sent to this service from
      * tweet-word-divide pipeline where the key is a unique, case-insensitive
      * word and the value is the number of times this service has been asked
      * to add the word.
      */
-    private Map<String, Integer> wordCounts;
+    private volatile WordCountStore wordCounts;
+
+    /*
+     * The most frequent words for each bucket mask, maintained incrementally on every addition.
+     */
+    private final TopWordsTracker[] topWords;
+
+    /*
+     * Estimators of the number of distinct words in each visibility bucket.
+     */
+    private final HyperLogLog[] distinctWords;
+
+    /*
+     * The counts of recent time windows.
+     */
+    private final WindowedWordCounts windowedCounts = new WindowedWordCounts();
+
+    /*
+     * Persists the counts, or null if persistence is not configured.
+     */
+    private volatile WordCountPersistence persistence;
+    private boolean syncWrites = true;
+
+    /*
+     * Held across changing a word's count and logging the result when persistence is configured.
+     */
+    private final Object[] wordLocks = new Object[WORD_LOCKS];
 
     public TweetWordCountServiceImpl() {
-        wordCounts = new HashMap<>();
+        topWords = new TopWordsTracker[VisibilityBuckets.MASKS];
+        for (int mask = 0; mask < topWords.length; mask++) {
+            topWords[mask] = new TopWordsTracker(TOP_WORDS_CAPACITY);
+        }
+        distinctWords = new HyperLogLog[VisibilityBuckets.COUNT];
+        for (int bucket = 0; bucket < distinctWords.length; bucket++) {
+            distinctWords[bucket] = new HyperLogLog(DISTINCT_WORDS_PRECISION);
+        }
+        for (int lock = 0; lock < wordLocks.length; lock++) {
+            wordLocks[lock] = new Object();
+        }
         logger.info("The tweet word count service was instantiated.");
     }
 
+    /**
+     * Creates a service that is initialized with the given configuration and ready to be called directly, without a
+     * Thrift server, for running it in process.
+     *
+     * @param properties The EzBake configuration values for the running environment
+     */
+    public TweetWordCountServiceImpl(Properties properties) {
+        this();
+        setConfigurationProperties(properties);
+        initialize(properties);
+    }
+
     public TProcessor getThriftProcessor() {
+        initialize(getConfigurationProperties());
         return new TweetWordCountService.Processor<>(this);
     }
 
@@ -61,28 +196,433 @@ public class TweetWordCountServiceImpl extends EzBakeBaseThriftService implement
         return true;
     }
 
-    public void add(String word, EzSecurityToken securityToken) throws TException {
+    public void add(String word, EzSecurityToken securityToken, Visibility visibility) throws TException {
+        TokenUtils.validateSecurityToken(securityToken, this.getConfigurationProperties());
+
+        String normalizedWord = countableWord(word);
+        if (normalizedWord == null) {
+            return;
+        }
+
+        long[] bucketCounts = new long[VisibilityBuckets.COUNT];
+        long now = currentTimeSeconds();
+        awaitDurable(addWord(normalizedWord, VisibilityBuckets.bucketOf(visibility), 1, now, now, bucketCounts));
+    }
+
+    public void addAll(List<String> words, EzSecurityToken securityToken, Visibility visibility) throws TException {
+        TokenUtils.validateSecurityToken(securityToken, this.getConfigurationProperties());
+
+        if (words == null) {
+            return;
+        }
+
+        int bucket = VisibilityBuckets.bucketOf(visibility);
+        long[] bucketCounts = new long[VisibilityBuckets.COUNT];
+        long now = currentTimeSeconds();
+        long sequence = 0;
+        for (String word : words) {
+            String normalizedWord = countableWord(word);
+            if (normalizedWord != null) {
+                sequence = addWord(normalizedWord, bucket, 1, now, now, bucketCounts);
+            }
+        }
+        awaitDurable(sequence);
+    }
+
+    public void addCounts(
+            Map<String, Long> counts, EzSecurityToken securityToken, Visibility visibility, long timestamp)
+            throws TException {
+        TokenUtils.validateSecurityToken(securityToken, this.getConfigurationProperties());
+
+        if (counts == null) {
+            return;
+        }
+
+        int bucket = VisibilityBuckets.bucketOf(visibility);
+        long[] bucketCounts = new long[VisibilityBuckets.COUNT];
+        long now = currentTimeSeconds();
+        long eventTime = timestamp > 0 ? timestamp : now;
+        long sequence = 0;
+        for (Map.Entry<String, Long> entry : counts.entrySet()) {
+            Long count = entry.getValue();
+            String normalizedWord = count != null && count > 0 ? countableWord(entry.getKey()) : null;
+            if (normalizedWord != null) {
+                sequence = addWord(normalizedWord, bucket, count, eventTime, now, bucketCounts);
+            }
+        }
+        awaitDurable(sequence);
+    }
+
+    public int getCount(String word, EzSecurityToken securityToken) throws TException {
+        TokenUtils.validateSecurityToken(securityToken, this.getConfigurationProperties());
+
+        int mask = VisibilityBuckets.maskOf(securityToken);
+        long wordCount = 0;
+        if (mask != 0 && StringUtils.isNotBlank(word)) {
+            wordCount = wordCounts.get(normalize(word), mask);
+        }
+        return (int) Math.min(wordCount, Integer.MAX_VALUE);
+    }
+
+    public Map<String, Long> getCounts(List<String> words, EzSecurityToken securityToken) throws TException {
+        TokenUtils.validateSecurityToken(securityToken, this.getConfigurationProperties());
+
+        int mask = VisibilityBuckets.maskOf(securityToken);
+        Map<String, Long> counts = new HashMap<>();
+        if (words != null) {
+            for (String word : words) {
+                if (word != null) {
+                    boolean skip = mask == 0 || StringUtils.isBlank(word);
+                    counts.put(word, skip ? 0L : wordCounts.get(normalize(word), mask));
+                }
+            }
+        }
+        return counts;
+    }
+
+    public List<WordCount> topK(int k, String prefix, EzSecurityToken securityToken) throws TException {
+        TokenUtils.validateSecurityToken(securityToken, this.getConfigurationProperties());
+
+        int mask = VisibilityBuckets.maskOf(securityToken);
+        return topWords[mask].top(k, prefix == null ? null : normalize(prefix), wordCounts, mask);
+    }
+
+    public CountEstimate estimateCount(String word, EzSecurityToken securityToken) throws TException {
+        TokenUtils.validateSecurityToken(securityToken, this.getConfigurationProperties());
+
+        int mask = VisibilityBuckets.maskOf(securityToken);
+        if (mask == 0 || StringUtils.isBlank(word)) {
+            return new CountEstimate(0L, 0L, 1.0);
+        }
+        return new CountEstimate(
+                wordCounts.get(normalize(word), mask), wordCounts.getErrorBound(mask), wordCounts.getConfidence());
+    }
+
+    public CountEstimate estimateDistinctWords(EzSecurityToken securityToken) throws TException {
+        TokenUtils.validateSecurityToken(securityToken, this.getConfigurationProperties());
+
+        int mask = VisibilityBuckets.maskOf(securityToken);
+        List<HyperLogLog> estimators = new ArrayList<>(VisibilityBuckets.COUNT);
+        for (int bucket = 0; bucket < VisibilityBuckets.COUNT; bucket++) {
+            if ((mask & (1 << bucket)) != 0) {
+                estimators.add(distinctWords[bucket]);
+            }
+        }
+        if (estimators.isEmpty()) {
+            return new CountEstimate(0L, 0L, 1.0);
+        }
+
+        // Two standard errors, which hold with a probability of about 95%
+        long estimate = HyperLogLog.estimate(estimators.toArray(new HyperLogLog[estimators.size()]));
+        long errorBound = (long) Math.ceil(2 * distinctWords[0].getStandardError() * estimate);
+        return new CountEstimate(estimate, errorBound, 0.95);
+    }
+
+    public long getCountInWindow(String word, int windowSeconds, EzSecurityToken securityToken) throws TException {
         TokenUtils.validateSecurityToken(securityToken, this.getConfigurationProperties());
 
         if (StringUtils.isBlank(word)) {
+            return 0L;
+        }
+        return windowedCounts.get(normalize(word), VisibilityBuckets.maskOf(securityToken), windowSeconds);
+    }
+
+    public List<WordCount> trending(int k, int windowSeconds, EzSecurityToken securityToken) throws TException {
+        TokenUtils.validateSecurityToken(securityToken, this.getConfigurationProperties());
+
+        return windowedCounts.trending(k, VisibilityBuckets.maskOf(securityToken), windowSeconds);
+    }
+
+    public List<WordLevelCounts> exportMisplacedWords(
+            List<String> shards, final String shard, final int limit, EzSecurityToken securityToken)
+            throws TException {
+        validateReshardingAccess(securityToken);
+
+        final WordShardRing ring = new WordShardRing(shards);
+        final List<WordLevelCounts> misplaced = new ArrayList<>();
+        if (limit <= 0) {
+            return misplaced;
+        }
+        try {
+            wordCounts.visit(new WordCountStore.Visitor() {
+                @Override
+                public void visit(String word, long[] bucketCounts) throws IOException {
+                    if (VisibilityBuckets.sum(bucketCounts, VisibilityBuckets.MASKS - 1) == 0
+                            || shard.equals(ring.shardFor(word))) {
+                        return;
+                    }
+
+                    Map<String, Long> levelCounts = new HashMap<>();
+                    for (int bucket = 0; bucket < VisibilityBuckets.COUNT; bucket++) {
+                        if (bucketCounts[bucket] != 0) {
+                            levelCounts.put(VisibilityBuckets.levelOf(bucket), bucketCounts[bucket]);
+                        }
+                    }
+                    misplaced.add(new WordLevelCounts(word, levelCounts));
+                    if (misplaced.size() >= limit) {
+                        throw new VisitLimitReachedException();
+                    }
+                }
+            });
+        } catch (VisitLimitReachedException e) {
+            // The page is full
+        } catch (IOException e) {
+            throw new TException(e);
+        }
+        return misplaced;
+    }
+
+    public void mergeCounts(List<WordLevelCounts> counts, EzSecurityToken securityToken) throws TException {
+        validateReshardingAccess(securityToken);
+
+        long[] bucketCounts = new long[VisibilityBuckets.COUNT];
+        long sequence = 0;
+        for (WordLevelCounts levelCounts : counts) {
+            String word = countableWord(levelCounts.getWord());
+            if (word == null) {
+                continue;
+            }
+            for (Map.Entry<String, Long> entry : levelCounts.getLevelCounts().entrySet()) {
+                if (entry.getValue() != null && entry.getValue() > 0) {
+                    sequence = countWord(word, bucketOfLevel(entry.getKey()), entry.getValue(), bucketCounts);
+                }
+            }
+        }
+        awaitDurable(sequence);
+    }
+
+    public void subtractCounts(List<WordLevelCounts> counts, EzSecurityToken securityToken) throws TException {
+        validateReshardingAccess(securityToken);
+
+        long[] bucketCounts = new long[VisibilityBuckets.COUNT];
+        long sequence = 0;
+        for (WordLevelCounts levelCounts : counts) {
+            String word = countableWord(levelCounts.getWord());
+            if (word == null) {
+                continue;
+            }
+            for (Map.Entry<String, Long> entry : levelCounts.getLevelCounts().entrySet()) {
+                if (entry.getValue() == null || entry.getValue() <= 0) {
+                    continue;
+                }
+
+                sequence = updateCount(word, bucketOfLevel(entry.getKey()), -entry.getValue(), bucketCounts);
+            }
+            if (VisibilityBuckets.sum(bucketCounts, VisibilityBuckets.MASKS - 1) == 0) {
+                wordCounts.removeIfZero(word);
+                for (TopWordsTracker tracker : topWords) {
+                    tracker.remove(word);
+                }
+            }
+        }
+        awaitDurable(sequence);
+    }
+
+    /**
+     * Creates the configured store, then restores the persisted counts and starts persisting changes if a data
+     * directory is configured. Only the first call has an effect.
+     */
+    private synchronized void initialize(Properties properties) {
+        if (wordCounts != null) {
             return;
         }
 
-        String lcWord = word.trim().toLowerCase();
-        if (wordCounts.containsKey(lcWord)) {
-            wordCounts.put(lcWord, wordCounts.get(lcWord) + 1);
+        String mode = properties.getProperty(MODE_PROPERTY, EXACT_MODE);
+        String storeType = properties.getProperty(STORE_PROPERTY, CONCURRENT_STORE);
+        if (APPROXIMATE_MODE.equalsIgnoreCase(mode)) {
+            double epsilon =
+                    Double.parseDouble(properties.getProperty(EPSILON_PROPERTY, String.valueOf(DEFAULT_EPSILON)));
+            double delta = Double.parseDouble(properties.getProperty(DELTA_PROPERTY, String.valueOf(DEFAULT_DELTA)));
+            int heavyHitters = Integer.parseInt(
+                    properties.getProperty(HEAVY_HITTERS_PROPERTY, String.valueOf(TOP_WORDS_CAPACITY)));
+            wordCounts = new ApproximateWordCountStore(epsilon, delta, heavyHitters);
+        } else if (COMPACT_STORE.equalsIgnoreCase(storeType)) {
+            wordCounts = new CompactWordCountStore();
         } else {
-            wordCounts.put(lcWord, 1);
+            if (!EXACT_MODE.equalsIgnoreCase(mode)) {
+                logger.warn("Unknown word count mode '{}', counting exactly", mode);
+            }
+            if (!CONCURRENT_STORE.equalsIgnoreCase(storeType)) {
+                logger.warn("Unknown word count store '{}', using the concurrent store", storeType);
+            }
+            wordCounts = new ConcurrentWordCountStore();
         }
+        logger.info("Counting words with {}", wordCounts.getClass().getSimpleName());
+
+        String dataDirectory = properties.getProperty(DATA_DIRECTORY_PROPERTY);
+        if (StringUtils.isBlank(dataDirectory)) {
+            return;
+        }
+        if (wordCounts instanceof ApproximateWordCountStore) {
+            logger.warn("Approximate word counts are not persisted, ignoring the data directory {}", dataDirectory);
+            return;
+        }
+
+        long snapshotIntervalSeconds = Long.parseLong(properties.getProperty(
+                SNAPSHOT_INTERVAL_PROPERTY, String.valueOf(DEFAULT_SNAPSHOT_INTERVAL_SECONDS)));
+        syncWrites = Boolean.parseBoolean(properties.getProperty(SYNC_PROPERTY, "true"));
+        try {
+            persistence = WordCountPersistence.open(new File(dataDirectory), wordCounts, snapshotIntervalSeconds);
+            wordCounts.visit(new WordCountStore.Visitor() {
+                @Override
+                public void visit(String word, long[] bucketCounts) {
+                    long hash = WordHash.of(word);
+                    for (int bucket = 0; bucket < VisibilityBuckets.COUNT; bucket++) {
+                        if (bucketCounts[bucket] != 0) {
+                            distinctWords[bucket].offer(hash);
+                        }
+                    }
+                    for (int mask = 1; mask < topWords.length; mask++) {
+                        topWords[mask].offer(word, VisibilityBuckets.sum(bucketCounts, mask));
+                    }
+                }
+            });
+        } catch (IOException e) {
+            logger.error("Could not restore the word counts from {}", dataDirectory, e);
+            throw new RuntimeException(e);
+        }
+
+        Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    persistence.close();
+                } catch (IOException e) {
+                    logger.error("Could not close the word count journal", e);
+                }
+            }
+        }));
+        logger.info("Persisting word counts to {}", dataDirectory);
     }
 
-    public int getCount(String word, EzSecurityToken securityToken) throws TException {
+    /**
+     * Adds to the count of a word in one visibility bucket and offers the new totals to the trackers of every mask that
+     * includes the bucket.
+     *
+     * @param timestamp Time in seconds since the UNIX epoch that the occurrences were encountered
+     * @param now The current time in seconds since the UNIX epoch
+     * @param bucketCounts Scratch array receiving the word's count per bucket
+     * @return the journal sequence number of the change, or 0 if persistence is not configured
+     */
+    private long addWord(String normalizedWord, int bucket, long count, long timestamp, long now, long[] bucketCounts)
+            throws TException {
+        windowedCounts.add(normalizedWord, bucket, count, timestamp, now);
+        return countWord(normalizedWord, bucket, count, bucketCounts);
+    }
+
+    /**
+     * Adds to the all-time count of a word in one visibility bucket, leaving the windowed counts unchanged.
+     *
+     * @param bucketCounts Scratch array receiving the word's count per bucket
+     * @return the journal sequence number of the change, or 0 if persistence is not configured
+     */
+    private long countWord(String normalizedWord, int bucket, long count, long[] bucketCounts) throws TException {
+        distinctWords[bucket].offer(WordHash.of(normalizedWord));
+        long sequence = updateCount(normalizedWord, bucket, count, bucketCounts);
+        for (int mask = 1; mask < topWords.length; mask++) {
+            if ((mask & (1 << bucket)) != 0) {
+                topWords[mask].offer(normalizedWord, VisibilityBuckets.sum(bucketCounts, mask));
+            }
+        }
+        return sequence;
+    }
+
+    /**
+     * Changes the count of a word in one visibility bucket and logs the new count, as a reset if it was lowered.
+     *
+     * Journal records hold absolute counts, so the records of a word must reach the journal in the order its count
+     * changed: otherwise an addition computed before a subtraction but logged after its reset would restore the
+     * subtracted amount on replay. The word's lock is therefore held across the change and the append.
+     *
+     * @param bucketCounts Scratch array receiving the word's count per bucket
+     * @return the journal sequence number of the change, or 0 if persistence is not configured
+     */
+    private long updateCount(String normalizedWord, int bucket, long delta, long[] bucketCounts) throws TException {
+        if (persistence == null) {
+            wordCounts.add(normalizedWord, bucket, delta, bucketCounts);
+            return 0;
+        }
+
+        synchronized (wordLocks[(int) WordHash.of(normalizedWord) & (WORD_LOCKS - 1)]) {
+            long total = wordCounts.add(normalizedWord, bucket, delta, bucketCounts);
+            try {
+                return delta < 0
+                        ? persistence.logReset(normalizedWord, bucket, total)
+                        : persistence.log(normalizedWord, bucket, total);
+            } catch (IOException e) {
+                logger.error("Could not log the count of '{}'", normalizedWord, e);
+                throw new TException(e);
+            }
+        }
+    }
+
+    /**
+     * Moving words between shards reads and writes every visibility level, so it requires a token authorized for all
+     * of them, and it is only possible with exact counts.
+     */
+    private void validateReshardingAccess(EzSecurityToken securityToken) throws TException {
         TokenUtils.validateSecurityToken(securityToken, this.getConfigurationProperties());
 
-        int wordCount = 0;
-        if (StringUtils.isNotBlank(word) && wordCounts.containsKey(word.trim().toLowerCase())) {
-            wordCount = wordCounts.get(word.trim().toLowerCase());
+        if (VisibilityBuckets.maskOf(securityToken) != VisibilityBuckets.MASKS - 1) {
+            throw new TException("Moving word counts requires authorization for every visibility level");
+        }
+        if (wordCounts instanceof ApproximateWordCountStore) {
+            throw new TException("Approximate word counts cannot be moved between shards");
+        }
+    }
+
+    private static int bucketOfLevel(String level) throws TException {
+        for (int bucket = 0; bucket < VisibilityBuckets.COUNT; bucket++) {
+            if (VisibilityBuckets.levelOf(bucket).equals(level)) {
+                return bucket;
+            }
+        }
+        throw new TException("Unknown visibility level " + level);
+    }
+
+    private void awaitDurable(long sequence) throws TException {
+        if (persistence == null || !syncWrites || sequence == 0) {
+            return;
+        }
+
+        try {
+            persistence.awaitDurable(sequence);
+        } catch (IOException e) {
+            logger.error("Could not force the word count journal to disk", e);
+            throw new TException(e);
         }
-        return wordCount;
+    }
+
+    private static long currentTimeSeconds() {
+        return System.currentTimeMillis() / 1000;
+    }
+
+    private static String normalize(String word) {
+        return word.trim().toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * @return the normalized word, or null if it is blank or too long to be counted
+     */
+    private static String countableWord(String word) {
+        if (StringUtils.isBlank(word)) {
+            return null;
+        }
+
+        String normalizedWord = normalize(word);
+        // A char never takes more than three bytes in UTF-8, so most words need not be encoded to be checked
+        if (normalizedWord.length() > WordCountJournal.MAX_WORD_LENGTH / 3
+                && normalizedWord.getBytes(StandardCharsets.UTF_8).length > WordCountJournal.MAX_WORD_LENGTH) {
+            logger.warn("Ignoring a word of {} characters, which is too long to count", normalizedWord.length());
+            return null;
+        }
+        return normalizedWord;
+    }
+
+    /**
+     * Ends a store visit once enough words have been collected.
+     */
+    private static final class VisitLimitReachedException extends IOException {
+        private static final long serialVersionUID = 1L;
     }
 }
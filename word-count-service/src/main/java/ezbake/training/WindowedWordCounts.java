@@ -0,0 +1,339 @@
+/*   Copyright (C) 2013-2014 Computer Sciences Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. */
+
+package ezbake.training;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Word counts over recent time windows, keyed on the time the words were encountered.
+ *
+ * Counts are kept in two rings of time slots: 60 one-minute slots covering the last hour and 24 one-hour slots
+ * covering the last day. Every addition is counted in both rings, so a window of up to an hour is answered from the
+ * minute slots and a longer one from the hour slots, reading at most 60 slots per word. Each slot holds only the words
+ * encountered during its interval, with one counter per visibility bucket.
+ *
+ * Windows are measured back from the watermark, the latest event time seen so far, so replaying old Tweets produces
+ * the same windows as receiving them live. Additions older than the day ring are dropped, and event times more than a
+ * minute ahead of the local clock are clamped to it so that one bad timestamp cannot expire every slot. Whenever the
+ * watermark crosses into a new minute the slots that fell out of their ring are released, so memory is bounded by the
+ * vocabulary of the last hour and day rather than by the vocabulary ever seen.
+ *
+ * A window covers whole slots, so its oldest slot may include up to one slot length of older occurrences.
+ */
+public class WindowedWordCounts {
+    /**
+     * The longest window that can be queried, in seconds.
+     */
+    public static final int MAX_WINDOW_SECONDS = 24 * 60 * 60;
+
+    private static final long MAX_CLOCK_SKEW_SECONDS = 60L;
+
+    private static final Comparator<Trend> BY_GROWTH_DESCENDING = new Comparator<Trend>() {
+        @Override
+        public int compare(Trend left, Trend right) {
+            int result = Long.compare(right.growth, left.growth);
+            return result != 0 ? result : left.word.compareTo(right.word);
+        }
+    };
+
+    private final Ring minutes = new Ring(60, 60);
+    private final Ring hours = new Ring(24, 60 * 60);
+
+    /*
+     * The latest event time seen, in seconds since the UNIX epoch.
+     */
+    private final AtomicLong watermark = new AtomicLong();
+
+    /**
+     * Adds occurrences of a word.
+     *
+     * @param word Normalized word
+     * @param bucket Visibility bucket
+     * @param count Number of occurrences to add
+     * @param timestampSeconds Event time of the occurrences in seconds since the UNIX epoch
+     * @param nowSeconds The current time in seconds since the UNIX epoch
+     * @return false if the occurrences were dropped because they are older than the longest window
+     */
+    public boolean add(String word, int bucket, long count, long timestampSeconds, long nowSeconds) {
+        long time = Math.min(timestampSeconds, nowSeconds + MAX_CLOCK_SKEW_SECONDS);
+        if (time < 0) {
+            return false;
+        }
+
+        long mark = advance(time);
+        boolean counted = minutes.add(word, bucket, count, time, mark);
+        return hours.add(word, bucket, count, time, mark) || counted;
+    }
+
+    /**
+     * Gets the count of a word over a recent window.
+     *
+     * @param word Normalized word
+     * @param bucketMask The visibility buckets to count
+     * @param windowSeconds Length of the window ending at the watermark. Clamped to {@link #MAX_WINDOW_SECONDS}.
+     * @return the number of occurrences in the window
+     */
+    public long get(String word, int bucketMask, int windowSeconds) {
+        if (windowSeconds <= 0 || bucketMask == 0) {
+            return 0L;
+        }
+
+        Ring ring = ringFor(windowSeconds, 1);
+        int slotCount = ring.slotsFor(windowSeconds);
+        return ring.sum(word, bucketMask, ring.startOf(watermark.get()), slotCount);
+    }
+
+    /**
+     * Gets the words whose counts grew the most in a recent window compared with the window of the same length before
+     * it.
+     *
+     * @param k Maximum number of words to return
+     * @param bucketMask The visibility buckets to count
+     * @param windowSeconds Length of the window ending at the watermark. Clamped to half of
+     * {@link #MAX_WINDOW_SECONDS} so that the previous window is still retained.
+     * @return up to k words that grew, with their counts in the recent window, fastest growing first
+     */
+    public List<WordCount> trending(int k, int bucketMask, int windowSeconds) {
+        if (k <= 0 || windowSeconds <= 0 || bucketMask == 0) {
+            return new ArrayList<>();
+        }
+
+        int window = Math.min(windowSeconds, MAX_WINDOW_SECONDS / 2);
+        Ring ring = ringFor(window, 2);
+        int slotCount = ring.slotsFor(window);
+        long recentStart = ring.startOf(watermark.get());
+        long previousStart = recentStart - (long) slotCount * ring.slotSeconds;
+
+        Map<String, Long> recent = ring.collect(bucketMask, recentStart, slotCount);
+        PriorityQueue<Trend> heap = new PriorityQueue<>(k + 1, Collections.reverseOrder(BY_GROWTH_DESCENDING));
+        for (Map.Entry<String, Long> entry : recent.entrySet()) {
+            long growth = entry.getValue() - ring.sum(entry.getKey(), bucketMask, previousStart, slotCount);
+            if (growth > 0 && (heap.size() < k || growth > heap.peek().growth)) {
+                heap.add(new Trend(entry.getKey(), entry.getValue(), growth));
+                if (heap.size() > k) {
+                    heap.poll();
+                }
+            }
+        }
+
+        List<Trend> trends = new ArrayList<>(heap);
+        Collections.sort(trends, BY_GROWTH_DESCENDING);
+        List<WordCount> result = new ArrayList<>(trends.size());
+        for (Trend trend : trends) {
+            result.add(new WordCount(trend.word, trend.count));
+        }
+        return result;
+    }
+
+    /**
+     * @return the latest event time seen, in seconds since the UNIX epoch
+     */
+    public long getWatermark() {
+        return watermark.get();
+    }
+
+    /**
+     * Moves the watermark forward to the given time if it is later, releasing the slots that expire as a result.
+     *
+     * @return the watermark after the update
+     */
+    private long advance(long time) {
+        long current = watermark.get();
+        while (time > current) {
+            if (watermark.compareAndSet(current, time)) {
+                if (time / 60 != current / 60) {
+                    minutes.expire(time);
+                    hours.expire(time);
+                }
+                return time;
+            }
+            current = watermark.get();
+        }
+        return current;
+    }
+
+    /**
+     * Picks the finest ring that retains the given number of consecutive windows of the given length.
+     */
+    private Ring ringFor(int windowSeconds, int windows) {
+        return (long) windowSeconds * windows <= minutes.spanSeconds() ? minutes : hours;
+    }
+
+    /**
+     * A fixed number of consecutive time slots of equal length, reused round robin.
+     */
+    private static final class Ring {
+        private final AtomicReferenceArray<Slot> slots;
+        private final int slotSeconds;
+
+        Ring(int slotCount, int slotSeconds) {
+            this.slots = new AtomicReferenceArray<>(slotCount);
+            this.slotSeconds = slotSeconds;
+        }
+
+        long spanSeconds() {
+            return (long) slots.length() * slotSeconds;
+        }
+
+        long startOf(long time) {
+            return time - time % slotSeconds;
+        }
+
+        int slotsFor(int windowSeconds) {
+            return (int) Math.min(slots.length(), (windowSeconds + (long) slotSeconds - 1) / slotSeconds);
+        }
+
+        /**
+         * Counts occurrences in the slot for their time, replacing the expired slot that last used its position.
+         *
+         * @return false if the time is older than the ring retains
+         */
+        boolean add(String word, int bucket, long count, long time, long mark) {
+            long start = startOf(time);
+            if (start <= startOf(mark) - spanSeconds()) {
+                return false;
+            }
+
+            int index = indexOf(start);
+            Slot slot = slots.get(index);
+            while (slot == null || slot.start != start) {
+                if (slot != null && slot.start > start) {
+                    // A later slot already reuses this position, so the time has just expired
+                    return false;
+                }
+                Slot fresh = new Slot(start);
+                if (slots.compareAndSet(index, slot, fresh)) {
+                    slot = fresh;
+                } else {
+                    slot = slots.get(index);
+                }
+            }
+            slot.add(word, bucket, count);
+            return true;
+        }
+
+        /**
+         * Sums a word's counts over consecutive slots, going back in time from the given slot start.
+         */
+        long sum(String word, int bucketMask, long lastStart, int slotCount) {
+            long sum = 0;
+            for (int i = 0; i < slotCount; i++) {
+                Slot slot = slotAt(lastStart - (long) i * slotSeconds);
+                if (slot != null) {
+                    sum += slot.get(word, bucketMask);
+                }
+            }
+            return sum;
+        }
+
+        /**
+         * Sums the counts of every word over consecutive slots, going back in time from the given slot start.
+         */
+        Map<String, Long> collect(int bucketMask, long lastStart, int slotCount) {
+            Map<String, Long> sums = new HashMap<>();
+            for (int i = 0; i < slotCount; i++) {
+                Slot slot = slotAt(lastStart - (long) i * slotSeconds);
+                if (slot == null) {
+                    continue;
+                }
+                for (Map.Entry<String, AtomicLongArray> entry : slot.counts.entrySet()) {
+                    long count = VisibilityBuckets.sum(entry.getValue(), bucketMask);
+                    if (count > 0) {
+                        Long sum = sums.get(entry.getKey());
+                        sums.put(entry.getKey(), sum == null ? count : sum + count);
+                    }
+                }
+            }
+            return sums;
+        }
+
+        /**
+         * Releases every slot that is no longer retained once the watermark is at the given time.
+         */
+        void expire(long mark) {
+            long oldestStart = startOf(mark) - spanSeconds() + slotSeconds;
+            for (int index = 0; index < slots.length(); index++) {
+                Slot slot = slots.get(index);
+                if (slot != null && slot.start < oldestStart) {
+                    slots.compareAndSet(index, slot, null);
+                }
+            }
+        }
+
+        private Slot slotAt(long start) {
+            if (start < 0) {
+                return null;
+            }
+            Slot slot = slots.get(indexOf(start));
+            return slot != null && slot.start == start ? slot : null;
+        }
+
+        private int indexOf(long start) {
+            return (int) ((start / slotSeconds) % slots.length());
+        }
+    }
+
+    /**
+     * The counts of the words encountered during one slot.
+     */
+    private static final class Slot {
+        private final long start;
+        private final ConcurrentMap<String, AtomicLongArray> counts = new ConcurrentHashMap<>();
+
+        Slot(long start) {
+            this.start = start;
+        }
+
+        void add(String word, int bucket, long count) {
+            AtomicLongArray counters = counts.get(word);
+            if (counters == null) {
+                AtomicLongArray newCounters = new AtomicLongArray(VisibilityBuckets.COUNT);
+                counters = counts.putIfAbsent(word, newCounters);
+                if (counters == null) {
+                    counters = newCounters;
+                }
+            }
+            counters.addAndGet(bucket, count);
+        }
+
+        long get(String word, int bucketMask) {
+            AtomicLongArray counters = counts.get(word);
+            return counters == null ? 0L : VisibilityBuckets.sum(counters, bucketMask);
+        }
+    }
+
+    private static final class Trend {
+        private final String word;
+        private final long count;
+        private final long growth;
+
+        Trend(String word, long count, long growth) {
+            this.word = word;
+            this.count = count;
+            this.growth = growth;
+        }
+    }
+}
@@ -0,0 +1,494 @@
+/*   Copyright (C) 2013-2014 Computer Sciences Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. */
+
+package ezbake.training;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Append-only write-ahead log of word counts, split into numbered segment files.
+ *
+ * Each record holds a word, a visibility bucket and the value the word's count in that bucket reached, rather than the
+ * increment, so replaying a record more than once, or on top of a snapshot that already contains it, does not change
+ * the restored count. Counts normally only grow, so replay keeps the highest value seen. Counts lowered by moving words
+ * to another shard are logged as reset records, which set the count to their value when replayed, and a word left with
+ * no counts by a reset is removed from the store again. Records are protected by a CRC so that a record torn by a crash
+ * is detected and discarded on replay. Words longer than {@link #MAX_WORD_LENGTH} bytes are rejected when appended, so
+ * every record written fits the limit replay expects.
+ *
+ * Appends only copy the record into a memory buffer. A single writer thread writes everything appended since its last
+ * pass with one write and one {@code fsync} (group commit), so the cost of forcing the log to disk is shared by all of
+ * the callers that appended in the meantime. Callers that need durability wait for their sequence number with
+ * {@link #awaitDurable(long)}.
+ */
+public class WordCountJournal implements Closeable {
+    private static final Logger logger = LoggerFactory.getLogger(WordCountJournal.class);
+
+    private static final String SEGMENT_PREFIX = "wal-";
+    private static final String SEGMENT_SUFFIX = ".log";
+    private static final int INITIAL_BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * The longest word, in UTF-8 bytes, that the journal accepts.
+     */
+    public static final int MAX_WORD_LENGTH = 64 * 1024;
+
+    /*
+     * The bytes of a record besides the word: its length, the bucket byte, the count and the CRC.
+     */
+    private static final int RECORD_OVERHEAD = 4 + 1 + 8 + 4;
+
+    /*
+     * Set in the bucket byte of a reset record.
+     */
+    private static final int RESET_FLAG = 0x40;
+
+    private final File directory;
+    private final Object lock = new Object();
+    private final Thread writer;
+
+    /*
+     * All of the following fields are guarded by the lock.
+     */
+    private ByteBuffer pending = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+    private long appendedSequence;
+    private long durableSequence;
+    private long segment;
+    private boolean rotationRequested;
+    private boolean closed;
+    private IOException failure;
+
+    /*
+     * Only used by the writer thread once the journal is constructed.
+     */
+    private FileChannel channel;
+
+    /**
+     * Opens a journal that appends to the given segment.
+     *
+     * @param directory Directory holding the segment files
+     * @param segment Number of the segment to append to
+     * @throws IOException if the segment cannot be opened
+     */
+    public WordCountJournal(File directory, long segment) throws IOException {
+        this.directory = directory;
+        this.segment = segment;
+        this.channel = openSegment(segment);
+
+        writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                writeLoop();
+            }
+        }, "word-count-journal");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Appends a record to the journal. The record is not durable until {@link #awaitDurable(long)} returns for the
+     * returned sequence number.
+     *
+     * @param word Normalized word
+     * @param bucket Visibility bucket
+     * @param count The count the word has reached in the bucket
+     * @param reset Whether the count was lowered, so replay must set it rather than keep the highest value
+     * @return the sequence number of the record
+     * @throws IllegalArgumentException if the word is longer than {@link #MAX_WORD_LENGTH} bytes in UTF-8
+     * @throws IOException if the journal has failed or is closed
+     */
+    public long append(String word, int bucket, long count, boolean reset) throws IOException {
+        byte[] wordBytes = word.getBytes(StandardCharsets.UTF_8);
+        if (wordBytes.length > MAX_WORD_LENGTH) {
+            throw new IllegalArgumentException(
+                    "A word of " + wordBytes.length + " bytes is longer than the journal allows");
+        }
+        byte[] record = encode(wordBytes, bucket | (reset ? RESET_FLAG : 0), count);
+        synchronized (lock) {
+            checkUsable();
+            if (pending.remaining() < record.length) {
+                ByteBuffer larger = ByteBuffer.allocate(Math.max(pending.capacity() * 2, pending.position()
+                        + record.length));
+                pending.flip();
+                larger.put(pending);
+                pending = larger;
+            }
+            pending.put(record);
+            appendedSequence++;
+            lock.notifyAll();
+            return appendedSequence;
+        }
+    }
+
+    /**
+     * Waits until the record with the given sequence number, and all records before it, have been forced to disk.
+     *
+     * @param sequence Sequence number returned by {@link #append(String, int, long, boolean)}
+     * @throws IOException if the journal failed before the record became durable
+     */
+    public void awaitDurable(long sequence) throws IOException {
+        synchronized (lock) {
+            while (durableSequence < sequence) {
+                if (failure != null || closed && !writer.isAlive()) {
+                    checkUsable();
+                }
+                try {
+                    lock.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while waiting for the word count journal");
+                }
+            }
+        }
+    }
+
+    /**
+     * Forces everything appended so far to disk and starts a new segment. Records appended after this method returns
+     * go to the new segment.
+     *
+     * @return the number of the new segment
+     * @throws IOException if the journal failed
+     */
+    public long rotate() throws IOException {
+        synchronized (lock) {
+            long target = segment + 1;
+            rotationRequested = true;
+            lock.notifyAll();
+            while (segment < target) {
+                checkUsable();
+                try {
+                    lock.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while rotating the word count journal");
+                }
+            }
+            return segment;
+        }
+    }
+
+    /**
+     * Forces any pending records to disk and stops the writer thread.
+     */
+    @Override
+    public void close() throws IOException {
+        synchronized (lock) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            lock.notifyAll();
+        }
+
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        channel.close();
+    }
+
+    /**
+     * Replays the records of every segment starting at the given segment into a store, in segment order. A torn
+     * record at the end of a segment, left by a crash, is discarded and the segment is truncated to its last complete
+     * record. A damaged record that is followed by intact records cannot have been left by a crash, so rather than
+     * discard the intact records replay fails.
+     *
+     * @param directory Directory holding the segment files
+     * @param fromSegment First segment to replay
+     * @param store Store to restore the counts into
+     * @return the number of the last segment replayed, or {@code fromSegment - 1} if there was none
+     * @throws IOException if a segment cannot be read, or holds intact records after a damaged one
+     */
+    public static long replay(File directory, long fromSegment, WordCountStore store) throws IOException {
+        long lastSegment = fromSegment - 1;
+        for (long segment : listSegments(directory)) {
+            if (segment < fromSegment) {
+                continue;
+            }
+
+            File file = segmentFile(directory, segment);
+            long validLength = replaySegment(file, store);
+            if (validLength < file.length()) {
+                long intact = findIntactRecord(file, validLength + 1);
+                if (intact >= 0) {
+                    throw new IOException(String.format(
+                            "%s has a damaged record at offset %d followed by an intact record at offset %d",
+                            file, validLength, intact));
+                }
+                logger.warn(
+                        "Discarding {} bytes of incomplete records at the end of {}", file.length() - validLength,
+                        file);
+                try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+                    raf.setLength(validLength);
+                }
+            }
+            lastSegment = segment;
+        }
+        return lastSegment;
+    }
+
+    /**
+     * Deletes every segment numbered lower than the given segment.
+     *
+     * @param directory Directory holding the segment files
+     * @param segment Lowest segment to keep
+     */
+    public static void deleteSegmentsBefore(File directory, long segment) {
+        for (long existing : listSegments(directory)) {
+            if (existing < segment && !segmentFile(directory, existing).delete()) {
+                logger.warn("Could not delete journal segment {}", segmentFile(directory, existing));
+            }
+        }
+    }
+
+    /**
+     * @param directory Directory holding the segment files
+     * @return the numbers of the existing segments in ascending order
+     */
+    public static List<Long> listSegments(File directory) {
+        String[] names = directory.list(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX);
+            }
+        });
+
+        List<Long> segments = new ArrayList<>();
+        if (names != null) {
+            for (String name : names) {
+                try {
+                    segments.add(Long.parseLong(
+                            name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length())));
+                } catch (NumberFormatException e) {
+                    logger.warn("Ignoring unexpected file {} in {}", name, directory);
+                }
+            }
+        }
+        Collections.sort(segments);
+        return segments;
+    }
+
+    private void writeLoop() {
+        ByteBuffer spare = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+        while (true) {
+            ByteBuffer toWrite;
+            long sequence;
+            boolean rotate;
+            boolean stop;
+            synchronized (lock) {
+                while (pending.position() == 0 && !rotationRequested && !closed) {
+                    try {
+                        lock.wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return;
+                    }
+                }
+                toWrite = pending;
+                pending = spare;
+                sequence = appendedSequence;
+                rotate = rotationRequested;
+                stop = closed;
+            }
+
+            try {
+                toWrite.flip();
+                while (toWrite.hasRemaining()) {
+                    channel.write(toWrite);
+                }
+                channel.force(false);
+                toWrite.clear();
+                spare = toWrite;
+
+                long newSegment = -1;
+                if (rotate) {
+                    long current;
+                    synchronized (lock) {
+                        current = segment;
+                    }
+                    newSegment = current + 1;
+                    FileChannel next = openSegment(newSegment);
+                    channel.close();
+                    channel = next;
+                }
+
+                synchronized (lock) {
+                    durableSequence = sequence;
+                    if (rotate) {
+                        segment = newSegment;
+                        rotationRequested = false;
+                    }
+                    lock.notifyAll();
+                }
+            } catch (IOException e) {
+                logger.error("Could not write the word count journal", e);
+                synchronized (lock) {
+                    failure = e;
+                    lock.notifyAll();
+                }
+                return;
+            }
+
+            if (stop) {
+                synchronized (lock) {
+                    if (pending.position() == 0) {
+                        return;
+                    }
+                }
+            }
+        }
+    }
+
+    private void checkUsable() throws IOException {
+        if (failure != null) {
+            throw new IOException("The word count journal has failed", failure);
+        }
+        if (closed) {
+            throw new IOException("The word count journal is closed");
+        }
+    }
+
+    private FileChannel openSegment(long number) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(segmentFile(directory, number), "rw");
+        FileChannel segmentChannel = file.getChannel();
+        segmentChannel.position(segmentChannel.size());
+        return segmentChannel;
+    }
+
+    private static File segmentFile(File directory, long segment) {
+        return new File(directory, String.format("%s%019d%s", SEGMENT_PREFIX, segment, SEGMENT_SUFFIX));
+    }
+
+    private static byte[] encode(byte[] wordBytes, int bucket, long count) {
+        ByteBuffer record = ByteBuffer.allocate(wordBytes.length + RECORD_OVERHEAD);
+        record.putInt(wordBytes.length);
+        record.put(wordBytes);
+        record.put((byte) bucket);
+        record.putLong(count);
+
+        CRC32 crc = new CRC32();
+        crc.update(record.array(), 0, record.position());
+        record.putInt((int) crc.getValue());
+        return record.array();
+    }
+
+    /**
+     * @return the length of the segment up to the end of its last complete record
+     */
+    private static long replaySegment(File file, WordCountStore store) throws IOException {
+        long fileLength = file.length();
+        long validLength = 0;
+        CRC32 crc = new CRC32();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 20))) {
+            while (true) {
+                // Records are only trusted by their CRC, so the length is only checked against what can be read
+                int length = in.readInt();
+                if (length < 0 || validLength + length + RECORD_OVERHEAD > fileLength) {
+                    break;
+                }
+                byte[] record = new byte[4 + length + 1 + 8];
+                ByteBuffer.wrap(record).putInt(length);
+                in.readFully(record, 4, length + 1 + 8);
+                int expectedCrc = in.readInt();
+
+                crc.reset();
+                crc.update(record, 0, record.length);
+                if ((int) crc.getValue() != expectedCrc) {
+                    break;
+                }
+
+                String word = new String(record, 4, length, StandardCharsets.UTF_8);
+                int flags = record[4 + length];
+                int bucket = flags & ~RESET_FLAG;
+                if (!isBucket(bucket)) {
+                    break;
+                }
+                long count = ByteBuffer.wrap(record, 4 + length + 1, 8).getLong();
+                if ((flags & RESET_FLAG) != 0) {
+                    store.add(word, bucket, count - store.get(word, 1 << bucket), null);
+                    if (count == 0) {
+                        store.removeIfZero(word);
+                    }
+                } else {
+                    store.restore(word, bucket, count);
+                }
+                validLength += record.length + 4;
+            }
+        } catch (EOFException e) {
+            // The segment ended, possibly in the middle of a torn record
+        }
+        return validLength;
+    }
+
+    /**
+     * Searches a segment for a record with a valid CRC starting at or after the given offset.
+     *
+     * @return the offset of the first such record, or -1 if there is none
+     */
+    private static long findIntactRecord(File file, long from) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            long size = raf.length();
+            if (size - from < RECORD_OVERHEAD) {
+                return -1;
+            }
+            ByteBuffer tail = raf.getChannel().map(
+                    FileChannel.MapMode.READ_ONLY, from, Math.min(size - from, Integer.MAX_VALUE));
+            CRC32 crc = new CRC32();
+            byte[] record = new byte[0];
+            for (int offset = 0; offset <= tail.limit() - RECORD_OVERHEAD; offset++) {
+                int length = tail.getInt(offset);
+                if (length < 0 || length > tail.limit() - RECORD_OVERHEAD - offset
+                        || !isBucket(tail.get(offset + 4 + length) & ~RESET_FLAG)) {
+                    continue;
+                }
+                int checked = 4 + length + 1 + 8;
+                if (record.length < checked) {
+                    record = new byte[checked];
+                }
+                tail.position(offset);
+                tail.get(record, 0, checked);
+                crc.reset();
+                crc.update(record, 0, checked);
+                if ((int) crc.getValue() == tail.getInt(offset + checked)) {
+                    return from + offset;
+                }
+            }
+            return -1;
+        }
+    }
+
+    private static boolean isBucket(int bucket) {
+        return bucket >= 0 && bucket < VisibilityBuckets.COUNT;
+    }
+}
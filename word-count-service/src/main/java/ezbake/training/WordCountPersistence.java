@@ -0,0 +1,231 @@
+/*   Copyright (C) 2013-2014 Computer Sciences Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. */
+
+package ezbake.training;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keeps the counts of a {@link WordCountStore} on local disk so that they survive a restart.
+ *
+ * Every count change is appended to a {@link WordCountJournal}, and a {@link WordCountSnapshot} of the whole store is
+ * written periodically. A snapshot is named after the first journal segment it does not cover: before it is written the
+ * journal is rotated, and once it is complete the older snapshots and segments are deleted. On startup the newest
+ * snapshot is loaded and the segments from its number on are replayed, after deleting any snapshot left incomplete by a
+ * crash. Because journal records hold absolute counts, records that are also reflected in the snapshot are harmless to
+ * replay. Counts lowered by resharding are logged with {@link #logReset(String, int, long)} so that replay does not
+ * restore the moved amounts. Since replay takes the value of the last reset of a word, the changes of a word must be
+ * logged in the order they were made to the store.
+ */
+public class WordCountPersistence implements Closeable {
+    private static final Logger logger = LoggerFactory.getLogger(WordCountPersistence.class);
+
+    private static final String SNAPSHOT_PREFIX = "snapshot-";
+    private static final String SNAPSHOT_SUFFIX = ".dat";
+    private static final String TEMPORARY_SUFFIX = ".tmp";
+
+    private final File directory;
+    private final WordCountStore store;
+    private final WordCountJournal journal;
+    private final ScheduledExecutorService snapshotScheduler;
+
+    private WordCountPersistence(File directory, WordCountStore store, long firstSegment) throws IOException {
+        this.directory = directory;
+        this.store = store;
+        this.journal = new WordCountJournal(directory, firstSegment);
+        this.snapshotScheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "word-count-snapshot");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Restores the persisted counts into a store and starts persisting its changes.
+     *
+     * @param directory Directory holding the journal and snapshots. It is created if it does not exist.
+     * @param store Store to restore into. It should be empty.
+     * @param snapshotIntervalSeconds How often a snapshot is taken
+     * @return the persistence for the store
+     * @throws IOException if the persisted state cannot be read
+     */
+    public static WordCountPersistence open(File directory, WordCountStore store, long snapshotIntervalSeconds)
+            throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Could not create the word count data directory " + directory);
+        }
+
+        long start = System.currentTimeMillis();
+        deleteTemporarySnapshots(directory);
+        long snapshotSegment = latestSnapshot(directory);
+        if (snapshotSegment >= 0) {
+            long words = WordCountSnapshot.load(snapshotFile(directory, snapshotSegment), store);
+            logger.info("Loaded {} words from snapshot {}", words, snapshotSegment);
+        } else {
+            snapshotSegment = 0;
+        }
+        long lastSegment = WordCountJournal.replay(directory, snapshotSegment, store);
+        logger.info(
+                "Restored {} words from {} in {} ms", store.size(), directory, System.currentTimeMillis() - start);
+
+        final WordCountPersistence persistence =
+                new WordCountPersistence(directory, store, Math.max(lastSegment + 1, snapshotSegment));
+        persistence.snapshotScheduler.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    persistence.snapshot();
+                } catch (IOException | RuntimeException e) {
+                    logger.error("Could not take a word count snapshot", e);
+                }
+            }
+        }, snapshotIntervalSeconds, snapshotIntervalSeconds, TimeUnit.SECONDS);
+        return persistence;
+    }
+
+    /**
+     * Records that a word's count in a visibility bucket has changed.
+     *
+     * @param word Normalized word
+     * @param bucket Visibility bucket
+     * @param count The word's new count in the bucket
+     * @return sequence number to pass to {@link #awaitDurable(long)}
+     * @throws IOException if the journal cannot be written
+     */
+    public long log(String word, int bucket, long count) throws IOException {
+        return journal.append(word, bucket, count, false);
+    }
+
+    /**
+     * Records that a word's count in a visibility bucket has been lowered.
+     *
+     * @param word Normalized word
+     * @param bucket Visibility bucket
+     * @param count The word's new count in the bucket
+     * @return sequence number to pass to {@link #awaitDurable(long)}
+     * @throws IOException if the journal cannot be written
+     */
+    public long logReset(String word, int bucket, long count) throws IOException {
+        return journal.append(word, bucket, count, true);
+    }
+
+    /**
+     * Waits until the change with the given sequence number, and all earlier changes, are on disk.
+     *
+     * @param sequence Sequence number returned by {@link #log(String, int, long)}
+     * @throws IOException if the journal cannot be written
+     */
+    public void awaitDurable(long sequence) throws IOException {
+        journal.awaitDurable(sequence);
+    }
+
+    /**
+     * Writes a snapshot of the store and deletes the snapshots and journal segments it replaces.
+     *
+     * @throws IOException if the snapshot cannot be written
+     */
+    public synchronized void snapshot() throws IOException {
+        long start = System.currentTimeMillis();
+        long segment = journal.rotate();
+
+        File temporary = new File(directory, SNAPSHOT_PREFIX + segment + TEMPORARY_SUFFIX);
+        long words = WordCountSnapshot.write(store, temporary);
+        if (!temporary.renameTo(snapshotFile(directory, segment))) {
+            throw new IOException("Could not rename " + temporary + " to " + snapshotFile(directory, segment));
+        }
+
+        for (File old : listSnapshots(directory)) {
+            long oldSegment = snapshotNumber(old.getName());
+            if (oldSegment < segment && !old.delete()) {
+                logger.warn("Could not delete old snapshot {}", old);
+            }
+        }
+        WordCountJournal.deleteSegmentsBefore(directory, segment);
+        logger.info("Wrote a snapshot of {} words in {} ms", words, System.currentTimeMillis() - start);
+    }
+
+    /**
+     * Stops taking snapshots and closes the journal after forcing it to disk.
+     */
+    @Override
+    public void close() throws IOException {
+        snapshotScheduler.shutdown();
+        journal.close();
+    }
+
+    /**
+     * Deletes the partly written snapshots left by a crash while a snapshot was being taken.
+     */
+    private static void deleteTemporarySnapshots(File directory) {
+        File[] temporaries = directory.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.startsWith(SNAPSHOT_PREFIX) && name.endsWith(TEMPORARY_SUFFIX);
+            }
+        });
+        if (temporaries == null) {
+            return;
+        }
+        for (File temporary : temporaries) {
+            if (temporary.delete()) {
+                logger.info("Deleted the incomplete snapshot {}", temporary);
+            } else {
+                logger.warn("Could not delete the incomplete snapshot {}", temporary);
+            }
+        }
+    }
+
+    private static long latestSnapshot(File directory) {
+        long latest = -1;
+        for (File snapshot : listSnapshots(directory)) {
+            latest = Math.max(latest, snapshotNumber(snapshot.getName()));
+        }
+        return latest;
+    }
+
+    private static File[] listSnapshots(File directory) {
+        File[] snapshots = directory.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.startsWith(SNAPSHOT_PREFIX) && name.endsWith(SNAPSHOT_SUFFIX) && snapshotNumber(name) >= 0;
+            }
+        });
+        return snapshots == null ? new File[0] : snapshots;
+    }
+
+    private static long snapshotNumber(String name) {
+        try {
+            return Long.parseLong(name.substring(SNAPSHOT_PREFIX.length(), name.length() - SNAPSHOT_SUFFIX.length()));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static File snapshotFile(File directory, long segment) {
+        return new File(directory, SNAPSHOT_PREFIX + segment + SNAPSHOT_SUFFIX);
+    }
+}
@@ -0,0 +1,210 @@
+/*   Copyright (C) 2013-2014 Computer Sciences Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. */
+
+package ezbake.training;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+
+import org.apache.thrift.TException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import ezbake.base.thrift.EzSecurityToken;
+import ezbake.configuration.EzConfiguration;
+import ezbake.data.common.ThriftClient;
+import ezbake.security.client.EzbakeSecurityClient;
+import ezbake.thrift.ThriftClientPool;
+
+/**
+ * Moves word counts between word count service shards after the shard ring changes.
+ *
+ * Every shard of the old and the new ring is asked for the words the new ring assigns elsewhere. Each batch is merged
+ * into the words' new shards before it is subtracted from the old one, so no count is ever missing from the cluster.
+ * Subtracting the exported amounts rather than deleting the words keeps any additions that reach the old shard while
+ * the move is in progress, and running the resharder again moves them too. If the resharder stops between merging a
+ * batch and subtracting it, the batch is counted twice; the batch size bounds that error.
+ *
+ * To reshard, point the writers and readers at the new ring with {@link WordShardRing#SHARDS_PROPERTY}, start any new
+ * shards, then run:
+ *
+ * <pre>
+ * WordCountResharder &lt;old shards&gt; &lt;new shards&gt; [batch size]
+ * </pre>
+ *
+ * where the shard lists are comma separated service names. The application token must be authorized for every formal
+ * visibility level.
+ */
+public class WordCountResharder {
+    private static final Logger logger = LoggerFactory.getLogger(WordCountResharder.class);
+
+    private static final int DEFAULT_BATCH_SIZE = 10000;
+
+    private final Shards shards;
+    private final int batchSize;
+
+    /**
+     * @param properties The EzBake configuration values for the running environment
+     * @param batchSize The maximum number of words moved per call
+     */
+    public WordCountResharder(Properties properties, int batchSize) {
+        this(new PooledShards(properties), batchSize);
+    }
+
+    /**
+     * @param shards The clients of the shards and the token to call them with
+     * @param batchSize The maximum number of words moved per call
+     */
+    WordCountResharder(Shards shards, int batchSize) {
+        this.shards = shards;
+        this.batchSize = batchSize;
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2) {
+            System.err.println("Usage: WordCountResharder <old shards> <new shards> [batch size]");
+            System.exit(1);
+        }
+
+        List<String> oldShards = Arrays.asList(args[0].split(","));
+        List<String> newShards = Arrays.asList(args[1].split(","));
+        int batchSize = args.length > 2 ? Integer.parseInt(args[2]) : DEFAULT_BATCH_SIZE;
+
+        WordCountResharder resharder = new WordCountResharder(new EzConfiguration().getProperties(), batchSize);
+        try {
+            long moved = resharder.reshard(oldShards, newShards);
+            logger.info("Moved {} words", moved);
+        } finally {
+            ThriftClient.close();
+        }
+    }
+
+    /**
+     * Moves every word held by a shard of either ring to the shard the new ring assigns it to.
+     *
+     * @param oldShards Service names of the shards of the old ring
+     * @param newShards Service names of the shards of the new ring
+     * @return the number of words moved
+     * @throws TException if a shard cannot be reached
+     */
+    public long reshard(List<String> oldShards, List<String> newShards) throws TException {
+        WordShardRing ring = new WordShardRing(newShards);
+        Set<String> sources = new LinkedHashSet<>(oldShards);
+        sources.addAll(newShards);
+
+        long moved = 0;
+        for (String source : sources) {
+            moved += drain(source, ring);
+        }
+        return moved;
+    }
+
+    /**
+     * Moves the words a shard holds for other shards, one batch at a time, until it holds none.
+     */
+    private long drain(String source, WordShardRing ring) throws TException {
+        long moved = 0;
+        while (true) {
+            EzSecurityToken token = shards.fetchToken();
+            List<WordLevelCounts> batch;
+            TweetWordCountService.Iface sourceClient = shards.getClient(source);
+            try {
+                batch = sourceClient.exportMisplacedWords(ring.getShards(), source, batchSize, token);
+            } finally {
+                shards.returnClient(sourceClient);
+            }
+            if (batch.isEmpty()) {
+                logger.info("Moved {} words from {}", moved, source);
+                return moved;
+            }
+
+            Map<String, List<WordLevelCounts>> targets = new HashMap<>();
+            for (WordLevelCounts counts : batch) {
+                String target = ring.shardFor(counts.getWord());
+                List<WordLevelCounts> targetBatch = targets.get(target);
+                if (targetBatch == null) {
+                    targetBatch = new ArrayList<>();
+                    targets.put(target, targetBatch);
+                }
+                targetBatch.add(counts);
+            }
+
+            logger.info("Moving {} words from {}", batch.size(), source);
+            for (Map.Entry<String, List<WordLevelCounts>> entry : targets.entrySet()) {
+                TweetWordCountService.Iface targetClient = shards.getClient(entry.getKey());
+                try {
+                    targetClient.mergeCounts(entry.getValue(), token);
+                } finally {
+                    shards.returnClient(targetClient);
+                }
+            }
+
+            sourceClient = shards.getClient(source);
+            try {
+                sourceClient.subtractCounts(batch, token);
+            } finally {
+                shards.returnClient(sourceClient);
+            }
+            moved += batch.size();
+        }
+    }
+
+    /**
+     * The word count service shards the resharder moves words between.
+     */
+    interface Shards {
+        /**
+         * @return an application token authorized for every formal visibility level
+         */
+        EzSecurityToken fetchToken() throws TException;
+
+        TweetWordCountService.Iface getClient(String shard) throws TException;
+
+        void returnClient(TweetWordCountService.Iface client);
+    }
+
+    /**
+     * The shards reached through the EzBake Thrift client pool.
+     */
+    private static final class PooledShards implements Shards {
+        private final ThriftClientPool pool;
+        private final EzbakeSecurityClient securityClient;
+
+        PooledShards(Properties properties) {
+            this.pool = new ThriftClientPool(properties);
+            this.securityClient = new EzbakeSecurityClient(properties);
+        }
+
+        @Override
+        public EzSecurityToken fetchToken() throws TException {
+            return securityClient.fetchAppToken();
+        }
+
+        @Override
+        public TweetWordCountService.Iface getClient(String shard) throws TException {
+            return pool.getClient(shard, TweetWordCountService.Client.class);
+        }
+
+        @Override
+        public void returnClient(TweetWordCountService.Iface client) {
+            pool.returnToPool(client);
+        }
+    }
+}
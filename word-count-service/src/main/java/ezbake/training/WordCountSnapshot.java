@@ -0,0 +1,186 @@
+/*   Copyright (C) 2013-2014 Computer Sciences Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. */
+
+package ezbake.training;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.CRC32;
+
+/**
+ * Reads and writes compact snapshot files of a {@link WordCountStore}.
+ *
+ * A snapshot is a header followed by one record per word (length-prefixed UTF-8 bytes and the count of each
+ * visibility bucket) and a CRC of all records. Snapshots are written sequentially through a large buffer and loaded
+ * with memory-mapped I/O, so a restart reads the file at disk speed without copying it through stream buffers.
+ */
+public final class WordCountSnapshot {
+    private static final int MAGIC = 0x57435331;
+    private static final int VERSION = 2;
+    private static final int COUNTS_LENGTH = 8 * VisibilityBuckets.COUNT;
+    private static final int HEADER_LENGTH = 4 + 4 + 8;
+    private static final int WRITE_BUFFER_SIZE = 4 * 1024 * 1024;
+
+    /*
+     * Upper bound on a single mapping. Larger snapshots are mapped in consecutive windows.
+     */
+    private static final long MAX_MAPPING = 1L << 30;
+
+    private WordCountSnapshot() {
+    }
+
+    /**
+     * Writes every word of a store to a snapshot file and forces it to disk.
+     *
+     * @param store Store to write
+     * @param file File to write to. Any existing content is replaced.
+     * @return the number of words written
+     * @throws IOException if the file cannot be written
+     */
+    public static long write(WordCountStore store, File file) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(0);
+            final FileChannel channel = raf.getChannel();
+            final ByteBuffer buffer = ByteBuffer.allocateDirect(WRITE_BUFFER_SIZE);
+            final CRC32 crc = new CRC32();
+            final long[] entries = new long[1];
+            final byte[] scratch = new byte[COUNTS_LENGTH];
+
+            buffer.putInt(MAGIC).putInt(VERSION).putLong(0L);
+            store.visit(new WordCountStore.Visitor() {
+                @Override
+                public void visit(String word, long[] bucketCounts) throws IOException {
+                    byte[] wordBytes = word.getBytes(StandardCharsets.UTF_8);
+                    if (buffer.remaining() < 4 + wordBytes.length + COUNTS_LENGTH) {
+                        drain(channel, buffer);
+                    }
+                    buffer.putInt(wordBytes.length).put(wordBytes);
+                    for (long count : bucketCounts) {
+                        buffer.putLong(count);
+                    }
+                    updateCrc(crc, wordBytes, wordBytes.length, bucketCounts, scratch);
+                    entries[0]++;
+                }
+            });
+            if (buffer.remaining() < 4) {
+                drain(channel, buffer);
+            }
+            buffer.putInt((int) crc.getValue());
+            drain(channel, buffer);
+
+            buffer.putLong(entries[0]).flip();
+            channel.write(buffer, 8);
+            channel.force(true);
+            return entries[0];
+        }
+    }
+
+    /**
+     * Loads a snapshot file into a store.
+     *
+     * @param file Snapshot file
+     * @param store Store to restore the counts into
+     * @return the number of words loaded
+     * @throws IOException if the file cannot be read or is corrupt
+     */
+    public static long load(File file, WordCountStore store) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            FileChannel channel = raf.getChannel();
+            long size = channel.size();
+            if (size < HEADER_LENGTH + 4) {
+                throw new IOException("Snapshot " + file + " is truncated");
+            }
+
+            MappedByteBuffer mapped = map(channel, 0, size);
+            if (mapped.getInt() != MAGIC || mapped.getInt() != VERSION) {
+                throw new IOException("Snapshot " + file + " has an unknown format");
+            }
+            long entries = mapped.getLong();
+
+            CRC32 crc = new CRC32();
+            byte[] wordBytes = new byte[256];
+            byte[] scratch = new byte[COUNTS_LENGTH];
+            long[] bucketCounts = new long[VisibilityBuckets.COUNT];
+            long position = HEADER_LENGTH;
+            for (long i = 0; i < entries; i++) {
+                if (mapped.remaining() < 4) {
+                    mapped = map(channel, position, size);
+                }
+                int length = mapped.getInt(mapped.position());
+                if (length < 0 || position + 4 + length + COUNTS_LENGTH > size - 4) {
+                    throw new IOException("Snapshot " + file + " is corrupt");
+                }
+                if (mapped.remaining() < 4 + length + COUNTS_LENGTH) {
+                    mapped = map(channel, position, size);
+                }
+                if (wordBytes.length < length) {
+                    wordBytes = new byte[Math.max(length, wordBytes.length * 2)];
+                }
+
+                mapped.getInt();
+                mapped.get(wordBytes, 0, length);
+                for (int bucket = 0; bucket < VisibilityBuckets.COUNT; bucket++) {
+                    bucketCounts[bucket] = mapped.getLong();
+                }
+                updateCrc(crc, wordBytes, length, bucketCounts, scratch);
+
+                String word = new String(wordBytes, 0, length, StandardCharsets.UTF_8);
+                for (int bucket = 0; bucket < VisibilityBuckets.COUNT; bucket++) {
+                    if (bucketCounts[bucket] != 0) {
+                        store.restore(word, bucket, bucketCounts[bucket]);
+                    }
+                }
+                position += 4 + length + COUNTS_LENGTH;
+            }
+
+            if (mapped.remaining() < 4) {
+                mapped = map(channel, position, size);
+            }
+            if (mapped.getInt() != (int) crc.getValue()) {
+                throw new IOException("Snapshot " + file + " failed its checksum");
+            }
+            return entries;
+        }
+    }
+
+    private static MappedByteBuffer map(FileChannel channel, long position, long size) throws IOException {
+        return channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(size - position, MAX_MAPPING));
+    }
+
+    private static void drain(FileChannel channel, ByteBuffer buffer) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    /**
+     * Adds a record's word bytes and counts to the CRC without allocating.
+     */
+    private static void updateCrc(CRC32 crc, byte[] wordBytes, int length, long[] bucketCounts, byte[] scratch) {
+        crc.update(wordBytes, 0, length);
+        for (int bucket = 0; bucket < bucketCounts.length; bucket++) {
+            for (int i = 0; i < 8; i++) {
+                scratch[bucket * 8 + i] = (byte) (bucketCounts[bucket] >>> (56 - 8 * i));
+            }
+        }
+        crc.update(scratch, 0, bucketCounts.length * 8);
+    }
+}
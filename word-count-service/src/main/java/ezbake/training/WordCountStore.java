@@ -0,0 +1,105 @@
+/*   Copyright (C) 2013-2014 Computer Sciences Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. */
+
+package ezbake.training;
+
+import java.io.IOException;
+
+/**
+ * Storage engine behind the {@link TweetWordCountServiceImpl}.
+ *
+ * Every word has one count per visibility bucket (see {@link VisibilityBuckets}). Reads name the buckets to include
+ * with a bit mask, so a caller only ever sees the sum of the buckets it is authorized for.
+ *
+ * Implementations must be safe for concurrent use by the Thrift server threads; no increment may be lost when several
+ * callers add the same word at the same time. Words are expected to be normalized by the caller.
+ */
+public interface WordCountStore {
+    /**
+     * Adds the given amount to the count of a word in one visibility bucket.
+     *
+     * @param word Normalized word
+     * @param bucket Visibility bucket
+     * @param delta Amount to add
+     * @param bucketCounts If not null, receives the counts of every bucket of the word after the addition
+     * @return the count of the word in the bucket after the addition
+     */
+    long add(String word, int bucket, long delta, long[] bucketCounts);
+
+    /**
+     * Gets the current count of a word.
+     *
+     * @param word Normalized word
+     * @param bucketMask Bit mask of the visibility buckets to include
+     * @return the sum of the counts of the word in the included buckets, or 0 if it has never been added
+     */
+    long get(String word, int bucketMask);
+
+    /**
+     * Gets how far a count returned by {@link #get(String, int)} may exceed the true count. Exact stores return 0.
+     *
+     * @param bucketMask Bit mask of the visibility buckets included in the count
+     * @return the error bound, which holds with probability {@link #getConfidence()}
+     */
+    long getErrorBound(int bucketMask);
+
+    /**
+     * @return the probability that a count is within {@link #getErrorBound(int)} of the true count, 1 for exact stores
+     */
+    double getConfidence();
+
+    /**
+     * Raises the count of a word in one visibility bucket to at least the given value. Used when restoring persisted
+     * counts, where replaying the same value more than once must not change the result.
+     *
+     * @param word Normalized word
+     * @param bucket Visibility bucket
+     * @param count Value the count must be at least
+     */
+    void restore(String word, int bucket, long count);
+
+    /**
+     * Removes a word whose counts are all zero, e.g. because it was moved to another shard, so that it no longer takes
+     * up memory or snapshot space. A word with any count other than zero is left as it is.
+     *
+     * @param word Normalized word
+     * @return whether the word was removed
+     */
+    boolean removeIfZero(String word);
+
+    /**
+     * @return the number of distinct words held by the store
+     */
+    int size();
+
+    /**
+     * Calls the visitor once for every word in the store. Counts that change while the visit is in progress may or may
+     * not be reflected.
+     *
+     * @param visitor Visitor to call
+     * @throws IOException if the visitor fails
+     */
+    void visit(Visitor visitor) throws IOException;
+
+    /**
+     * Receives the words of a store, see {@link WordCountStore#visit(Visitor)}.
+     */
+    interface Visitor {
+        /**
+         * @param word Normalized word
+         * @param bucketCounts The count of the word in each visibility bucket. Only valid during the call.
+         */
+        void visit(String word, long[] bucketCounts) throws IOException;
+    }
+}
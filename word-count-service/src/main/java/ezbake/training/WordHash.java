@@ -0,0 +1,45 @@
+/*   Copyright (C) 2013-2014 Computer Sciences Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. */
+
+package ezbake.training;
+
+/**
+ * The 64-bit word hash shared by the probabilistic counting structures, so that a word is hashed once per addition no
+ * matter how many sketches it is added to.
+ */
+public final class WordHash {
+    private WordHash() {
+    }
+
+    /**
+     * FNV-1a over the UTF-16 code units of the word followed by the MurmurHash3 finalizer, so that every output bit
+     * depends on every input bit.
+     *
+     * @param word The word
+     * @return the 64-bit hash of the word
+     */
+    public static long of(String word) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < word.length(); i++) {
+            h ^= word.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
@@ -0,0 +1,108 @@
+/*   Copyright (C) 2013-2014 Computer Sciences Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. */
+
+
+package ezbake.training;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.Test;
+
+public class ApproximateWordCountStoreTest {
+    private static final int ROUNDS = 50;
+    private static final double EPSILON = 0.001;
+    private static final double DELTA = 0.001;
+    private static final int HEAVY_HITTERS = 100;
+
+    @Test
+    public void approximateCountsStayWithinTheirBoundOfExactCounts() throws Exception {
+        ApproximateWordCountStore approximate = new ApproximateWordCountStore(EPSILON, DELTA, HEAVY_HITTERS);
+        ConcurrentWordCountStore exact = new ConcurrentWordCountStore();
+        Set<String> vocabulary = new HashSet<>();
+        List<List<String>> tweets = TestTweets.words();
+        for (int round = 0; round < ROUNDS; round++) {
+            for (int tweet = 0; tweet < tweets.size(); tweet++) {
+                int bucket = tweet % VisibilityBuckets.COUNT;
+                for (String word : tweets.get(tweet)) {
+                    approximate.add(word, bucket, 1, null);
+                    exact.add(word, bucket, 1, null);
+                    vocabulary.add(word);
+                }
+            }
+        }
+
+        for (int mask = 1; mask < VisibilityBuckets.MASKS; mask++) {
+            long bound = approximate.getErrorBound(mask);
+            int outOfBound = 0;
+            for (String word : vocabulary) {
+                long trueCount = exact.get(word, mask);
+                long estimate = approximate.get(word, mask);
+                assertTrue(word + " is undercounted", estimate >= trueCount);
+                if (estimate - trueCount > bound) {
+                    outOfBound++;
+                }
+            }
+            // Each bucket's bound fails with probability delta, so allow a generous multiple of the expected failures
+            assertTrue(outOfBound + " words exceed the bound", outOfBound <= 10 * DELTA * VisibilityBuckets.COUNT
+                    * vocabulary.size() + 1);
+        }
+
+        // The most frequent words are known by name as heavy hitters
+        final Set<String> heavyHitters = new HashSet<>();
+        approximate.visit(new WordCountStore.Visitor() {
+            @Override
+            public void visit(String word, long[] bucketCounts) {
+                heavyHitters.add(word);
+            }
+        });
+        assertEquals(HEAVY_HITTERS, heavyHitters.size());
+        List<String> words = new ArrayList<>(vocabulary);
+        final ConcurrentWordCountStore counts = exact;
+        Collections.sort(words, new Comparator<String>() {
+            @Override
+            public int compare(String left, String right) {
+                return Long.compare(
+                        counts.get(right, VisibilityBuckets.MASKS - 1), counts.get(left, VisibilityBuckets.MASKS - 1));
+            }
+        });
+        for (String word : words.subList(0, 10)) {
+            assertTrue(word + " is not a heavy hitter", heavyHitters.contains(word));
+        }
+    }
+
+    @Test
+    public void restoreIsIdempotentAndNeverLowersACount() {
+        ApproximateWordCountStore store = new ApproximateWordCountStore(EPSILON, DELTA, HEAVY_HITTERS);
+        store.add("tweet", 1, 5, null);
+
+        store.restore("tweet", 1, 12);
+        assertEquals(12, store.get("tweet", 1 << 1));
+        store.restore("tweet", 1, 12);
+        assertEquals(12, store.get("tweet", 1 << 1));
+        store.restore("tweet", 1, 3);
+        assertEquals(12, store.get("tweet", 1 << 1));
+
+        store.restore("word", 2, 7);
+        assertEquals(7, store.get("word", 1 << 2));
+        assertEquals(0, store.get("word", 1 << 1));
+    }
+}
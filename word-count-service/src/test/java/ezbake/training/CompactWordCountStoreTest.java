@@ -0,0 +1,79 @@
+/*   Copyright (C) 2013-2014 Computer Sciences Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. */
+
+
+package ezbake.training;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.junit.Test;
+
+public class CompactWordCountStoreTest {
+    @Test
+    public void removedWordsLeaveTheOthersIntact() throws Exception {
+        Set<String> vocabulary = new LinkedHashSet<>();
+        for (List<String> tweet : TestTweets.words()) {
+            vocabulary.addAll(tweet);
+        }
+        List<String> words = new ArrayList<>(vocabulary);
+
+        // A single small segment makes the removals shift probe chains and compact the arena
+        CompactWordCountStore store = new CompactWordCountStore(16, 1);
+        for (int i = 0; i < words.size(); i++) {
+            store.add(words.get(i), i % VisibilityBuckets.COUNT, i + 1, null);
+        }
+
+        assertFalse("A word with a count was removed", store.removeIfZero(words.get(0)));
+        Map<String, Long> kept = new HashMap<>();
+        for (int i = 0; i < words.size(); i++) {
+            String word = words.get(i);
+            if (i % 3 == 0) {
+                kept.put(word, (long) i + 1);
+            } else {
+                store.add(word, i % VisibilityBuckets.COUNT, -(i + 1), null);
+                assertTrue(word + " was not removed", store.removeIfZero(word));
+            }
+        }
+        assertFalse("A missing word was removed", store.removeIfZero(words.get(1)));
+
+        assertEquals(kept.size(), store.size());
+        for (int i = 0; i < words.size(); i++) {
+            Long count = kept.get(words.get(i));
+            assertEquals(words.get(i), count == null ? 0L : count,
+                    store.get(words.get(i), VisibilityBuckets.MASKS - 1));
+        }
+        final Map<String, Long> visited = new HashMap<>();
+        store.visit(new WordCountStore.Visitor() {
+            @Override
+            public void visit(String word, long[] bucketCounts) {
+                visited.put(word, VisibilityBuckets.sum(bucketCounts, VisibilityBuckets.MASKS - 1));
+            }
+        });
+        assertEquals(kept, visited);
+
+        // Removed words start again from zero when they come back
+        store.add(words.get(1), 0, 1, null);
+        assertEquals(1L, store.get(words.get(1), VisibilityBuckets.MASKS - 1));
+        assertEquals(kept.size() + 1, store.size());
+    }
+}
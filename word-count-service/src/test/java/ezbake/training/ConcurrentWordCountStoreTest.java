@@ -0,0 +1,170 @@
+/*   Copyright (C) 2013-2014 Computer Sciences Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. */
+
+
+package ezbake.training;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Test;
+
+public class ConcurrentWordCountStoreTest {
+    private static final int THREADS = 32;
+    private static final int ROUNDS = 5;
+
+    @Test
+    public void concurrentAddsAreNeverLost() throws Exception {
+        final List<List<String>> tweets = TestTweets.words();
+        Map<String, long[]> expected = new HashMap<>();
+        for (int thread = 0; thread < THREADS; thread++) {
+            int bucket = thread % VisibilityBuckets.COUNT;
+            for (List<String> tweet : tweets) {
+                for (String word : tweet) {
+                    long[] counts = expected.get(word);
+                    if (counts == null) {
+                        counts = new long[VisibilityBuckets.COUNT];
+                        expected.put(word, counts);
+                    }
+                    counts[bucket] += ROUNDS;
+                }
+            }
+        }
+
+        // A small initial capacity makes the threads race to create words and to resize the map
+        final ConcurrentWordCountStore store = new ConcurrentWordCountStore(16, 4);
+        runConcurrently(new Adder() {
+            @Override
+            public void add(String word, int bucket) {
+                store.add(word, bucket, 1, null);
+            }
+        }, tweets);
+
+        assertEquals(expected.size(), store.size());
+        for (Map.Entry<String, long[]> entry : expected.entrySet()) {
+            for (int bucket = 0; bucket < VisibilityBuckets.COUNT; bucket++) {
+                assertEquals(entry.getKey() + " in bucket " + bucket, entry.getValue()[bucket],
+                        store.get(entry.getKey(), 1 << bucket));
+            }
+        }
+    }
+
+    @Test
+    public void removalsRacingWithAddsNeverLoseAnAdd() throws Exception {
+        final List<List<String>> tweets = TestTweets.words().subList(0, 100);
+        final ConcurrentWordCountStore store = new ConcurrentWordCountStore(16, 4);
+        final AtomicBoolean adding = new AtomicBoolean(true);
+        final AtomicLong removals = new AtomicLong();
+        Thread remover = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (adding.get()) {
+                    for (List<String> tweet : tweets) {
+                        for (String word : tweet) {
+                            if (store.removeIfZero(word)) {
+                                removals.incrementAndGet();
+                            }
+                        }
+                    }
+                }
+            }
+        });
+        remover.start();
+
+        // Each add is taken back straight away, so the counts keep returning to zero and words keep being removed
+        try {
+            runConcurrently(new Adder() {
+                @Override
+                public void add(String word, int bucket) {
+                    store.add(word, bucket, 1, null);
+                    store.add(word, bucket, -1, null);
+                }
+            }, tweets);
+        } finally {
+            adding.set(false);
+            remover.join();
+        }
+        assertTrue("No word was removed", removals.get() > 0);
+
+        runConcurrently(new Adder() {
+            @Override
+            public void add(String word, int bucket) {
+                store.add(word, bucket, 1, null);
+            }
+        }, tweets);
+        Map<String, Long> expected = new HashMap<>();
+        for (List<String> tweet : tweets) {
+            for (String word : tweet) {
+                Long count = expected.get(word);
+                expected.put(word, (count == null ? 0 : count) + (long) THREADS * ROUNDS);
+            }
+        }
+        for (Map.Entry<String, Long> entry : expected.entrySet()) {
+            assertEquals(entry.getKey(), (long) entry.getValue(),
+                    store.get(entry.getKey(), VisibilityBuckets.MASKS - 1));
+        }
+        assertEquals(expected.size(), store.size());
+    }
+
+    /**
+     * Adds every word of the tweets the given number of rounds from each of the threads, all started together.
+     */
+    private static void runConcurrently(final Adder adder, final List<List<String>> tweets) throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        try {
+            final CountDownLatch start = new CountDownLatch(1);
+            List<Future<Void>> results = new ArrayList<>();
+            for (int thread = 0; thread < THREADS; thread++) {
+                final int bucket = thread % VisibilityBuckets.COUNT;
+                results.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        start.await();
+                        for (int round = 0; round < ROUNDS; round++) {
+                            for (List<String> tweet : tweets) {
+                                for (String word : tweet) {
+                                    adder.add(word, bucket);
+                                }
+                            }
+                        }
+                        return null;
+                    }
+                }));
+            }
+
+            start.countDown();
+            for (Future<Void> result : results) {
+                result.get();
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    private interface Adder {
+        void add(String word, int bucket);
+    }
+}
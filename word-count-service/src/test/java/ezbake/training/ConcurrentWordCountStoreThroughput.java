@@ -0,0 +1,131 @@
+/*   Copyright (C) 2013-2014 Computer Sciences Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. */
+
+
+package ezbake.training;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Compares the add throughput of the concurrent word count store with that of the HashMap it replaced, locked so it
+ * does not lose updates. It is not a unit test, since its timings depend on the machine, so run it by hand, for
+ * example with {@code java ezbake.training.ConcurrentWordCountStoreThroughput 32 5}.
+ * <p/>
+ * Arguments: the number of threads, 32 by default, and the number of rounds each thread adds every word of the sample
+ * tweets, 5 by default.
+ */
+public final class ConcurrentWordCountStoreThroughput {
+    private static final int DEFAULT_THREADS = 32;
+    private static final int DEFAULT_ROUNDS = 5;
+
+    private ConcurrentWordCountStoreThroughput() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        int threads = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_THREADS;
+        int rounds = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_ROUNDS;
+        List<List<String>> tweets = TestTweets.words();
+
+        final ConcurrentWordCountStore store = new ConcurrentWordCountStore();
+        Adder concurrent = new Adder() {
+            @Override
+            public void add(String word, int bucket) {
+                store.add(word, bucket, 1, null);
+            }
+        };
+
+        final Map<String, Integer> map = new HashMap<>();
+        Adder synchronizedMap = new Adder() {
+            @Override
+            public void add(String word, int bucket) {
+                synchronized (map) {
+                    if (map.containsKey(word)) {
+                        map.put(word, map.get(word) + 1);
+                    } else {
+                        map.put(word, 1);
+                    }
+                }
+            }
+        };
+
+        // Warm up both before timing them
+        runConcurrently(concurrent, tweets, threads, rounds);
+        runConcurrently(synchronizedMap, tweets, threads, rounds);
+        long concurrentNanos = runConcurrently(concurrent, tweets, threads, rounds);
+        long synchronizedNanos = runConcurrently(synchronizedMap, tweets, threads, rounds);
+        if (map.size() != store.size()) {
+            throw new IllegalStateException("The store has " + store.size() + " words but the map " + map.size());
+        }
+
+        long adds = 0;
+        for (List<String> tweet : tweets) {
+            adds += tweet.size();
+        }
+        adds *= (long) threads * rounds;
+        System.out.printf("%d threads, %,d adds: concurrent store %,.0f adds/s, synchronized map %,.0f adds/s%n",
+                threads, adds, adds / (concurrentNanos / 1e9), adds / (synchronizedNanos / 1e9));
+    }
+
+    /**
+     * Adds every word of the tweets the given number of rounds from each of the threads, all started together.
+     *
+     * @return the nanoseconds from the start until every thread finished
+     */
+    private static long runConcurrently(final Adder adder, final List<List<String>> tweets, int threads,
+            final int rounds) throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            final CountDownLatch start = new CountDownLatch(1);
+            List<Future<Void>> results = new ArrayList<>();
+            for (int thread = 0; thread < threads; thread++) {
+                final int bucket = thread % VisibilityBuckets.COUNT;
+                results.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        start.await();
+                        for (int round = 0; round < rounds; round++) {
+                            for (List<String> tweet : tweets) {
+                                for (String word : tweet) {
+                                    adder.add(word, bucket);
+                                }
+                            }
+                        }
+                        return null;
+                    }
+                }));
+            }
+
+            long started = System.nanoTime();
+            start.countDown();
+            for (Future<Void> result : results) {
+                result.get();
+            }
+            return System.nanoTime() - started;
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    private interface Adder {
+        void add(String word, int bucket);
+    }
+}
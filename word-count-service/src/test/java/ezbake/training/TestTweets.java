@@ -0,0 +1,129 @@
+/*   Copyright (C) 2013-2014 Computer Sciences Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. */
+
+
+package ezbake.training;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * The words of the sample tweets shipped with the tweet-ingest pipeline, tokenized and normalized the way the
+ * tweet-word-divide pipeline counts them.
+ */
+final class TestTweets {
+    /*
+     * Relative to the module directory, which is the working directory of the tests.
+     */
+    private static final File SAMPLE = new File("../pipelines/tweet-ingest/src/main/resources/tweets1k.json");
+
+    private static final String TEXT_FIELD = "\"text\":\"";
+
+    private static List<List<String>> words;
+
+    private TestTweets() {
+    }
+
+    /**
+     * @return the counted words of every sample tweet, in file order
+     * @throws IOException if the sample cannot be read
+     */
+    static synchronized List<List<String>> words() throws IOException {
+        if (words != null) {
+            return words;
+        }
+
+        TweetTokenizer tokenizer = new TweetTokenizer();
+        WordNormalizer normalizer = WordNormalizer.fromProperties(new Properties());
+        List<List<String>> tweets = new ArrayList<>();
+        try (BufferedReader reader = new BufferedReader(
+                new InputStreamReader(new FileInputStream(SAMPLE), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String text = textOf(line);
+                if (text == null) {
+                    continue;
+                }
+
+                List<String> tweetWords = new ArrayList<>();
+                tokenizer.reset(text);
+                while (tokenizer.next()) {
+                    String word = normalizer.normalize(tokenizer);
+                    if (word != null) {
+                        tweetWords.add(word);
+                    }
+                }
+                tweets.add(tweetWords);
+            }
+        }
+        words = Collections.unmodifiableList(tweets);
+        return words;
+    }
+
+    /**
+     * Extracts the top level text of a tweet, which Twitter writes before any nested tweet.
+     */
+    private static String textOf(String json) {
+        int start = json.indexOf(TEXT_FIELD);
+        if (start < 0) {
+            return null;
+        }
+
+        StringBuilder text = new StringBuilder();
+        for (int i = start + TEXT_FIELD.length(); i < json.length(); i++) {
+            char c = json.charAt(i);
+            if (c == '"') {
+                return text.toString();
+            }
+            if (c != '\\') {
+                text.append(c);
+                continue;
+            }
+
+            char escaped = json.charAt(++i);
+            switch (escaped) {
+                case 'n':
+                    text.append('\n');
+                    break;
+                case 't':
+                    text.append('\t');
+                    break;
+                case 'r':
+                    text.append('\r');
+                    break;
+                case 'b':
+                    text.append('\b');
+                    break;
+                case 'f':
+                    text.append('\f');
+                    break;
+                case 'u':
+                    text.append((char) Integer.parseInt(json.substring(i + 1, i + 5), 16));
+                    i += 4;
+                    break;
+                default:
+                    text.append(escaped);
+            }
+        }
+        return null;
+    }
+}
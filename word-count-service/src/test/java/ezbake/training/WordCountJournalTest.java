@@ -0,0 +1,145 @@
+/*   Copyright (C) 2013-2014 Computer Sciences Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. */
+
+
+package ezbake.training;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class WordCountJournalTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void replayKeepsTheHighestCountAndAppliesResets() throws Exception {
+        File directory = folder.getRoot();
+        try (WordCountJournal journal = new WordCountJournal(directory, 0)) {
+            journal.append("tweet", 0, 3, false);
+            journal.append("tweet", 0, 5, false);
+            // Replaying a lower absolute count, as when a record is replayed twice, must not lower the count
+            journal.append("tweet", 0, 4, false);
+            journal.append("moved", 1, 7, false);
+            journal.append("moved", 1, 2, true);
+            journal.rotate();
+            journal.append("tweet", 2, 1, false);
+        }
+
+        ConcurrentWordCountStore store = new ConcurrentWordCountStore();
+        assertEquals(1, WordCountJournal.replay(directory, 0, store));
+        assertEquals(5, store.get("tweet", 1));
+        assertEquals(1, store.get("tweet", 1 << 2));
+        assertEquals(2, store.get("moved", 1 << 1));
+        assertEquals(Arrays.asList(0L, 1L), WordCountJournal.listSegments(directory));
+
+        ConcurrentWordCountStore fromSecond = new ConcurrentWordCountStore();
+        WordCountJournal.replay(directory, 1, fromSecond);
+        assertEquals(0, fromSecond.get("tweet", 1));
+        assertEquals(1, fromSecond.get("tweet", 1 << 2));
+    }
+
+    @Test
+    public void replayTruncatesATornRecordAtTheEnd() throws Exception {
+        File directory = folder.getRoot();
+        try (WordCountJournal journal = new WordCountJournal(directory, 0)) {
+            journal.append("first", 0, 1, false);
+            journal.append("second", 0, 2, false);
+        }
+        File segment = onlySegment(directory);
+        long intactLength = segment.length();
+
+        // A crash in the middle of a write leaves the start of a record behind
+        try (WordCountJournal journal = new WordCountJournal(directory, 0)) {
+            journal.append("torn", 0, 3, false);
+        }
+        try (RandomAccessFile raf = new RandomAccessFile(segment, "rw")) {
+            raf.setLength(raf.length() - 5);
+        }
+
+        ConcurrentWordCountStore store = new ConcurrentWordCountStore();
+        WordCountJournal.replay(directory, 0, store);
+        assertEquals(1, store.get("first", 1));
+        assertEquals(2, store.get("second", 1));
+        assertEquals(0, store.get("torn", 1));
+        assertEquals(intactLength, segment.length());
+
+        // Appending after the truncation must leave a journal that replays cleanly
+        try (WordCountJournal journal = new WordCountJournal(directory, 0)) {
+            journal.append("third", 0, 4, false);
+        }
+        ConcurrentWordCountStore replayed = new ConcurrentWordCountStore();
+        WordCountJournal.replay(directory, 0, replayed);
+        assertEquals(2, replayed.get("second", 1));
+        assertEquals(4, replayed.get("third", 1));
+    }
+
+    @Test
+    public void replayRefusesToDiscardIntactRecordsAfterADamagedOne() throws Exception {
+        File directory = folder.getRoot();
+        try (WordCountJournal journal = new WordCountJournal(directory, 0)) {
+            journal.append("first", 0, 1, false);
+            journal.append("second", 0, 2, false);
+            journal.append("third", 0, 3, false);
+        }
+        File segment = onlySegment(directory);
+        long length = segment.length();
+
+        // Flip a byte of the second word, which only damage other than a crash can do
+        int secondWordOffset = recordLength("first") + 4;
+        try (RandomAccessFile raf = new RandomAccessFile(segment, "rw")) {
+            raf.seek(secondWordOffset);
+            int value = raf.read();
+            raf.seek(secondWordOffset);
+            raf.write(value ^ 0xFF);
+        }
+
+        try {
+            WordCountJournal.replay(directory, 0, new ConcurrentWordCountStore());
+            fail("Replay discarded the records after a damaged record");
+        } catch (IOException e) {
+            assertEquals(length, segment.length());
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void appendRejectsWordsLongerThanReplayAccepts() throws Exception {
+        char[] word = new char[WordCountJournal.MAX_WORD_LENGTH + 1];
+        Arrays.fill(word, 'a');
+        try (WordCountJournal journal = new WordCountJournal(folder.getRoot(), 0)) {
+            journal.append(new String(word), 0, 1, false);
+        }
+    }
+
+    private static File onlySegment(File directory) {
+        File[] segments = directory.listFiles();
+        assertEquals(1, segments.length);
+        return segments[0];
+    }
+
+    /**
+     * @return the bytes of a record of an ASCII word: its length, the word, the bucket, the count and the CRC
+     */
+    private static int recordLength(String word) {
+        return 4 + word.length() + 1 + 8 + 4;
+    }
+}
@@ -0,0 +1,127 @@
+/*   Copyright (C) 2013-2014 Computer Sciences Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. */
+
+
+package ezbake.training;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class WordCountPersistenceTest {
+    /*
+     * Long enough that the scheduled snapshots never run during a test.
+     */
+    private static final long SNAPSHOT_INTERVAL_SECONDS = 3600;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void restoresTheSnapshotAndTheChangesLoggedAfterIt() throws Exception {
+        File directory = folder.getRoot();
+        List<List<String>> tweets = TestTweets.words();
+        int half = tweets.size() / 2;
+        String moved = tweets.get(0).get(0);
+
+        ConcurrentWordCountStore store = new ConcurrentWordCountStore();
+        try (WordCountPersistence persistence = open(store)) {
+            count(tweets.subList(0, half), store, persistence);
+            persistence.snapshot();
+            count(tweets.subList(half, tweets.size()), store, persistence);
+
+            // A word moved to another shard is logged as a reset and removed once it has no counts left
+            store.add(moved, 0, -store.get(moved, 1), null);
+            persistence.logReset(moved, 0, 0);
+            store.removeIfZero(moved);
+        }
+
+        // Only the snapshot and the segment logged since it remain
+        assertEquals(Arrays.asList(1L), WordCountJournal.listSegments(directory));
+        assertTrue(new File(directory, "snapshot-1.dat").isFile());
+
+        ConcurrentWordCountStore restored = new ConcurrentWordCountStore();
+        open(restored).close();
+        assertSameCounts(store, restored);
+        assertEquals(0, restored.get(moved, 1));
+    }
+
+    @Test
+    public void deletesSnapshotsLeftIncompleteByACrash() throws Exception {
+        File directory = folder.getRoot();
+        ConcurrentWordCountStore store = new ConcurrentWordCountStore();
+        try (WordCountPersistence persistence = open(store)) {
+            persistence.log("tweet", 0, store.add("tweet", 0, 1, null));
+            persistence.snapshot();
+        }
+
+        File temporary = new File(directory, "snapshot-2.tmp");
+        try (FileOutputStream out = new FileOutputStream(temporary)) {
+            out.write(new byte[] {1, 2, 3});
+        }
+
+        ConcurrentWordCountStore restored = new ConcurrentWordCountStore();
+        open(restored).close();
+        assertFalse(temporary.exists());
+        assertEquals(1, restored.get("tweet", 1));
+    }
+
+    private WordCountPersistence open(WordCountStore store) throws Exception {
+        return WordCountPersistence.open(folder.getRoot(), store, SNAPSHOT_INTERVAL_SECONDS);
+    }
+
+    /**
+     * Counts the words of each tweet in the visibility bucket picked by its index, logging every change.
+     */
+    private static void count(List<List<String>> tweets, WordCountStore store, WordCountPersistence persistence)
+            throws Exception {
+        long sequence = 0;
+        for (int tweet = 0; tweet < tweets.size(); tweet++) {
+            int bucket = tweet % VisibilityBuckets.COUNT;
+            for (String word : tweets.get(tweet)) {
+                sequence = persistence.log(word, bucket, store.add(word, bucket, 1, null));
+            }
+        }
+        persistence.awaitDurable(sequence);
+    }
+
+    private static void assertSameCounts(ConcurrentWordCountStore expected, ConcurrentWordCountStore actual)
+            throws Exception {
+        final Map<String, long[]> expectedCounts = new HashMap<>();
+        expected.visit(new WordCountStore.Visitor() {
+            @Override
+            public void visit(String word, long[] bucketCounts) {
+                expectedCounts.put(word, bucketCounts.clone());
+            }
+        });
+        assertEquals(expectedCounts.size(), actual.size());
+        for (Map.Entry<String, long[]> entry : expectedCounts.entrySet()) {
+            for (int bucket = 0; bucket < VisibilityBuckets.COUNT; bucket++) {
+                assertEquals(entry.getKey() + " in bucket " + bucket, entry.getValue()[bucket],
+                        actual.get(entry.getKey(), 1 << bucket));
+            }
+        }
+    }
+}
@@ -0,0 +1,146 @@
+/*   Copyright (C) 2013-2014 Computer Sciences Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. */
+
+
+package ezbake.training;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+import org.apache.thrift.TException;
+import org.junit.Before;
+import org.junit.Test;
+
+import ezbake.base.thrift.Authorizations;
+import ezbake.base.thrift.EzSecurityToken;
+
+public class WordCountResharderTest {
+    private static final List<String> OLD_SHARDS = Arrays.asList("words-a", "words-b");
+    private static final List<String> NEW_SHARDS = Arrays.asList("words-a", "words-b", "words-c");
+    private static final int BATCH_SIZE = 50;
+
+    private final Map<String, TweetWordCountServiceImpl> services = new HashMap<>();
+    private final Map<String, long[]> expected = new HashMap<>();
+
+    @Before
+    public void countSampleOnOldShards() throws Exception {
+        Properties properties = new Properties();
+        // Accept tokens that were not issued by a security service
+        properties.setProperty("ezbake.security.client.use.mock", "true");
+        for (String shard : NEW_SHARDS) {
+            services.put(shard, new TweetWordCountServiceImpl(properties));
+        }
+
+        List<List<String>> tweets = TestTweets.words();
+        for (int tweet = 0; tweet < tweets.size(); tweet++) {
+            for (String word : tweets.get(tweet)) {
+                long[] counts = expected.get(word);
+                if (counts == null) {
+                    counts = new long[VisibilityBuckets.COUNT];
+                    expected.put(word, counts);
+                }
+                counts[tweet % VisibilityBuckets.COUNT]++;
+            }
+        }
+
+        WordShardRing ring = new WordShardRing(OLD_SHARDS);
+        Map<String, List<WordLevelCounts>> shardCounts = new HashMap<>();
+        for (String shard : OLD_SHARDS) {
+            shardCounts.put(shard, new ArrayList<WordLevelCounts>());
+        }
+        for (Map.Entry<String, long[]> entry : expected.entrySet()) {
+            shardCounts.get(ring.shardFor(entry.getKey())).add(levelCounts(entry.getKey(), entry.getValue()));
+        }
+        for (String shard : OLD_SHARDS) {
+            services.get(shard).mergeCounts(shardCounts.get(shard), token(VisibilityBuckets.MASKS - 1));
+        }
+    }
+
+    @Test
+    public void reshardingMovesEveryWordToItsNewShardWithItsCounts() throws Exception {
+        WordCountResharder resharder = new WordCountResharder(new InProcessShards(), BATCH_SIZE);
+        long moved = resharder.reshard(OLD_SHARDS, NEW_SHARDS);
+        assertTrue("No words were moved", moved > 0);
+
+        WordShardRing ring = new WordShardRing(NEW_SHARDS);
+        List<String> words = new ArrayList<>(expected.keySet());
+        for (int bucket = 0; bucket < VisibilityBuckets.COUNT; bucket++) {
+            EzSecurityToken token = token(1 << bucket);
+            for (String shard : NEW_SHARDS) {
+                Map<String, Long> counts = services.get(shard).getCounts(words, token);
+                for (String word : words) {
+                    long count = shard.equals(ring.shardFor(word)) ? expected.get(word)[bucket] : 0L;
+                    assertEquals(word + " at level " + VisibilityBuckets.levelOf(bucket) + " on " + shard, count,
+                            (long) counts.get(word));
+                }
+            }
+        }
+
+        // Every word is in place, so running again moves nothing
+        assertEquals(0L, resharder.reshard(OLD_SHARDS, NEW_SHARDS));
+    }
+
+    private static WordLevelCounts levelCounts(String word, long[] bucketCounts) {
+        Map<String, Long> levelCounts = new HashMap<>();
+        for (int bucket = 0; bucket < VisibilityBuckets.COUNT; bucket++) {
+            if (bucketCounts[bucket] != 0) {
+                levelCounts.put(VisibilityBuckets.levelOf(bucket), bucketCounts[bucket]);
+            }
+        }
+        return new WordLevelCounts(word, levelCounts);
+    }
+
+    private static EzSecurityToken token(int mask) {
+        List<String> levels = new ArrayList<>();
+        for (int bucket = 0; bucket < VisibilityBuckets.COUNT; bucket++) {
+            if ((mask & (1 << bucket)) != 0) {
+                levels.add(VisibilityBuckets.levelOf(bucket));
+            }
+        }
+        EzSecurityToken token = new EzSecurityToken();
+        token.setAuthorizations(new Authorizations().setFormalAuthorizations(new HashSet<>(levels)));
+        return token;
+    }
+
+    /**
+     * Calls the services of this test directly instead of through Thrift.
+     */
+    private class InProcessShards implements WordCountResharder.Shards {
+        @Override
+        public EzSecurityToken fetchToken() {
+            return token(VisibilityBuckets.MASKS - 1);
+        }
+
+        @Override
+        public TweetWordCountService.Iface getClient(String shard) throws TException {
+            TweetWordCountService.Iface service = services.get(shard);
+            if (service == null) {
+                throw new TException("No such shard: " + shard);
+            }
+            return service;
+        }
+
+        @Override
+        public void returnClient(TweetWordCountService.Iface client) {
+        }
+    }
+}
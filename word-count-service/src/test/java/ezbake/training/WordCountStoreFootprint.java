@@ -0,0 +1,129 @@
+/*   Copyright (C) 2013-2014 Computer Sciences Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. */
+
+
+package ezbake.training;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Measures the heap held by each word count store, and by the HashMap the stores replaced, once it counts a number of
+ * distinct words, ten million by default. It is not a unit test, since it needs a few gigabytes of heap, so run it by
+ * hand, for example with {@code java -Xmx4g ezbake.training.WordCountStoreFootprint 10000000 compact}.
+ * <p/>
+ * Arguments: the number of distinct words, followed by the stores to measure, any of map, concurrent and compact. All
+ * three are measured if none are named. The words are generated, mostly six or seven characters long like most tweet
+ * words, and every word is added once to each visibility bucket.
+ */
+public final class WordCountStoreFootprint {
+    private static final int DEFAULT_WORDS = 10000000;
+
+    private WordCountStoreFootprint() {
+    }
+
+    public static void main(String[] args) {
+        int words = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_WORDS;
+        List<String> stores = args.length > 1
+                ? Arrays.asList(args).subList(1, args.length) : Arrays.asList("map", "concurrent", "compact");
+
+        System.out.printf("%-12s %12s %12s %12s %12s%n", "store", "words", "heap MB", "bytes/word", "gc ms");
+        for (String store : stores) {
+            measure(store, words);
+        }
+    }
+
+    private static void measure(String store, int words) {
+        long before = usedHeap();
+        long gcBefore = gcMillis();
+        Object counts = fill(store, words);
+        long gcMillis = gcMillis() - gcBefore;
+        long used = usedHeap() - before;
+        check(counts, words);
+        System.out.printf("%-12s %,12d %,12.1f %12.1f %,12d%n", store, words, used / 1e6, (double) used / words,
+                gcMillis);
+    }
+
+    private static Object fill(String store, int words) {
+        if ("map".equals(store)) {
+            Map<String, Integer> map = new HashMap<>();
+            for (int i = 0; i < words; i++) {
+                String word = word(i);
+                for (int bucket = 0; bucket < VisibilityBuckets.COUNT; bucket++) {
+                    Integer count = map.get(word);
+                    map.put(word, count == null ? 1 : count + 1);
+                }
+            }
+            return map;
+        }
+
+        WordCountStore counts;
+        if ("concurrent".equals(store)) {
+            counts = new ConcurrentWordCountStore();
+        } else if ("compact".equals(store)) {
+            counts = new CompactWordCountStore();
+        } else {
+            throw new IllegalArgumentException("Unknown store: " + store);
+        }
+        for (int i = 0; i < words; i++) {
+            String word = word(i);
+            for (int bucket = 0; bucket < VisibilityBuckets.COUNT; bucket++) {
+                counts.add(word, bucket, 1, null);
+            }
+        }
+        return counts;
+    }
+
+    /**
+     * Makes sure the counts are all there, which also keeps them reachable until the heap was measured.
+     */
+    private static void check(Object counts, int words) {
+        for (int i = 0; i < words; i += Math.max(1, words / 1000)) {
+            long count = counts instanceof WordCountStore
+                    ? ((WordCountStore) counts).get(word(i), VisibilityBuckets.MASKS - 1)
+                    : ((Map<?, ?>) counts).get(word(i)) == null ? 0 : (Integer) ((Map<?, ?>) counts).get(word(i));
+            if (count != VisibilityBuckets.COUNT) {
+                throw new IllegalStateException("Word " + word(i) + " has a count of " + count);
+            }
+        }
+    }
+
+    /**
+     * @return a distinct word for every index, scattered so that neighbouring indexes share no prefix
+     */
+    private static String word(int index) {
+        // Multiplying by an odd number maps distinct ints to distinct ints
+        return Long.toString((index * 0x9E3779B9) & 0xFFFFFFFFL, 36);
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    private static long gcMillis() {
+        long millis = 0;
+        for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+            millis += Math.max(0, collector.getCollectionTime());
+        }
+        return millis;
+    }
+}